@@ -1,4 +1,5 @@
 import com.github.jengelman.gradle.plugins.shadow.tasks.ShadowJar
+import gg.jte.ContentType
 import org.gradle.api.tasks.testing.logging.TestLogEvent.*
 
 plugins {
@@ -7,6 +8,10 @@ plugins {
     id("com.gradleup.shadow") version "9.0.0-beta10"
     // see if we'll use lombok later
     id("io.freefair.lombok") version "8.13"
+    // Benchmarks with JMH, in src/jmh/java
+    id("me.champeau.jmh") version "0.7.3"
+    // Compiles the JTE templates during the build; keep the same version as jteVersion below!
+    id("gg.jte.gradle") version "3.1.16"
 }
 
 group = "fr.domotique"
@@ -18,6 +23,7 @@ repositories {
 
 val vertxVersion = "5.0.0.CR5"
 val junitJupiterVersion = "5.9.1"
+val jteVersion = "3.1.16"
 
 val mainVerticleName = "fr.domotique.MainVerticle"
 val launcherClassName = "fr.domotique.Launcher"
@@ -49,8 +55,8 @@ dependencies {
     implementation("com.fasterxml.jackson.datatype:jackson-datatype-jdk8:2.18.3")
     implementation("org.openapitools:jackson-databind-nullable:0.2.6")
 
-    // JTE Templating support
-    implementation("io.vertx:vertx-web-templ-jte")
+    // JTE Templating support; the templates compiled by the Gradle plugin need the same JTE version
+    implementation("gg.jte:jte:$jteVersion")
 
     // Liquibase stuff
     implementation("org.liquibase:liquibase-core:4.27.0")
@@ -60,6 +66,9 @@ dependencies {
     // API documentation
     implementation("io.swagger.core.v3:swagger-core:2.2.28")
 
+    // Metrics
+    implementation("org.hdrhistogram:HdrHistogram:2.2.2")
+
     // Annotations
     compileOnly("org.jetbrains:annotations:26.0.2")
 
@@ -99,6 +108,15 @@ tasks.withType<Javadoc> {
     }
 }
 
+// Compile the JTE templates of src/back/views to Java classes, so they're compiled with the rest of the code and
+// shipped in the jar. The HTML of the templates is stored as UTF-8 bytes, see BinaryJteTemplateEngine.
+jte {
+    sourceDirectory = file("src/back/views").toPath()
+    contentType = ContentType.Html
+    binaryStaticContent = true
+    generate()
+}
+
 // Fix Lombok compilation (???)
 tasks.withType<JavaCompile> {
     options.compilerArgs.add("-implicit:class")
@@ -112,9 +130,9 @@ tasks.withType<ShadowJar> {
     mergeServiceFiles()
 
     // Put all resources in the shadow jar for release.
+    // Templates (views/) aren't needed: they're already compiled into the jar.
     from("src/back/") {
         include("assets/")
-        include("views/")
         into("/")
     }
 
@@ -129,6 +147,29 @@ tasks.withType<Test> {
     }
 }
 
+// Configure the benchmarks; run them with "gradle jmh"
+jmh {
+    jmhVersion = "1.37"
+    // Also measure allocations (bytes allocated per operation)
+    profilers = listOf("gc")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+}
+
+// Load tests, in src/loadtest/java: a generator of realistic data, and a traffic driver using the API.
+// Run them with "gradle loadTestData" then "gradle loadTest"; see fr.domotique.loadtest.LoadTest
+val loadtest by sourceSets.creating {
+    java.srcDir("src/loadtest/java")
+    compileClasspath += sourceSets["main"].output + sourceSets["main"].compileClasspath
+    runtimeClasspath += sourceSets["main"].output + sourceSets["main"].runtimeClasspath
+}
+
+dependencies {
+    "loadtestImplementation"(platform("io.vertx:vertx-stack-depchain:$vertxVersion"))
+    "loadtestImplementation"("io.vertx:vertx-web-client")
+}
+
 // Possible thing to do for better modularity. But right now it works so who cares anyway
 //tasks.named<ProcessResources>("processResources") {
 //    doLast {
@@ -171,6 +212,21 @@ tasks.register<JavaExec>("runSeed") {
     workingDir = rootDir.resolve("src/back")
 }
 
+// Create the "loadTestData" and "loadTest" tasks, taking their options from "-Ploadtest.xxx=value" arguments
+for ((taskName, command) in listOf("loadTestData" to "generate", "loadTest" to "run")) {
+    tasks.register<JavaExec>(taskName) {
+        group = "verification"
+        description = "Runs the \"$command\" command of the load tests"
+
+        mainClass = "fr.domotique.loadtest.LoadTest"
+        javaLauncher.set(javaToolchains.launcherFor(java.toolchain))
+        classpath = loadtest.runtimeClasspath
+        args = listOf(command)
+
+        systemProperties(project.properties.filterKeys { it.startsWith("loadtest.") })
+    }
+}
+
 // This block just adds the config-dev-local.properties file if it doesn't exist
 gradle.projectsEvaluated {
     val file = projectDir.resolve("src/back/resources/config-dev-local.properties")
@@ -72,19 +72,15 @@ public class Authenticator {
     public static final RequestException EMAIL_NOT_CONFIRMED_EXCEPTION
         = new RequestException("Vous devez confirmer votre adresse e-mail pour effectuer cette action.", 403, "EMAIL_NOT_CONFIRMED");
 
-    /// Creates a new authenticator for the current request, and the given logged-in user.
-    private Authenticator(RoutingContext ctx, Server server, @Nullable User loggedUser) {
+    /// Creates a new authenticator for the current request, and the session info of the logged-in user.
+    private Authenticator(RoutingContext ctx, Server server, UserTable.@Nullable SessionInfo info) {
         // Initialize boring dependencies
         this.ctx = ctx;
         this.server = server;
 
-        // If the user is logged in; use it!
-        if (loggedUser != null) {
-            this.user = loggedUser;
-            this.session = new SessionData(loggedUser.getId(),
-                loggedUser.getLevel(),
-                loggedUser.getRole(),
-                loggedUser.isEmailConfirmed());
+        // If the user is logged in; use it! The full User object will be queried later if needed.
+        if (info != null) {
+            this.session = new SessionData(info.id(), info.level(), info.role(), info.emailConfirmed());
         }
     }
 
@@ -93,15 +89,10 @@ public class Authenticator {
 
     /// Creates a new authenticator for the current request, that will request the user from the database.
     public static Future<Authenticator> create(RoutingContext ctx, Server server) {
-        // TODO: Make this less dumb. Right now, we're querying the user FOR EVERY REQUEST.
-        //       There's multiple solutions we can implement:
-        //       1. Store level & emailConfirmed in the session, and refresh sessions
-        //          on level/email change. But we need to have a userId->sessionId map.
-        //       2. Have a separate level/emailConfirmed cache, and refresh it on level/email change.
-        //       3. Cache the users completely. But now this will require extensive changes to how we query users
-        //       ------------
-        //       I'd say that solution 1 is preferred, since it has the best data locality.
-        //       But we'll implement that later!
+        // We need the level, role & emailConfirmed of the user FOR EVERY REQUEST.
+        // To avoid querying the database each time, UserTable keeps them in a cache shared by all verticles,
+        // which is invalidated when the user is updated or deleted, and refreshed when they get points.
+        // The full User object is only queried when someone calls getUser().
 
         // Get the user id from the session
         Integer sesUid = ctx.session().get(SESSION_UID_KEY);
@@ -110,8 +101,8 @@ public class Authenticator {
             return Future.succeededFuture(new Authenticator(ctx, server, null));
         }
 
-        return server.db().users().get(sesUid)
-            .map(u -> new Authenticator(ctx, server, u));
+        return server.db().users().getSessionInfo(sesUid)
+            .map(info -> new Authenticator(ctx, server, info));
     }
 
     /// Gets the authenticator from the current request. Guaranteed to succeed.
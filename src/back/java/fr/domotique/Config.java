@@ -1,5 +1,6 @@
 package fr.domotique;
 
+import fr.domotique.email.*;
 import io.vertx.ext.web.common.*;
 import org.jetbrains.annotations.*;
 import org.slf4j.*;
@@ -38,8 +39,22 @@ import java.util.*;
 /// @param sendGridToken `domotique.sendGridToken`: the SendGrid token to send emails; a null or blank value will default
 ///                                                 to the [Console email sender][fr.domotique.email.ConsoleEmail]
 /// @param sendGridEmail `domotique.sendGridEmail`: the email to send emails from, must be SendGrid "Single Sender Verification"
+/// @param sendGridUrl `domotique.sendGridUrl`: the URL of the SendGrid API sending emails; change it to use a fake
+///                    SendGrid server, like a local HTTP stub (default: [SendGridEmail#DEFAULT_API_URL][fr.domotique.email.SendGridEmail#DEFAULT_API_URL])
 /// @param adminCode `domotique.adminCode`: the code used to register a new account as an admin (default: "retraitons")
 /// @param seedDatabase `domotique.seedDatabase`: whether to seed the database or not, i.e. initialize it with default data (default: false)
+/// @param dataDirectory `domotique.dataDirectory`: the directory where the server keeps its local files, like the
+///                      points journal (default: "data")
+/// @param sessionStore `domotique.sessionStore`: where user sessions are stored, `local` (in memory) or `mysql`
+///                     (in the database, shared by all servers); see [SessionStoreType] (default: "local")
+/// @param powerLogRetentionMonths `domotique.powerLogRetentionMonths`: how many months of power logs are kept in the
+///                                database, before the current month; older months are archived to the data directory,
+///                                see [PowerLogRetentionVerticle][fr.domotique.api.energy.PowerLogRetentionVerticle].
+///                                0 keeps everything (default: 0)
+/// @param databasePool the tuning of the database connection pool, see [DatabasePool]
+/// @param metricsToken `domotique.metricsToken`: the secret token giving access to `GET /api/metrics` without logging in,
+///                     sent with the `Authorization: Bearer <token>` header (by Prometheus for example); when null or
+///                     blank, only administrators can see the metrics (default: null)
 /// @author Dynamic
 public record Config(
         String databaseUri,
@@ -47,8 +62,14 @@ public record Config(
         boolean isDevelopment,
         @Nullable String sendGridToken,
         @Nullable String sendGridEmail,
+        String sendGridUrl,
         String adminCode,
-        boolean seedDatabase
+        boolean seedDatabase,
+        Path dataDirectory,
+        SessionStoreType sessionStore,
+        int powerLogRetentionMonths,
+        DatabasePool databasePool,
+        @Nullable String metricsToken
 ) {
     // The logger to log stuff about configuration loading.
     private static final Logger log = LoggerFactory.getLogger(Config.class);
@@ -58,8 +79,63 @@ public record Config(
     private static final String PORT_PROP = "domotique.port";
     private static final String SENDGRID_TOKEN_PROP = "domotique.sendGridToken";
     private static final String SENDGRID_EMAIL_PROP = "domotique.sendGridEmail";
+    private static final String SENDGRID_URL_PROP = "domotique.sendGridUrl";
     private static final String ADMIN_CODE_PROP = "domotique.adminCode";
     private static final String SEED_DATABASE_PROP = "domotique.seedDatabase";
+    private static final String DATA_DIRECTORY_PROP = "domotique.dataDirectory";
+    private static final String SESSION_STORE_PROP = "domotique.sessionStore";
+    private static final String POWER_LOG_RETENTION_PROP = "domotique.powerLogRetentionMonths";
+    private static final String DB_POOL_SIZE_PROP = "domotique.dbPoolSize";
+    private static final String DB_WAIT_QUEUE_SIZE_PROP = "domotique.dbWaitQueueSize";
+    private static final String DB_STATEMENT_CACHE_SIZE_PROP = "domotique.dbStatementCacheSize";
+    private static final String DB_PIPELINING_LIMIT_PROP = "domotique.dbPipeliningLimit";
+    private static final String DB_IDLE_TIMEOUT_PROP = "domotique.dbIdleTimeoutSeconds";
+    private static final String METRICS_TOKEN_PROP = "domotique.metricsToken";
+
+    /// Where user sessions are stored.
+    public enum SessionStoreType {
+        /// In the memory of the server. Fast, but sessions are lost on restart, and can't be shared
+        /// between many servers.
+        LOCAL,
+        /// In the MySQL database, using the [MySQLSessionStore][fr.domotique.data.MySQLSessionStore].
+        /// Sessions survive restarts, and all servers share them.
+        MYSQL
+    }
+
+    /// How the connections to the database are managed. Use the [metrics][fr.domotique.base.metrics.DatabaseMetrics]
+    /// of `GET /api/metrics` to choose these values under real load.
+    ///
+    /// @param maxSize            `domotique.dbPoolSize`: the maximum number of connections (default: 100)
+    /// @param waitQueueSize      `domotique.dbWaitQueueSize`: how many queries can wait for a connection when they're all
+    ///                           busy; more queries fail right away instead of waiting forever. -1 for no limit (default: 1000)
+    /// @param statementCacheSize `domotique.dbStatementCacheSize`: how many prepared statements each connection keeps,
+    ///                           so they're not prepared again and again; 0 disables the cache (default: 256)
+    /// @param pipeliningLimit    `domotique.dbPipeliningLimit`: how many queries can be sent on a connection before
+    ///                           waiting for their responses (default: 16)
+    /// @param idleTimeoutSeconds `domotique.dbIdleTimeoutSeconds`: how long an unused connection stays open;
+    ///                           0 keeps them open forever (default: 300)
+    public record DatabasePool(int maxSize, int waitQueueSize, int statementCacheSize, int pipeliningLimit, int idleTimeoutSeconds) {
+        /// The default values, described above.
+        public static final DatabasePool DEFAULT = new DatabasePool(100, 1000, 256, 16, 300);
+
+        public DatabasePool {
+            if (maxSize < 1) {
+                throw new IllegalArgumentException("The database pool size (" + DB_POOL_SIZE_PROP + ") must be at least 1.");
+            }
+            if (waitQueueSize < -1) {
+                throw new IllegalArgumentException("The database wait queue size (" + DB_WAIT_QUEUE_SIZE_PROP + ") must be -1 or more.");
+            }
+            if (statementCacheSize < 0) {
+                throw new IllegalArgumentException("The statement cache size (" + DB_STATEMENT_CACHE_SIZE_PROP + ") can't be negative.");
+            }
+            if (pipeliningLimit < 1) {
+                throw new IllegalArgumentException("The pipelining limit (" + DB_PIPELINING_LIMIT_PROP + ") must be at least 1.");
+            }
+            if (idleTimeoutSeconds < 0) {
+                throw new IllegalArgumentException("The idle timeout (" + DB_IDLE_TIMEOUT_PROP + ") can't be negative.");
+            }
+        }
+    }
 
     // Constructor to check every value of the configuration.
     public Config {
@@ -69,6 +145,21 @@ public record Config(
         if (sendGridToken != null && sendGridEmail == null) {
             throw new IllegalArgumentException("The SendGrid email (" + SENDGRID_EMAIL_PROP + ") must be specified when the token is.");
         }
+        if (sendGridUrl == null || sendGridUrl.isBlank()) {
+            sendGridUrl = SendGridEmail.DEFAULT_API_URL;
+        }
+        if (sessionStore == null) {
+            sessionStore = SessionStoreType.LOCAL;
+        }
+        if (databasePool == null) {
+            databasePool = DatabasePool.DEFAULT;
+        }
+        if (powerLogRetentionMonths < 0) {
+            throw new IllegalArgumentException("The power log retention (" + POWER_LOG_RETENTION_PROP + ") can't be negative.");
+        }
+        if (metricsToken != null && metricsToken.isBlank()) {
+            metricsToken = null;
+        }
     }
 
     /**
@@ -120,10 +211,42 @@ public record Config(
         }
         String sendGridToken = props.getProperty(SENDGRID_TOKEN_PROP);
         String sendGridEmail = props.getProperty(SENDGRID_EMAIL_PROP);
+        String sendGridUrl = props.getProperty(SENDGRID_URL_PROP);
         String adminCode = props.getProperty(ADMIN_CODE_PROP, "retraitons");
         boolean seedDatabase = Boolean.parseBoolean(props.getProperty(SEED_DATABASE_PROP, "false"));
+        Path dataDirectory = Path.of(props.getProperty(DATA_DIRECTORY_PROP, "data"));
+        String sessionStore = props.getProperty(SESSION_STORE_PROP, "local");
+        SessionStoreType sessionStoreType;
+        try {
+            sessionStoreType = SessionStoreType.valueOf(sessionStore.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The session store (" + SESSION_STORE_PROP + "=" + sessionStore + ") must be 'local' or 'mysql'.");
+        }
+        int powerLogRetentionMonths = readInt(props, POWER_LOG_RETENTION_PROP, 0);
+        var databasePool = new DatabasePool(
+            readInt(props, DB_POOL_SIZE_PROP, DatabasePool.DEFAULT.maxSize()),
+            readInt(props, DB_WAIT_QUEUE_SIZE_PROP, DatabasePool.DEFAULT.waitQueueSize()),
+            readInt(props, DB_STATEMENT_CACHE_SIZE_PROP, DatabasePool.DEFAULT.statementCacheSize()),
+            readInt(props, DB_PIPELINING_LIMIT_PROP, DatabasePool.DEFAULT.pipeliningLimit()),
+            readInt(props, DB_IDLE_TIMEOUT_PROP, DatabasePool.DEFAULT.idleTimeoutSeconds())
+        );
+
+        return new Config(dbUri, intPort, isDevelopment, sendGridToken, sendGridEmail, sendGridUrl, adminCode, seedDatabase,
+            dataDirectory, sessionStoreType, powerLogRetentionMonths, databasePool, props.getProperty(METRICS_TOKEN_PROP));
+    }
+
+    // Reads an integer property, or returns the default value when it's not there.
+    private static int readInt(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
 
-        return new Config(dbUri, intPort, isDevelopment, sendGridToken, sendGridEmail, adminCode, seedDatabase);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The property " + name + "=" + value + " must be an integer.");
+        }
     }
 
     private static boolean tryLoadStream(Properties props, InputStream is, String fileName) {
@@ -2,6 +2,7 @@ package fr.domotique;
 
 import com.fasterxml.jackson.core.*;
 import com.fasterxml.jackson.databind.Module;
+import fr.domotique.base.metrics.*;
 import io.vertx.core.*;
 import io.vertx.core.json.jackson.*;
 import io.vertx.launcher.application.*;
@@ -14,6 +15,12 @@ import io.vertx.launcher.application.*;
 public class Launcher extends VertxApplication {
     public Launcher(String[] args) {
         super(args, new VertxApplicationHooks() {
+            @Override
+            public void beforeStartingVertx(HookContext context) {
+                // Context locals can only be registered before Vert.x is created.
+                RequestMetrics.registerContextLocal();
+            }
+
             @Override
             public void beforeDeployingVerticle(HookContext context) {
                 // Make sure we launch our MainVerticle with a virtual thread
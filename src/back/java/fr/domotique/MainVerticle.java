@@ -3,9 +3,13 @@ package fr.domotique;
 import com.fasterxml.jackson.core.*;
 import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.datatype.jdk8.*;
+import fr.domotique.api.actionlogs.*;
+import fr.domotique.api.devices.*;
+import fr.domotique.api.energy.*;
 import fr.domotique.api.users.*;
 import fr.domotique.base.*;
 import fr.domotique.base.data.*;
+import fr.domotique.base.metrics.*;
 import fr.domotique.data.*;
 import fr.domotique.email.*;
 import io.vertx.core.*;
@@ -14,7 +18,6 @@ import io.vertx.core.json.jackson.*;
 import io.vertx.ext.auth.prng.*;
 import io.vertx.ext.web.*;
 import io.vertx.ext.web.sstore.*;
-import io.vertx.ext.web.templ.jte.*;
 import io.vertx.mysqlclient.*;
 import io.vertx.sqlclient.*;
 import io.vertx.sqlclient.PoolOptions;
@@ -23,6 +26,7 @@ import org.openapitools.jackson.nullable.*;
 import org.slf4j.*;
 
 import java.io.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.*;
 
 /// This is the starting point of our web server application.
@@ -55,6 +59,9 @@ public class MainVerticle extends VerticleBase {
     // The logger used to print messages to the console with nice colors.
     private static final Logger log = LoggerFactory.getLogger(MainVerticle.class);
 
+    // The session store, closed when the server stops.
+    private SessionStore sessionStore;
+
     static {
         // Register the Java 8 module for JSON serialization so we can use Optional<T>.
         DatabindCodec.mapper().registerModule(new Jdk8Module().configureReadAbsentAsNull(true));
@@ -68,8 +75,25 @@ public class MainVerticle extends VerticleBase {
         // Load the configuration from the various config-xxx.properties files.
         Config config = Config.load();
 
-        // Create a new SqlClient to connect to the MySQL database
-        SqlClient client = MySQLBuilder.client().with(new PoolOptions().setMaxSize(100)).connectingTo(config.databaseUri()).using(vertx).build();
+        // Create a new pool of connections to the MySQL database; it's also an SqlClient, but allows transactions.
+        // Pipelining lets us send many queries on the same connection without waiting for each response,
+        // very useful for transactions (see DatabaseTransaction).
+        // Each connection keeps its prepared statements in a small LRU cache, so the same SQL isn't prepared twice.
+        Config.DatabasePool poolConfig = config.databasePool();
+        MySQLConnectOptions connectOptions = MySQLConnectOptions.fromUri(config.databaseUri())
+            .setPipeliningLimit(poolConfig.pipeliningLimit())
+            .setCachePreparedStatements(poolConfig.statementCacheSize() > 0)
+            .setPreparedStatementCacheMaxSize(Math.max(poolConfig.statementCacheSize(), 1));
+        PoolOptions poolOptions = new PoolOptions()
+            .setMaxSize(poolConfig.maxSize())
+            .setMaxWaitQueueSize(poolConfig.waitQueueSize())
+            .setIdleTimeout(poolConfig.idleTimeoutSeconds())
+            .setIdleTimeoutUnit(TimeUnit.SECONDS);
+        Pool client = MySQLBuilder.pool().with(poolOptions).connectingTo(connectOptions).using(vertx).build();
+
+        // Measure how long we wait for connections, see DatabaseMetrics.
+        DatabaseMetrics.configure(client, poolConfig.maxSize(), poolConfig.statementCacheSize());
+        DatabaseMetrics.startPoolProbe(vertx, client);
 
         // Run a test query to make sure the database is correctly connected.
         try {
@@ -93,49 +117,80 @@ public class MainVerticle extends VerticleBase {
         // Create the Database object containing all our tables for easy access.
         Database db = new Database(client);
 
-        // Create the session store, storing user sessions for logged-in users, currently in-memory.
-        LocalSessionStore sessionStore = LocalSessionStore.create(vertx);
+        // Load all device types in memory, they're read all the time but barely change.
+        db.deviceTypes().startCache(vertx).await();
+
+        // Share table versions with other servers using the database, so their ETags stay correct. See TableVersions.
+        TableVersions.share(vertx, client).await();
 
-        // Make the JTE templating engine, so we can render HTML
-        JteTemplateEngine templateEngine = JteTemplateEngine.create(vertx, "views");
+        // Device changes are sent to dashboards by all RouterVerticles, see DeviceEvents.
+        vertx.eventBus().registerDefaultCodec(DeviceEvents.Message.class, new LocalCodec<>(DeviceEvents.Message.class));
+        // Same for points, sent to all PointsVerticle shards.
+        vertx.eventBus().registerDefaultCodec(AddPointsMessage.class, new LocalCodec<>(AddPointsMessage.class));
+
+        // Create the session store, storing user sessions for logged-in users: in-memory, or in the database
+        // when we have many servers.
+        sessionStore = switch (config.sessionStore()) {
+            case LOCAL -> LocalSessionStore.create(vertx);
+            case MYSQL -> new MySQLSessionStore(vertx, db.sessions());
+        };
+        log.info("Using the {} session store", config.sessionStore().name().toLowerCase());
+
+        // Make the JTE templating engine, so we can render HTML; templates are compiled during the build,
+        // except in development mode. See BinaryJteTemplateEngine.
+        BinaryJteTemplateEngine templateEngine = BinaryJteTemplateEngine.create(config.isDevelopment());
 
         // Create the e-mail client to send mails using SendGrid or the console (depending on the configuration)
-        EmailSender email;
+        EmailSender emailService;
         if (config.sendGridToken() != null) {
-            email = new SendGridEmail(vertx, config.sendGridToken(), config.sendGridEmail());
+            emailService = new SendGridEmail(vertx, config.sendGridUrl(), config.sendGridToken(), config.sendGridEmail());
             log.info("Using SendGrid email service using email {}", config.sendGridEmail());
         } else {
-            email = new ConsoleEmail();
+            emailService = new ConsoleEmail();
             log.info("Using console email service");
         }
 
+        // Routes only put e-mails in the outbox; the EmailOutboxVerticle sends them using the e-mail service.
+        EmailSender email = new EmailOutbox(vertx, db.emailOutbox());
+
         // Create the server object, with our new SqlClient and the configuration
         var server = new Server(client, db, sessionStore, templateEngine, email, config, vertx);
 
         // Set how many instances of RouterVerticle to deploy (one per CPU)
         var options = new DeploymentOptions().setInstances(Runtime.getRuntime().availableProcessors()).setThreadingModel(ThreadingModel.EVENT_LOOP);
+        // Same for the VirtualThreadVerticles, running the routes made with Section.vt
+        var vtOptions = new DeploymentOptions().setInstances(options.getInstances()).setThreadingModel(ThreadingModel.VIRTUAL_THREAD);
 
         // Launch the Vue Development Server in dev mode, and if it's not yet launched of course.
         if (config.isDevelopment()) {
             launchVueDevServer();
         }
 
-        // Deploy RouterVerticles and log the server address when ready
-        // Also deploy other verticles, like the PointsVerticle
-        return vertx.deployVerticle(() -> new RouterVerticle(server), options)
+        // Deploy the ActionLogVerticle and VirtualThreadVerticles first, so routers can use them as soon as they're ready.
+        // Then deploy RouterVerticles and log the server address when ready
+        // Also deploy other verticles, like the PointsVerticle shards (one per CPU too)
+        return vertx.deployVerticle(new ActionLogVerticle(server))
+            .compose(_ -> vertx.deployVerticle(() -> new VirtualThreadVerticle(), vtOptions))
+            .compose(_ -> vertx.deployVerticle(() -> new RouterVerticle(server), options))
             .andThen(x -> {
                 log.info("Server ready at http://localhost:{} ({} instances)", config.port(), options.getInstances());
                 if (config.isDevelopment()) {
                     log.info("API documentation is available at http://localhost:{}/api-docs", config.port());
                 }
             })
-            .compose(_ -> vertx.deployVerticle(new PointsVerticle(server)));
+            .compose(_ -> PointsVerticle.deployShards(vertx, server, options.getInstances()))
+            .compose(_ -> vertx.deployVerticle(new PowerLogRetentionVerticle(server),
+                new DeploymentOptions().setThreadingModel(ThreadingModel.VIRTUAL_THREAD)))
+            .compose(_ -> vertx.deployVerticle(new EmailOutboxVerticle(db.emailOutbox(), emailService)))
+            .andThen(_ -> convertDeviceAttributes(db));
     }
 
     @Override
     public Future<?> stop() {
-        // Close the [experimental!] Virtual Thread Executor
-        Section.vtExecutor.close();
+        // Write pending session data (only the MySQL store has some)
+        if (sessionStore != null) {
+            sessionStore.close();
+        }
         return Future.succeededFuture();
     }
 
@@ -176,6 +231,18 @@ public class MainVerticle extends VerticleBase {
             });
     }
 
+    // Converts device attributes still stored in JSON to the binary format, in the background.
+    // The server works fine in the meantime, it just reads the JSON version.
+    private void convertDeviceAttributes(Database db) {
+        db.devices().backfillBinaryAttributes()
+            .onSuccess(n -> {
+                if (n > 0) {
+                    log.info("Converted the attributes of {} devices to the binary format", n);
+                }
+            })
+            .onFailure(e -> log.error("Failed to convert device attributes to the binary format", e));
+    }
+
     private Future<Void> seedDatabase(Config config, SqlClient client) {
         try {
             log.info("Running any migration before seeding the database...");
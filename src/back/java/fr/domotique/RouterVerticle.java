@@ -7,11 +7,13 @@ import fr.domotique.api.energy.*;
 import fr.domotique.api.health.*;
 import fr.domotique.api.invitecodes.*;
 import fr.domotique.api.loginlogs.*;
+import fr.domotique.api.metrics.*;
 import fr.domotique.api.rooms.*;
 import fr.domotique.api.userevents.*;
 import fr.domotique.api.users.*;
 import fr.domotique.base.*;
 import fr.domotique.base.apidocs.*;
+import fr.domotique.base.metrics.*;
 import io.vertx.core.*;
 import io.vertx.core.http.*;
 import io.vertx.core.json.*;
@@ -78,7 +80,8 @@ public class RouterVerticle extends VerticleBase {
             new ActionLogSection(server),
             new HealthSection(server),
             new EnergySection(server),
-            new InviteCodeSection(server)
+            new InviteCodeSection(server),
+            new MetricsSection(server)
         };
     }
 
@@ -94,6 +97,9 @@ public class RouterVerticle extends VerticleBase {
         // Create a new router to handle different URLs
         var r = Router.router(vertx);
 
+        // Measure the latency of all API requests, before doing anything else. See the Metrics class.
+        r.route("/api/*").handler(RequestMetrics.handler(RouteIndex.of(r)));
+
         // Limit the incoming requests to 128KB of data, for better security.
         // Could also be used later on to add support for file uploads.
         r.route("/api/*").handler(BodyHandler.create().setBodyLimit(128 * 1024 * 1024));
@@ -117,7 +123,8 @@ public class RouterVerticle extends VerticleBase {
         // Add an error handler to show a nice error page when something UNEXPECTED goes wrong
         r.route("/api/*").failureHandler(ErrorHandler.create(vertx));
 
-        // Make sure the client does NOT cache requests to the API.
+        // Make sure the client does NOT use cached responses of the API without asking us first.
+        // (Some routes use ETags so we can answer "304 Not Modified" quickly; see Section.etag)
         r.route("/api/*").handler(ctx -> {
             ctx.response().putHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
             ctx.next();
@@ -145,7 +152,9 @@ public class RouterVerticle extends VerticleBase {
         // note to self: ctx.addEndHandlers can be useful for middlewares
 
         // Create and start the HTTP server
-        return vertx.createHttpServer()
+        // Compress responses with gzip or deflate when the browser supports it; JSON compresses really well.
+        var httpOptions = new HttpServerOptions().setCompressionSupported(true);
+        return vertx.createHttpServer(httpOptions)
             .requestHandler(r)
             .listen(server.config().port());
     }
@@ -24,7 +24,7 @@ import io.vertx.sqlclient.*;
 /// @param sessionStore the session store, which stores user sessions for logged-in users
 ///                     (note: you usually don't need to use it directly, just use `RoutingContext#session()`)
 /// @param templateEngine the template engine to render HTML templates using JTE
-/// @param email the email sender to send emails to users
+/// @param email the email sender to send emails to users; it's an [EmailOutbox], so emails are sent in the background
 /// @param config the configuration of the server
 /// @param vertx the Vert.x instance
 public record Server(SqlClient sql,
@@ -0,0 +1,89 @@
+package fr.domotique;
+
+import fr.domotique.base.metrics.*;
+import io.vertx.core.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.*;
+
+/// A verticle deployed with the [virtual thread][ThreadingModel#VIRTUAL_THREAD] threading model, which runs
+/// the route handlers written in a blocking style, using `await()`.
+///
+/// ## Two ways to write a route handler
+///
+/// [RouterVerticle]s run on event loops: their handlers must never block, so they chain [Future]s using
+/// `compose`, `map`... That's the fastest, but it's a bit hard to write and read.
+///
+/// Handlers wrapped with [Section#vt][fr.domotique.base.Section] can be written like normal Java code instead,
+/// using `future.await()` to wait for the database. They're sent to one of these verticles using [#run(Callable)],
+/// and run in a virtual thread: waiting only pauses the virtual thread, never the event loop.
+///
+/// ## How many?
+///
+/// One virtual thread context runs its tasks one after the other, but switches to the next task as soon as one
+/// waits. So, to use all CPUs, we deploy one of these verticles per CPU, like the [RouterVerticle]s, and
+/// handlers are spread between them.
+public class VirtualThreadVerticle extends VerticleBase {
+    /// The contexts of all deployed verticles.
+    private static final CopyOnWriteArrayList<Context> contexts = new CopyOnWriteArrayList<>();
+    /// The index of the next context to use, increasing forever.
+    private static final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public Future<?> start() throws Exception {
+        contexts.add(context);
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<?> stop() throws Exception {
+        contexts.remove(context);
+        return Future.succeededFuture();
+    }
+
+    /// Runs `task` in a virtual thread of one of the deployed verticles, where it can use `await()`.
+    ///
+    /// The database queries of the task are counted in the [RequestMetrics] of the current request.
+    ///
+    /// The returned future is completed on the context of the caller (when there is one), so its callbacks run
+    /// there, like any other future of the caller, and not in the virtual thread.
+    ///
+    /// @return a future completed with the result of the task, or failed with the exception it threw
+    public static <T> Future<T> run(Callable<T> task) {
+        Context target = pick();
+        Context caller = Vertx.currentContext();
+        RequestMetrics metrics = RequestMetrics.current();
+
+        Promise<T> promise = Promise.promise();
+        target.runOnContext(_ -> {
+            RequestMetrics.bindToThread(metrics);
+            AsyncResult<T> result;
+            try {
+                result = Future.succeededFuture(task.call());
+            } catch (Throwable e) {
+                result = Future.failedFuture(e);
+            } finally {
+                RequestMetrics.bindToThread(null);
+            }
+
+            if (caller != null) {
+                AsyncResult<T> r = result;
+                caller.runOnContext(_ -> promise.handle(r));
+            } else {
+                promise.handle(result);
+            }
+        });
+        return promise.future();
+    }
+
+    private static Context pick() {
+        // Take a copy: the list might change while we're picking.
+        Object[] all = contexts.toArray();
+        if (all.length == 0) {
+            throw new IllegalStateException("No VirtualThreadVerticle has been deployed.");
+        }
+
+        return (Context) all[Math.floorMod(next.getAndIncrement(), all.length)];
+    }
+}
@@ -0,0 +1,42 @@
+package fr.domotique.api.actionlogs;
+
+import fr.domotique.*;
+import fr.domotique.data.*;
+import io.vertx.core.*;
+import io.vertx.core.eventbus.*;
+
+/// Contains common logic, operations and functions for action logs.
+public final class ActionLogOperations {
+    private ActionLogOperations() {
+    }
+
+    /// Logs an action in the background, thanks to the [ActionLogVerticle].
+    ///
+    /// The returned future completes as soon as the log is queued, which is way faster than
+    /// waiting for an `INSERT`. When the queue is full, it completes once the log has been written instead.
+    ///
+    /// If the [ActionLogVerticle] isn't running, or refuses the log, the log is inserted directly.
+    ///
+    /// ## Example
+    /// ```java
+    /// ActionLogOperations.enqueue(server, new ActionLog(
+    ///     auth.getUserId(),
+    ///     room.getId(),
+    ///     ActionLogTarget.ROOM,
+    ///     ActionLogOperation.CREATE
+    /// )).await();
+    /// ```
+    public static Future<Void> enqueue(Server server, ActionLog log) {
+        return server.vertx().eventBus().request(ActionLogVerticle.CHANNEL, log)
+            .<Void>mapEmpty()
+            .recover(err -> {
+                // A timeout means the log is still queued, but the database is slow. Don't insert it twice!
+                if (err instanceof ReplyException re && re.failureType() == ReplyFailure.TIMEOUT) {
+                    return Future.succeededFuture();
+                }
+
+                // No verticle, or the queue is full: write it ourselves.
+                return server.db().actionLogs().insert(log).mapEmpty();
+            });
+    }
+}
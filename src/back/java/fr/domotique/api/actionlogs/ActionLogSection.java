@@ -4,7 +4,9 @@ import fr.domotique.*;
 import fr.domotique.base.*;
 import fr.domotique.base.apidocs.*;
 import fr.domotique.data.*;
+import io.vertx.core.*;
 import io.vertx.ext.web.*;
+import org.jetbrains.annotations.*;
 
 import java.util.*;
 
@@ -13,6 +15,11 @@ public class ActionLogSection extends Section {
         super(server);
     }
 
+    /// The number of logs in a page when there's no `limit`.
+    static final int DEFAULT_PAGE_SIZE = 100;
+    /// The maximum value of the `limit` parameter.
+    static final int MAX_PAGE_SIZE = 1000;
+
     @Override
     public void register(Router router) {
         var subRouter = newSubRouter(router, "/api/action-logs*")
@@ -27,26 +34,61 @@ public class ActionLogSection extends Section {
             ctx.next();
         });
 
-        // GET /api/action-logs?userId&operation&target&desc
+        // GET /api/action-logs?userId&operation&target&since&until&cursor&limit&desc
         subRouter.get()
-            .respond(ctx -> {
-                var query = new ActionLogTable.Query(
-                    readIntOrNull(ctx.queryParams().get("userId")),
-                    readEnumOrNull(ActionLogOperation.class, ctx.queryParams().get("operation")),
-                    readEnumOrNull(ActionLogTarget.class, ctx.queryParams().get("target")),
-                    !ctx.queryParams().contains("desc") || Boolean.parseBoolean(ctx.queryParams().get("desc"))
-                );
-                return server.db().actionLogs().query(query)
-                    .map(ActionLogsResponse::new);
-            })
+            .respond(this::getActionLogs)
             .putMetadata(RouteDoc.KEY, new RouteDoc("getActionLogs")
                 .summary("Get filtered action logs")
-                .description("Returns a list of action logs filtered by the provided parameters")
+                .description("""
+                    Returns a page of action logs filtered by the provided parameters, sorted by time.
+                    
+                    To get the next page, send the same request with the `nextCursor` of the response as `cursor`.
+                    When `nextCursor` is null, there's no more logs.""")
                 .optionalQueryParam("userId", int.class, "Filter logs by the user who performed the action")
                 .optionalQueryParam("operation", ActionLogOperation.class, "Filter logs by operation type")
                 .optionalQueryParam("target", ActionLogTarget.class, "Filter logs by target type")
-                .optionalQueryParam("desc", boolean.class, "Sort in descending order by time if true, ascending if false. Default is false.")
-                .response(200, ActionLogsResponse.class, "The filtered list of action logs"));
+                .optionalQueryParam("since", String.class, ParamDoc.Format.DATE_TIME, "Only logs at this time or after (ISO format)")
+                .optionalQueryParam("until", String.class, ParamDoc.Format.DATE_TIME, "Only logs before this time (ISO format)")
+                .optionalQueryParam("cursor", String.class, "The `nextCursor` of the previous page")
+                .optionalQueryParam("limit", int.class, "The maximum number of logs to return, between 1 and " + MAX_PAGE_SIZE
+                                                        + ". Default is " + DEFAULT_PAGE_SIZE + ".")
+                .optionalQueryParam("desc", boolean.class, "Sort in descending order by time if true, ascending if false. Default is true.")
+                .response(200, ActionLogsResponse.class, "The filtered list of action logs")
+                .response(422, ErrorResponse.class, "Invalid date, cursor or limit."));
+    }
+
+    Future<ActionLogsResponse> getActionLogs(RoutingContext ctx) {
+        String limitStr = ctx.queryParams().get("limit");
+        Integer limit = readIntOrNull(limitStr);
+        if (limitStr == null) {
+            limit = DEFAULT_PAGE_SIZE;
+        } else if (limit == null || limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new RequestException("La limite doit être comprise entre 1 et " + MAX_PAGE_SIZE + ".", 422, "INVALID_LIMIT");
+        }
+
+        ActionLogTable.Cursor cursor = null;
+        String cursorStr = ctx.queryParams().get("cursor");
+        if (cursorStr != null) {
+            try {
+                cursor = ActionLogTable.Cursor.parse(cursorStr);
+            } catch (IllegalArgumentException e) {
+                throw new RequestException("Le curseur est invalide.", 422, "INVALID_CURSOR");
+            }
+        }
+
+        var query = new ActionLogTable.Query(
+            readIntOrNull(ctx.queryParams().get("userId")),
+            readEnumOrNull(ActionLogOperation.class, ctx.queryParams().get("operation")),
+            readEnumOrNull(ActionLogTarget.class, ctx.queryParams().get("target")),
+            readInstantOrNull(ctx, "since"),
+            readInstantOrNull(ctx, "until"),
+            cursor,
+            limit,
+            !ctx.queryParams().contains("desc") || Boolean.parseBoolean(ctx.queryParams().get("desc"))
+        );
+        return server.db().actionLogs().query(query)
+            .map(page -> new ActionLogsResponse(page.logs(),
+                page.nextCursor() != null ? page.nextCursor().toString() : null));
     }
 
     private <T extends Enum<T>> T readEnumOrNull(Class<T> enumClass, String value) {
@@ -60,5 +102,6 @@ public class ActionLogSection extends Section {
         }
     }
 
-    record ActionLogsResponse(List<CompleteActionLog> logs) {}
+    /// @param nextCursor the `cursor` parameter to use to get the next page; `null` when there's no more logs
+    record ActionLogsResponse(List<CompleteActionLog> logs, @Nullable @ApiDoc(optional = true) String nextCursor) {}
 }
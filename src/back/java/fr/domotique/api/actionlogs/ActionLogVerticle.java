@@ -0,0 +1,212 @@
+package fr.domotique.api.actionlogs;
+
+import fr.domotique.*;
+import fr.domotique.base.*;
+import fr.domotique.base.data.*;
+import fr.domotique.data.*;
+import io.vertx.core.*;
+import io.vertx.core.eventbus.*;
+import io.vertx.sqlclient.DatabaseException;
+import org.slf4j.*;
+
+import java.util.*;
+
+/// A background verticle that writes [action logs][ActionLog] to the database, many at once.
+///
+/// Use [ActionLogOperations#enqueue(Server, ActionLog)] to log an action.
+///
+/// Instead of running one `INSERT` per action during the request, logs are buffered here, and written
+/// with one batched query every [#FLUSH_INTERVAL_MS] milliseconds, or as soon as [#FLUSH_THRESHOLD] logs are waiting.
+///
+/// ## Queue limits
+///
+/// To avoid eating all the memory when the database is slow, the queue has limits:
+/// - after [#BACKPRESSURE_DEPTH] logs, senders only get their reply after the next flush, so they wait
+///   for the database like before
+/// - after [#MAX_DEPTH] logs, messages are refused, and senders write the log themselves
+///
+/// ## Failures
+///
+/// Each batch is written in one transaction, so a failed batch can be tried again later without writing logs twice.
+/// When the database fails for a moment (lost connection, deadlock...), the batch goes back in the buffer, up to
+/// [#MAX_ATTEMPTS] times. When one of the logs can't be written at all (like a user that was just deleted),
+/// the logs of the batch are written one by one, so only the wrong ones are lost.
+///
+/// When the verticle stops, all remaining logs are written before it's undeployed.
+///
+/// Must be deployed once only.
+public class ActionLogVerticle extends VerticleBase {
+    private static final Logger log = LoggerFactory.getLogger(ActionLogVerticle.class);
+
+    /// The event bus address receiving [ActionLog] messages.
+    public static final String CHANNEL = "insertActionLog";
+
+    /// Time between two flushes, in milliseconds.
+    static final long FLUSH_INTERVAL_MS = 250;
+    /// Number of buffered logs triggering a flush right away. Also the maximum number of logs in one batch.
+    static final int FLUSH_THRESHOLD = 500;
+    /// Number of buffered logs after which senders must wait for the next flush.
+    static final int BACKPRESSURE_DEPTH = 2_000;
+    /// Number of buffered logs after which new logs are refused.
+    static final int MAX_DEPTH = 10_000;
+    /// How many times we try to write a batch before writing its logs one by one.
+    static final int MAX_ATTEMPTS = 3;
+
+    /// The logs waiting to be written, oldest first.
+    private final ArrayList<ActionLog> buffer = new ArrayList<>();
+    /// Messages we didn't reply to yet, because the buffer was too full.
+    private final ArrayList<Message<ActionLog>> waitingSenders = new ArrayList<>();
+    /// The flush currently running, or `null` if there's none.
+    private Future<Void> currentFlush;
+    /// How many times in a row the oldest batch failed to be written.
+    private int failedAttempts;
+
+    private MessageConsumer<ActionLog> consumer;
+    private long timer;
+
+    private final Server server;
+
+    public ActionLogVerticle(Server server) {
+        this.server = server;
+    }
+
+    @Override
+    public Future<?> start() throws Exception {
+        vertx.eventBus().registerDefaultCodec(ActionLog.class, new LocalCodec<>(ActionLog.class));
+
+        consumer = vertx.eventBus().consumer(CHANNEL, this::receive);
+        timer = vertx.setPeriodic(FLUSH_INTERVAL_MS, _ -> flush());
+
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<?> stop() {
+        vertx.cancelTimer(timer);
+
+        // Stop receiving logs, then write everything we have left.
+        return consumer.unregister().compose(_ -> flushAll());
+    }
+
+    private void receive(Message<ActionLog> msg) {
+        if (buffer.size() >= MAX_DEPTH) {
+            // We're way too late! Let the sender write the log by itself.
+            msg.fail(503, "The action log queue is full.");
+            return;
+        }
+
+        buffer.add(msg.body());
+
+        if (buffer.size() >= BACKPRESSURE_DEPTH) {
+            // The buffer is getting full: make the sender wait until the next flush is done.
+            waitingSenders.add(msg);
+        } else {
+            msg.reply(null);
+        }
+
+        if (buffer.size() >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    /// Writes the oldest buffered logs to the database. Does nothing if a flush is already running.
+    private Future<Void> flush() {
+        if (currentFlush != null) {
+            return currentFlush;
+        }
+        if (buffer.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        long nanos = System.nanoTime();
+
+        // Take the oldest logs out of the buffer.
+        List<ActionLog> oldest = buffer.subList(0, Math.min(buffer.size(), FLUSH_THRESHOLD));
+        var batch = new ArrayList<>(oldest);
+        oldest.clear();
+
+        // Senders waiting for this flush.
+        var senders = new ArrayList<>(waitingSenders);
+        waitingSenders.clear();
+
+        Future<Void> insert = server.db().actionLogs().insertBatch(batch).transform(x -> {
+            if (x.succeeded()) {
+                failedAttempts = 0;
+                log.debug("Wrote {} action logs in {} µs", batch.size(), (System.nanoTime() - nanos) / 1000);
+                return Future.succeededFuture();
+            }
+
+            // The batch is written in one transaction, so nothing was written: we can safely try again.
+            if (isTransient(x.cause()) && ++failedAttempts < MAX_ATTEMPTS) {
+                // Put them back at the front, and try again on the next flush.
+                log.warn("Failed to write {} action logs, retrying later", batch.size(), x.cause());
+                buffer.addAll(0, batch);
+                return Future.succeededFuture();
+            }
+
+            // One of the logs is wrong (or the database keeps failing): write them one by one,
+            // so we only lose the ones that really can't be written.
+            failedAttempts = 0;
+            log.warn("Failed to write {} action logs, writing them one by one", batch.size(), x.cause());
+            return insertOneByOne(batch, 0);
+        });
+
+        // Set it before adding the callback, since the future may already be complete.
+        currentFlush = insert;
+        insert.andThen(_ -> {
+            currentFlush = null;
+
+            // Release the senders; even on failure, we don't want them to wait forever.
+            for (Message<ActionLog> sender : senders) {
+                sender.reply(null);
+            }
+
+            // Still too many logs? Flush again right now.
+            if (buffer.size() >= FLUSH_THRESHOLD) {
+                flush();
+            }
+        });
+
+        return insert;
+    }
+
+    /// Inserts each log of `logs`, starting from `index`, with its own query. Logs that fail are dropped.
+    private Future<Void> insertOneByOne(List<ActionLog> logs, int index) {
+        if (index >= logs.size()) {
+            return Future.succeededFuture();
+        }
+
+        ActionLog al = logs.get(index);
+        return server.db().actionLogs().insert(al)
+            .<Void>transform(x -> {
+                if (x.failed()) {
+                    log.error("Dropped action log: user {} did {} on {} {} at {}",
+                        al.getUserId(), al.getOperation(), al.getTargetType(), al.getTargetId(), al.getTime(), x.cause());
+                }
+                return Future.succeededFuture();
+            })
+            .compose(_ -> insertOneByOne(logs, index + 1));
+    }
+
+    /// Returns `true` when a batch failed because of the database itself (lost connection, deadlock...),
+    /// and not because of one of its logs. Then, the same batch might work if we try again later.
+    private static boolean isTransient(Throwable ex) {
+        if (ex instanceof DuplicateException || ex instanceof ForeignException) {
+            return false;
+        }
+        if (ex instanceof DatabaseException db) {
+            // Lock wait timeout, or deadlock
+            return db.getErrorCode() == 1205 || db.getErrorCode() == 1213;
+        }
+        return true;
+    }
+
+    /// Flushes until there's no more logs in the buffer.
+    private Future<Void> flushAll() {
+        if (buffer.isEmpty() && currentFlush == null) {
+            return Future.succeededFuture();
+        }
+
+        return flush().transform(_ -> flushAll());
+    }
+}
@@ -15,7 +15,7 @@ public record CompleteDevice(
     int id,
     String name,
     @Nullable @ApiDoc(optional = true) String description,
-    EnumMap<AttributeType, Object> attributes,
+    AttributeMap attributes,
     boolean powered,
     double energyConsumption,
     CompleteDeviceType type,
@@ -24,7 +24,7 @@ public record CompleteDevice(
     @ApiDoc(optional = true) UserProfile deletionRequestedBy
 ) {
     public static final Mapper<CompleteDevice> MAP = Mapper.of(
-        6
+        7
         + CompleteDeviceType.MAP.getColumns()
         + CompleteRoom.MAP.getColumns()
         + UserProfile.MAP.getColumns()
@@ -33,7 +33,7 @@ public record CompleteDevice(
             r.getInteger(s.next()),
             r.getString(s.next()),
             r.getString(s.next()),
-            Device.attributesFromDB(r.getJsonArray(s.next())),
+            Device.attributesFromDB(r.getValue(s.next()), r.getBuffer(s.next())),
             r.getBoolean(s.next()),
             r.getDouble(s.next()),
             CompleteDeviceType.MAP.apply(r, s),
@@ -44,7 +44,45 @@ public record CompleteDevice(
     );
 
     public static String columnList(String tableName) {
-        return QueryUtils.columnList(tableName, "id", "name", "description", "attributes", "powered", "energyConsumption");
+        return QueryUtils.columnList(tableName, "id", "name", "description")
+               + ", " + Device.attributesColumns(tableName) + ", "
+               + QueryUtils.columnList(tableName, "powered", "energyConsumption");
+    }
+
+    /// Makes a complete device from a device and all its related data, which must match the ids of the device.
+    public static CompleteDevice of(Device device,
+                                    CompleteDeviceType type,
+                                    @Nullable CompleteRoom room,
+                                    @Nullable UserProfile owner,
+                                    @Nullable UserProfile deletionRequestedBy) {
+        return new CompleteDevice(
+            device.getId(),
+            device.getName(),
+            device.getDescription(),
+            device.getAttributes(),
+            device.isPowered(),
+            device.getEnergyConsumption(),
+            type,
+            room,
+            owner,
+            deletionRequestedBy
+        );
+    }
+
+    /// Converts this complete device back to a [Device], sharing the same attribute map.
+    public Device toDevice() {
+        return new Device(
+            id,
+            name,
+            description,
+            type.id(),
+            room != null ? room.id() : null,
+            owner != null ? owner.id() : null,
+            attributes,
+            powered,
+            energyConsumption,
+            deletionRequestedBy != null ? deletionRequestedBy.id() : null
+        );
     }
 
     public Integer ownerId() {
@@ -0,0 +1,95 @@
+package fr.domotique.api.devices;
+
+import fr.domotique.base.apidocs.*;
+import fr.domotique.data.*;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+
+/// A change made to a device, sent to browsers listening to `GET /api/devices/events`.
+///
+/// Only contains what changes often (power, consumption, attributes), so it stays small.
+/// When anything else changes, [#refetch] is true, and the browser should get the device again.
+///
+/// @param type              what happened to the device
+/// @param id                the id of the device
+/// @param powered           whether the device is powered on; `null` when it's deleted
+/// @param energyConsumption the energy consumption of the device; `null` when it's deleted
+/// @param attributes        the attributes that have changed, with their new value; `null` when it's deleted
+/// @param refetch           true when other properties changed (name, room, owner...), so the device must be fetched again
+@ApiDoc("A change made to a device.")
+public record DeviceChange(
+    Type type,
+    int id,
+    @Nullable @ApiDoc(optional = true) Boolean powered,
+    @Nullable @ApiDoc(optional = true) Double energyConsumption,
+    @Nullable @ApiDoc(optional = true) AttributeMap attributes,
+    boolean refetch
+) {
+    /// What happened to the device.
+    public enum Type {
+        CREATED,
+        UPDATED,
+        DELETED
+    }
+
+    /// A device has just been created. Contains all its attributes.
+    public static DeviceChange created(Device device) {
+        return new DeviceChange(Type.CREATED, device.getId(), device.isPowered(), device.getEnergyConsumption(),
+            AttributeMap.copyOf(device.getAttributes()), true);
+    }
+
+    /// A device has been updated, from `before` to `after`. Contains only the attributes that changed.
+    public static DeviceChange updated(Device before, Device after) {
+        var changedAttributes = new AttributeMap();
+        for (var e : after.getAttributes().entrySet()) {
+            if (!Objects.equals(before.getAttributes().get(e.getKey()), e.getValue())) {
+                changedAttributes.put(e.getKey(), e.getValue());
+            }
+        }
+
+        boolean refetch = !Objects.equals(before.getName(), after.getName())
+                          || !Objects.equals(before.getDescription(), after.getDescription())
+                          || before.getTypeId() != after.getTypeId()
+                          || !Objects.equals(before.getRoomId(), after.getRoomId())
+                          || !Objects.equals(before.getUserId(), after.getUserId())
+                          || !Objects.equals(before.getDeletionRequestedById(), after.getDeletionRequestedById());
+
+        return new DeviceChange(Type.UPDATED, after.getId(), after.isPowered(), after.getEnergyConsumption(),
+            changedAttributes, refetch);
+    }
+
+    /// A device has been deleted.
+    public static DeviceChange deleted(int id) {
+        return new DeviceChange(Type.DELETED, id, null, null, null, false);
+    }
+
+    /// Returns true when this change contains personal attributes, that some users can't see.
+    boolean hasPersonalAttributes() {
+        if (attributes == null) {
+            return false;
+        }
+
+        for (AttributeType type : attributes.keySet()) {
+            if (type.isPersonal()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /// Returns a copy of this change with all personal attributes set to `null`.
+    DeviceChange withoutPersonalAttributes() {
+        if (attributes == null) {
+            return this;
+        }
+
+        var copy = AttributeMap.copyOf(attributes);
+        for (AttributeType type : copy.keySet()) {
+            if (type.isPersonal()) {
+                copy.put(type, null);
+            }
+        }
+        return new DeviceChange(type, id, powered, energyConsumption, copy, refetch);
+    }
+}
@@ -0,0 +1,134 @@
+package fr.domotique.api.devices;
+
+import fr.domotique.*;
+import fr.domotique.data.*;
+import io.vertx.core.*;
+import io.vertx.core.buffer.*;
+import io.vertx.core.eventbus.*;
+import io.vertx.core.http.*;
+import io.vertx.core.json.*;
+import org.jetbrains.annotations.*;
+import org.slf4j.*;
+
+import java.util.*;
+
+/// Sends [device changes][DeviceChange] to all browsers listening to `GET /api/devices/events`,
+/// using [Server-Sent Events](https://developer.mozilla.org/en-US/docs/Web/API/Server-sent_events).
+///
+/// Before, dashboards had to get all devices again and again to see if something changed. Now, they get
+/// the changes as soon as they happen, and they're tiny!
+///
+/// ## How does it work?
+///
+/// 1. When a device is created, updated or deleted, [#publish(Vertx, Integer, DeviceChange)] sends a [Message]
+///    on the event bus, to all [DeviceEvents] of the server (there's one per [RouterVerticle][fr.domotique.RouterVerticle]).
+/// 2. Each [DeviceEvents] writes the message to all the browsers it knows.
+///
+/// The change is converted to JSON only **once**, when it's published. Since some users can't see personal
+/// attributes (see [DeviceOperations#canSeePersonalAttributes]), we make two versions of it: one with everything,
+/// one without personal attributes; each browser gets the one it's allowed to see.
+///
+/// ## Slow browsers
+///
+/// A browser that doesn't read fast enough would make us keep more and more data in memory.
+/// So, when its write queue is full, we close the connection; the browser will reconnect automatically
+/// and should get all devices again.
+///
+/// ## Threads
+///
+/// Each [DeviceEvents] is only used by the event loop of its [RouterVerticle][fr.domotique.RouterVerticle],
+/// which also runs the HTTP requests of its subscribers. So there's no need for any locking.
+public final class DeviceEvents {
+    private static final Logger log = LoggerFactory.getLogger(DeviceEvents.class);
+
+    /// The event bus address receiving device changes.
+    public static final String CHANNEL = "deviceChanged";
+
+    /// How often we send a comment to all browsers, so proxies don't close the connection when nothing happens.
+    static final long HEARTBEAT_INTERVAL_MS = 30_000;
+
+    /// A comment line, ignored by browsers.
+    private static final Buffer HEARTBEAT = Buffer.buffer(": ping\n\n");
+
+    /// A device change, ready to be sent to browsers.
+    ///
+    /// @param ownerId  the owner of the device, to know who can see personal attributes
+    /// @param full     the SSE event with all attributes
+    /// @param redacted the SSE event without personal attributes; `null` when it's the same as `full`
+    public record Message(@Nullable Integer ownerId, Buffer full, @Nullable Buffer redacted) {
+        /// Picks the version of the change this user can see.
+        Buffer bufferFor(Subscriber sub) {
+            if (redacted == null || DeviceOperations.canSeePersonalAttributes(ownerId, sub.userId, sub.role, sub.level)) {
+                return full;
+            }
+            return redacted;
+        }
+    }
+
+    /// A browser listening to device changes, with the user session it had when it connected.
+    record Subscriber(HttpServerResponse response, int userId, Role role, Level level) {}
+
+    /// All browsers listening to changes, on this event loop.
+    private final List<Subscriber> subscribers = new ArrayList<>();
+
+    /// Starts receiving device changes, on the current Vert.x context.
+    public DeviceEvents(Vertx vertx) {
+        vertx.eventBus().<Message>consumer(CHANNEL, msg -> send(msg.body()));
+        vertx.setPeriodic(HEARTBEAT_INTERVAL_MS, _ -> sendToAll(HEARTBEAT));
+    }
+
+    /// Sends a device change to all browsers connected to this server.
+    ///
+    /// @param ownerId the id of the owner of the device, if any
+    public static void publish(Vertx vertx, @Nullable Integer ownerId, DeviceChange change) {
+        Buffer full = toEvent(change);
+        Buffer redacted = null;
+        if (ownerId != null && change.hasPersonalAttributes()) {
+            redacted = toEvent(change.withoutPersonalAttributes());
+        }
+
+        vertx.eventBus().publish(CHANNEL, new Message(ownerId, full, redacted));
+    }
+
+    private static Buffer toEvent(DeviceChange change) {
+        return Buffer.buffer("event: device\ndata: ")
+            .appendBuffer(Json.encodeToBuffer(change))
+            .appendString("\n\n");
+    }
+
+    /// Starts sending device changes to this response. The response is removed once it's closed.
+    void subscribe(HttpServerResponse response, Authenticator.SessionData session) {
+        var sub = new Subscriber(response, session.userId(), session.role(), session.level());
+        subscribers.add(sub);
+        response.closeHandler(_ -> subscribers.remove(sub));
+    }
+
+    private void send(Message msg) {
+        // Iterate on a copy: closing a response removes it from the list.
+        for (Subscriber sub : List.copyOf(subscribers)) {
+            write(sub, msg.bufferFor(sub));
+        }
+    }
+
+    private void sendToAll(Buffer buffer) {
+        for (Subscriber sub : List.copyOf(subscribers)) {
+            write(sub, buffer);
+        }
+    }
+
+    private void write(Subscriber sub, Buffer buffer) {
+        if (sub.response.closed() || sub.response.ended()) {
+            subscribers.remove(sub);
+            return;
+        }
+
+        if (sub.response.writeQueueFull()) {
+            log.debug("Closing the device events of user {}: they're not reading fast enough", sub.userId);
+            subscribers.remove(sub);
+            sub.response.reset();
+            return;
+        }
+
+        sub.response.write(buffer);
+    }
+}
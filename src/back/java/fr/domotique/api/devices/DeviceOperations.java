@@ -16,7 +16,7 @@ public final class DeviceOperations {
     /// - Adds default values for all attributes that are missing
     ///
     /// The `attributes` map will be updated.
-    public static void fixAttributes(EnumMap<AttributeType, Object> attributes, DeviceType type, boolean addMissing) {
+    public static void fixAttributes(AttributeMap attributes, DeviceType type, boolean addMissing) {
         // Remove all attributes that are NOT present in the device type
         attributes.keySet().removeIf(key -> !type.getAttributes().contains(key));
 
@@ -63,7 +63,7 @@ public final class DeviceOperations {
         return canSeePersonalAttributes(ownerId, sess.userId(), sess.role(), sess.level());
     }
 
-    public static void nullifyPersonalAttributes(EnumMap<AttributeType, Object> attributes,
+    public static void nullifyPersonalAttributes(AttributeMap attributes,
                                                  @Nullable Integer ownerId,
                                                  int viewerId,
                                                  Role viewerRole,
@@ -80,7 +80,7 @@ public final class DeviceOperations {
         }
     }
 
-    public static void nullifyPersonalAttributes(EnumMap<AttributeType, Object> attributes,
+    public static void nullifyPersonalAttributes(AttributeMap attributes,
                                                  @Nullable Integer ownerId,
                                                  Authenticator auth) {
         var sess = auth.getSession();
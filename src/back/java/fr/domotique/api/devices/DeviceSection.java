@@ -1,18 +1,28 @@
 package fr.domotique.api.devices;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.*;
 import fr.domotique.*;
+import fr.domotique.api.actionlogs.*;
+import fr.domotique.api.devicetypes.*;
+import fr.domotique.api.rooms.*;
+import fr.domotique.api.users.*;
 import fr.domotique.base.*;
 import fr.domotique.base.Validation;
 import fr.domotique.base.apidocs.*;
 import fr.domotique.base.data.*;
 import fr.domotique.data.*;
 import io.vertx.core.Future;
+import io.vertx.core.buffer.*;
 import io.vertx.core.http.*;
+import io.vertx.core.json.*;
+import io.vertx.core.json.jackson.*;
 import io.vertx.ext.web.*;
 import org.jetbrains.annotations.*;
 import org.openapitools.jackson.nullable.*;
 import org.slf4j.*;
 
+import java.io.*;
 import java.time.*;
 import java.util.*;
 
@@ -29,8 +39,14 @@ public class DeviceSection extends Section {
     // Logger for this section
     static final Logger log = LoggerFactory.getLogger(DeviceSection.class);
 
+    // Sends device changes to browsers listening to /api/devices/events (made when the routes are registered)
+    private DeviceEvents events;
+
     @Override
     public void register(Router router) {
+        // Start receiving device changes on this event loop, to send them to browsers.
+        events = new DeviceEvents(server.vertx());
+
         // Create a sub-router for all device routes
         var deviceRoutes = newSubRouter(router, PATH_PREFIX)
             .putMetadata(RouteDoc.KEY, new RouteDoc().tag("Devices")
@@ -54,9 +70,17 @@ public class DeviceSection extends Section {
         });
 
         // Register all device-related endpoints
+        // (NDJSON streaming comes first: it's only used when the client explicitly asks for application/x-ndjson)
+        // (Before everything: send 304 Not Modified when devices haven't changed)
+        deviceRoutes.get("/").handler(etag(Device.ENTITY.tableName(), DeviceType.ENTITY.tableName(),
+            Room.ENTITY.tableName(), User.ENTITY.tableName()));
+        deviceRoutes.get("/").handler(this::streamAll);
         deviceRoutes.get("/").respond(this::getAll).putMetadata(RouteDoc.KEY, GET_DEVICES_DOC);
         deviceRoutes.post("/").respond(vt(this::createDevice)).putMetadata(RouteDoc.KEY, CREATE_DEVICE_DOC);
         deviceRoutes.post("/stats").respond(this::getDeviceStats).putMetadata(RouteDoc.KEY, GET_DEVICE_STATS_DOC);
+        deviceRoutes.get("/events").handler(this::streamEvents).putMetadata(RouteDoc.KEY, DEVICE_EVENTS_DOC);
+        deviceRoutes.post("/bulk").respond(vt(this::importDevices)).putMetadata(RouteDoc.KEY, IMPORT_DEVICES_DOC);
+        deviceRoutes.get("/export").handler(this::exportDevices).putMetadata(RouteDoc.KEY, EXPORT_DEVICES_DOC);
 
         // Routes with parameters come last
         deviceRoutes.get("/:deviceId").respond(this::getDeviceById).putMetadata(RouteDoc.KEY, GET_DEVICE_DOC);
@@ -70,7 +94,14 @@ public class DeviceSection extends Section {
     // region GET /api/devices | Get all devices
     static final RouteDoc GET_DEVICES_DOC = new RouteDoc("getDevices")
         .summary("Get devices")
-        .description("Gets all devices from the database matching the given filters. All query parameters are optional.")
+        .description("""
+            Gets all devices from the database matching the given filters. All query parameters are optional.
+            
+            Devices are sorted by id. To get devices page by page, give a `limit`, then use the `nextCursor` of the
+            response as the `after` parameter of the next request. When `nextCursor` is null, there's no more devices.
+            
+            When the `Accept` header is `application/x-ndjson`, devices are streamed as they come from the database,
+            one JSON object per line, without the `DevicesResponse` wrapper.""")
         .optionalQueryParam("ids", int[].class, "The IDs of the devices to get. If set, ignores all other parameters.")
         .optionalQueryParam("name", String.class, "The name of the device to search for.")
         .optionalQueryParam("typeId", int.class, "Filters the devices by this type.")
@@ -78,9 +109,23 @@ public class DeviceSection extends Section {
         .optionalQueryParam("userId", int.class, "Filters the devices by this owner.")
         .optionalQueryParam("powered", boolean.class, "Filters the devices by their power status: `true`, or `false`.")
         .optionalQueryParam("category", DeviceCategory.class, "Filters the devices by their category.")
-        .response(200, DevicesResponse.class, "The list of all devices.");
+        .optionalQueryParam("after", int.class, "Only returns devices with an id greater than this one: the `nextCursor` of the previous page.")
+        .optionalQueryParam("limit", int.class, "The maximum number of devices to return, between 1 and " + MAX_PAGE_SIZE + ".")
+        .response(200, DevicesResponse.class, "The list of all devices.")
+        .response(422, ErrorResponse.class, "Invalid category or limit.");
+
+    /// The content type for streamed devices: one JSON per line.
+    static final String NDJSON = "application/x-ndjson";
 
-    record DevicesResponse(List<CompleteDevice> devices) {}
+    /// The maximum value of the `limit` parameter.
+    static final int MAX_PAGE_SIZE = 1000;
+
+    /// @param nextCursor the `after` parameter to use to get the next page; `null` when there's no more devices
+    record DevicesResponse(List<CompleteDevice> devices, @Nullable @ApiDoc(optional = true) Integer nextCursor) {
+        DevicesResponse(List<CompleteDevice> devices) {
+            this(devices, null);
+        }
+    }
 
     Future<DevicesResponse> getAll(RoutingContext context) {
         Authenticator authenticator = Authenticator.get(context);
@@ -91,11 +136,79 @@ public class DeviceSection extends Section {
             return server.db().devices().getCompleteAll(ids).map(DevicesResponse::new);
         }
 
+        var query = readCompleteQuery(context);
+
+        // Ask for one more device than the limit, to know if there's a next page.
+        Integer limit = query.limit();
+        if (limit != null) {
+            query = new DeviceTable.CompleteQuery(query.name(), query.typeId(), query.roomId(), query.userId(),
+                query.powered(), query.category(), query.afterId(), limit + 1);
+        }
+
+        return server.db().devices().queryComplete(query)
+            .map(devices -> {
+                Integer nextCursor = null;
+                if (limit != null && devices.size() > limit) {
+                    devices = devices.subList(0, limit);
+                    nextCursor = devices.getLast().id();
+                }
+
+                // Remove personal data from the devices
+                for (CompleteDevice dev : devices) {
+                    nullifyPersonalData(dev, authenticator);
+                }
+
+                return new DevicesResponse(devices, nextCursor);
+            });
+    }
+
+    /// Same as [#getAll(RoutingContext)], but sends each device as soon as it comes from the database,
+    /// one JSON object per line (NDJSON).
+    void streamAll(RoutingContext context) {
+        // We can't use produces(NDJSON) on the route, since it would also match "Accept: */*".
+        String accept = context.request().getHeader(HttpHeaders.ACCEPT);
+        if (accept == null || !accept.contains(NDJSON)) {
+            context.next();
+            return;
+        }
+
+        streamDevices(context);
+    }
+
+    /// Sends all devices matching the filters of the request, one JSON object per line, as they come from the database.
+    private void streamDevices(RoutingContext context) {
+        Authenticator authenticator = Authenticator.get(context);
+        var query = readCompleteQuery(context);
+
+        HttpServerResponse response = context.response()
+            .putHeader(HttpHeaders.CONTENT_TYPE, NDJSON)
+            .setChunked(true);
+
+        server.db().devices().streamComplete(query, dev -> {
+                nullifyPersonalData(dev, authenticator);
+                return Json.encodeToBuffer(dev).appendString("\n");
+            }, response)
+            .onSuccess(_ -> response.end())
+            .onFailure(err -> {
+                if (!response.headWritten()) {
+                    // Nothing sent yet: we can still send a proper error.
+                    context.fail(err);
+                } else {
+                    // Too late for that; cut the connection so the client knows something went wrong.
+                    log.error("Failed to stream devices", err);
+                    response.reset();
+                }
+            });
+    }
+
+    /// Reads all filters and pagination parameters of the `GET /api/devices` route.
+    private static DeviceTable.CompleteQuery readCompleteQuery(RoutingContext context) {
         String name = Sanitize.string(context.queryParams().get("name"));
         Integer typeId = readIntOrNull(context.queryParams().get("typeId"));
         Integer roomId = readIntOrNull(context.queryParams().get("roomId"));
         Integer userId = readIntOrNull(context.queryParams().get("userId"));
         Boolean powered = readBooleanOrNull(context.queryParams().get("powered"));
+        Integer after = readIntOrNull(context.queryParams().get("after"));
 
         String categoryStr = context.queryParams().get("category");
         DeviceCategory category = null;
@@ -107,18 +220,49 @@ public class DeviceSection extends Section {
             }
         }
 
-        var query = new DeviceTable.CompleteQuery(name, typeId, roomId, userId, powered, category);
+        String limitStr = context.queryParams().get("limit");
+        Integer limit = readIntOrNull(limitStr);
+        if (limitStr != null && (limit == null || limit < 1 || limit > MAX_PAGE_SIZE)) {
+            throw new RequestException("La limite doit être comprise entre 1 et " + MAX_PAGE_SIZE + ".", 422, "INVALID_LIMIT");
+        }
 
-        return server.db().devices().queryComplete(query)
-            .map(devices -> {
-                // Remove personal data from the devices
-                for (CompleteDevice dev : devices) {
-                    nullifyPersonalData(dev, authenticator);
-                }
+        return new DeviceTable.CompleteQuery(name, typeId, roomId, userId, powered, category, after, limit);
+    }
+    // endregion
 
-                return devices;
-            })
-            .map(DevicesResponse::new);
+    // region GET /api/devices/events | Stream device changes
+    static final RouteDoc DEVICE_EVENTS_DOC = new RouteDoc("streamDeviceEvents")
+        .summary("Stream device changes")
+        .description("""
+            Sends all changes made to devices as soon as they happen, using Server-Sent Events
+            (`text/event-stream`). Use it with an `EventSource` in the browser.
+            
+            Each change is a `device` event, containing a `DeviceChange` as JSON: only the power state, the energy
+            consumption and the attributes that changed are sent. When `refetch` is true, other properties changed
+            (name, room, owner...), and the device should be fetched again.
+            
+            Personal attributes are `null` for users who aren't allowed to see them.
+            
+            The connection is closed when the client doesn't read fast enough; it should then reconnect
+            and get all devices again.""")
+        .response(200, DeviceChange.class, "A stream of `device` events.");
+
+    void streamEvents(RoutingContext context) {
+        Authenticator.SessionData session = Authenticator.get(context).getSession();
+        assert session != null; // Checked by the handler of all device routes
+
+        HttpServerResponse response = context.response()
+            .putHeader(HttpHeaders.CONTENT_TYPE, "text/event-stream")
+            .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache")
+            // Don't compress: the compressor would keep events in its buffer instead of sending them right away.
+            .putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY)
+            // Same for nginx, which buffers responses by default.
+            .putHeader("X-Accel-Buffering", "no")
+            .setChunked(true);
+
+        // Send the headers now, so the browser knows it's connected.
+        response.write(": connected\n\n");
+        events.subscribe(response, session);
     }
     // endregion
 
@@ -199,12 +343,17 @@ public class DeviceSection extends Section {
         /// Runs validation for this input.
         public void validate() {
             try (var block = Validation.start()) {
-                DeviceValidation.name(block, name);
-                DeviceValidation.description(block, description);
-                DeviceValidation.energyConsumption(block, energyConsumption);
-                DeviceValidation.attributes(block, attributes);
+                validate(block);
             }
         }
+
+        /// Adds all validation errors of this input to `block`.
+        public void validate(ValidationBlock block) {
+            DeviceValidation.name(block, name);
+            DeviceValidation.description(block, description);
+            DeviceValidation.energyConsumption(block, energyConsumption);
+            DeviceValidation.attributes(block, attributes);
+        }
     }
 
     @ApiDoc(value = "Data for PATCH operations on a device.", optional = true)
@@ -282,7 +431,8 @@ public class DeviceSection extends Section {
         }
 
         // Add any missing attributes, remove those that are not in the device type
-        DeviceOperations.fixAttributes(input.attributes, deviceType, true);
+        AttributeMap attributes = AttributeMap.copyOf(input.attributes);
+        DeviceOperations.fixAttributes(attributes, deviceType, true);
 
         // Create the device
         Device device = new Device(
@@ -292,7 +442,7 @@ public class DeviceSection extends Section {
             input.typeId,
             input.roomId,
             input.userId,
-            input.attributes,
+            attributes,
             input.powered,
             input.energyConsumption,
             null
@@ -313,7 +463,7 @@ public class DeviceSection extends Section {
             ).await();
 
             // Log the changes
-            server.db().actionLogs().insert(new ActionLog(
+            ActionLogOperations.enqueue(server, new ActionLog(
                 auth.getUserId(),
                 device.getId(),
                 ActionLogTarget.DEVICE,
@@ -322,6 +472,7 @@ public class DeviceSection extends Section {
 
             // Get the complete device with all the related data
             CompleteDevice completeDevice = server.db().devices().getComplete(device.getId()).await();
+            DeviceEvents.publish(server.vertx(), device.getUserId(), DeviceChange.created(device));
             context.response().setStatusCode(201);
             return completeDevice;
         } catch (ForeignException e) {
@@ -331,6 +482,194 @@ public class DeviceSection extends Section {
     }
     // endregion
 
+    // region POST /api/devices/bulk | Import many devices
+    static final RouteDoc IMPORT_DEVICES_DOC = new RouteDoc("importDevices")
+        .summary("Import many devices")
+        .description("""
+            Creates many devices at once, way faster than calling `POST /api/devices` for each one.
+            
+            The body contains devices in the same format as `POST /api/devices`, either in a JSON array,
+            or one JSON object per line (NDJSON, `application/x-ndjson`). At most %d devices can be imported at once,
+            in a body of %d MB at most.
+            
+            All devices are validated first: when any of them is invalid (including `null` or anything that isn't
+            a device object), nothing is created, and the errors of each device are in the `devices` array
+            of the error, in the same order as the body.
+            Then, either all devices are created, or none of them.""".formatted(MAX_BULK_DEVICES, MAX_BULK_BODY_BYTES / (1024 * 1024)))
+        .requestBody(DeviceInput[].class)
+        .response(201, BulkImportResponse.class, "The devices were created successfully.")
+        .response(400, ErrorResponse.class, "The body is not valid JSON or NDJSON.")
+        .response(413, ErrorResponse.class, "The body is too large.")
+        .response(CREATE_OR_UPDATE_ERR);
+
+    /// The maximum number of devices in one import.
+    static final int MAX_BULK_DEVICES = 10_000;
+    /// The maximum size of the body of an import, in bytes: about 1.6 KB per device, which is plenty.
+    static final int MAX_BULK_BODY_BYTES = 16 * 1024 * 1024;
+
+    /// @param ids the ids of the created devices, in the same order as the body
+    record BulkImportResponse(List<Integer> ids) {}
+
+    BulkImportResponse importDevices(RoutingContext context) {
+        Authenticator auth = Authenticator.get(context);
+        List<@Nullable DeviceInput> inputs = readBulkBody(context);
+
+        // Find all device types at once (they're in the cache, so it's instant)
+        var typeIds = new HashSet<Integer>();
+        for (DeviceInput input : inputs) {
+            if (input != null) {
+                typeIds.add(input.typeId);
+            }
+        }
+        var types = new HashMap<Integer, DeviceType>();
+        for (DeviceType type : server.db().deviceTypes().getAll(typeIds).await()) {
+            types.put(type.getId(), type);
+        }
+
+        // Validate everything at once, so the user sees all errors of all devices in one go.
+        try (var block = Validation.start()) {
+            block.childArray("devices", inputs, (input, b) -> {
+                if (input == null) {
+                    b.addRootError("L'appareil doit être un objet JSON valide.");
+                    return;
+                }
+
+                input.validate(b);
+                if (!types.containsKey(input.typeId)) {
+                    b.addError("typeId", "Type d'appareil introuvable.");
+                }
+            });
+        }
+
+        var devices = new ArrayList<Device>(inputs.size());
+        for (DeviceInput input : inputs) {
+            // Add any missing attributes, remove those that are not in the device type
+            AttributeMap attributes = AttributeMap.copyOf(input.attributes);
+            DeviceOperations.fixAttributes(attributes, types.get(input.typeId), true);
+
+            devices.add(new Device(
+                0,
+                input.name,
+                input.description,
+                input.typeId,
+                input.roomId,
+                input.userId,
+                attributes,
+                input.powered,
+                input.energyConsumption,
+                null
+            ));
+        }
+
+        // Write everything in one transaction, using batched queries instead of one query per device.
+        try (DatabaseTransaction tx = server.db().begin().await()) {
+            Database db = tx.db();
+
+            // We need the ids of the devices for the logs, so wait for them.
+            db.devices().insertBatch(devices).await();
+
+            // Then send both logs at once: they're pipelined on our connection.
+            Instant now = Instant.now();
+            var powerLogs = new ArrayList<PowerLog>(devices.size());
+            var actionLogs = new ArrayList<ActionLog>(devices.size());
+            for (Device device : devices) {
+                String status = device.isPowered() ? "POWER_ON" : "POWER_OFF";
+                powerLogs.add(new PowerLog(device.getId(), status, device.getEnergyConsumption(), now));
+                actionLogs.add(new ActionLog(auth.getUserId(), device.getId(), ActionLogTarget.DEVICE, ActionLogOperation.CREATE));
+            }
+            Future.all(db.powerLogs().insertFirstLogs(powerLogs), db.actionLogs().insertBatch(actionLogs)).await();
+
+            tx.commit().await();
+        } catch (ForeignException e) {
+            // In case of missing user/room
+            throw missingRoomOrTypeErr(e);
+        }
+        log.info("Imported {} devices", devices.size());
+
+        var ids = new ArrayList<Integer>(devices.size());
+        for (Device device : devices) {
+            DeviceEvents.publish(server.vertx(), device.getUserId(), DeviceChange.created(device));
+            ids.add(device.getId());
+        }
+
+        context.response().setStatusCode(201);
+        return new BulkImportResponse(ids);
+    }
+
+    /// Reads all devices of the body, either from a JSON array or from NDJSON.
+    ///
+    /// Elements which aren't valid devices (`null`, numbers, objects with wrong types...) are `null` in the list,
+    /// so they're reported with the validation errors of the other devices.
+    private static List<@Nullable DeviceInput> readBulkBody(RoutingContext context) {
+        Buffer body = context.body().buffer();
+        if (body == null || body.length() == 0) {
+            throw new RequestException("Body is missing.", 400, "INVALID_JSON");
+        }
+        if (body.length() > MAX_BULK_BODY_BYTES) {
+            throw new RequestException("Le fichier d'import ne doit pas dépasser " + MAX_BULK_BODY_BYTES / (1024 * 1024) + " Mo.",
+                413, "BODY_TOO_LARGE");
+        }
+
+        // Read devices one by one, instead of making a huge JSON tree first.
+        // Jackson handles both formats: it reads each element of a root array, or each root value, one after the other
+        // (NDJSON is just root values separated by new lines).
+        // Each element is read as a small JSON tree first, so a single bad device doesn't stop the entire import.
+        ObjectMapper mapper = DatabindCodec.mapper();
+        var inputs = new ArrayList<@Nullable DeviceInput>();
+        try (MappingIterator<JsonNode> it = mapper.readerFor(JsonNode.class).readValues(body.getBytes())) {
+            while (it.hasNextValue()) {
+                if (inputs.size() == MAX_BULK_DEVICES) {
+                    throw new RequestException("Impossible d'importer plus de " + MAX_BULK_DEVICES + " appareils à la fois.",
+                        422, "TOO_MANY_DEVICES");
+                }
+
+                JsonNode node = it.nextValue();
+                if (node == null || !node.isObject()) {
+                    inputs.add(null);
+                    continue;
+                }
+
+                try {
+                    inputs.add(mapper.treeToValue(node, DeviceInput.class));
+                } catch (JsonProcessingException | IllegalArgumentException e) {
+                    inputs.add(null);
+                }
+            }
+        } catch (IOException e) {
+            throw new RequestException("Invalid JSON body.", 400, "INVALID_JSON");
+        }
+
+        if (inputs.isEmpty()) {
+            throw new RequestException("Aucun appareil à importer.", 422, "NO_DEVICES");
+        }
+        return inputs;
+    }
+    // endregion
+
+    // region GET /api/devices/export | Export all devices
+    static final RouteDoc EXPORT_DEVICES_DOC = new RouteDoc("exportDevices")
+        .summary("Export devices")
+        .description("""
+            Downloads all devices matching the given filters, one JSON object per line (NDJSON),
+            as a `devices.ndjson` file. Accepts the same query parameters as `GET /api/devices`.
+            
+            Devices are sent as soon as they come from the database, so exporting thousands of devices
+            doesn't use more memory than exporting ten.""")
+        .optionalQueryParam("name", String.class, "The name of the device to search for.")
+        .optionalQueryParam("typeId", int.class, "Filters the devices by this type.")
+        .optionalQueryParam("roomId", int.class, "Filters the devices by this room.")
+        .optionalQueryParam("userId", int.class, "Filters the devices by this owner.")
+        .optionalQueryParam("powered", boolean.class, "Filters the devices by their power status: `true`, or `false`.")
+        .optionalQueryParam("category", DeviceCategory.class, "Filters the devices by their category.")
+        .response(200, CompleteDevice.class, "One device per line.")
+        .response(422, ErrorResponse.class, "Invalid category or limit.");
+
+    void exportDevices(RoutingContext context) {
+        context.response().putHeader("Content-Disposition", "attachment; filename=\"devices.ndjson\"");
+        streamDevices(context);
+    }
+    // endregion
+
     // region PATCH /api/devices/:deviceId | Patch device
     static final RouteDoc PATCH_DEVICE_DOC = new RouteDoc("patchDevice")
         .summary("Patch device")
@@ -360,61 +699,73 @@ public class DeviceSection extends Section {
         // Validate device input
         input.validate();
 
-        // Get the device
-        Device device = server.db().devices().get(deviceId).await();
-        if (device == null) {
-            throw new RequestException("Appareil introuvable.", 404, "DEVICE_NOT_FOUND");
-        }
-
-        // Find the device type
-        int typeId = input.typeId != null ? input.typeId : device.getTypeId();
-        DeviceType deviceType = server.db().deviceTypes().get(typeId).await();
-        if (deviceType == null) {
-            throw new RequestException("Type d'appareil introuvable.", 404, "DEVICE_TYPE_NOT_FOUND");
-        }
+        // Do everything in one transaction, on one connection: no need to get a new connection from the pool
+        // for each query, and we can send many queries at once. If anything fails, everything is rolled back.
+        try (DatabaseTransaction tx = server.db().begin().await()) {
+            Database db = tx.db();
 
-        // Make sure the new deletionRequestedById is valid and that we have the right to set it
-        if (input.deletionRequestedById.isPresent()) {
-            Integer delId = input.deletionRequestedById.get();
-            // Don't check when values are the same.
-            if (!Objects.equals(delId, device.getDeletionRequestedById())) {
-                if (delId == null && !auth.hasLevel(Level.ADVANCED)) {
-                    throw new RequestException("Vous n'avez pas le niveau requis pour ignorer une demande de suppression.",
-                        403, "CANNOT_IGNORE_DELETION_REQUEST");
-                } else if (delId != null && delId != auth.getUserId()) {
-                    throw new RequestException("Impossible d'ajouter une demande de suppression pour un autre utilisateur.",
-                        422, "CANNOT_IMPERSONATE_DELETION_REQUEST");
-                }
+            // Get the device with all its related data, and lock it so nobody modifies it until we're done.
+            // We'll use the related data to make the response, instead of querying it all again.
+            CompleteDevice before = db.devices().getCompleteForUpdate(deviceId).await();
+            if (before == null) {
+                throw new RequestException("Appareil introuvable.", 404, "DEVICE_NOT_FOUND");
             }
-        }
-
-        // See if our device turned off or on.
-        boolean devicePowerChanged = input.powered != null && input.powered != device.isPowered();
-        // See if we cleared or added a deletion request
-        boolean deletionRequestChanged = input.deletionRequestedById.isPresent()
-                                         && !Objects.equals(input.deletionRequestedById.get(), device.getDeletionRequestedById());
-        boolean energyConsumptionChanged = input.energyConsumption != null
-                                           && input.energyConsumption != device.getEnergyConsumption();
+            Device device = before.toDevice();
 
-        // Update device properties
-        if (input.name != null) device.setName(input.name);
-        input.description.ifPresent(device::setDescription);
-        if (input.typeId != null) device.setTypeId(input.typeId);
-        input.roomId.ifPresent(device::setRoomId);
-        input.userId.ifPresent(device::setUserId);
+            // Keep the device as it was (with its own attributes), to only send what changed to dashboards.
+            Device original = before.toDevice();
+            original.setAttributes(AttributeMap.copyOf(original.getAttributes()));
 
-        input.attributes.forEach((k, v) -> device.getAttributes().put(k, v));
-        DeviceOperations.fixAttributes(device.getAttributes(), deviceType, true);
-
-        if (input.powered != null) device.setPowered(input.powered);
-        if (input.energyConsumption != null) device.setEnergyConsumption(input.energyConsumption);
-        input.deletionRequestedById.ifPresent(device::setDeletionRequestedById);
+            // Find the device type (it's in the cache, so it's instant)
+            int typeId = input.typeId != null ? input.typeId : device.getTypeId();
+            DeviceType deviceType = db.deviceTypes().get(typeId).await();
+            if (deviceType == null) {
+                throw new RequestException("Type d'appareil introuvable.", 404, "DEVICE_TYPE_NOT_FOUND");
+            }
 
-        try {
-            // Update device on the database
-            server.db().devices().update(device).await();
-            log.info("Device patched with id {} and name {}", device.getId(), device.getName());
+            // Make sure the new deletionRequestedById is valid and that we have the right to set it
+            if (input.deletionRequestedById.isPresent()) {
+                Integer delId = input.deletionRequestedById.get();
+                // Don't check when values are the same.
+                if (!Objects.equals(delId, device.getDeletionRequestedById())) {
+                    if (delId == null && !auth.hasLevel(Level.ADVANCED)) {
+                        throw new RequestException("Vous n'avez pas le niveau requis pour ignorer une demande de suppression.",
+                            403, "CANNOT_IGNORE_DELETION_REQUEST");
+                    } else if (delId != null && delId != auth.getUserId()) {
+                        throw new RequestException("Impossible d'ajouter une demande de suppression pour un autre utilisateur.",
+                            422, "CANNOT_IMPERSONATE_DELETION_REQUEST");
+                    }
+                }
+            }
 
+            // See if our device turned off or on.
+            boolean devicePowerChanged = input.powered != null && input.powered != device.isPowered();
+            // See if we cleared or added a deletion request
+            boolean deletionRequestChanged = input.deletionRequestedById.isPresent()
+                                             && !Objects.equals(input.deletionRequestedById.get(), device.getDeletionRequestedById());
+            boolean energyConsumptionChanged = input.energyConsumption != null
+                                               && input.energyConsumption != device.getEnergyConsumption();
+
+            // Update device properties
+            if (input.name != null) device.setName(input.name);
+            input.description.ifPresent(device::setDescription);
+            if (input.typeId != null) device.setTypeId(input.typeId);
+            input.roomId.ifPresent(device::setRoomId);
+            input.userId.ifPresent(device::setUserId);
+
+            input.attributes.forEach((k, v) -> device.getAttributes().put(k, v));
+            DeviceOperations.fixAttributes(device.getAttributes(), deviceType, true);
+
+            if (input.powered != null) device.setPowered(input.powered);
+            if (input.energyConsumption != null) device.setEnergyConsumption(input.energyConsumption);
+            input.deletionRequestedById.ifPresent(device::setDeletionRequestedById);
+
+            // Send all queries at once, and wait for them all: they're pipelined on our connection.
+            // First, update the device.
+            Future<Device> updateFuture = db.devices().update(device);
+
+            // Then, log the new power state.
+            Future<?> powerLogFuture = Future.succeededFuture();
             if (devicePowerChanged || energyConsumptionChanged) {
                 String status;
                 if (device.isPowered()) {
@@ -422,11 +773,38 @@ public class DeviceSection extends Section {
                 } else {
                     status = "POWER_OFF";
                 }
-                server.db().powerLogs().insert(
+                powerLogFuture = db.powerLogs().insert(
                     new PowerLog(device.getId(), status, device.getEnergyConsumption(), Instant.now())
-                ).await();
+                );
             }
 
+            // Finally, get the related data that changed. Most of the time, nothing changes, so we have no queries!
+            Future<@Nullable CompleteRoom> roomFuture;
+            if (Objects.equals(device.getRoomId(), roomId(before.room()))) {
+                roomFuture = Future.succeededFuture(before.room());
+            } else if (device.getRoomId() == null) {
+                roomFuture = Future.succeededFuture();
+            } else {
+                roomFuture = db.rooms().getComplete(device.getRoomId());
+            }
+
+            var changedUserIds = new HashSet<Integer>();
+            if (device.getUserId() != null && !Objects.equals(device.getUserId(), before.ownerId())) {
+                changedUserIds.add(device.getUserId());
+            }
+            if (device.getDeletionRequestedById() != null
+                && !Objects.equals(device.getDeletionRequestedById(), userId(before.deletionRequestedBy()))) {
+                changedUserIds.add(device.getDeletionRequestedById());
+            }
+            Future<List<UserProfile>> usersFuture = db.users().getAllProfiles(changedUserIds);
+
+            Future.all(updateFuture, powerLogFuture, roomFuture, usersFuture).await();
+            tx.commit().await();
+            log.info("Device patched with id {} and name {}", device.getId(), device.getName());
+
+            // Tell dashboards what changed.
+            DeviceEvents.publish(server.vertx(), device.getUserId(), DeviceChange.updated(original, device));
+
             // Log the changes
             var flags = EnumSet.noneOf(ActionLogFlags.class);
             if (devicePowerChanged) {
@@ -435,19 +813,49 @@ public class DeviceSection extends Section {
             if (deletionRequestChanged) {
                 flags.add(input.deletionRequestedById.get() != null ? ActionLogFlags.DELETE_REQUESTED : ActionLogFlags.DELETE_REQUEST_DELETED);
             }
-            server.db().actionLogs().insert(new ActionLog(auth.getUserId(), deviceId,
+            ActionLogOperations.enqueue(server, new ActionLog(auth.getUserId(), deviceId,
                 ActionLogTarget.DEVICE,
                 ActionLogOperation.UPDATE,
                 flags
             )).await();
 
-            // Get the complete device with all the related data
-            return server.db().devices().getComplete(device.getId()).await();
+            // Make the complete device with what we already have.
+            return CompleteDevice.of(device,
+                CompleteDeviceType.fromDeviceType(deviceType),
+                roomFuture.result(),
+                findUser(device.getUserId(), before.owner(), usersFuture.result()),
+                findUser(device.getDeletionRequestedById(), before.deletionRequestedBy(), usersFuture.result()));
         } catch (ForeignException e) {
             // In case of missing user/room
             throw missingRoomOrTypeErr(e);
         }
     }
+
+    // Returns the id of the user, or null if there's no user.
+    private static @Nullable Integer userId(@Nullable UserProfile user) {
+        return user != null ? user.id() : null;
+    }
+
+    // Returns the id of the room, or null if there's no room.
+    private static @Nullable Integer roomId(@Nullable CompleteRoom room) {
+        return room != null ? room.id() : null;
+    }
+
+    // Finds the profile of the user with this id: either the one we had before, or one we've just queried.
+    private static @Nullable UserProfile findUser(@Nullable Integer id, @Nullable UserProfile before, List<UserProfile> queried) {
+        if (id == null) {
+            return null;
+        }
+        if (before != null && before.id() == id) {
+            return before;
+        }
+        for (UserProfile p : queried) {
+            if (p.id() == id) {
+                return p;
+            }
+        }
+        return null;
+    }
     // endregion
 
     // region DELETE /api/devices/:deviceId | Delete device
@@ -473,7 +881,8 @@ public class DeviceSection extends Section {
 
         // Delete device and log it!
         server.db().devices().delete(deviceId).await();
-        server.db().actionLogs().insert(new ActionLog(auth.getUserId(), deviceId, ActionLogTarget.DEVICE, ActionLogOperation.DELETE)).await();
+        DeviceEvents.publish(server.vertx(), device.getUserId(), DeviceChange.deleted(deviceId));
+        ActionLogOperations.enqueue(server, new ActionLog(auth.getUserId(), deviceId, ActionLogTarget.DEVICE, ActionLogOperation.DELETE)).await();
         log.info("Device deleted with id {}", deviceId);
     }
     // endregion
@@ -512,15 +921,34 @@ public class DeviceSection extends Section {
     // region GET /api/devices/:deviceId/power-logs | Get power logs for a device
     static final RouteDoc GET_POWER_LOGS_DOC = new RouteDoc("getPowerLogs")
         .summary("Get power logs for a device")
-        .description("Returns all power logs for a specific device sorted by time in descending order.")
+        .description("""
+            Returns the most recent power logs of a device, sorted by time in descending order.
+            
+            Use `from` and `to` to only get logs of a time range: that's way faster for devices with years of logs.
+            At most `limit` logs are returned.""")
         .pathParam("deviceId", int.class, "The ID of the device to get power logs for.")
+        .optionalQueryParam("from", String.class, ParamDoc.Format.DATE_TIME, "Only get logs at or after this time, in ISO format.")
+        .optionalQueryParam("to", String.class, ParamDoc.Format.DATE_TIME, "Only get logs before this time, in ISO format.")
+        .optionalQueryParam("limit", int.class, "The maximum number of logs to return, between 1 and " + MAX_POWER_LOGS + " (default: " + DEFAULT_POWER_LOGS + ").")
         .response(200, PowerLogsResponse.class, "The list of power logs for the device.")
-        .response(404, ErrorResponse.class, "Device not found.");
+        .response(404, ErrorResponse.class, "Device not found.")
+        .response(422, ErrorResponse.class, "Invalid time range or limit.");
+
+    static final int DEFAULT_POWER_LOGS = 500;
+    static final int MAX_POWER_LOGS = 5000;
 
     record PowerLogsResponse(List<PowerLog> logs) {}
 
     Future<PowerLogsResponse> getPowerLogs(RoutingContext context) {
         int deviceId = readIntPathParam(context, "deviceId");
+        Instant from = readInstantOrNull(context, "from");
+        Instant to = readInstantOrNull(context, "to");
+
+        String limitStr = context.queryParams().get("limit");
+        Integer limit = limitStr != null ? readIntOrNull(limitStr) : Integer.valueOf(DEFAULT_POWER_LOGS);
+        if (limit == null || limit < 1 || limit > MAX_POWER_LOGS) {
+            throw new RequestException("La limite doit être comprise entre 1 et " + MAX_POWER_LOGS + ".", 422, "INVALID_LIMIT");
+        }
 
         // Check if device exists
         return server.db().devices().get(deviceId)
@@ -529,8 +957,8 @@ public class DeviceSection extends Section {
                     throw new RequestException("Appareil introuvable.", 404, "DEVICE_NOT_FOUND");
                 }
 
-                // Get all power logs for this device
-                return server.db().powerLogs().queryForDeviceSorted(deviceId)
+                // Get the most recent power logs for this device
+                return server.db().powerLogs().queryForDeviceSorted(deviceId, from, to, limit)
                     .map(PowerLogsResponse::new);
             });
     }
@@ -1,10 +1,12 @@
 package fr.domotique.api.devicetypes;
 
 import fr.domotique.*;
+import fr.domotique.api.actionlogs.*;
 import fr.domotique.api.devices.*;
 import fr.domotique.base.*;
 import fr.domotique.base.Validation;
 import fr.domotique.base.apidocs.*;
+import fr.domotique.base.data.*;
 import fr.domotique.data.*;
 import io.vertx.core.Future;
 import io.vertx.core.http.*;
@@ -48,7 +50,8 @@ public class DeviceTypeSection extends Section {
         });
 
         // Register all device type-related endpoints
-        deviceTypeRoutes.get("/").respond(this::getAll).putMetadata(RouteDoc.KEY, GET_DEVICE_TYPES_DOC);
+        deviceTypeRoutes.get("/").handler(etag(DeviceType.ENTITY.tableName()))
+            .respond(this::getAll).putMetadata(RouteDoc.KEY, GET_DEVICE_TYPES_DOC);
         deviceTypeRoutes.post("/").respond(vt(this::createDeviceType)).putMetadata(RouteDoc.KEY, CREATE_DEVICE_TYPE_DOC);
 
         // Routes with parameters come last
@@ -82,7 +85,7 @@ public class DeviceTypeSection extends Section {
         if (!ids.isEmpty()) {
             devicesFuture = server.db().deviceTypes().getAll(ids);
         } else if (name != null && !name.isEmpty()) {
-            devicesFuture = server.db().deviceTypes().getAllByName(name);
+            devicesFuture = server.db().deviceTypes().getAllByName(name, FullTextSearch.MAX_RESULTS);
         } else {
             devicesFuture = server.db().deviceTypes().getAll();
         }
@@ -157,9 +160,10 @@ public class DeviceTypeSection extends Section {
         DeviceType deviceType = new DeviceType(0, input.name, input.category, input.attributesAsEnumSet());
 
         server.db().deviceTypes().insert(deviceType).await();
+        DeviceTypeCache.publishInvalidation(server.vertx(), deviceType.getId());
 
         // Log this action
-        server.db().actionLogs().insert(new ActionLog(
+        ActionLogOperations.enqueue(server, new ActionLog(
             Authenticator.get(context).getUserId(),
             deviceType.getId(),
             ActionLogTarget.DEVICE_TYPE,
@@ -210,9 +214,10 @@ public class DeviceTypeSection extends Section {
 
         // Submit changes to the database
         server.db().deviceTypes().update(deviceType).await();
+        DeviceTypeCache.publishInvalidation(server.vertx(), deviceType.getId());
 
         // Log this action
-        server.db().actionLogs().insert(new ActionLog(
+        ActionLogOperations.enqueue(server, new ActionLog(
             Authenticator.get(context).getUserId(),
             deviceType.getId(),
             ActionLogTarget.DEVICE_TYPE,
@@ -273,9 +278,10 @@ public class DeviceTypeSection extends Section {
 
         // Delete it!
         server.db().deviceTypes().delete(deviceTypeId).await();
+        DeviceTypeCache.publishInvalidation(server.vertx(), deviceTypeId);
 
         // Log this action
-        server.db().actionLogs().insert(new ActionLog(
+        ActionLogOperations.enqueue(server, new ActionLog(
             Authenticator.get(context).getUserId(),
             deviceTypeId,
             ActionLogTarget.DEVICE_TYPE,
@@ -0,0 +1,157 @@
+package fr.domotique.api.energy;
+
+import fr.domotique.*;
+import fr.domotique.data.*;
+import io.vertx.core.*;
+import org.slf4j.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.zip.*;
+
+/// A background verticle managing the monthly partitions of the `PowerLog` table.
+///
+/// Every [#RUN_INTERVAL_MS] milliseconds, it:
+/// 1. creates the partitions of the next [#FUTURE_MONTHS] months, so new logs never land in the `pmax` partition
+/// 2. when [Config#powerLogRetentionMonths()] is set, removes all months older than that from the database:
+///    - the last log of each device is copied at the start of the first month we keep, so we still know if
+///      devices are powered on (see [PowerLogTable#carryForwardLastLogs(Instant)])
+///    - each month is written to `<dataDirectory>/power-logs/PowerLog-YYYY-MM.csv.gz`
+///    - then its partition is dropped, which is instant, unlike a `DELETE` of millions of rows
+///
+/// Total consumption of removed months is still available, since it's kept in the `PowerLogHourly` table.
+/// Only the partial hours at the edges of a time range can't be calculated precisely anymore.
+///
+/// Must be deployed once per server, using the [virtual thread][ThreadingModel#VIRTUAL_THREAD] threading model:
+/// archiving a month writes a file while waiting for the database, so it's way simpler to do with `await()`.
+///
+/// When many servers are running, only one of them does the work: each run takes the [#LOCK_NAME] MySQL lock
+/// (see [DatabaseLock]), and servers which can't get it skip their run.
+public class PowerLogRetentionVerticle extends VerticleBase {
+    private static final Logger log = LoggerFactory.getLogger(PowerLogRetentionVerticle.class);
+
+    /// Time between two runs, in milliseconds.
+    static final long RUN_INTERVAL_MS = 6 * 60 * 60 * 1000;
+    /// Time before the first run, in milliseconds, so we don't slow down startup.
+    static final long FIRST_RUN_DELAY_MS = 10_000;
+    /// How many months after the current one have their partition created in advance.
+    static final int FUTURE_MONTHS = 2;
+    /// How many logs are read at once when archiving a month.
+    static final int ARCHIVE_PAGE_SIZE = 5_000;
+    /// The name of the MySQL lock taken during a run, so only one server runs at a time.
+    static final String LOCK_NAME = "domotique.powerLogRetention";
+
+    private final Server server;
+
+    private long timer;
+    /// True when a run hasn't finished yet; a slow archive shouldn't be started twice.
+    private boolean running;
+
+    public PowerLogRetentionVerticle(Server server) {
+        this.server = server;
+    }
+
+    @Override
+    public Future<?> start() throws Exception {
+        timer = vertx.setPeriodic(FIRST_RUN_DELAY_MS, RUN_INTERVAL_MS, _ -> run());
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<?> stop() {
+        vertx.cancelTimer(timer);
+        return Future.succeededFuture();
+    }
+
+    private void run() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        try (DatabaseLock lock = server.db().tryLock(LOCK_NAME).await()) {
+            if (lock == null) {
+                log.debug("Another server is managing the power log partitions");
+                return;
+            }
+
+            PowerLogTable logs = lock.db().powerLogs();
+            YearMonth now = YearMonth.now(ZoneOffset.UTC);
+
+            int created = logs.ensureMonthlyPartitions(now.plusMonths(FUTURE_MONTHS)).await();
+            if (created > 0) {
+                log.info("Created {} monthly partitions for power logs", created);
+            }
+
+            int retention = server.config().powerLogRetentionMonths();
+            if (retention > 0) {
+                removeMonthsBefore(logs, now.minusMonths(retention));
+            }
+        } catch (Exception e) {
+            log.error("Failed to update the power log partitions", e);
+        } finally {
+            running = false;
+        }
+    }
+
+    /// Archives and drops all monthly partitions before `firstKept`.
+    private void removeMonthsBefore(PowerLogTable logs, YearMonth firstKept) throws IOException {
+        List<YearMonth> months = logs.getMonthlyPartitions().await();
+        if (months == null) {
+            return;
+        }
+
+        List<YearMonth> old = months.stream().filter(m -> m.isBefore(firstKept)).toList();
+        if (old.isEmpty()) {
+            return;
+        }
+
+        Instant cutoff = firstKept.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+        int carried = logs.carryForwardLastLogs(cutoff).await();
+        log.info("Copied the last power log of {} devices to {}, before removing old months", carried, cutoff);
+
+        for (YearMonth month : old) {
+            long count = archive(logs, month);
+            logs.dropPartition(month).await();
+            log.info("Archived and removed {} power logs of {}", count, month);
+        }
+    }
+
+    /// Writes all logs of a month to a compressed CSV file. Returns how many logs were written.
+    ///
+    /// The file is written under another name first, so a half-written file is never mistaken for a complete archive.
+    private long archive(PowerLogTable logs, YearMonth month) throws IOException {
+        Path directory = server.config().dataDirectory().resolve("power-logs");
+        Files.createDirectories(directory);
+
+        Path file = directory.resolve("PowerLog-" + month + ".csv.gz");
+        Path temp = directory.resolve(file.getFileName() + ".part");
+
+        long count = 0;
+        try (var out = new BufferedWriter(new OutputStreamWriter(
+            new GZIPOutputStream(Files.newOutputStream(temp)), StandardCharsets.UTF_8))) {
+            out.write("id,deviceId,status,energyConsumption,time\n");
+
+            int afterId = 0;
+            while (true) {
+                List<PowerLog> page = logs.getPartitionPage(month, afterId, ARCHIVE_PAGE_SIZE).await();
+                for (PowerLog l : page) {
+                    out.write(l.getId() + "," + l.getDeviceId() + "," + l.getStatus() + ","
+                              + l.getEnergyConsumption() + "," + l.getTime() + "\n");
+                }
+                count += page.size();
+
+                if (page.size() < ARCHIVE_PAGE_SIZE) {
+                    break;
+                }
+                afterId = page.getLast().getId();
+            }
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+}
@@ -3,6 +3,7 @@ package fr.domotique.api.health;
 import fr.domotique.*;
 import fr.domotique.base.*;
 import fr.domotique.base.apidocs.*;
+import fr.domotique.base.data.*;
 import fr.domotique.data.*;
 import io.vertx.ext.web.*;
 import org.jetbrains.annotations.*;
@@ -34,48 +35,86 @@ public class HealthSection extends Section {
         .response(200, MyHealthOutput.class, "Here's your health status!")
         .response(401, "Unauthorized");
 
+    /// The maximum number of health snapshots kept in [#snapshots].
+    static final int SNAPSHOT_CACHE_SIZE = 10_000;
+
+    /// The last computed health of recently seen users, by user and version of their devices
+    /// (see [DeviceTable#ownerVersionKey(int)]).
+    ///
+    /// Sections are created once per event loop, so it's static to be shared by all of them.
+    /// When the devices of a user change, their version changes too: the old snapshot can't be found anymore,
+    /// and it will be evicted sooner or later. No need to invalidate anything! Versions are shared by all servers
+    /// (see [TableVersions]), so changes made elsewhere are seen too, after a second or two.
+    private static final BoundedCache<SnapshotKey, MyHealthOutput> snapshots = new BoundedCache<>(SNAPSHOT_CACHE_SIZE);
+
+    /// All attribute types, so we don't clone the array each time with [AttributeType#values()].
+    private static final AttributeType[] TYPES = AttributeType.values();
+
+    record SnapshotKey(int userId, long version) {}
+
     MyHealthOutput myHealth(RoutingContext ctx) {
         var userId = Authenticator.get(ctx).getUserId();
 
-        var entries = server.db().devices().getAllAttributesOfOwner(userId).await();
+        // Read the version BEFORE querying the devices, so we never cache old data with a new version.
+        long version = TableVersions.get(DeviceTable.ownerVersionKey(userId));
+
+        // When the user refreshes the page many times, only one request queries the database.
+        return snapshots.get(new SnapshotKey(userId, version),
+                _ -> server.db().devices().getAllAttributesOfOwner(userId).map(HealthSection::computeHealth))
+            .await();
+    }
+
+    /// Computes the health of a user using the attributes of all their devices: each number attribute is the
+    /// average of its values, evaluated using its healthy range.
+    static MyHealthOutput computeHealth(List<DeviceTable.DeviceAndAttributes> entries) {
+        // Sums and counts of each attribute, indexed by ordinal, so we don't box a Double for every value.
+        var sums = new double[TYPES.length];
+        var counts = new int[TYPES.length];
+        // The first value of each attribute, sent as is when it's the only one: 72 stays 72, not 72.0.
+        var firsts = new Object[TYPES.length];
+        @SuppressWarnings("unchecked")
+        var sources = (List<Integer>[]) new List[TYPES.length];
 
-        // Contains the sum of all attributes
-        var attributeValues = new EnumMap<AttributeType, Object>(AttributeType.class);
-        var attributeOccurrences = new EnumMap<AttributeType, Integer>(AttributeType.class);
-        var attributeSources = new EnumMap<AttributeType, ArrayList<Integer>>(AttributeType.class);
         for (var entry : entries) {
-            for (var kv : entry.attributes().entrySet()) {
-                AttributeType attr = kv.getKey();
-                Object value = kv.getValue();
-
-                if (attr.getContent() == AttributeType.Content.NUMBER) {
-                    attributeValues.merge(attr, value, (a, b) -> toDouble(a) + toDouble(b));
-                    attributeOccurrences.merge(attr, 1, Integer::sum);
-                    attributeSources.computeIfAbsent(attr, _ -> new ArrayList<>()).add(entry.deviceId());
-                } else {
-                    attributeValues.put(attr, value);
+            AttributeMap attributes = entry.attributes();
+            for (AttributeType attr : TYPES) {
+                if (attr.getContent() != AttributeType.Content.NUMBER) {
+                    continue;
                 }
-            }
-        }
 
-        // Average out values inside attributeValues.
-        for (var occ : attributeOccurrences.entrySet()) {
-            AttributeType attr = occ.getKey();
-            int count = occ.getValue();
+                double value = attributes.getDouble(attr);
+                if (Double.isNaN(value)) {
+                    continue;
+                }
 
-            if (attr.getContent() == AttributeType.Content.NUMBER && count > 1) {
-                double current = (Double) attributeValues.get(attr);
-                double average = current / count;
-                attributeValues.put(attr, average);
+                int i = attr.ordinal();
+                if (counts[i] == 0) {
+                    firsts[i] = attributes.get(attr);
+                }
+                sums[i] += value;
+                counts[i]++;
+                if (sources[i] == null) {
+                    sources[i] = new ArrayList<>();
+                }
+                sources[i].add(entry.deviceId());
             }
         }
 
+        // Average out all values.
+        var averages = new double[TYPES.length];
+        for (int i = 0; i < TYPES.length; i++) {
+            averages[i] = counts[i] > 0 ? sums[i] / counts[i] : Double.NaN;
+        }
+
         var healthValues = new EnumMap<AttributeType, HealthValue>(AttributeType.class);
-        for (var entry : attributeValues.entrySet()) {
-            AttributeType attr = entry.getKey();
-            Object value = entry.getValue();
+        for (AttributeType attr : TYPES) {
+            int i = attr.ordinal();
+            if (counts[i] == 0) {
+                continue;
+            }
 
-            HealthValue healthValue = evaluate(attr, attributeValues, value, attributeSources.get(attr));
+            Object value = counts[i] == 1 ? firsts[i] : averages[i];
+            HealthValue healthValue = evaluate(attr, averages, value, sources[i]);
             if (healthValue != null) {
                 healthValues.put(attr, healthValue);
             }
@@ -88,27 +127,29 @@ public class HealthSection extends Section {
 
     record HealthValue(Object value, @Nullable AttributeRange range, HealthStatus status, List<Integer> deviceIds) {}
 
-    private @Nullable HealthValue evaluate(AttributeType attr, EnumMap<AttributeType, Object> attributes, Object value, List<Integer> devices) {
-        AttributeRange range = calcHealthyRange(attr, attributes);
+    /// Evaluates the average value of an attribute; `averages` is indexed by ordinal, `NaN` when missing.
+    /// `value` is what we send: the average, or the original value when there's only one.
+    private static @Nullable HealthValue evaluate(AttributeType attr, double[] averages, Object value, List<Integer> devices) {
+        AttributeRange range = calcHealthyRange(attr, averages);
+        double val = averages[attr.ordinal()];
         if (range == null) {
             return null;
         } else if (range.equals(AttributeRange.INFINITE)) {
             return new HealthValue(value, null, HealthStatus.MISSING_DATA, devices);
         } else {
-            double val = toDouble(value);
             return new HealthValue(value, range, val >= range.min() && val <= range.max() ? HealthStatus.HEALTHY : HealthStatus.WARNING, devices);
         }
     }
 
-    private @Nullable AttributeRange calcHealthyRange(AttributeType attr, EnumMap<AttributeType, Object> attributes) {
+    private static @Nullable AttributeRange calcHealthyRange(AttributeType attr, double[] averages) {
         return switch (attr) {
             case AttributeType.BODY_WEIGHT -> {
-                Object height = attributes.get(AttributeType.BODY_HEIGHT);
-                if (height == null) {
+                double height = averages[AttributeType.BODY_HEIGHT.ordinal()];
+                if (Double.isNaN(height)) {
                     yield AttributeRange.INFINITE;
                 }
                 // Calculate BMI-based weight range
-                double heightInMeters = toDouble(height) / 100.0; // Convert cm to meters
+                double heightInMeters = height / 100.0; // Convert cm to meters
                 double minWeight = 18.5 * heightInMeters * heightInMeters; // Minimum healthy weight (BMI 18.5)
                 double maxWeight = 25.0 * heightInMeters * heightInMeters; // Maximum healthy weight (BMI 25)
                 yield new AttributeRange(minWeight, maxWeight);
@@ -129,12 +170,4 @@ public class HealthSection extends Section {
     record AttributeRange(double min, double max) {
         public static AttributeRange INFINITE = new AttributeRange(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
     }
-
-    private static double toDouble(Object v) {
-        if (v instanceof Number) {
-            return ((Number) v).doubleValue();
-        } else {
-            throw new IllegalArgumentException("Invalid value type: " + v.getClass());
-        }
-    }
 }
@@ -0,0 +1,68 @@
+package fr.domotique.api.metrics;
+
+import fr.domotique.*;
+import fr.domotique.base.*;
+import fr.domotique.base.apidocs.*;
+import fr.domotique.base.metrics.*;
+import fr.domotique.data.*;
+import io.vertx.core.http.*;
+import io.vertx.ext.web.*;
+
+import java.nio.charset.*;
+import java.security.*;
+
+/// Exposes the performance [metrics][Metrics] of the server, for Prometheus (or curious developers).
+public class MetricsSection extends Section {
+    public MetricsSection(Server server) {
+        super(server);
+    }
+
+    /// The content type of the Prometheus text format.
+    static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Override
+    public void register(Router router) {
+        var sr = newSubRouter(router, "/api/metrics*")
+            .putMetadata(RouteDoc.KEY, new RouteDoc().tag("Metrics"));
+
+        sr.get("/").handler(this::getMetrics).putMetadata(RouteDoc.KEY, GET_METRICS_DOC);
+    }
+
+    // region GET /api/metrics | Get metrics
+    static final RouteDoc GET_METRICS_DOC = new RouteDoc("getMetrics")
+        .summary("Get server metrics")
+        .description("""
+            Returns the latency, request count, database queries and failures of all routes, in the \
+            Prometheus text format.
+
+            Only available to administrators, or with the `Authorization: Bearer <token>` header, using the token \
+            of the `domotique.metricsToken` configuration (for Prometheus, which can't log in).""")
+        .response(200, String.class, "The metrics, in the Prometheus text format.")
+        .response(403, ErrorResponse.class, "You're not allowed to see the metrics.");
+
+    void getMetrics(RoutingContext ctx) {
+        // Prometheus can't log in, so it uses the token instead.
+        // We can't trust the address of the client: behind a reverse proxy, all requests come from 127.0.0.1!
+        if (!hasValidToken(ctx) && !Authenticator.get(ctx).isOfRole(Role.ADMIN)) {
+            throw new RequestException("Vous n'avez pas accès aux métriques.", 403, "METRICS_FORBIDDEN");
+        }
+
+        ctx.response()
+            .putHeader(HttpHeaders.CONTENT_TYPE, PROMETHEUS_CONTENT_TYPE)
+            .end(Metrics.toPrometheus());
+    }
+
+    /// Returns true when the request has the `Authorization: Bearer <token>` header with the metrics token.
+    private boolean hasValidToken(RoutingContext ctx) {
+        String token = server.config().metricsToken();
+        String header = ctx.request().getHeader(HttpHeaders.AUTHORIZATION);
+        if (token == null || header == null || !header.startsWith("Bearer ")) {
+            return false;
+        }
+
+        // Compare in constant time, so the token can't be guessed by measuring how long we take to answer.
+        byte[] given = header.substring("Bearer ".length()).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(given, token.getBytes(StandardCharsets.UTF_8));
+    }
+    // endregion
+}
@@ -1,6 +1,7 @@
 package fr.domotique.api.rooms;
 
 import fr.domotique.*;
+import fr.domotique.api.actionlogs.*;
 import fr.domotique.base.*;
 import fr.domotique.base.Validation;
 import fr.domotique.base.apidocs.*;
@@ -51,7 +52,8 @@ public class RoomSection extends Section {
         });
 
         // Register all room-related endpoints
-        roomRoutes.get("/").respond(this::getAll).putMetadata(RouteDoc.KEY, GET_ROOMS_DOC);
+        roomRoutes.get("/").handler(etag(Room.ENTITY.tableName(), User.ENTITY.tableName()))
+            .respond(this::getAll).putMetadata(RouteDoc.KEY, GET_ROOMS_DOC);
         roomRoutes.post("/").respond(vt(this::createRoom)).putMetadata(RouteDoc.KEY, CREATE_ROOM_DOC);
 
         // Routes with parameters come last
@@ -72,7 +74,7 @@ public class RoomSection extends Section {
         .summary("Get rooms")
         .description("Gets all rooms from the database.")
         .optionalQueryParam("ids", int[].class, "List of room IDs to get. If empty, all rooms are returned.")
-        .optionalQueryParam("name", String.class, "Filters rooms by a search query.")
+        .optionalQueryParam("name", String.class, "Filters rooms by a search query. Returns the " + FullTextSearch.MAX_RESULTS + " best matches.")
         .response(200, RoomsResponse.class, "The list of all rooms.");
 
     record RoomsResponse(List<CompleteRoom> rooms) {}
@@ -85,7 +87,7 @@ public class RoomSection extends Section {
 
         String name = Sanitize.string(context.queryParams().get("name"));
         if (name != null) {
-            return server.db().rooms().getAllCompleteMatchingName(name).map(RoomsResponse::new);
+            return server.db().rooms().getAllCompleteMatchingName(name, FullTextSearch.MAX_RESULTS).map(RoomsResponse::new);
         }
         else {
             return server.db().rooms().getAllComplete().map(RoomsResponse::new);
@@ -146,7 +148,7 @@ public class RoomSection extends Section {
 
             // Log this action in the action log
             Authenticator auth = Authenticator.get(context);
-            server.db().actionLogs().insert(new ActionLog(
+            ActionLogOperations.enqueue(server, new ActionLog(
                 auth.getUserId(),
                 room.getId(),
                 ActionLogTarget.ROOM,
@@ -195,7 +197,7 @@ public class RoomSection extends Section {
             
             // Log this action in the action log
             Authenticator auth = Authenticator.get(context);
-            server.db().actionLogs().insert(new ActionLog(
+            ActionLogOperations.enqueue(server, new ActionLog(
                 auth.getUserId(),
                 room.getId(),
                 ActionLogTarget.ROOM,
@@ -232,7 +234,7 @@ public class RoomSection extends Section {
         
         // Log this action in the action log
         Authenticator auth = Authenticator.get(context);
-        server.db().actionLogs().insert(new ActionLog(
+        ActionLogOperations.enqueue(server, new ActionLog(
             auth.getUserId(),
             roomId,
             ActionLogTarget.ROOM,
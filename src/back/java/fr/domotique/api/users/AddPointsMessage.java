@@ -12,6 +12,4 @@ public record AddPointsMessage(int userId, PointSource source, int points) {
             throw new IllegalArgumentException("Invalid user ID.");
         }
     }
-
-    public static final String CHANNEL = "addUserPoints";
 }
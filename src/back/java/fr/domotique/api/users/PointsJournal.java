@@ -0,0 +1,398 @@
+package fr.domotique.api.users;
+
+import org.jetbrains.annotations.*;
+import org.slf4j.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+/// A journal on disk keeping track of everything the [PointsVerticle] has in memory: points waiting to be
+/// added, and cooldowns. When the server restarts (or crashes!), the journal is read again, so no points are lost.
+///
+/// ## How it works
+///
+/// The journal is a file mapped in memory: writing to it is as fast as writing to an array, and the operating
+/// system saves it to disk by itself. Even if the process crashes, everything written is kept.
+/// (A power outage can still lose the last few seconds though.)
+///
+/// Records are only appended at the end of the journal:
+/// - `ADD`: a points message was received
+/// - `COOLDOWN`: the cooldown of a (user, source) pair changed
+/// - `COMMIT`: the points of all `ADD` records before the given position were written in the database
+///
+/// When reading the journal, `ADD` records after the last `COMMIT` are the points we still have to add. `COOLDOWN`
+/// records after the last `COMMIT` are ignored, since their points never made it to the database.
+///
+/// ## Compaction
+///
+/// Of course, a journal that never stops growing is a problem. So, once in a while, we [compact][#compact(Map, List)]
+/// it: we write a brand-new journal with only the current cooldowns and waiting points.
+///
+/// To avoid breaking everything if we crash while compacting, we use two files, and switch from one to the
+/// other. Each file starts with a generation number, written last, so a half-written journal is never used.
+///
+/// ## File format
+///
+/// ```
+/// Header:   [magic: int] [generation: long] [padding: int]
+/// ADD:      [1: byte] [userId: int] [source: byte] [points: int]
+/// COOLDOWN: [2: byte] [userId: int] [source: byte] [pointsGiven: int] [nextReset: long, epoch millis]
+/// COMMIT:   [3: byte] [position: int]
+/// ```
+///
+/// The rest of the file is filled with zeroes, so a `0` byte marks the end of the journal.
+///
+/// Not thread-safe: must be used by one [PointsVerticle] only.
+final class PointsJournal implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PointsJournal.class);
+
+    /// The size of each journal file. Big enough for hundreds of thousands of points messages.
+    static final int CAPACITY = 16 * 1024 * 1024;
+
+    /// "DPTS" in ASCII, to make sure we're reading a journal.
+    private static final int MAGIC = 0x44505453;
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte END = 0;
+    private static final byte ADD = 1;
+    private static final byte COOLDOWN = 2;
+    private static final byte COMMIT = 3;
+
+    private static final int ADD_SIZE = 1 + 4 + 1 + 4;
+    private static final int COOLDOWN_SIZE = 1 + 4 + 1 + 4 + 8;
+    private static final int COMMIT_SIZE = 1 + 4;
+
+    private static final PointSource[] SOURCES = PointSource.values();
+
+    /// Both journal files, we write to `files[current]`.
+    private final MappedByteBuffer[] files;
+    private final FileChannel[] channels;
+    private int current;
+    private long generation;
+
+    /// The position of the next record in the current file.
+    private int position;
+    /// Where the records of each file end; everything after is zero. Only up to date for the file we're not using.
+    private final int[] ends = new int[2];
+    /// True when a record didn't fit in the journal. Compacting fixes it.
+    private boolean full;
+
+    /// The points we have to add, read from the journal when opening it.
+    private final List<AddPointsMessage> replayedMessages = new ArrayList<>();
+    /// The cooldowns read from the journal when opening it.
+    private final Map<Integer, EnumMap<PointSource, PointsVerticle.CooldownData>> replayedCooldowns = new HashMap<>();
+
+    private PointsJournal(FileChannel[] channels, MappedByteBuffer[] files) {
+        this.channels = channels;
+        this.files = files;
+    }
+
+    /// Opens the journal named `name` in this directory, creating it if it doesn't exist, and reads its contents,
+    /// available in [#replayedMessages()] and [#replayedCooldowns()].
+    ///
+    /// Its files are `<name>-0.journal` and `<name>-1.journal`. Each [PointsVerticle] shard has its own journal.
+    ///
+    /// Blocks the thread while reading files!
+    static PointsJournal open(Path directory, String name) throws IOException {
+        Files.createDirectories(directory);
+
+        var channels = new FileChannel[2];
+        var files = new MappedByteBuffer[2];
+        try {
+            for (int i = 0; i < 2; i++) {
+                channels[i] = FileChannel.open(directory.resolve(name + "-" + i + ".journal"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                files[i] = channels[i].map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+            }
+        } catch (IOException e) {
+            for (FileChannel ch : channels) {
+                if (ch != null) {
+                    ch.close();
+                }
+            }
+            throw e;
+        }
+
+        var journal = new PointsJournal(channels, files);
+        journal.replay();
+        return journal;
+    }
+
+    /// The points messages that weren't written to the database before the last shutdown.
+    List<AddPointsMessage> replayedMessages() {
+        return replayedMessages;
+    }
+
+    /// The cooldowns we had before the last shutdown.
+    Map<Integer, EnumMap<PointSource, PointsVerticle.CooldownData>> replayedCooldowns() {
+        return replayedCooldowns;
+    }
+
+    /// The position of the next record. Give it to [#commit(int)] once the points are in the database.
+    int position() {
+        return position;
+    }
+
+    /// Returns true when the journal is getting full, and should be compacted.
+    boolean needsCompaction() {
+        return full || position > CAPACITY / 2;
+    }
+
+    /// Writes an `ADD` record: we received a points message.
+    void add(AddPointsMessage msg) {
+        if (!reserve(ADD_SIZE)) {
+            return;
+        }
+
+        MappedByteBuffer buf = files[current];
+        buf.putInt(position + 1, msg.userId());
+        buf.put(position + 5, (byte) msg.source().ordinal());
+        buf.putInt(position + 6, msg.points());
+        finish(ADD, ADD_SIZE);
+    }
+
+    /// Writes a `COOLDOWN` record: the cooldown of this user and source changed.
+    void cooldown(int userId, PointSource source, PointsVerticle.CooldownData cd) {
+        if (!reserve(COOLDOWN_SIZE)) {
+            return;
+        }
+
+        writeCooldown(files[current], position, userId, source, cd);
+        finish(COOLDOWN, COOLDOWN_SIZE);
+    }
+
+    /// Writes a `COMMIT` record: all `ADD` records before `upTo` are in the database.
+    void commit(int upTo) {
+        if (!reserve(COMMIT_SIZE)) {
+            return;
+        }
+
+        files[current].putInt(position + 1, upTo);
+        finish(COMMIT, COMMIT_SIZE);
+    }
+
+    /// Writes a new journal in the other file, containing only the given cooldowns and messages, and switches to it.
+    ///
+    /// Expired cooldowns should be removed beforehand.
+    void compact(Map<Integer, EnumMap<PointSource, PointsVerticle.CooldownData>> cooldowns,
+                 List<AddPointsMessage> pending) {
+        int next = 1 - current;
+        MappedByteBuffer buf = files[next];
+
+        // Mark the file as invalid while we're writing it.
+        buf.putInt(0, 0);
+
+        int pos = HEADER_SIZE;
+        boolean truncated = false;
+
+        // Write all cooldowns, then commit them.
+        outer:
+        for (var user : cooldowns.entrySet()) {
+            for (var cd : user.getValue().entrySet()) {
+                if (pos + COOLDOWN_SIZE + COMMIT_SIZE > CAPACITY) {
+                    truncated = true;
+                    break outer;
+                }
+                writeCooldown(buf, pos, user.getKey(), cd.getKey(), cd.getValue());
+                buf.put(pos, COOLDOWN);
+                pos += COOLDOWN_SIZE;
+            }
+        }
+        buf.putInt(pos + 1, pos);
+        buf.put(pos, COMMIT);
+        pos += COMMIT_SIZE;
+
+        // Then, the points we still have to add.
+        for (AddPointsMessage msg : pending) {
+            if (pos + ADD_SIZE > CAPACITY) {
+                truncated = true;
+                break;
+            }
+            buf.putInt(pos + 1, msg.userId());
+            buf.put(pos + 5, (byte) msg.source().ordinal());
+            buf.putInt(pos + 6, msg.points());
+            buf.put(pos, ADD);
+            pos += ADD_SIZE;
+        }
+
+        // Clear what's left of the old journal in this file.
+        clear(buf, pos, ends[next]);
+
+        // Finally, write the header: from now on, this file is the journal.
+        buf.putLong(4, generation + 1);
+        buf.putInt(0, MAGIC);
+
+        generation++;
+        ends[current] = position;
+        current = next;
+        position = pos;
+        full = false;
+
+        if (truncated) {
+            log.error("The points journal is too small to contain all cooldowns and pending points! Some were lost.");
+        }
+    }
+
+    /// Saves the journal to the disk, and closes it. Blocks the thread!
+    @Override
+    public void close() throws IOException {
+        files[current].force();
+        for (FileChannel ch : channels) {
+            ch.close();
+        }
+    }
+
+    private boolean reserve(int size) {
+        if (position + size <= CAPACITY) {
+            return true;
+        }
+
+        if (!full) {
+            log.warn("The points journal is full! New points won't survive a restart until it's compacted.");
+            full = true;
+        }
+        return false;
+    }
+
+    /// Writes the type of the record last: if we crash before that, the record is just ignored.
+    private void finish(byte type, int size) {
+        files[current].put(position, type);
+        position += size;
+    }
+
+    private static void writeCooldown(ByteBuffer buf, int pos, int userId, PointSource source,
+                                      PointsVerticle.CooldownData cd) {
+        buf.putInt(pos + 1, userId);
+        buf.put(pos + 5, (byte) source.ordinal());
+        buf.putInt(pos + 6, cd.pointsGiven);
+        buf.putLong(pos + 10, cd.nextReset.toEpochMilli());
+    }
+
+    private static void clear(ByteBuffer buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            buf.put(i, END);
+        }
+    }
+
+    /// Reads the most recent journal file, and fills [#replayedMessages] and [#replayedCooldowns].
+    private void replay() {
+        long gen0 = readGeneration(files[0]);
+        long gen1 = readGeneration(files[1]);
+        if (gen0 == 0 && gen1 == 0) {
+            // Brand-new journal! Or a crash during the very first compaction: clear everything.
+            ends[0] = CAPACITY;
+            ends[1] = CAPACITY;
+            current = 1;
+            generation = 0;
+            compact(Map.of(), List.of());
+            return;
+        }
+
+        current = gen0 >= gen1 ? 0 : 1;
+        generation = Math.max(gen0, gen1);
+
+        // We don't know what's in the other file (maybe a half-written compaction), so clear it entirely.
+        ends[1 - current] = CAPACITY;
+
+        MappedByteBuffer buf = files[current];
+
+        // Positions of ADD and COOLDOWN records, so we can see which ones are before the last commit.
+        var adds = new ArrayList<Map.Entry<Integer, AddPointsMessage>>();
+        var cooldowns = new ArrayList<CooldownRecord>();
+        int lastCommit = HEADER_SIZE;
+
+        int pos = HEADER_SIZE;
+        read:
+        while (pos < CAPACITY) {
+            byte type = buf.get(pos);
+            switch (type) {
+                case END -> {
+                    break read;
+                }
+                case ADD -> {
+                    if (pos + ADD_SIZE > CAPACITY) {
+                        break read;
+                    }
+                    PointSource src = sourceAt(buf, pos + 5);
+                    if (src == null) {
+                        break read;
+                    }
+                    try {
+                        adds.add(Map.entry(pos, new AddPointsMessage(buf.getInt(pos + 1), src, buf.getInt(pos + 6))));
+                    } catch (IllegalArgumentException e) {
+                        log.warn("Ignoring invalid points message in the journal at position {}", pos);
+                    }
+                    pos += ADD_SIZE;
+                }
+                case COOLDOWN -> {
+                    if (pos + COOLDOWN_SIZE > CAPACITY) {
+                        break read;
+                    }
+                    PointSource src = sourceAt(buf, pos + 5);
+                    if (src == null) {
+                        break read;
+                    }
+                    cooldowns.add(new CooldownRecord(pos, buf.getInt(pos + 1), src,
+                        new PointsVerticle.CooldownData(buf.getInt(pos + 6), Instant.ofEpochMilli(buf.getLong(pos + 10)))));
+                    pos += COOLDOWN_SIZE;
+                }
+                case COMMIT -> {
+                    if (pos + COMMIT_SIZE > CAPACITY) {
+                        break read;
+                    }
+                    lastCommit = buf.getInt(pos + 1);
+                    pos += COMMIT_SIZE;
+                }
+                default -> {
+                    log.warn("Unknown record of type {} in the points journal at position {}; ignoring the rest", type, pos);
+                    break read;
+                }
+            }
+        }
+
+        for (var add : adds) {
+            if (add.getKey() >= lastCommit) {
+                replayedMessages.add(add.getValue());
+            }
+        }
+
+        Instant now = Instant.now();
+        for (CooldownRecord rec : cooldowns) {
+            if (rec.position < lastCommit) {
+                replayedCooldowns.computeIfAbsent(rec.userId, _ -> new EnumMap<>(PointSource.class))
+                    .put(rec.source, rec.data);
+            }
+        }
+        // Expired cooldowns are useless, don't keep them.
+        for (var user : replayedCooldowns.values()) {
+            user.values().removeIf(cd -> cd.isExpired(now));
+        }
+        replayedCooldowns.values().removeIf(EnumMap::isEmpty);
+
+        // Start from a clean journal.
+        position = pos;
+        compact(replayedCooldowns, replayedMessages);
+
+        log.info("Read the points journal: {} pending point messages, {} users with cooldowns",
+            replayedMessages.size(), replayedCooldowns.size());
+    }
+
+    private static long readGeneration(ByteBuffer buf) {
+        return buf.getInt(0) == MAGIC ? buf.getLong(4) : 0;
+    }
+
+    private static @Nullable PointSource sourceAt(ByteBuffer buf, int pos) {
+        int ordinal = buf.get(pos);
+        if (ordinal < 0 || ordinal >= SOURCES.length) {
+            log.warn("Unknown point source {} in the points journal at position {}; ignoring the rest", ordinal, pos);
+            return null;
+        }
+        return SOURCES[ordinal];
+    }
+
+    private record CooldownRecord(int position, int userId, PointSource source, PointsVerticle.CooldownData data) {}
+}
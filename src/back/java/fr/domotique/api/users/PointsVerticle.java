@@ -1,7 +1,6 @@
 package fr.domotique.api.users;
 
 import fr.domotique.*;
-import fr.domotique.base.*;
 import fr.domotique.data.*;
 import io.vertx.core.*;
 import io.vertx.core.eventbus.*;
@@ -10,48 +9,163 @@ import org.slf4j.*;
 
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /// A background verticle that just adds points to users.
 ///
 /// Use [UserOperations#enqueuePointsIncrease(io.vertx.core.Vertx, int, PointSource, int)] to add points to a user.
 ///
-/// Must be deployed once only.
+/// ## Shards
+///
+/// Points are handled by many verticles, each on its own event loop: the *shards*. Each user belongs to one shard,
+/// using `userId % shardCount` (see [#shardOf(int)]), which receives their messages on its own [address][#address(int)].
+/// Since a user always goes to the same shard, their cooldowns are only in this shard, and no locking is needed.
+///
+/// Shards write points with [UserTable#addPoints(Map)], which adds them in SQL without reading them first:
+/// even if two shards (or two servers) write to the same user, no points are lost.
+///
+/// Deploy them all with [#deployShards(Vertx, Server, int)].
+///
+/// ## Journal
+///
+/// Pending messages and cooldowns are also written to a [PointsJournal], in the data directory of the [Config],
+/// so they survive restarts and crashes. Each shard has its own journal; shard 0 uses the same files as when there
+/// was only one verticle, so nothing is lost after an upgrade. Expired cooldowns are removed every
+/// [#CLEANUP_INTERVAL_MS] milliseconds, so memory doesn't grow with the number of users.
+///
+/// When the points can't be written (the database is down...), they aren't committed in the journal: the shard
+/// tries again, waiting twice as long after each failure ([#RETRY_FIRST_DELAY_MS], up to [#RETRY_MAX_DELAY_MS]).
+/// If the server stops in the meantime, they're read back from the journal on the next start.
+///
+/// When the number of shards changes, pending points in the journals are still added just fine, but some users may
+/// get a fresh cooldown in their new shard.
 public class PointsVerticle extends VerticleBase {
     private static final Logger log = LoggerFactory.getLogger(PointsVerticle.class);
 
+    /// Time between two processing sessions, in milliseconds.
+    static final long PROCESS_INTERVAL_MS = 500;
+    /// Time between two removals of expired cooldowns (and journal compactions), in milliseconds.
+    static final long CLEANUP_INTERVAL_MS = 60_000;
+    /// Time before writing points again after the first failure, in milliseconds.
+    static final long RETRY_FIRST_DELAY_MS = 1_000;
+    /// The maximum time before writing points again after a failure, in milliseconds.
+    static final long RETRY_MAX_DELAY_MS = 60_000;
+
+    /// The base of the event bus address of each shard; see [#address(int)].
+    static final String CHANNEL = "addUserPoints";
+
+    /// The number of deployed shards. Stays at 1 until [#deployShards(Vertx, Server, int)] is called.
+    private static volatile int shardCount = 1;
+
     /// The list of pending messages. Is cleared after each processing session.
     private final List<AddPointsMessage> pendingMessages = new ArrayList<>();
 
     /// The list of applied cooldowns for each user.
     private final Map<Integer, EnumMap<PointSource, CooldownData>> cooldowns = new HashMap<>();
 
+    /// The journal saving pending messages and cooldowns on disk.
+    private PointsJournal journal;
+    /// The processing session currently running, or `null` if there's none.
+    private Future<?> currentProcessing;
+    /// The timer before the next attempt to write points that failed, or `null` if there's none.
+    private io.vertx.core.Timer retryTimer;
+    /// True once the verticle is stopping: failed points aren't written again, they stay in the journal.
+    private boolean stopping;
+
     private MessageConsumer<AddPointsMessage> consumer;
     private long timer;
+    private long cleanupTimer;
 
     private final Server server;
+    /// The number of this shard, between 0 and [#shardCount] (excluded).
+    private final int shard;
 
-    public PointsVerticle(Server server) {
+    public PointsVerticle(Server server, int shard) {
         this.server = server;
+        this.shard = shard;
+    }
+
+    /// Deploys `shards` verticles, each one on its own event loop, and starts sending points to them.
+    ///
+    /// The [AddPointsMessage] codec must be registered beforehand.
+    public static Future<Void> deployShards(Vertx vertx, Server server, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("There must be at least one shard.");
+        }
+
+        var deployments = new ArrayList<Future<?>>(shards);
+        for (int i = 0; i < shards; i++) {
+            deployments.add(vertx.deployVerticle(new PointsVerticle(server, i)));
+        }
+
+        shardCount = shards;
+        return Future.all(deployments).mapEmpty();
+    }
+
+    /// Returns the shard handling the points of this user.
+    static int shardOf(int userId) {
+        return Math.floorMod(userId, shardCount);
+    }
+
+    /// Returns the event bus address receiving the [AddPointsMessage]s of a shard.
+    static String address(int shard) {
+        return CHANNEL + "." + shard;
     }
 
     @Override
     public Future<?> start() throws Exception {
-        vertx.eventBus().registerDefaultCodec(AddPointsMessage.class, new LocalCodec<>());
+        // Shard 0 keeps the name of the journal from the time there was only one verticle.
+        String journalName = shard == 0 ? "points" : "points-shard" + shard;
+
+        // Read the journal first (it's reading files, so don't block the event loop),
+        // to get back what we had before the last shutdown.
+        return vertx.executeBlocking(() -> PointsJournal.open(server.config().dataDirectory(), journalName))
+            .andThen(x -> {
+                if (x.failed()) {
+                    log.error("Failed to open the points journal", x.cause());
+                    return;
+                }
 
-        consumer = vertx.eventBus().consumer(AddPointsMessage.CHANNEL, msg -> pendingMessages.add(msg.body()));
-        timer = vertx.setPeriodic(500, this::processAllMessages);
+                journal = x.result();
+                pendingMessages.addAll(journal.replayedMessages());
+                cooldowns.putAll(journal.replayedCooldowns());
 
-        return Future.succeededFuture();
+                consumer = vertx.eventBus().consumer(address(shard), this::receive);
+                timer = vertx.setPeriodic(PROCESS_INTERVAL_MS, this::processAllMessages);
+                cleanupTimer = vertx.setPeriodic(CLEANUP_INTERVAL_MS, this::cleanUp);
+            });
     }
 
     @Override
     public Future<?> stop() {
         vertx.cancelTimer(timer);
-        return consumer.unregister();
+        vertx.cancelTimer(cleanupTimer);
+
+        // Don't wait for the database to come back: points that failed are still in the journal.
+        stopping = true;
+        if (retryTimer != null) {
+            retryTimer.cancel();
+        }
+
+        // Wait for the points being written, then save the journal to the disk.
+        // Messages we didn't process yet are in the journal, we'll get them back on the next start.
+        return consumer.unregister()
+            .compose(_ -> currentProcessing != null ? currentProcessing.otherwiseEmpty() : Future.succeededFuture())
+            .compose(_ -> vertx.executeBlocking(() -> {
+                journal.close();
+                return null;
+            }));
+    }
+
+    private void receive(Message<AddPointsMessage> msg) {
+        journal.add(msg.body());
+        pendingMessages.add(msg.body());
     }
 
     private void processAllMessages(long timerId) {
-        if (pendingMessages.isEmpty()) {
+        // Wait for the previous session to finish; so a COMMIT in the journal can't
+        // mark the messages of another session as done.
+        if (pendingMessages.isEmpty() || currentProcessing != null) {
             return;
         }
 
@@ -69,6 +183,7 @@ public class PointsVerticle extends VerticleBase {
             // Calculate the number of points based on the amount given during the cooldown.
             int pts = msg.points();
             pts = cd.accept(pts, msg.source());
+            journal.cooldown(msg.userId(), msg.source(), cd);
 
             // Add the points to the points map, only if they are positive of course.
             if (pts > 0) {
@@ -88,38 +203,71 @@ public class PointsVerticle extends VerticleBase {
         // Reset the list of pending messages
         pendingMessages.clear();
 
-        // Query the database for the current points of all users
-        server.db().users().getManyPointInfo(pointMap.keySet())
-            .compose(pts -> {
-                // Look at all changed users; unknown users are silently ignored for now.
-                var updates = new ArrayList<UserTable.PointInfo>();
-                for (UserTable.PointInfo pt : pts) {
-                    // See the points we should add.
-                    int pointsAdded = pointMap.getOrDefault(pt.id(), 0);
-
-                    // If we should add points, calculate the new level and points.
-                    if (pointsAdded > 0) {
-                        int oldPoints = pt.points();
-                        int newPoints = oldPoints + pointsAdded;
-                        Level newLevel = UserOperations.newLevelAfterAddingPoints(pt.level(), oldPoints, newPoints);
-
-                        // Add an update to the list.
-                        updates.add(new UserTable.PointInfo(pt.id(), newPoints, newLevel));
-                    }
-                }
+        // Once the points are in the database, everything before this position in the journal is done.
+        int journalPosition = journal.position();
 
-                // Push these updates to the database.
-                return server.db().users().updateManyPointInfo(updates);
-            })
-            .andThen(x -> {
-                if (x.succeeded()) {
-                    long elapsed = System.nanoTime() - nanos;
-                    log.info("Processed {} point increases in {} µs", pointMap.size(), elapsed / 1000);
-                } else {
-                    log.error("Failed to process points add messages", x.cause());
-                    // todo: retry?
+        // Add the points in SQL, in one go. Unknown users are silently ignored for now.
+        // No other session starts until they're written, so they're never committed by someone else.
+        Future<Void> processing = addPoints(pointMap, RETRY_FIRST_DELAY_MS);
+
+        // Set it before adding the callback, since the future may already be complete.
+        currentProcessing = processing;
+        processing.andThen(x -> {
+            currentProcessing = null;
+
+            if (x.succeeded()) {
+                // Mark the messages as done in the journal.
+                journal.commit(journalPosition);
+                if (journal.needsCompaction()) {
+                    journal.compact(cooldowns, pendingMessages);
                 }
+
+                long elapsed = System.nanoTime() - nanos;
+                log.info("Shard {} processed {} point increases in {} µs", shard, pointMap.size(), elapsed / 1000);
+            } else {
+                // We're stopping: the messages aren't committed, so they'll be added on the next start.
+                log.warn("Shard {} stopped before adding {} point increases; they're kept in the journal",
+                    shard, pointMap.size());
+            }
+        });
+    }
+
+    /// Adds the points in the database, trying again after `delay` milliseconds (then twice that...) when it fails.
+    /// Only fails when the verticle is stopping.
+    private Future<Void> addPoints(Map<Integer, Integer> pointMap, long delay) {
+        return server.db().users().addPoints(pointMap).recover(err -> {
+            if (stopping) {
+                return Future.failedFuture(err);
+            }
+
+            log.error("Shard {} failed to add points, trying again in {} ms", shard, delay, err);
+            retryTimer = vertx.timer(delay, TimeUnit.MILLISECONDS);
+            return retryTimer.compose(_ -> {
+                retryTimer = null;
+                return addPoints(pointMap, Math.min(delay * 2, RETRY_MAX_DELAY_MS));
             });
+        });
+    }
+
+    /// Removes expired cooldowns, and compacts the journal so it only contains what's left.
+    private void cleanUp(long timerId) {
+        long nanos = System.nanoTime();
+
+        // An expired cooldown is just like a new one: no need to keep it.
+        var now = Instant.now();
+        int before = cooldowns.size();
+        for (var userCooldowns : cooldowns.values()) {
+            userCooldowns.values().removeIf(cd -> cd.isExpired(now));
+        }
+        cooldowns.values().removeIf(EnumMap::isEmpty);
+
+        // The journal can only be compacted between two processing sessions.
+        if (currentProcessing == null) {
+            journal.compact(cooldowns, pendingMessages);
+        }
+
+        log.debug("Cleaned up cooldowns of {} users ({} left) in {} µs",
+            before - cooldowns.size(), cooldowns.size(), (System.nanoTime() - nanos) / 1000);
     }
 
     private CooldownData findCooldown(int userId, PointSource source) {
@@ -147,6 +295,11 @@ public class PointsVerticle extends VerticleBase {
             }
         }
 
+        /// Returns true when this cooldown would be reset by [#resetIfNecessary(Instant, PointSource)].
+        boolean isExpired(Instant now) {
+            return nextReset.isBefore(now);
+        }
+
         int accept(int points, PointSource src) {
             int remaining = Math.max(0, src.getMaxPoints() - pointsGiven);
             int toAccept = Math.min(points, remaining);
@@ -34,10 +34,11 @@ public final class UserOperations {
 
     /// Adds points for a user after a short while.
     ///
-    /// The points will be added in the background, thanks to the [PointsVerticle].
+    /// The points will be added in the background, by the [PointsVerticle] shard of this user.
     public static void enqueuePointsIncrease(Vertx vertx, int userId, PointSource source, int points) {
         // TODO: Provide a way to know if the points of the cooldown period have been depleted before sending points,
         //       so we don't send useless messages
-        vertx.eventBus().publish(AddPointsMessage.CHANNEL, new AddPointsMessage(userId, source, points));
+        vertx.eventBus().publish(PointsVerticle.address(PointsVerticle.shardOf(userId)),
+            new AddPointsMessage(userId, source, points));
     }
 }
@@ -1,11 +1,13 @@
 package fr.domotique.api.users;
 
 import fr.domotique.*;
+import fr.domotique.api.actionlogs.*;
 import fr.domotique.base.*;
 import fr.domotique.base.Validation;
 import fr.domotique.base.apidocs.*;
 import fr.domotique.base.data.*;
 import fr.domotique.data.*;
+import fr.domotique.email.*;
 import io.vertx.core.Future;
 import io.vertx.ext.auth.prng.*;
 import io.vertx.ext.web.*;
@@ -40,7 +42,7 @@ public class UserSection extends Section {
         //
         // The "this::func" syntax is equivalent to x -> this.func(x)
         userRoutes.get("/me").respond(this::me).putMetadata(RouteDoc.KEY, ME_DOC);
-        userRoutes.get("/").respond(this::searchUsers).putMetadata(RouteDoc.KEY, SEARCH_USERS_DOC);
+        userRoutes.get("/").handler(etag(User.ENTITY.tableName())).respond(this::searchUsers).putMetadata(RouteDoc.KEY, SEARCH_USERS_DOC);
         userRoutes.post("/").respond(vt(this::registerUser)).putMetadata(RouteDoc.KEY, REGISTER_DOC);
         userRoutes.post("/logout").respond(this::logout).putMetadata(RouteDoc.KEY, LOGOUT_DOC);
         userRoutes.post("/login").respond(vt(this::login)).putMetadata(RouteDoc.KEY, LOGIN_DOC);
@@ -219,7 +221,7 @@ public class UserSection extends Section {
             }
 
             // Log this action in the action log
-            server.db().actionLogs().insert(new ActionLog(
+            ActionLogOperations.enqueue(server, new ActionLog(
                 user.getId(), // User logs their own creation
                 user.getId(),
                 ActionLogTarget.USER,
@@ -233,7 +235,7 @@ public class UserSection extends Section {
             // TODO: Do it in the background instead, maybe move it to auth.login?
             server.db().loginLogs().insert(new LoginLog(0, user.getId(), Instant.now())).await();
 
-            // Send the confirmation e-mail, and wait for it to be sent. Only if we actually need to send it!
+            // Put the confirmation e-mail in the outbox, it's sent in the background. Only if we actually need to send it!
             if (!user.isEmailConfirmed()) {
                 sendConfirmationEmail(user, context).await();
             }
@@ -351,8 +353,8 @@ public class UserSection extends Section {
         .description("""
             Find users by either:
             - a list of ids, using `ids`
-            - their full name, using `fullName`.
-            - all users, if you're at least an expert.""")
+            - their full name, using `fullName`: the %d best matches, best first.
+            - all users, if you're at least an expert.""".formatted(FullTextSearch.MAX_RESULTS))
         .optionalQueryParam("fullName", String.class, "The full name to search for.")
         .optionalQueryParam("ids", Integer[].class, "A list of identifiers of users to find.")
         .response(200, ProfileSearchOutput.class, "The list of users matching the query.")
@@ -377,7 +379,7 @@ public class UserSection extends Section {
             auth.requireAuth(Level.EXPERT);
             return server.db().users().getAllProfiles().map(ProfileSearchOutput::new);
         } else {
-            return server.db().users().getAllProfilesByFullName(fullName).map(ProfileSearchOutput::new);
+            return server.db().users().getAllProfilesByFullName(fullName, FullTextSearch.MAX_RESULTS).map(ProfileSearchOutput::new);
         }
     }
     // endregion
@@ -494,7 +496,7 @@ public class UserSection extends Section {
         server.db().users().update(user).await();
 
         // Log this action
-        server.db().actionLogs().insert(new ActionLog(
+        ActionLogOperations.enqueue(server, new ActionLog(
             auth.getUserId(),
             user.getId(),
             ActionLogTarget.USER,
@@ -564,7 +566,7 @@ public class UserSection extends Section {
         server.db().users().update(user).await();
 
         // Log this action with PASSWORD_CHANGED flag
-        server.db().actionLogs().insert(new ActionLog(
+        ActionLogOperations.enqueue(server, new ActionLog(
             auth.getUserId(),
             user.getId(),
             ActionLogTarget.USER,
@@ -647,7 +649,7 @@ public class UserSection extends Section {
         server.db().users().delete(userId).await();
 
         // Log this action
-        server.db().actionLogs().insert(new ActionLog(
+        ActionLogOperations.enqueue(server, new ActionLog(
             auth.getUserId(),
             userId,
             ActionLogTarget.USER,
@@ -734,7 +736,7 @@ public class UserSection extends Section {
 
                     // Update the user in the database
                     server.db().users().update(u)
-                        .compose(v -> server.db().actionLogs().insert(new ActionLog(
+                        .compose(v -> ActionLogOperations.enqueue(server, new ActionLog(
                             u.getId(),
                             u.getId(),
                             ActionLogTarget.USER,
@@ -762,7 +764,7 @@ public class UserSection extends Section {
     }
     // endregion
 
-    /// Sends the confirmation email to User `u`.
+    /// Sends the confirmation email to User `u`, using the outbox: it completes once the email is queued, not sent.
     private Future<User> sendConfirmationEmail(User u, RoutingContext ctx) {
         // Send the confirmation email
         // Get base URL (e.g., "http://localhost:7777")
@@ -773,20 +775,26 @@ public class UserSection extends Section {
         // Construct the confirmation URL
         String confirmUrl = baseUrl + "/api/users/confirmEmail?token=" + u.getEmailConfirmationToken() + "&user=" + u.getId();
 
-        // Prepare template data for the email
+        // Prepare template data for the email. The template only gets tags: that way, all confirmation emails
+        // have the same body, and can be sent together. The values of this user replace the tags once it's sent.
         Map<String, Object> htmlArguments = Map.of(
-            "firstName", u.getFirstName(),
-            "lastName", u.getLastName(),
-            "url", confirmUrl
+            "firstName", "-firstName-",
+            "lastName", "-lastName-",
+            "url", "-url-"
+        );
+        Map<String, String> substitutions = Map.of(
+            "-firstName-", OutgoingEmail.escapeHtml(u.getFirstName()),
+            "-lastName-", OutgoingEmail.escapeHtml(u.getLastName()),
+            "-url-", OutgoingEmail.escapeHtml(confirmUrl)
         );
         final String emailSubject = "Confirmation de votre e-mail";
 
         // Render the template using the email.jte file then send it
         return server.templateEngine().render(htmlArguments, "email.jte")
             .compose(emailBody ->
-                server.email().send(u.getEmail(), emailSubject, emailBody.toString()))
+                server.email().send(new OutgoingEmail(u.getEmail(), emailSubject, emailBody.toString(), substitutions)))
             .andThen(whenOk(_ -> {
-                log.info("Confirmation e-mail sent to user {}", u.getId());
+                log.info("Confirmation e-mail queued for user {}", u.getId());
             }))
             .map(u);
     }
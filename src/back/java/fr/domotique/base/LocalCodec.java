@@ -1,11 +1,25 @@
 package fr.domotique.base;
 
-import fr.domotique.api.users.*;
 import io.vertx.core.buffer.*;
 import io.vertx.core.eventbus.*;
 
 /// Just a dumb codec so we can send [event bus][EventBus] messages locally.
+///
+/// Each message type needs its own codec instance, with its own name, since the event bus
+/// doesn't allow two codecs with the same name.
+///
+/// ## Example
+/// ```java
+/// vertx.eventBus().registerDefaultCodec(AddPointsMessage.class, new LocalCodec<>(AddPointsMessage.class));
+/// ```
 public final class LocalCodec<T> implements MessageCodec<T, Object> {
+    private final String name;
+
+    /// Creates a new local codec for messages of the given class.
+    public LocalCodec(Class<T> clazz) {
+        this.name = "LocalCodec-" + clazz.getName();
+    }
+
     @Override
     public void encodeToWire(Buffer buffer, T msg) {
         throw new UnsupportedOperationException("Not supported by LocalCodec.");
@@ -23,7 +37,7 @@ public final class LocalCodec<T> implements MessageCodec<T, Object> {
 
     @Override
     public String name() {
-        return "LocalCodec";
+        return name;
     }
 
     @Override
@@ -2,16 +2,19 @@ package fr.domotique.base;
 
 import fr.domotique.*;
 import fr.domotique.base.apidocs.*;
+import fr.domotique.base.data.*;
 import io.vertx.core.*;
 import io.vertx.core.Future;
 import io.vertx.core.buffer.*;
-import io.vertx.core.internal.*;
+import io.vertx.core.http.*;
 import io.vertx.core.json.*;
 import io.vertx.ext.web.*;
+import org.jetbrains.annotations.*;
 import org.openapitools.jackson.nullable.*;
 
+import java.time.*;
+import java.time.format.*;
 import java.util.*;
-import java.util.concurrent.*;
 import java.util.function.*;
 
 /// A section contains many Web endpoints (API or Views), all grouped under the same URL prefix (usually).
@@ -164,6 +167,23 @@ public abstract class Section {
         }
     }
 
+    /// Reads a date in ISO format (like `2025-03-14T15:09:26Z`) from the query parameter `name`.
+    /// Returns `null` if the parameter isn't there.
+    ///
+    /// @throws RequestException if the date is invalid (code `INVALID_DATE`)
+    public static @Nullable Instant readInstantOrNull(RoutingContext context, String name) {
+        String value = context.queryParams().get(name);
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new RequestException("La date « " + name + " » est invalide.", 422, "INVALID_DATE");
+        }
+    }
+
     public static List<Integer> readIntListFromQueryParams(RoutingContext ctx, String name) {
         var ids = ctx.queryParam(name);
         var intIds = new Integer[ids.size()];
@@ -262,31 +282,101 @@ public abstract class Section {
         return router;
     }
 
-    /// \[Experimental!] Executor for virtual threads to do async/await
-    public static final ExecutorService vtExecutor = Executors.newVirtualThreadPerTaskExecutor();
-
-    /// Allows you to create a routing function using async/await thanks to virtual threads.
-    protected <T> Function<RoutingContext, Future<T>> vt(Function<RoutingContext, T> func) {
+    /// Creates a handler sending `304 Not Modified` when the data of these tables hasn't changed since the
+    /// browser last got it, using [ETags](https://developer.mozilla.org/en-US/docs/Web/HTTP/Headers/ETag).
+    /// Put it just before the handler sending the data, and give it ALL tables it reads from.
+    ///
+    /// The ETag is made from the [versions][TableVersions] of the tables, the URL, the `Accept` header and the
+    /// logged-in user (their data might be hidden from others!). Since the versions are known without
+    /// querying the database, an unchanged list costs nothing.
+    ///
+    /// ETags are *weak* (`W/"..."`): the same data is sent compressed or not, depending on the browser
+    /// (see [fr.domotique.RouterVerticle]), and a strong ETag would have to be different for each encoding.
+    /// `If-None-Match: *` matches any ETag.
+    ///
+    /// ## Example
+    /// ```java
+    /// // Rooms are read with their owner, so they depend on both tables
+    /// roomRoutes.get("/")
+    ///     .handler(etag(Room.ENTITY.tableName(), User.ENTITY.tableName()))
+    ///     .respond(this::getAll);
+    /// ```
+    protected Handler<RoutingContext> etag(String... tables) {
         return ctx -> {
-            Promise<T> promise = Promise.promise();
-
-            // HUGE HACK: Use our current Event Loop Vert.X context, and dispatch the task
-            //            while in the virtual thread.
-            //
-            //            This will copy the Event Loop context to the virtual thread (as a ThreadLocal),
-            //            and this thread will behave *as if* it came from the event loop.
-            var loopCtx = ctx.vertx().getOrCreateContext();
-            vtExecutor.execute(() -> ((ContextInternal) loopCtx).dispatch(() -> {
-                try {
-                    promise.complete(func.apply(ctx));
-                } catch (Throwable e) {
-                    promise.fail(e);
+            String tag = makeETag(ctx, tables);
+
+            if (matchesETag(ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH), tag)) {
+                ctx.response()
+                    .setStatusCode(304)
+                    .putHeader(HttpHeaders.ETAG, tag)
+                    .end();
+                return;
+            }
+
+            // Only successful responses have the ETag, we don't want browsers to keep errors.
+            ctx.addHeadersEndHandler(_ -> {
+                if (ctx.response().getStatusCode() == 200) {
+                    ctx.response().putHeader(HttpHeaders.ETAG, tag);
                 }
-            }));
-            return promise.future();
+            });
+            ctx.next();
         };
     }
 
+    private static String makeETag(RoutingContext ctx, String[] tables) {
+        // FNV-1a, on 64-bit values instead of bytes. Good enough to tell versions apart.
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ TableVersions.EPOCH) * 0x100000001b3L;
+        for (String table : tables) {
+            h = (h ^ TableVersions.get(table)) * 0x100000001b3L;
+        }
+
+        Authenticator.SessionData session = Authenticator.get(ctx).getSession();
+        if (session != null) {
+            h = (h ^ session.userId()) * 0x100000001b3L;
+            h = (h ^ session.level().ordinal()) * 0x100000001b3L;
+            h = (h ^ session.role().ordinal()) * 0x100000001b3L;
+        }
+
+        h = (h ^ ctx.request().uri().hashCode()) * 0x100000001b3L;
+        h = (h ^ Objects.hashCode(ctx.request().getHeader(HttpHeaders.ACCEPT))) * 0x100000001b3L;
+
+        return "W/\"" + Long.toHexString(h) + '"';
+    }
+
+    /// Returns true when the `If-None-Match` header contains this ETag, or is `*`.
+    ///
+    /// ETags are compared the weak way, as required for `If-None-Match`: `W/"abc"` and `"abc"` are the same.
+    static boolean matchesETag(String ifNoneMatch, String tag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        String opaqueTag = tag.startsWith("W/") ? tag.substring(2) : tag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /// Allows you to create a routing function using async/await thanks to virtual threads.
+    ///
+    /// The function runs in a [VirtualThreadVerticle], where `future.await()` only pauses its virtual thread,
+    /// so it can be written like normal blocking code. Routes that don't wait for anything should stay
+    /// on the event loop, without `vt`: it's faster.
+    protected <T> Function<RoutingContext, Future<T>> vt(Function<RoutingContext, T> func) {
+        return ctx -> VirtualThreadVerticle.run(() -> func.apply(ctx));
+    }
+
     /// Allows you to create a routing function using async/await thanks to virtual threads.
     ///
     /// This always returns 204 No Content on success.
@@ -227,6 +227,11 @@ public class RouteDoc {
         return this;
     }
 
+    public RouteDoc optionalQueryParam(String name, Type valType, ParamDoc.Format format, String description) {
+        params.add(new ParamDoc().location(ParamDoc.Location.QUERY).name(name).desc(description).format(format).valueType(valType).required(false));
+        return this;
+    }
+
     public RouteDoc response(ResponseDoc response) {
         responses.add(response);
         return this;
@@ -0,0 +1,294 @@
+package fr.domotique.base.data;
+
+import io.vertx.core.*;
+import org.jetbrains.annotations.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/// A thread-safe in-memory cache with a maximum number of entries. Can be shared by all verticles of the server.
+///
+/// Useful to avoid querying the database again and again for data that rarely changes. Of course,
+/// any code changing that data must call [#invalidate(Object)] so the cache doesn't serve stale data!
+///
+/// ## Example
+///
+/// ```java
+/// // Cache up to 1000 cookies
+/// BoundedCache<Integer, Cookie> cookies = new BoundedCache<>(1000);
+///
+/// // Get the cookie with id 5: queries the database only if it's not in the cache
+/// Future<Cookie> cookie = cookies.get(5, id -> querySingle(Cookie::fromRow, "SELECT * FROM Cookie WHERE id = ?", id));
+///
+/// // The cookie has changed! Remove it from the cache.
+/// cookies.invalidate(5);
+/// ```
+///
+/// ## Eviction
+///
+/// When the cache is full, an arbitrary entry is removed to make room for the new one. This is not as smart as
+/// an LRU cache, but it doesn't need any locking, and it's good enough when the cache is large enough to
+/// contain all the "hot" entries.
+///
+/// ## Expiration
+///
+/// When created with a time-to-live, entries are only served for that long after being loaded. Useful when the
+/// data can be changed by someone who can't invalidate our cache, like another server: we may serve stale data,
+/// but never for longer than that.
+///
+/// ## Invalidation while loading
+///
+/// A value loaded using [#get(Object, Function)] is only kept if no invalidation happened while it was loading.
+/// Else, a slow query started *before* an update could put the old data back in the cache, *after* the update!
+///
+/// ## Single flight
+///
+/// When many requests [get][#get(Object, Function)] the same missing key at the same time, only the first one
+/// runs the loader: the others wait for its result, instead of sending the same query again. A key
+/// [invalidated][#invalidate(Object)] while loading is loaded again by the next requests, since the running load
+/// may return old data.
+///
+/// @param <K> the type of the keys
+/// @param <V> the type of the cached values
+public final class BoundedCache<K, V> {
+    /// All cached entries.
+    private final ConcurrentHashMap<K, Entry<V>> map;
+    /// The maximum number of entries in the cache.
+    private final int maxSize;
+    /// How long entries are kept, in nanoseconds; 0 to keep them until they're evicted or invalidated.
+    private final long ttlNanos;
+    /// Incremented on each invalidation. Used to detect loads that raced with an invalidation.
+    private final AtomicLong generation = new AtomicLong();
+    /// The loads running right now, by key, shared by all requests of the same key.
+    private final ConcurrentHashMap<K, Future<@Nullable V>> loading = new ConcurrentHashMap<>();
+
+    /// A cached value, and when it expires.
+    private record Entry<V>(V value, long expiresAt) {}
+
+    /// Creates a new empty cache with the given maximum number of entries. Entries never expire.
+    ///
+    /// @param maxSize the maximum number of entries, must be positive
+    public BoundedCache(int maxSize) {
+        this(maxSize, Duration.ZERO);
+    }
+
+    /// Creates a new empty cache with the given maximum number of entries, kept for `ttl` at most.
+    ///
+    /// @param maxSize the maximum number of entries, must be positive
+    /// @param ttl     how long entries are kept after being loaded; [Duration#ZERO] to keep them forever
+    public BoundedCache(int maxSize, Duration ttl) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if (ttl.isNegative()) {
+            throw new IllegalArgumentException("ttl can't be negative");
+        }
+
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.map = new ConcurrentHashMap<>(Math.min(maxSize, 1024));
+    }
+
+    /// Returns the cached value for this key, or `null` if it's not in the cache (or has expired).
+    public @Nullable V getIfPresent(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (ttlNanos > 0 && System.nanoTime() - entry.expiresAt > 0) {
+            map.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /// Returns the cached value for this key, or loads it using the `loader` function if it's not in the cache.
+    ///
+    /// When the loader returns `null`, nothing is cached, so missing entries are queried again next time.
+    /// When the key is already being loaded, we wait for that load instead (see "Single flight" above).
+    ///
+    /// @param key    the key of the value
+    /// @param loader the function to load the value, usually a database query
+    /// @return the cached or loaded value
+    public Future<@Nullable V> get(K key, Function<K, Future<@Nullable V>> loader) {
+        V cached = getIfPresent(key);
+        if (cached != null) {
+            return Future.succeededFuture(cached);
+        }
+
+        Future<@Nullable V> running = loading.get(key);
+        if (running != null) {
+            return onCurrentContext(running);
+        }
+
+        // Remember the generation before loading, to see if an invalidation happened in the meantime.
+        long gen = generation.get();
+        Promise<@Nullable V> promise = Promise.promise();
+        Future<@Nullable V> future = promise.future();
+
+        // Another request may have started loading it just now.
+        running = loading.putIfAbsent(key, future);
+        if (running != null) {
+            return onCurrentContext(running);
+        }
+
+        Future<@Nullable V> load;
+        try {
+            load = loader.apply(key);
+        } catch (Throwable e) {
+            load = Future.failedFuture(e);
+        }
+
+        load.onComplete(res -> {
+            loading.remove(key, future);
+            if (res.succeeded() && res.result() != null) {
+                putIfFresh(key, res.result(), gen);
+            }
+            promise.handle(res);
+        });
+        return future;
+    }
+
+    /// Puts a value in the cache, replacing the existing one.
+    public void put(K key, V value) {
+        makeRoom();
+        map.put(key, newEntry(value));
+    }
+
+    /// Loads again the values of these keys which are in the cache, using `loader`, and replaces them. Keys which
+    /// aren't in the cache are ignored: no need to load data nobody asked for.
+    ///
+    /// Useful when lots of entries have changed a little: one query for all of them is cheaper than one query per
+    /// entry on their next [#get(Object, Function)]. Keys missing from the loaded values are removed, and so are
+    /// all the keys when the loader fails. Like [#get(Object, Function)], loaded values aren't kept if an
+    /// invalidation happened while loading.
+    ///
+    /// @param keys   the keys to load again
+    /// @param loader the function to load the values of many keys, usually a database query
+    /// @param keyOf  the function giving the key of a loaded value
+    /// @return a future completed once the cache is up to date
+    public Future<Void> refresh(Collection<? extends K> keys,
+                                Function<List<K>, Future<List<V>>> loader,
+                                Function<V, K> keyOf) {
+        var present = new ArrayList<K>();
+        for (K key : keys) {
+            if (getIfPresent(key) != null) {
+                present.add(key);
+            }
+        }
+        if (present.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        long gen = generation.get();
+        Future<List<V>> load;
+        try {
+            load = loader.apply(present);
+        } catch (Throwable e) {
+            load = Future.failedFuture(e);
+        }
+
+        return load.andThen(res -> {
+            if (res.failed()) {
+                invalidateAll(present);
+                return;
+            }
+
+            var loaded = new HashSet<K>();
+            for (V value : res.result()) {
+                K key = keyOf.apply(value);
+                loaded.add(key);
+                // Only replace values still in the cache: removed ones weren't wanted anymore.
+                Entry<V> entry = newEntry(value);
+                if (map.replace(key, entry) != null && generation.get() != gen) {
+                    map.remove(key, entry);
+                }
+            }
+            for (K key : present) {
+                if (!loaded.contains(key)) {
+                    map.remove(key);
+                }
+            }
+        }).mapEmpty();
+    }
+
+    /// Removes the value for this key from the cache. Must be called after the data has changed in the database.
+    public void invalidate(K key) {
+        // Increment the generation FIRST, so any load running right now won't put its (old) value back.
+        generation.incrementAndGet();
+        map.remove(key);
+        loading.remove(key);
+    }
+
+    /// Removes the values for all these keys from the cache.
+    public void invalidateAll(Collection<? extends K> keys) {
+        generation.incrementAndGet();
+        for (K key : keys) {
+            map.remove(key);
+            loading.remove(key);
+        }
+    }
+
+    /// Removes every value from the cache.
+    public void clear() {
+        generation.incrementAndGet();
+        map.clear();
+        loading.clear();
+    }
+
+    /// Returns the number of entries in the cache.
+    public int size() {
+        return map.size();
+    }
+
+    private void putIfFresh(K key, V value, long gen) {
+        makeRoom();
+        Entry<V> entry = newEntry(value);
+        map.put(key, entry);
+
+        // Check for invalidations AFTER putting the value: if one happened while we were loading,
+        // or while we were putting the value, remove what we've just put.
+        if (generation.get() != gen) {
+            map.remove(key, entry);
+        }
+    }
+
+    private Entry<V> newEntry(V value) {
+        return new Entry<>(value, ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0);
+    }
+
+    /// Returns a future completed on the current context, with the result of a load started by another request,
+    /// maybe on another event loop. Else, our callbacks would run on the event loop of that other request!
+    private static <T> Future<T> onCurrentContext(Future<T> shared) {
+        Context context = Vertx.currentContext();
+        if (context == null) {
+            return shared;
+        }
+
+        Promise<T> promise = Promise.promise();
+        shared.onComplete(res -> {
+            if (Vertx.currentContext() == context) {
+                promise.handle(res);
+            } else {
+                context.runOnContext(_ -> promise.handle(res));
+            }
+        });
+        return promise.future();
+    }
+
+    private void makeRoom() {
+        if (map.size() < maxSize) {
+            return;
+        }
+
+        // Remove an arbitrary entry. Other threads may do the same at the same time,
+        // so we might remove a few more entries than necessary; that's fine.
+        Iterator<K> it = map.keySet().iterator();
+        if (it.hasNext()) {
+            map.remove(it.next());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package fr.domotique.base.data;
+
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.regex.*;
+
+/// Turns what users type in a search box into a MySQL full-text query.
+///
+/// ## Why?
+///
+/// Searching names with `INSTR(name, ?) > 0` (or `LIKE '%...%'`) can't use any index: MySQL reads every single row.
+/// That's fine with 50 rooms, but not with 100,000 users.
+///
+/// Instead, searched columns have a `FULLTEXT` index using the `ngram` parser (see the `add_name_fulltext_indexes`
+/// changeset). It cuts names into pieces of 2 characters ("lampe" -> "la", "am", "mp", "pe"), and remembers
+/// which rows contain each piece. To find "lampe", MySQL only looks at rows containing all of its pieces, in order.
+/// So it still finds words *inside* names, like `INSTR` did, and it also ranks the results: best matches first.
+///
+/// ## Usage
+///
+/// ```java
+/// String search = FullTextSearch.booleanQuery(name);
+/// if (search != null) {
+///     sql = "SELECT * FROM Room WHERE MATCH(name) AGAINST(? IN BOOLEAN MODE) LIMIT ?";
+/// } else {
+///     // Too short for the index, scan the table (with a limit!)
+///     sql = "SELECT * FROM Room WHERE INSTR(name, ?) > 0 LIMIT ?";
+/// }
+/// ```
+///
+/// Each word typed must be found in the row: "salon lampe" finds "Lampe du salon".
+///
+/// ## Limits
+///
+/// Words shorter than [#MIN_WORD_LENGTH] characters can't be found with the index (it's the `ngram_token_size`
+/// of MySQL), so they're ignored. When all words are that short, [#booleanQuery(String)] returns `null`:
+/// use `INSTR` instead.
+public final class FullTextSearch {
+    private FullTextSearch() {
+    }
+
+    /// The size of the pieces of text in the index: the `ngram_token_size` option of MySQL, 2 by default.
+    public static final int MIN_WORD_LENGTH = 2;
+
+    /// The maximum number of results of a name search. Nobody reads more than that in a search box!
+    public static final int MAX_RESULTS = 100;
+
+    /// Returns the query to give to `MATCH(...) AGAINST(? IN BOOLEAN MODE)`, requiring all words of `text`;
+    /// or `null` when there's no word long enough to use the index.
+    public static @Nullable String booleanQuery(String text) {
+        // Operators of the boolean mode separate words, so users can't make invalid queries ("Jean-Pierre").
+        String words = OPERATORS.matcher(text).replaceAll(" ");
+
+        var query = new StringJoiner(" ");
+        for (String word : words.split("\\s+")) {
+            if (word.codePointCount(0, word.length()) >= MIN_WORD_LENGTH) {
+                // A phrase in quotes: its pieces must be next to each other, so we find the whole word.
+                query.add("+\"" + word + "\"");
+            }
+        }
+
+        return query.length() == 0 ? null : query.toString();
+    }
+
+    /// All special characters of the boolean mode.
+    private static final Pattern OPERATORS = Pattern.compile("[+\\-<>()~*\"@]");
+}
@@ -1,6 +1,9 @@
 package fr.domotique.base.data;
 
+import fr.domotique.base.metrics.*;
 import io.vertx.core.*;
+import io.vertx.core.buffer.*;
+import io.vertx.core.streams.*;
 import io.vertx.mysqlclient.*;
 import io.vertx.sqlclient.*;
 import org.jetbrains.annotations.*;
@@ -17,12 +20,27 @@ import java.util.function.*;
 /// - [querySingle][#querySingle(Function, String, Object...)]: returns the first element of a query
 /// - [queryMany][#queryMany(Function, String, Object...)]: returns all elements of a query
 /// - [insert][#insert(Object, Consumer, String, Object...)]: inserts a new row into the table
+/// - [streamPages][#streamPages(Function, Function, Function, WriteStream)]: writes all rows of a query
+///   to a stream, page by page, without keeping them in memory
+///
+/// Every query is counted as a database round-trip in the [metrics][fr.domotique.base.metrics.Metrics]
+/// of the current request.
 ///
 /// ### Automatic SQL queries using [EntityInfo]
 ///
 /// - [insert][#insert(EntityInfo, Object, Function, BiConsumer)]: inserts a new row into the table
 /// - [update][#update(EntityInfo, Object)]: updates a row in the table
 /// - [delete][#delete(EntityInfo, Object...)]: deletes a row from the table
+///
+/// ### Transactions
+///
+/// - [transaction][#transaction(Function)]: runs many queries in one transaction
+/// - [inChunks][#inChunks(List, Function)]: writes lots of rows using batched queries of a reasonable size
+///
+/// ### Table versions
+///
+/// Automatic SQL queries tell [TableVersions] that their table has changed. When you write to a table using
+/// manual SQL queries, call [#changed(String)] yourself!
 @SuppressWarnings("SqlSourceToSinkFlow")
 public abstract class Table {
     /// The SQL client to execute queries on the MySQL database.
@@ -35,6 +53,7 @@ public abstract class Table {
 
     /// Executes an SQL query with the given parameters. Returns a [RowSet].
     protected Future<RowSet<Row>> query(String sql, Object... params) {
+        countQuery(sql);
         return client.preparedQuery(sql)
             .execute(Tuple.wrap(params))
             .recover(Table::handleSqlErrors);
@@ -62,6 +81,7 @@ public abstract class Table {
     ///     "SELECT id, name, rating FROM cookie WHERE id = ?", 123);
     /// ```
     protected <T> Future<@Nullable T> querySingle(Function<Row, T> mapper, String sql, Object... params) {
+        countQuery(sql);
         return client.preparedQuery(sql)
             .execute(Tuple.wrap(params))
             .map(x -> {
@@ -96,17 +116,77 @@ public abstract class Table {
     ///     "SELECT id, name, rating FROM cookie WHERE rating > ?", 17);
     /// ```
     protected <T> Future<List<T>> queryMany(Function<Row, T> mapper, String sql, Object... params) {
+        countQuery(sql);
         return client.preparedQuery(sql)
             .execute(Tuple.wrap(params))
             .map(x -> toList(x).stream().map(mapper).toList())
             .recover(Table::handleSqlErrors);
     }
 
+    /// Writes all rows of a query to `out`, page by page, as soon as they come from the database.
+    ///
+    /// Unlike [#queryMany(Function, String, Object...)], rows are never all kept in memory: `page` returns the
+    /// [#STREAM_PAGE_SIZE] rows after the given key (`null` for the first page), using keyset paging
+    /// (`WHERE id > ? ORDER BY id LIMIT ?`). Each page is a quick query of its own, so we don't keep a connection
+    /// (or a transaction) busy while a slow client downloads everything. On the other hand, rows changed
+    /// while we're streaming might be seen in their old or new state.
+    ///
+    /// The next page is only read once the previous one has been sent: when `out` can't keep up (like a slow
+    /// HTTP client), we wait for it. Streaming stops when a page has less than [#STREAM_PAGE_SIZE] rows.
+    ///
+    /// Each row is transformed into a [Buffer] using `encoder`, and `key` gives the key of the last row of a page,
+    /// to read the next one.
+    ///
+    /// The future completes when all rows have been written, **without** ending `out`.
+    ///
+    /// ## Example
+    ///
+    /// ```java
+    /// // Send all cookies to the HTTP response, one JSON per line
+    /// Future<Void> done = streamPages(
+    ///     afterId -> queryMany(Cookie::fromRow, "SELECT id, name, rating FROM cookie WHERE id > ? ORDER BY id LIMIT ?",
+    ///         afterId != null ? afterId : 0, STREAM_PAGE_SIZE),
+    ///     Cookie::id,
+    ///     c -> Json.encodeToBuffer(c).appendString("\n"),
+    ///     ctx.response());
+    /// ```
+    protected static <T, K> Future<Void> streamPages(Function<@Nullable K, Future<List<T>>> page,
+                                                     Function<T, K> key,
+                                                     Function<T, Buffer> encoder,
+                                                     WriteStream<Buffer> out) {
+        return streamPages(page, key, encoder, out, null);
+    }
+
+    private static <T, K> Future<Void> streamPages(Function<@Nullable K, Future<List<T>>> page,
+                                                   Function<T, K> key,
+                                                   Function<T, Buffer> encoder,
+                                                   WriteStream<Buffer> out,
+                                                   @Nullable K after) {
+        return page.apply(after).compose(rows -> {
+            // The last write completes once everything is sent; it fails if the client is gone.
+            Future<Void> written = Future.succeededFuture();
+            for (T row : rows) {
+                written = out.write(encoder.apply(row));
+            }
+
+            if (rows.size() < STREAM_PAGE_SIZE) {
+                return written;
+            }
+
+            K last = key.apply(rows.getLast());
+            return written.compose(_ -> streamPages(page, key, encoder, out, last));
+        });
+    }
+
+    /// The number of rows in each page of [#streamPages(Function, Function, Function, WriteStream)].
+    protected static final int STREAM_PAGE_SIZE = 500;
+
     /// Executes an SQL INSERT query with the given parameters. Sets `value`'s id to the last inserted id, by using
     /// the `idSetter` function.
     ///
     /// Requires a function to set the id of the entity, to update the entity with the inserted id.
     protected <T> Future<T> insert(T value, Consumer<Integer> idSetter, String sql, Object... params) {
+        countQuery(sql);
         return client.preparedQuery(sql)
             .execute(Tuple.wrap(params))
             .map(rs -> {
@@ -127,13 +207,16 @@ public abstract class Table {
             throw new IllegalArgumentException("The entity must have a zero id");
         }
 
+        countQuery(info.insertSQL());
+        changed(info.tableName());
         return client.preparedQuery(info.insertSQL())
             .execute(Tuple.wrap(info.genInsertArguments(value)))
             .map(rs -> {
                 idSetter.accept(value, rs.property(MySQLClient.LAST_INSERTED_ID).intValue());
                 return value;
             })
-            .recover(Table::handleSqlErrors);
+            .recover(Table::handleSqlErrors)
+            .andThen(_ -> changed(info.tableName()));
     }
 
     /// Executes an SQL UPDATE query, using the SQL generated by the [EntityInfo].
@@ -144,10 +227,13 @@ public abstract class Table {
             throw new IllegalArgumentException("The entity must have at least one key column");
         }
 
+        countQuery(info.updateSQL());
+        changed(info.tableName());
         return client.preparedQuery(info.updateSQL())
             .execute(Tuple.wrap(info.genUpdateArguments(value)))
             .map(value)
-            .recover(Table::handleSqlErrors);
+            .recover(Table::handleSqlErrors)
+            .andThen(_ -> changed(info.tableName()));
     }
 
     /// Deletes a row from the database, using the SQL generated by the [EntityInfo].
@@ -158,10 +244,111 @@ public abstract class Table {
             throw new IllegalArgumentException("The entity must have at least one key column");
         }
 
+        countQuery(info.deleteSQL());
+        changed(info.tableName());
         return client.preparedQuery(info.deleteSQL())
             .execute(Tuple.wrap(idColumns))
             .map(rs -> rs.rowCount() > 0)
-            .recover(Table::handleSqlErrors);
+            .recover(Table::handleSqlErrors)
+            .andThen(_ -> changed(info.tableName()));
+    }
+
+    /// Counts a query in the [metrics][RequestMetrics] of the current request, and in the
+    /// [statement cache estimate][DatabaseMetrics#countStatement(String)].
+    private static void countQuery(String sql) {
+        RequestMetrics.countDbQuery();
+        DatabaseMetrics.countStatement(sql);
+    }
+
+    /// Tells [TableVersions] that rows of `table` have been inserted, updated or deleted.
+    ///
+    /// Already done by [#insert(EntityInfo, Object, Function, BiConsumer)], [#update(EntityInfo, Object)] and
+    /// [#delete(EntityInfo, Object...)]. For other writes, call it both before running the query, and once it's
+    /// done: that way, nobody can see the new data with the old version, or the old data with the new version.
+    protected void changed(String table) {
+        if (client instanceof SqlConnection conn) {
+            // We're in a transaction: the data changes for everyone else when it ends.
+            TableVersions.changedInTransaction(conn, table);
+        } else {
+            TableVersions.changed(table);
+        }
+    }
+
+    /// Runs `invalidation` to remove changed data from a cache, right away, and once more when the transaction
+    /// ends if we're inside one: until it's committed, someone else could read the old data and cache it again!
+    ///
+    /// ## Example
+    /// ```java
+    /// return update(ENTITY, cookie).andThen(_ -> invalidateCache(() -> cookieCache.invalidate(cookie.getId())));
+    /// ```
+    protected void invalidateCache(Runnable invalidation) {
+        invalidation.run();
+        if (client instanceof SqlConnection conn) {
+            TableVersions.atTransactionEnd(conn, invalidation);
+        }
+    }
+
+    /// Runs `fn` inside a SQL transaction, giving it the [SqlClient] to use for all its queries.
+    ///
+    /// The transaction is committed when the returned future succeeds, and rolled back when it fails.
+    ///
+    /// The easiest way to use it is to create a new table using the given client, so you can reuse all the
+    /// functions of the table inside the transaction.
+    ///
+    /// When this table is already bound to a single connection (probably inside another transaction),
+    /// `fn` is run directly on that connection.
+    ///
+    /// ## Example
+    /// ```java
+    /// public Future<Cookie> bake(Cookie cookie) {
+    ///     return transaction(c -> {
+    ///         var cookies = new CookieTable(c);
+    ///         return cookies.insert(cookie).compose(_ -> cookies.updateOven(cookie));
+    ///     });
+    /// }
+    /// ```
+    protected <T> Future<T> transaction(Function<SqlClient, Future<T>> fn) {
+        if (client instanceof Pool pool) {
+            var connection = new SqlConnection[1];
+            return pool.withTransaction(conn -> {
+                connection[0] = conn;
+                return fn.apply(conn);
+            }).andThen(_ -> {
+                // Now that the transaction is over, changed tables can be seen by everyone.
+                if (connection[0] != null) {
+                    TableVersions.transactionEnded(connection[0]);
+                }
+            });
+        } else {
+            return fn.apply(client);
+        }
+    }
+
+    /// The maximum number of rows written by one batched query, in [#inChunks(List, Function)].
+    protected static final int BATCH_CHUNK_SIZE = 500;
+
+    /// Runs `fn` on each chunk of [#BATCH_CHUNK_SIZE] items of `items`, one chunk after the other.
+    ///
+    /// Use it around `executeBatch` when writing lots of rows: the MySQL client sends all queries of a batch
+    /// at once, so a batch of 50,000 rows would fill the connection (and our memory) with queries waiting
+    /// for their turn. With chunks, only a few hundred are waiting at any time.
+    ///
+    /// ## Example
+    /// ```java
+    /// return inChunks(cookies, chunk -> client.preparedQuery("INSERT INTO Cookie (name) VALUES (?)")
+    ///     .executeBatch(chunk.stream().map(c -> Tuple.of(c.getName())).toList()));
+    /// ```
+    protected static <T> Future<Void> inChunks(List<T> items, Function<List<T>, Future<?>> fn) {
+        return inChunks(items, 0, fn);
+    }
+
+    private static <T> Future<Void> inChunks(List<T> items, int from, Function<List<T>, Future<?>> fn) {
+        if (from >= items.size()) {
+            return Future.succeededFuture();
+        }
+
+        List<T> chunk = items.subList(from, Math.min(items.size(), from + BATCH_CHUNK_SIZE));
+        return fn.apply(chunk).compose(_ -> inChunks(items, from + BATCH_CHUNK_SIZE, fn));
     }
 
     /// After the request succeeded, attaches the inserted id of the `INSERT` SQL statement to the `entity`.
@@ -0,0 +1,178 @@
+package fr.domotique.base.data;
+
+import io.vertx.core.*;
+import io.vertx.sqlclient.*;
+import org.slf4j.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+
+/// Counts the changes of each SQL table, so we know when data has changed without querying it.
+///
+/// Each table has a version number, incremented each time a row of the table is inserted, updated or deleted.
+/// [Table] does it automatically for [Table#insert], [Table#update] and [Table#delete]; other writes
+/// must call [Table#changed(String)].
+///
+/// It's used to make [ETags](https://developer.mozilla.org/en-US/docs/Web/HTTP/Headers/ETag) for API responses
+/// (see [fr.domotique.base.Section#etag(String...)]): when the versions of all tables used by a response haven't
+/// changed, the browser already has the right data, so we send a `304 Not Modified` without even running the SQL!
+///
+/// ## Transactions
+///
+/// Inside a transaction, the data only changes for everyone else when it's committed. So versions are
+/// incremented when the write happens, *and* when the transaction ends (see [#changedInTransaction(SqlConnection, String)]).
+///
+/// Caches have the same problem: someone could read the old data and cache it before the commit. So they can be
+/// invalidated again when the transaction ends too, using [#atTransactionEnd(SqlConnection, Runnable)].
+///
+/// ## Many servers
+///
+/// Versions are counted in memory, so each server only knows about its own writes. To see the writes of other
+/// servers, [#share(Vertx, SqlClient)] keeps a `TableVersion` table in the database: every [#SYNC_INTERVAL_MS]
+/// milliseconds, each server increments the rows of the tables it changed, and reads all rows. When the row of a
+/// table has changed more than our own increment since the last time, someone else wrote to it: we increment our
+/// version too.
+///
+/// So data changed by another server is seen in ETags after about two [#SYNC_INTERVAL_MS] at most. Versions are
+/// still different on each server (see [#EPOCH]): a browser switching servers just gets the full response again.
+public final class TableVersions {
+    private TableVersions() {
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(TableVersions.class);
+
+    /// Time between two synchronizations with the `TableVersion` table, in milliseconds.
+    static final long SYNC_INTERVAL_MS = 1_000;
+
+    /// Random number identifying this server's versions, so versions from before a restart, or from
+    /// another server, are never mistaken for ours.
+    public static final long EPOCH = new SplittableRandom().nextLong();
+
+    /// The version of each table, by name.
+    private static final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    /// Tables changed inside transactions which haven't ended yet, by connection.
+    private static final ConcurrentHashMap<SqlConnection, Set<String>> pendingByConnection = new ConcurrentHashMap<>();
+    /// Functions to run once transactions end, by connection.
+    private static final ConcurrentHashMap<SqlConnection, Queue<Runnable>> endActionsByConnection = new ConcurrentHashMap<>();
+
+    /// Tables changed by this server since the last synchronization.
+    private static final Set<String> unshared = ConcurrentHashMap.newKeySet();
+    /// The rows of the `TableVersion` table we've last read.
+    private static final ConcurrentHashMap<String, Long> sharedVersions = new ConcurrentHashMap<>();
+    /// True once the `TableVersion` table has been read once.
+    private static volatile boolean sharedLoaded;
+    /// True while a synchronization is running.
+    private static volatile boolean syncing;
+
+    /// Returns the current version of this table.
+    public static long get(String table) {
+        return counter(table).get();
+    }
+
+    /// Increments the version of this table. Other servers see it on the next synchronization.
+    public static void changed(String table) {
+        counter(table).incrementAndGet();
+        unshared.add(table);
+    }
+
+    /// Increments the version of this table, and remembers to do it again once the transaction running on
+    /// `connection` ends, using [#transactionEnded(SqlConnection)].
+    public static void changedInTransaction(SqlConnection connection, String table) {
+        changed(table);
+        pendingByConnection.computeIfAbsent(connection, _ -> ConcurrentHashMap.newKeySet()).add(table);
+    }
+
+    /// Runs `action` once the transaction running on `connection` ends, in [#transactionEnded(SqlConnection)].
+    public static void atTransactionEnd(SqlConnection connection, Runnable action) {
+        endActionsByConnection.computeIfAbsent(connection, _ -> new ConcurrentLinkedQueue<>()).add(action);
+    }
+
+    /// Increments the versions of all tables changed by the transaction running on `connection`, and runs the
+    /// functions given to [#atTransactionEnd(SqlConnection, Runnable)]. Must be called after it's committed or
+    /// rolled back.
+    public static void transactionEnded(SqlConnection connection) {
+        Set<String> tables = pendingByConnection.remove(connection);
+        if (tables != null) {
+            for (String table : tables) {
+                changed(table);
+            }
+        }
+
+        Queue<Runnable> actions = endActionsByConnection.remove(connection);
+        if (actions != null) {
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+
+    /// Starts sharing versions with other servers using the `TableVersion` table, every [#SYNC_INTERVAL_MS]
+    /// milliseconds. The returned future completes after the first synchronization.
+    public static Future<Void> share(Vertx vertx, SqlClient client) {
+        return sync(client).onSuccess(_ -> vertx.setPeriodic(SYNC_INTERVAL_MS, _ -> {
+            // Don't pile up synchronizations when the database is slow.
+            if (syncing) {
+                return;
+            }
+
+            syncing = true;
+            sync(client).onComplete(x -> {
+                syncing = false;
+                if (x.failed()) {
+                    log.warn("Failed to synchronize table versions with other servers", x.cause());
+                }
+            });
+        }));
+    }
+
+    /// Writes the tables we changed to the `TableVersion` table, then reads the changes of other servers.
+    static Future<Void> sync(SqlClient client) {
+        var tables = new HashSet<String>();
+        for (Iterator<String> it = unshared.iterator(); it.hasNext(); ) {
+            tables.add(it.next());
+            it.remove();
+        }
+
+        Future<?> write;
+        if (tables.isEmpty()) {
+            write = Future.succeededFuture();
+        } else {
+            write = client.preparedQuery("""
+                    INSERT INTO TableVersion (name, version) VALUES (?, 1)
+                    ON DUPLICATE KEY UPDATE version = version + 1""")
+                .executeBatch(tables.stream().map(Tuple::of).toList())
+                // Try again next time.
+                .onFailure(_ -> unshared.addAll(tables));
+        }
+
+        return write
+            .compose(_ -> client.query("SELECT name, version FROM TableVersion").execute())
+            .map(rows -> {
+                for (Row row : rows) {
+                    String table = row.getString(0);
+                    long version = row.getLong(1);
+                    Long previous = sharedVersions.put(table, version);
+
+                    // Our own changes are counted already: only count those of other servers.
+                    long expected = (previous == null ? 0 : previous) + (tables.contains(table) ? 1 : 0);
+                    if (sharedLoaded && version != expected) {
+                        counter(table).incrementAndGet();
+                    }
+                }
+                sharedLoaded = true;
+                return null;
+            });
+    }
+
+    private static AtomicLong counter(String table) {
+        // get() first, so we don't create a lambda each time.
+        AtomicLong counter = versions.get(table);
+        if (counter == null) {
+            counter = versions.computeIfAbsent(table, _ -> new AtomicLong());
+        }
+        return counter;
+    }
+}
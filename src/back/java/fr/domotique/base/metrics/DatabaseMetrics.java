@@ -0,0 +1,194 @@
+package fr.domotique.base.metrics;
+
+import io.vertx.core.*;
+import io.vertx.sqlclient.*;
+import org.HdrHistogram.*;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/// Metrics of the database connection pool, shared by the entire server, exported along with the route
+/// [Metrics] by `GET /api/metrics`. They help to choose the pool size and the statement cache size in the [Config][fr.domotique.Config].
+///
+/// ## Pool wait time
+///
+/// How long we wait to get a connection from the pool. When it grows, all connections are busy: the pool is too small
+/// (or the database too slow!).
+///
+/// Vert.x doesn't tell us how long a query waited for its connection, so we measure it ourselves:
+/// - every [#PROBE_INTERVAL_MS] milliseconds, [#startPoolProbe(Vertx, Pool)] takes a connection and gives it back
+///   right away, going through the same queue as all queries
+/// - each transaction started with [Database#begin()][fr.domotique.data.Database#begin()] records its wait too
+///
+/// ## Statement cache hit ratio
+///
+/// Each connection keeps the last prepared statements it used, so it doesn't prepare them again. The MySQL client
+/// doesn't say when the cache is used, so we **estimate** it: [Table][fr.domotique.base.data.Table] queries
+/// go through an LRU cache of the same size as the real ones, using [#countStatement(String)]. When the hit ratio is low,
+/// there are too many different queries for the cache (dynamic SQL with many variants, like filters); make it bigger!
+///
+/// The estimate is a bit optimistic: each connection only sees a part of all queries, so its cache is a bit colder.
+///
+/// Since it's used by every query, the estimated cache is split in [#STATEMENT_STRIPES] smaller LRU caches,
+/// each with its own lock, chosen using the hash of the SQL. Queries running at the same time rarely wait for each
+/// other, and it gives almost the same hit ratio as a single big LRU cache.
+///
+/// ## Exported metrics
+///
+/// - `domotique_db_pool_wait_seconds`: time waited for a connection (summary with quantiles)
+/// - `domotique_db_pool_size`: number of open connections
+/// - `domotique_db_pool_max_size`: maximum number of connections
+/// - `domotique_db_statement_cache_hits_total` and `domotique_db_statement_cache_misses_total`: estimated
+///   statement cache hits and misses
+/// - `domotique_db_statement_cache_hit_ratio`: estimated hit ratio, between 0 and 1
+public final class DatabaseMetrics {
+    private DatabaseMetrics() {
+    }
+
+    /// Time between two probes of the pool, in milliseconds.
+    public static final long PROBE_INTERVAL_MS = 1000;
+
+    /// The highest wait time we can record, in microseconds. Longer waits are recorded with this value.
+    static final long MAX_WAIT_MICROS = TimeUnit.SECONDS.toMicros(60);
+
+    /// Time waited for a connection, in microseconds.
+    private static final ConcurrentHistogram poolWaitMicros = new ConcurrentHistogram(MAX_WAIT_MICROS, 2);
+    /// Sum of all waits, in nanoseconds.
+    private static final LongAdder poolWaitNanos = new LongAdder();
+
+    /// Estimated statement cache hits and misses.
+    private static final LongAdder statementHits = new LongAdder();
+    private static final LongAdder statementMisses = new LongAdder();
+
+    /// How many parts the estimated statement cache is split in, at most.
+    static final int STATEMENT_STRIPES = 16;
+
+    /// The parts of the estimated statement cache, chosen by the hash of the SQL. Empty when the cache is disabled.
+    private static volatile StatementStripe[] statementStripes = new StatementStripe[0];
+
+    /// The pool we're measuring, or `null` if [#configure(Pool, int, int)] hasn't been called.
+    private static volatile @Nullable Pool pool;
+    private static volatile int poolMaxSize;
+
+    /// Sets the pool to measure, with its configuration.
+    public static void configure(Pool pool, int maxSize, int statementCacheSize) {
+        DatabaseMetrics.pool = pool;
+        DatabaseMetrics.poolMaxSize = maxSize;
+        DatabaseMetrics.statementStripes = makeStripes(statementCacheSize);
+    }
+
+    /// Splits a cache of `size` statements in up to [#STATEMENT_STRIPES] parts, with the same total size.
+    static StatementStripe[] makeStripes(int size) {
+        int count = Math.clamp(size, 0, STATEMENT_STRIPES);
+        var stripes = new StatementStripe[count];
+        for (int i = 0; i < count; i++) {
+            // Spread the remainder over the first stripes, so we don't lose any slot.
+            stripes[i] = new StatementStripe(size / count + (i < size % count ? 1 : 0));
+        }
+        return stripes;
+    }
+
+    /// Records the time waited for a connection, in nanoseconds.
+    public static void recordPoolWait(long nanos) {
+        poolWaitNanos.add(nanos);
+        poolWaitMicros.recordValue(Math.clamp(nanos / 1000, 0, MAX_WAIT_MICROS));
+    }
+
+    /// Counts a prepared statement sent to the database, and whether it would be in the statement cache.
+    public static void countStatement(String sql) {
+        StatementStripe[] stripes = statementStripes;
+        if (stripes.length == 0) {
+            statementMisses.increment();
+            return;
+        }
+
+        // Spread the bits of the hash like HashMap does, since SQL strings often share long prefixes.
+        int hash = sql.hashCode();
+        StatementStripe stripe = stripes[Math.floorMod(hash ^ (hash >>> 16), stripes.length)];
+
+        if (stripe.use(sql)) {
+            statementHits.increment();
+        } else {
+            statementMisses.increment();
+        }
+    }
+
+    /// Starts measuring the pool wait time every [#PROBE_INTERVAL_MS] milliseconds. Returns the id of the timer.
+    public static long startPoolProbe(Vertx vertx, Pool pool) {
+        var probing = new AtomicBoolean();
+        return vertx.setPeriodic(PROBE_INTERVAL_MS, _ -> {
+            // The last probe is still waiting? No need to add another one to the queue.
+            if (!probing.compareAndSet(false, true)) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            pool.getConnection()
+                .onSuccess(conn -> {
+                    recordPoolWait(System.nanoTime() - start);
+                    conn.close();
+                })
+                .onComplete(_ -> probing.set(false));
+        });
+    }
+
+    /// Writes all database metrics in the Prometheus text format.
+    static void toPrometheus(StringBuilder sb) {
+        Histogram waits = poolWaitMicros.copy();
+
+        Metrics.header(sb, "domotique_db_pool_wait_seconds", "summary", "Time waited to get a database connection from the pool.");
+        for (double q : Metrics.QUANTILES) {
+            sb.append("domotique_db_pool_wait_seconds{quantile=\"").append(q).append("\"} ")
+                .append(waits.getValueAtPercentile(q * 100) / 1_000_000.0).append('\n');
+        }
+        sample(sb, "domotique_db_pool_wait_seconds_sum", poolWaitNanos.sum() / 1e9);
+        sample(sb, "domotique_db_pool_wait_seconds_count", waits.getTotalCount());
+
+        Pool p = pool;
+        if (p != null) {
+            Metrics.header(sb, "domotique_db_pool_size", "gauge", "Number of open database connections.");
+            sample(sb, "domotique_db_pool_size", p.size());
+            Metrics.header(sb, "domotique_db_pool_max_size", "gauge", "Maximum number of database connections.");
+            sample(sb, "domotique_db_pool_max_size", poolMaxSize);
+        }
+
+        long hits = statementHits.sum();
+        long misses = statementMisses.sum();
+        Metrics.header(sb, "domotique_db_statement_cache_hits_total", "counter", "Estimated prepared statement cache hits.");
+        sample(sb, "domotique_db_statement_cache_hits_total", hits);
+        Metrics.header(sb, "domotique_db_statement_cache_misses_total", "counter", "Estimated prepared statement cache misses.");
+        sample(sb, "domotique_db_statement_cache_misses_total", misses);
+        Metrics.header(sb, "domotique_db_statement_cache_hit_ratio", "gauge", "Estimated prepared statement cache hit ratio.");
+        sample(sb, "domotique_db_statement_cache_hit_ratio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+    }
+
+    /// A part of the estimated statement cache: an LRU cache of SQL strings, guarded by itself.
+    static final class StatementStripe extends LinkedHashMap<String, Boolean> {
+        private final int capacity;
+
+        StatementStripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        /// Marks `sql` as the most recently used statement, and returns whether it was already cached.
+        synchronized boolean use(String sql) {
+            return put(sql, Boolean.TRUE) != null;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private static void sample(StringBuilder sb, String name, double value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,148 @@
+package fr.domotique.base.metrics;
+
+import org.HdrHistogram.*;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/// Performance metrics of all API routes, shared by the entire server: request count, latency, database
+/// queries per request and failures. Can be exported in the [Prometheus text format](https://prometheus.io/docs/instrumenting/exposition_formats/)
+/// using [#toPrometheus()], which is what `GET /api/metrics` does.
+///
+/// ## How are routes measured?
+///
+/// All routes are measured automatically by the [RequestMetrics#handler(RouteIndex)] registered in
+/// [fr.domotique.RouterVerticle]. They're named using the operation id of their
+/// [RouteDoc][fr.domotique.base.apidocs.RouteDoc], so make sure all your routes have one!
+///
+/// ## Exported metrics
+///
+/// All metrics have a `route` label.
+/// - `domotique_http_requests_total`: number of requests
+/// - `domotique_http_request_duration_seconds`: latency of requests (summary with quantiles)
+/// - `domotique_http_request_db_queries`: database queries per request (summary with quantiles)
+/// - `domotique_http_request_failures_total`: number of failed requests, with a `code` label containing
+///   the [error code][fr.domotique.base.RequestException#getErrorCode()]
+///
+/// Metrics of the database pool are exported too, see [DatabaseMetrics].
+public final class Metrics {
+    private Metrics() {
+    }
+
+    /// Stats of all routes, by name.
+    private static final ConcurrentHashMap<String, RouteStats> routes = new ConcurrentHashMap<>();
+
+    /// The quantiles we export for summaries.
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /// Returns the stats of the route with this name, creating them if needed.
+    public static RouteStats route(String name) {
+        // get() first, so we don't create a lambda each time.
+        RouteStats stats = routes.get(name);
+        if (stats == null) {
+            stats = routes.computeIfAbsent(name, RouteStats::new);
+        }
+        return stats;
+    }
+
+    /// Exports all metrics in the Prometheus text format (version 0.0.4).
+    public static String toPrometheus() {
+        // Sort routes by name, so the output is stable.
+        var sorted = new ArrayList<>(routes.values());
+        sorted.sort(Comparator.comparing(x -> x.route));
+
+        // Copy histograms once: they keep changing while we're reading them.
+        var latencies = new ArrayList<Histogram>(sorted.size());
+        var queries = new ArrayList<Histogram>(sorted.size());
+        for (RouteStats s : sorted) {
+            latencies.add(s.latencyMicros.copy());
+            queries.add(s.dbQueriesPerRequest.copy());
+        }
+
+        var sb = new StringBuilder(4096);
+
+        header(sb, "domotique_http_requests_total", "counter", "Number of HTTP requests, by route.");
+        for (RouteStats s : sorted) {
+            sample(sb, "domotique_http_requests_total", s.route, null, s.requests.sum());
+        }
+
+        header(sb, "domotique_http_request_duration_seconds", "summary", "Latency of HTTP requests, by route.");
+        for (int i = 0; i < sorted.size(); i++) {
+            RouteStats s = sorted.get(i);
+            Histogram h = latencies.get(i);
+            for (double q : QUANTILES) {
+                quantile(sb, "domotique_http_request_duration_seconds", s.route, q,
+                    h.getValueAtPercentile(q * 100) / 1_000_000.0);
+            }
+            sample(sb, "domotique_http_request_duration_seconds_sum", s.route, null, s.totalNanos.sum() / 1e9);
+            sample(sb, "domotique_http_request_duration_seconds_count", s.route, null, h.getTotalCount());
+        }
+
+        header(sb, "domotique_http_request_db_queries", "summary", "Database queries per HTTP request, by route.");
+        for (int i = 0; i < sorted.size(); i++) {
+            RouteStats s = sorted.get(i);
+            Histogram h = queries.get(i);
+            for (double q : QUANTILES) {
+                quantile(sb, "domotique_http_request_db_queries", s.route, q, h.getValueAtPercentile(q * 100));
+            }
+            sample(sb, "domotique_http_request_db_queries_sum", s.route, null, s.dbQueries.sum());
+            sample(sb, "domotique_http_request_db_queries_count", s.route, null, h.getTotalCount());
+        }
+
+        header(sb, "domotique_http_request_failures_total", "counter", "Number of failed HTTP requests, by route and error code.");
+        for (RouteStats s : sorted) {
+            var codes = new TreeMap<String, LongAdder>(s.failures);
+            for (var e : codes.entrySet()) {
+                sample(sb, "domotique_http_request_failures_total", s.route, e.getKey(), e.getValue().sum());
+            }
+        }
+
+        DatabaseMetrics.toPrometheus(sb);
+
+        return sb.toString();
+    }
+
+    static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String route, @Nullable String code, double value) {
+        labels(sb, name, route, code).append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String route, @Nullable String code, long value) {
+        labels(sb, name, route, code).append(value).append('\n');
+    }
+
+    private static StringBuilder labels(StringBuilder sb, String name, String route, @Nullable String code) {
+        sb.append(name).append("{route=\"");
+        escape(sb, route);
+        if (code != null) {
+            sb.append("\",code=\"");
+            escape(sb, code);
+        }
+        return sb.append("\"} ");
+    }
+
+    private static void quantile(StringBuilder sb, String name, String route, double q, double value) {
+        sb.append(name).append("{route=\"");
+        escape(sb, route);
+        sb.append("\",quantile=\"").append(q).append("\"} ").append(value).append('\n');
+    }
+
+    /// Escapes a label value: backslashes, quotes and line breaks.
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '"' -> sb.append("\\\"");
+                case '\n' -> sb.append("\\n");
+                default -> sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package fr.domotique.base.metrics;
+
+import fr.domotique.base.*;
+import io.vertx.core.*;
+import io.vertx.core.spi.context.storage.*;
+import io.vertx.ext.web.*;
+import org.jetbrains.annotations.*;
+
+/// Measures one HTTP request: when it started, and how many database queries it ran.
+/// Recorded in the [RouteStats] of its route when the response ends.
+///
+/// ## How do we count database queries?
+///
+/// Each HTTP request runs in its own (duplicated) Vert.x context: all its handlers and callbacks see the same
+/// [Vertx#currentContext()], and no other request does. So the [RequestMetrics] is stored *in* that context, using a
+/// [ContextLocal], and [Table][fr.domotique.base.data.Table] queries call [#countDbQuery()], which finds it using
+/// [Vertx#currentContext()]. No need to pass it around, and no map shared by all event loops!
+///
+/// Context locals must be registered before Vert.x is created: the [fr.domotique.Launcher] calls
+/// [#registerContextLocal()]. Without it, only handlers running in virtual threads are counted.
+///
+/// It's also stored in the [RoutingContext], see [#of(RoutingContext)].
+///
+/// Handlers running in a [VirtualThreadVerticle][fr.domotique.VirtualThreadVerticle] aren't in the request's context
+/// anymore; there, the [RequestMetrics] is [bound to the virtual thread][#bindToThread(RequestMetrics)] instead.
+///
+/// Use [#handler(RouteIndex)] to start measuring requests.
+public final class RequestMetrics implements Handler<AsyncResult<Void>> {
+    /// The key of the [RequestMetrics] in the data of the [RoutingContext].
+    static final String KEY = "requestMetrics";
+
+    private final RoutingContext ctx;
+    private final RouteIndex index;
+    private final long startNanos = System.nanoTime();
+    /// The Vert.x context of the request, or `null` when there was none.
+    private final @Nullable Context vertxContext = Vertx.currentContext();
+
+    /// The metrics of the request of each Vert.x context, or `null` when [#registerContextLocal()] hasn't been called.
+    private static volatile @Nullable ContextLocal<RequestMetrics> local;
+
+    /// The metrics of the request handled by the current virtual thread, if any.
+    private static final ThreadLocal<RequestMetrics> threadMetrics = new ThreadLocal<>();
+
+    /// Number of database queries run during this request. Only modified by the thread handling the request.
+    private int dbQueries;
+
+    private RequestMetrics(RoutingContext ctx, RouteIndex index) {
+        this.ctx = ctx;
+        this.index = index;
+    }
+
+    /// Registers the [ContextLocal] keeping the metrics of each request. Must be called before Vert.x is created.
+    public static synchronized void registerContextLocal() {
+        if (local == null) {
+            local = ContextLocal.registerLocal(RequestMetrics.class);
+        }
+    }
+
+    /// Creates a handler measuring all requests going through it. Should be the very first handler of the router.
+    public static Handler<RoutingContext> handler(RouteIndex index) {
+        return ctx -> {
+            var rm = new RequestMetrics(ctx, index);
+            ctx.put(KEY, rm);
+            ContextLocal<RequestMetrics> l = local;
+            if (l != null && rm.vertxContext != null) {
+                l.put(rm.vertxContext, rm);
+            }
+            ctx.addEndHandler(rm);
+            ctx.next();
+        };
+    }
+
+    /// Returns the metrics of the request of this [RoutingContext], or `null` if it isn't measured.
+    public static @Nullable RequestMetrics of(RoutingContext ctx) {
+        return ctx.get(KEY);
+    }
+
+    /// Counts a database query for the request running right now. Does nothing when we're not in a request.
+    public static void countDbQuery() {
+        RequestMetrics rm = current();
+        if (rm != null) {
+            rm.dbQueries++;
+        }
+    }
+
+    /// Returns the metrics of the request running right now, or `null` when we're not in a request.
+    public static @Nullable RequestMetrics current() {
+        Context vc = Vertx.currentContext();
+        ContextLocal<RequestMetrics> l = local;
+        RequestMetrics rm = vc != null && l != null ? l.get(vc) : null;
+        return rm != null ? rm : threadMetrics.get();
+    }
+
+    /// Makes [#current()] return `metrics` on this thread, until it's bound to `null`.
+    /// Used to run request handlers outside their context, in virtual threads.
+    public static void bindToThread(@Nullable RequestMetrics metrics) {
+        if (metrics != null) {
+            threadMetrics.set(metrics);
+        } else {
+            threadMetrics.remove();
+        }
+    }
+
+    /// Called when the response has ended.
+    @Override
+    public void handle(AsyncResult<Void> event) {
+        long elapsed = System.nanoTime() - startNanos;
+        ContextLocal<RequestMetrics> l = local;
+        if (l != null && vertxContext != null && l.get(vertxContext) == this) {
+            // Only if it's still ours: when requests share a context, the newest one replaced us.
+            l.remove(vertxContext);
+        }
+
+        String failureCode = null;
+        if (ctx.failed()) {
+            failureCode = ctx.failure() instanceof RequestException re
+                ? (re.getErrorCode() != null ? re.getErrorCode() : "HTTP_" + re.getStatusCode())
+                : "UNEXPECTED";
+        } else if (event.failed()) {
+            // The connection was closed before the response was fully sent.
+            failureCode = "CONNECTION_CLOSED";
+        }
+
+        Metrics.route(index.resolve(ctx)).record(elapsed, dbQueries, failureCode);
+    }
+}
@@ -0,0 +1,123 @@
+package fr.domotique.base.metrics;
+
+import fr.domotique.base.apidocs.*;
+import io.vertx.core.http.*;
+import io.vertx.ext.web.*;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.regex.*;
+
+/// Finds the name of the route a request went to, for [Metrics].
+///
+/// Usually, that's easy: the route which sent the response has a [RouteDoc], so we take its operation id.
+/// But when a request fails, the response is sent by a failure handler, and we lose track of the original route!
+/// So, in that case, we look for a documented route with the same method and path.
+///
+/// Create one per router using [#of(Router)]. Routes are only indexed the first time we need them,
+/// so it can be created before registering them.
+public final class RouteIndex {
+    /// Name used for requests we couldn't match to any documented route.
+    public static final String UNKNOWN = "unknown";
+
+    private final Router router;
+    /// All documented routes, with the regex matching their full path. `null` until we need it.
+    private volatile @Nullable List<Entry> entries;
+
+    private record Entry(Set<HttpMethod> methods, Pattern path, String name) {}
+
+    private RouteIndex(Router router) {
+        this.router = router;
+    }
+
+    /// Creates an index for all documented routes of this router, and of all its sub routers.
+    public static RouteIndex of(Router router) {
+        return new RouteIndex(router);
+    }
+
+    private List<Entry> entries() {
+        List<Entry> e = entries;
+        if (e == null) {
+            // Two threads might do this at the same time, no big deal.
+            var list = new ArrayList<Entry>();
+            for (Route r : router.getRoutes()) {
+                visit("", r, list);
+            }
+            entries = e = list;
+        }
+        return e;
+    }
+
+    private static void visit(String prefix, Route route, List<Entry> entries) {
+        String path = route.getPath() == null ? "/" : route.getPath();
+
+        Router subRouter = route.getSubRouter();
+        if (subRouter != null) {
+            // Sub routers are registered with a wildcard, like "/api/users*"; remove it.
+            String subPrefix = prefix + path;
+            if (subPrefix.endsWith("/*")) {
+                subPrefix = subPrefix.substring(0, subPrefix.length() - 2);
+            } else if (subPrefix.endsWith("*")) {
+                subPrefix = subPrefix.substring(0, subPrefix.length() - 1);
+            }
+
+            for (Route r : subRouter.getRoutes()) {
+                visit(subPrefix, r, entries);
+            }
+            return;
+        }
+
+        // Routes using regex paths have no path; we can't index them.
+        RouteDoc rd = route.getMetadata(RouteDoc.KEY);
+        if (rd == null || rd.getOperationId() == null || route.getPath() == null) {
+            return;
+        }
+
+        // "/api/users/:userId" becomes "/api/users/[^/]+", with everything else quoted.
+        var regex = new StringJoiner("/");
+        for (String part : (prefix + path).split("/")) {
+            if (part.startsWith(":")) {
+                regex.add("[^/]+");
+            } else if (part.isEmpty()) {
+                regex.add("");
+            } else {
+                regex.add(Pattern.quote(part));
+            }
+        }
+        // Vert.x accepts a trailing slash, so do we. (split() already removed ours)
+        regex.add("?");
+
+        // Only happens with "/", which gives an empty split.
+        String fullRegex = regex.toString();
+        if (!fullRegex.startsWith("/")) {
+            fullRegex = "/" + fullRegex;
+        }
+
+        entries.add(new Entry(route.methods(), Pattern.compile(fullRegex), rd.getOperationId()));
+    }
+
+    /// Returns the name of the route this request went to, or [#UNKNOWN].
+    public String resolve(RoutingContext ctx) {
+        // Fast path: the current route is documented.
+        Route current = ctx.currentRoute();
+        if (current != null) {
+            RouteDoc rd = current.getMetadata(RouteDoc.KEY);
+            if (rd != null && rd.getOperationId() != null) {
+                return rd.getOperationId();
+            }
+        }
+
+        // Slow path: find it using the path.
+        String name = match(ctx.request().method(), ctx.normalizedPath());
+        return name != null ? name : UNKNOWN;
+    }
+
+    private @Nullable String match(HttpMethod method, String path) {
+        for (Entry e : entries()) {
+            if ((e.methods.isEmpty() || e.methods.contains(method)) && e.path.matcher(path).matches()) {
+                return e.name;
+            }
+        }
+        return null;
+    }
+}
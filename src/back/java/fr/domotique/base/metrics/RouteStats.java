@@ -0,0 +1,63 @@
+package fr.domotique.base.metrics;
+
+import org.HdrHistogram.*;
+import org.jetbrains.annotations.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/// Statistics of one API route, shared by all threads: number of requests, latency, database queries and failures.
+///
+/// Recording is thread-safe and doesn't allocate anything (except the first time an error code is seen).
+/// Use [Metrics#route(String)] to get the stats of a route.
+public final class RouteStats {
+    /// The highest latency we can record, in microseconds. Slower requests are recorded with this value.
+    static final long MAX_LATENCY_MICROS = TimeUnit.SECONDS.toMicros(60);
+    /// The highest number of database queries per request we can record.
+    static final long MAX_DB_QUERIES = 10_000;
+
+    /// The name of the route, usually the operation id of its [fr.domotique.base.apidocs.RouteDoc].
+    final String route;
+
+    /// Number of requests.
+    final LongAdder requests = new LongAdder();
+    /// Sum of the latency of all requests, in nanoseconds.
+    final LongAdder totalNanos = new LongAdder();
+    /// Number of database queries, for all requests.
+    final LongAdder dbQueries = new LongAdder();
+
+    /// Latency of the requests, in microseconds. Two significant digits are more than enough, and keep memory low.
+    final ConcurrentHistogram latencyMicros = new ConcurrentHistogram(MAX_LATENCY_MICROS, 2);
+    /// Number of database queries per request.
+    final ConcurrentHistogram dbQueriesPerRequest = new ConcurrentHistogram(MAX_DB_QUERIES, 2);
+
+    /// Number of failed requests, by error code.
+    final ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+    RouteStats(String route) {
+        this.route = route;
+    }
+
+    /// Records a finished request.
+    ///
+    /// @param nanos       how long the request took, in nanoseconds
+    /// @param queries     how many database queries were run during the request
+    /// @param failureCode the error code if the request failed, or `null` if it succeeded
+    public void record(long nanos, int queries, @Nullable String failureCode) {
+        requests.increment();
+        totalNanos.add(nanos);
+        dbQueries.add(queries);
+
+        latencyMicros.recordValue(Math.clamp(nanos / 1000, 0, MAX_LATENCY_MICROS));
+        dbQueriesPerRequest.recordValue(Math.clamp(queries, 0, MAX_DB_QUERIES));
+
+        if (failureCode != null) {
+            // get() first, so we don't create a lambda each time.
+            LongAdder count = failures.get(failureCode);
+            if (count == null) {
+                count = failures.computeIfAbsent(failureCode, _ -> new LongAdder());
+            }
+            count.increment();
+        }
+    }
+}
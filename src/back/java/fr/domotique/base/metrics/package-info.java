@@ -0,0 +1,4 @@
+/// Performance metrics for all API routes: latency, request count, database queries and failures.
+///
+/// Everything is recorded automatically; see [fr.domotique.base.metrics.Metrics] to know what's measured.
+package fr.domotique.base.metrics;
@@ -7,7 +7,9 @@ import io.vertx.core.*;
 import io.vertx.sqlclient.*;
 import org.jetbrains.annotations.*;
 
+import java.time.*;
 import java.util.*;
+import java.util.function.*;
 
 import static fr.domotique.data.ActionLog.ENTITY;
 
@@ -16,35 +18,66 @@ public class ActionLogTable extends Table {
         super(client);
     }
 
+    /// Filters and pagination of [#query(Query)].
+    ///
+    /// Logs are sorted by time, then by id. To get logs page by page, give the `nextCursor` of the previous [Page]
+    /// as `cursor`: MySQL jumps right to it using the index, instead of skipping all logs before it like `OFFSET` does.
+    ///
+    /// @param since only logs at this time or after
+    /// @param until only logs before this time
+    /// @param limit the maximum number of logs in the page
+    /// @param desc  true for the newest logs first
     public record Query(
         @Nullable Integer userId,
         @Nullable ActionLogOperation operation,
         @Nullable ActionLogTarget target,
+        @Nullable Instant since,
+        @Nullable Instant until,
+        @Nullable Cursor cursor,
+        int limit,
         boolean desc
     ) {}
 
-    static final String QUERY_BASE_SQL = makeModularSQL("""
-        SELECT %s, (
-            CASE a.targetType
-                WHEN 0 THEN targetDevice.name
-                WHEN 1 THEN CONCAT(CONCAT(targetUser.firstName, ' '), targetUser.lastName)
-                WHEN 2 THEN targetRoom.name
-                WHEN 3 THEN targetDeviceType.name
-            END
-        ) AS targetName, %s
-        FROM ActionLog a
-        LEFT JOIN User doerUser ON a.userId = doerUser.id
-        LEFT JOIN User targetUser ON a.targetId = targetUser.id
-        LEFT JOIN Device targetDevice ON a.targetId = targetDevice.id
-        LEFT JOIN DeviceType targetDeviceType ON targetDevice.typeId = targetDeviceType.id
-        LEFT JOIN Room targetRoom ON targetDevice.roomId = targetRoom.id
-        WHERE 1=1
-        """, CompleteActionLog.columnList("a"), UserProfile.columnList("doerUser"));
-
-    public Future<List<CompleteActionLog>> query(Query q) {
-        var sql = new StringBuilder(QUERY_BASE_SQL);
+    /// The position of a log in the results of [#query(Query)]: its time, then its id.
+    ///
+    /// Sent to clients as text: `<epoch milliseconds>_<id>`.
+    public record Cursor(Instant time, int id) {
+        /// Reads a cursor made by [#toString()].
+        ///
+        /// @throws IllegalArgumentException if the cursor is invalid
+        public static Cursor parse(String value) {
+            int sep = value.indexOf('_');
+            if (sep < 0) {
+                throw new IllegalArgumentException("Invalid cursor: " + value);
+            }
+
+            try {
+                return new Cursor(Instant.ofEpochMilli(Long.parseLong(value, 0, sep, 10)),
+                    Integer.parseInt(value, sep + 1, value.length(), 10));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + value, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return time.toEpochMilli() + "_" + id;
+        }
+    }
+
+    /// A page of logs, with the cursor of the next page; `null` when there's no more logs.
+    public record Page(List<CompleteActionLog> logs, @Nullable Cursor nextCursor) {}
+
+    /// Gets a page of logs, sorted by time.
+    ///
+    /// The name of the targets and the users are not joined to each log: once we have the page, we get them
+    /// with one query per target type (and one for users), all sent at once. Way cheaper than joining five
+    /// tables on every log we look at.
+    public Future<Page> query(Query q) {
+        var sql = new StringBuilder("SELECT * FROM ActionLog a WHERE 1=1");
         var args = new ArrayList<>();
 
+        // Each filter has an index starting with its column, then time: (userId, time), (operation, time)...
         if (q.userId != null) {
             sql.append(" AND a.userId = ?");
             args.add(q.userId);
@@ -57,10 +90,121 @@ public class ActionLogTable extends Table {
             sql.append(" AND a.targetType = ?");
             args.add(q.target.ordinal());
         }
+        if (q.since != null) {
+            sql.append(" AND a.time >= ?");
+            args.add(toDB(q.since));
+        }
+        if (q.until != null) {
+            sql.append(" AND a.time < ?");
+            args.add(toDB(q.until));
+        }
+        if (q.cursor != null) {
+            String cmp = q.desc ? "<" : ">";
+            sql.append(" AND (a.time ").append(cmp).append(" ? OR (a.time = ? AND a.id ").append(cmp).append(" ?))");
+            args.add(toDB(q.cursor.time));
+            args.add(toDB(q.cursor.time));
+            args.add(q.cursor.id);
+        }
+
+        String order = q.desc ? "DESC" : "ASC";
+        sql.append(" ORDER BY a.time ").append(order).append(", a.id ").append(order);
 
-        sql.append(" ORDER BY a.time ").append(q.desc ? "DESC" : "ASC");
+        // Ask for one more log than the limit, to know if there's a next page.
+        sql.append(" LIMIT ?");
+        args.add(q.limit + 1);
 
-        return queryMany(CompleteActionLog.MAP, sql.toString(), args.toArray());
+        return queryMany(ENTITY.mapper(), sql.toString(), args.toArray())
+            .compose(logs -> {
+                Cursor next = null;
+                if (logs.size() > q.limit) {
+                    logs = logs.subList(0, q.limit);
+                    ActionLog last = logs.getLast();
+                    next = new Cursor(last.getTime(), last.getId());
+                }
+
+                Cursor nextCursor = next;
+                return complete(logs).map(complete -> new Page(complete, nextCursor));
+            });
+    }
+
+    /// Finds the target names and users of these logs, and makes [CompleteActionLog]s.
+    private Future<List<CompleteActionLog>> complete(List<ActionLog> logs) {
+        var targetIds = new EnumMap<ActionLogTarget, Set<Integer>>(ActionLogTarget.class);
+        var userIds = new HashSet<Integer>();
+        for (ActionLog log : logs) {
+            targetIds.computeIfAbsent(log.getTargetType(), _ -> new HashSet<>()).add(log.getTargetId());
+            if (log.getUserId() != null) {
+                userIds.add(log.getUserId());
+            }
+        }
+
+        // Send all queries at once.
+        var names = new EnumMap<ActionLogTarget, Future<Map<Integer, String>>>(ActionLogTarget.class);
+        for (var e : targetIds.entrySet()) {
+            names.put(e.getKey(), getTargetNames(e.getKey(), e.getValue()));
+        }
+        Future<Map<Integer, UserProfile>> users = getProfiles(userIds);
+
+        var all = new ArrayList<Future<?>>(names.values());
+        all.add(users);
+        return Future.all(all).map(_ -> {
+            var complete = new ArrayList<CompleteActionLog>(logs.size());
+            for (ActionLog log : logs) {
+                complete.add(new CompleteActionLog(
+                    log.getId(),
+                    log.getTargetId(),
+                    log.getTargetType(),
+                    log.getOperation(),
+                    log.getFlags(),
+                    log.getTime(),
+                    // null when the target has been deleted
+                    names.get(log.getTargetType()).result().get(log.getTargetId()),
+                    log.getUserId() != null ? users.result().get(log.getUserId()) : null
+                ));
+            }
+            return complete;
+        });
+    }
+
+    /// Returns the name of each target of this type: target id -> name.
+    private Future<Map<Integer, String>> getTargetNames(ActionLogTarget type, Set<Integer> ids) {
+        String sql = switch (type) {
+            case DEVICE -> "SELECT id, name FROM Device WHERE id IN ";
+            case USER -> "SELECT id, CONCAT(firstName, ' ', lastName) FROM User WHERE id IN ";
+            case ROOM -> "SELECT id, name FROM Room WHERE id IN ";
+            case DEVICE_TYPE -> "SELECT id, name FROM DeviceType WHERE id IN ";
+        };
+
+        return queryMany(r -> Map.entry(r.getInteger(0), r.getString(1)), sql + paramList(ids.size()), ids.toArray())
+            .map(rows -> {
+                var map = new HashMap<Integer, String>();
+                for (var row : rows) {
+                    map.put(row.getKey(), row.getValue());
+                }
+                return map;
+            });
+    }
+
+    static final String PROFILES_SQL = "SELECT " + UserProfile.columnList(null) + " FROM User WHERE id IN ";
+
+    /// Returns the profile of each user: user id -> profile.
+    private Future<Map<Integer, UserProfile>> getProfiles(Set<Integer> ids) {
+        if (ids.isEmpty()) {
+            return Future.succeededFuture(Map.of());
+        }
+
+        return queryMany(UserProfile.MAP, PROFILES_SQL + paramList(ids.size()), ids.toArray())
+            .map(profiles -> {
+                var map = new HashMap<Integer, UserProfile>();
+                for (UserProfile p : profiles) {
+                    map.put(p.id(), p);
+                }
+                return map;
+            });
+    }
+
+    private static LocalDateTime toDB(Instant t) {
+        return LocalDateTime.ofInstant(t, ZoneOffset.UTC);
     }
 
     public Future<ActionLog> get(int id) {
@@ -71,6 +215,31 @@ public class ActionLogTable extends Table {
         return insert(ENTITY, deviceType, ActionLog::getId, ActionLog::setId);
     }
 
+    /// Inserts many action logs at once, using batched queries (see [Table#inChunks(List, Function)]).
+    /// The ids of the logs are NOT set.
+    ///
+    /// All logs are written in one transaction: when it fails, none of them are written, so it can be tried again
+    /// without writing some logs twice.
+    ///
+    /// Used by the [ActionLogVerticle] to write logs in the background, and by bulk imports.
+    public Future<Void> insertBatch(List<ActionLog> logs) {
+        // executeBatch fails with an empty list!
+        if (logs.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        return transaction(c -> inChunks(logs, chunk -> {
+            var tuples = new ArrayList<Tuple>(chunk.size());
+            for (ActionLog log : chunk) {
+                tuples.add(Tuple.wrap(ENTITY.genInsertArguments(log)));
+            }
+
+            return c.preparedQuery(ENTITY.insertSQL())
+                .executeBatch(tuples)
+                .recover(Table::handleSqlErrors);
+        }));
+    }
+
     public Future<ActionLog> update(ActionLog deviceType) {
         return update(ENTITY, deviceType);
     }
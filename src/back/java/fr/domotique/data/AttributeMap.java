@@ -0,0 +1,339 @@
+package fr.domotique.data;
+
+import io.vertx.core.buffer.*;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+
+/// A map of [device attributes][AttributeType] to their values, made to be light and quick to read from the database.
+///
+/// It works like an `EnumMap<AttributeType, Object>`, but number values (nearly all of them) are stored
+/// in a `double[]` instead of being boxed in a `Double`. Which attributes are present is stored in a `long`
+/// bitmask, where bit `n` is the attribute with [ordinal][Enum#ordinal()] `n`.
+///
+/// Integers are stored as doubles too (they fit exactly), but another bitmask remembers they were integers, so
+/// they come back as `Integer`s: a heart rate of `72` is still sent as `72` to the browser, not `72.0`.
+///
+/// Values that aren't numbers (strings, booleans, and `null` for hidden personal attributes) are kept
+/// in a separate `Object[]`, only created when needed.
+///
+/// ## Binary format
+///
+/// The map can be converted to a compact binary format, stored in the `Device.attributesBin` column:
+///
+/// ```
+/// [version: 1 byte] [keys: 8 bytes] [integer keys: 8 bytes] [one value per key, in ordinal order]
+/// ```
+///
+/// Each value is an `int` (4 bytes) when its bit is set in the integer keys, else a `double` (8 bytes). Everything
+/// is little endian. For example, `{CALORIES_BURNED: 1250.5, HEART_RATE: 72}` gives 1 + 8 + 8 + 8 + 4 = 29 bytes.
+///
+/// Version 1 had no integer keys, and only doubles: we can still read it, but integers come back as doubles.
+/// Maps containing values that aren't numbers can't be converted: [#toBinary()] returns `null`, and
+/// we keep using the JSON format for them.
+///
+/// ## Example
+/// ```java
+/// var attributes = new AttributeMap();
+/// attributes.put(AttributeType.HEART_RATE, 72);
+///
+/// double rate = attributes.getDouble(AttributeType.HEART_RATE); // 72.0, no boxing!
+/// Object same = attributes.get(AttributeType.HEART_RATE); // Integer 72
+/// Buffer bin = attributes.toBinary(); // 21 bytes
+/// AttributeMap copy = AttributeMap.fromBinary(bin);
+/// ```
+public final class AttributeMap extends AbstractMap<AttributeType, Object> {
+    /// Version of the binary format, in case we need to change it later.
+    static final byte BINARY_VERSION = 2;
+    /// The first version of the binary format, with only doubles.
+    static final byte BINARY_VERSION_DOUBLES = 1;
+
+    /// All attribute types, so we don't clone the array each time with [AttributeType#values()].
+    private static final AttributeType[] TYPES = AttributeType.values();
+
+    static {
+        // The bitmask can't hold more than 64 attributes.
+        if (TYPES.length > Long.SIZE) {
+            throw new ExceptionInInitializerError("Too many attribute types to fit in an AttributeMap");
+        }
+    }
+
+    /// Bit `n` is set when the attribute of ordinal `n` is in the map.
+    private long keys;
+    /// Bit `n` is set when the value of the attribute of ordinal `n` is in `others` instead of `numbers`.
+    private long boxed;
+    /// Bit `n` is set when the value of the attribute of ordinal `n` is an integer, stored in `numbers`.
+    private long ints;
+    /// Number values, indexed by ordinal.
+    private final double[] numbers = new double[TYPES.length];
+    /// Other values (strings, booleans, null), indexed by ordinal. Only created when needed.
+    private Object @Nullable [] others;
+
+    /// Creates an empty map.
+    public AttributeMap() {
+    }
+
+    /// Creates a map with all entries of another map.
+    public static AttributeMap copyOf(Map<AttributeType, ?> map) {
+        if (map instanceof AttributeMap am) {
+            var copy = new AttributeMap();
+            copy.keys = am.keys;
+            copy.boxed = am.boxed;
+            copy.ints = am.ints;
+            System.arraycopy(am.numbers, 0, copy.numbers, 0, TYPES.length);
+            copy.others = am.others == null ? null : am.others.clone();
+            return copy;
+        }
+
+        var copy = new AttributeMap();
+        copy.putAll(map);
+        return copy;
+    }
+
+    /// Returns the value of a number attribute, without boxing it, or `NaN` if it's missing or not a number.
+    public double getDouble(AttributeType type) {
+        long bit = 1L << type.ordinal();
+        if ((keys & bit) == 0 || (boxed & bit) != 0) {
+            return Double.NaN;
+        }
+        return numbers[type.ordinal()];
+    }
+
+    /// Sets the value of a number attribute, without boxing it.
+    public void putDouble(AttributeType type, double value) {
+        int i = type.ordinal();
+        long bit = 1L << i;
+        keys |= bit;
+        boxed &= ~bit;
+        ints &= ~bit;
+        numbers[i] = value;
+        if (others != null) {
+            others[i] = null;
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof AttributeType type)) {
+            return null;
+        }
+
+        int i = type.ordinal();
+        long bit = 1L << i;
+        if ((keys & bit) == 0) {
+            return null;
+        }
+        if ((boxed & bit) != 0) {
+            assert others != null;
+            return others[i];
+        }
+        if ((ints & bit) != 0) {
+            return (int) numbers[i];
+        }
+        return numbers[i];
+    }
+
+    /// Sets the value of an integer attribute, without boxing it. It comes back as an `Integer` with [#get(Object)].
+    public void putInt(AttributeType type, int value) {
+        putDouble(type, value);
+        ints |= 1L << type.ordinal();
+    }
+
+    /// Puts a value in the map. `Integer`s stay `Integer`s, other numbers become `Double`s,
+    /// except `Long`s and big decimals which are kept as they are (a `double` could change them).
+    @Override
+    public Object put(AttributeType key, Object value) {
+        Object previous = get(key);
+
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            putInt(key, ((Number) value).intValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            putDouble(key, ((Number) value).doubleValue());
+        } else {
+            int i = key.ordinal();
+            long bit = 1L << i;
+            if (others == null) {
+                others = new Object[TYPES.length];
+            }
+            keys |= bit;
+            boxed |= bit;
+            ints &= ~bit;
+            others[i] = value;
+        }
+
+        return previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (!(key instanceof AttributeType type)) {
+            return null;
+        }
+
+        Object previous = get(type);
+        removeOrdinal(type.ordinal());
+        return previous;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof AttributeType type && (keys & (1L << type.ordinal())) != 0;
+    }
+
+    @Override
+    public int size() {
+        return Long.bitCount(keys);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys == 0;
+    }
+
+    @Override
+    public void clear() {
+        keys = 0;
+        boxed = 0;
+        ints = 0;
+        others = null;
+    }
+
+    @Override
+    public Set<Entry<AttributeType, Object>> entrySet() {
+        return new EntrySet();
+    }
+
+    /// Converts this map to the binary format, or returns `null` when a value isn't a number.
+    public @Nullable Buffer toBinary() {
+        if (boxed != 0) {
+            return null;
+        }
+
+        Buffer buf = Buffer.buffer(binarySize(keys, ints));
+        buf.appendByte(BINARY_VERSION);
+        buf.appendLongLE(keys);
+        buf.appendLongLE(ints);
+        for (long k = keys; k != 0; k &= k - 1) {
+            int i = Long.numberOfTrailingZeros(k);
+            if ((ints & (1L << i)) != 0) {
+                buf.appendIntLE((int) numbers[i]);
+            } else {
+                buf.appendLongLE(Double.doubleToRawLongBits(numbers[i]));
+            }
+        }
+        return buf;
+    }
+
+    /// The size of the binary format of a map with these keys and integer keys.
+    private static int binarySize(long keys, long ints) {
+        return 1 + 2 * Long.BYTES + Long.bitCount(ints) * Integer.BYTES + Long.bitCount(keys & ~ints) * Double.BYTES;
+    }
+
+    /// Reads a map from the binary format made by [#toBinary()], or its first version.
+    public static AttributeMap fromBinary(Buffer buf) {
+        if (buf.length() < 1 + Long.BYTES) {
+            throw new IllegalArgumentException("Invalid binary attributes");
+        }
+
+        byte version = buf.getByte(0);
+        long keys = buf.getLongLE(1);
+        long ints;
+        int pos;
+        int expectedLength;
+        if (version == BINARY_VERSION && buf.length() >= 1 + 2 * Long.BYTES) {
+            ints = buf.getLongLE(1 + Long.BYTES);
+            pos = 1 + 2 * Long.BYTES;
+            expectedLength = binarySize(keys, ints);
+        } else if (version == BINARY_VERSION_DOUBLES) {
+            ints = 0;
+            pos = 1 + Long.BYTES;
+            expectedLength = 1 + Long.BYTES + Long.bitCount(keys) * Double.BYTES;
+        } else {
+            throw new IllegalArgumentException("Invalid binary attributes");
+        }
+
+        if (Long.numberOfLeadingZeros(keys) < Long.SIZE - TYPES.length
+            || (ints & ~keys) != 0
+            || buf.length() != expectedLength) {
+            throw new IllegalArgumentException("Invalid binary attributes");
+        }
+
+        var map = new AttributeMap();
+        for (long k = keys; k != 0; k &= k - 1) {
+            int i = Long.numberOfTrailingZeros(k);
+            if ((ints & (1L << i)) != 0) {
+                map.numbers[i] = buf.getIntLE(pos);
+                pos += Integer.BYTES;
+            } else {
+                map.numbers[i] = Double.longBitsToDouble(buf.getLongLE(pos));
+                pos += Double.BYTES;
+            }
+        }
+        map.keys = keys;
+        map.ints = ints;
+        return map;
+    }
+
+    private void removeOrdinal(int i) {
+        long bit = 1L << i;
+        keys &= ~bit;
+        boxed &= ~bit;
+        ints &= ~bit;
+        if (others != null) {
+            others[i] = null;
+        }
+    }
+
+    /// All entries of the map, in ordinal order, like an `EnumMap`.
+    private final class EntrySet extends AbstractSet<Entry<AttributeType, Object>> {
+        @Override
+        public Iterator<Entry<AttributeType, Object>> iterator() {
+            return new Iterator<>() {
+                /// The keys we haven't returned yet.
+                long remaining = keys;
+                /// The ordinal of the last returned key, or -1.
+                int last = -1;
+
+                @Override
+                public boolean hasNext() {
+                    return remaining != 0;
+                }
+
+                @Override
+                public Entry<AttributeType, Object> next() {
+                    if (remaining == 0) {
+                        throw new NoSuchElementException();
+                    }
+
+                    last = Long.numberOfTrailingZeros(remaining);
+                    remaining &= remaining - 1;
+
+                    AttributeType type = TYPES[last];
+                    return new SimpleImmutableEntry<>(type, get(type));
+                }
+
+                @Override
+                public void remove() {
+                    if (last == -1) {
+                        throw new IllegalStateException();
+                    }
+
+                    removeOrdinal(last);
+                    last = -1;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return AttributeMap.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Entry<?, ?> e
+                   && containsKey(e.getKey())
+                   && Objects.equals(get(e.getKey()), e.getValue());
+        }
+    }
+}
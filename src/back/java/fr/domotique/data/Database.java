@@ -1,13 +1,19 @@
 package fr.domotique.data;
 
+import fr.domotique.base.data.*;
+import fr.domotique.base.metrics.*;
+import io.vertx.core.*;
 import io.vertx.sqlclient.*;
+import org.jetbrains.annotations.*;
 
 /// The database of the entire app, with all tables.
 ///
+/// @param client the SQL client used by all tables: a [Pool], or a single connection inside a transaction
 /// @param users the user table, containing all [User] rows
 /// @param rooms the room table, containing all [Room] rows
-/// @param deviceTypes the device type table, containing all [DeviceType] rows
+/// @param deviceTypes the device type table, containing all [DeviceType] rows, cached in memory
 public record Database(
+    SqlClient client,
     UserTable users,
     RoomTable rooms,
     DeviceTypeTable deviceTypes,
@@ -15,19 +21,70 @@ public record Database(
     LoginLogTable loginLogs,
     PowerLogTable powerLogs,
     ActionLogTable actionLogs,
-    InviteCodeTable inviteCodes
+    InviteCodeTable inviteCodes,
+    SessionTable sessions,
+    EmailOutboxTable emailOutbox
 ) {
     /// Makes a database object with all tables ready
     public Database(SqlClient client) {
+        this(client, new DeviceTypeCache(), UserTable.newSessionCache());
+    }
+
+    /// Makes a database object with all tables ready, using existing caches.
+    public Database(SqlClient client, DeviceTypeCache deviceTypeCache,
+                    BoundedCache<Integer, UserTable.SessionInfo> sessionCache) {
         this(
-            new UserTable(client),
+            client,
+            new UserTable(client, sessionCache),
             new RoomTable(client),
-            new DeviceTypeTable(client),
+            new DeviceTypeTable(client, deviceTypeCache),
             new DeviceTable(client),
             new LoginLogTable(client),
             new PowerLogTable(client),
             new ActionLogTable(client),
-            new InviteCodeTable(client)
+            new InviteCodeTable(client),
+            new SessionTable(client),
+            new EmailOutboxTable(client)
         );
     }
+
+    /// Starts a new SQL transaction on a single connection. All queries made with the [DatabaseTransaction#db()]
+    /// are part of it, until it's [committed][DatabaseTransaction#commit()] or [closed][DatabaseTransaction#close()].
+    ///
+    /// Made for handlers running in virtual threads, see [DatabaseTransaction] for an example.
+    public Future<DatabaseTransaction> begin() {
+        if (!(client instanceof Pool pool)) {
+            return Future.failedFuture(new IllegalStateException("Already inside a transaction."));
+        }
+
+        long start = System.nanoTime();
+        return pool.getConnection().compose(conn -> {
+            DatabaseMetrics.recordPoolWait(System.nanoTime() - start);
+            return conn.begin()
+                .map(tx -> new DatabaseTransaction(conn, tx, new Database(conn, deviceTypes.cache(), users.sessionCache())))
+                .onFailure(_ -> conn.close());
+        });
+    }
+
+    /// Takes the MySQL lock named `name` if no one else has it, using a single connection. Returns `null` when
+    /// someone else has it: we don't wait for it.
+    ///
+    /// Made for background jobs running in virtual threads, see [DatabaseLock] for an example.
+    public Future<@Nullable DatabaseLock> tryLock(String name) {
+        if (!(client instanceof Pool pool)) {
+            return Future.failedFuture(new IllegalStateException("Locks need their own connection."));
+        }
+
+        return pool.getConnection().compose(conn -> conn.preparedQuery("SELECT GET_LOCK(?, 0)")
+            .execute(Tuple.of(name))
+            .map(rows -> {
+                Integer taken = rows.iterator().next().getInteger(0);
+                if (taken == null || taken != 1) {
+                    conn.close();
+                    return (DatabaseLock) null;
+                }
+                return new DatabaseLock(conn, name, new Database(conn, deviceTypes.cache(), users.sessionCache()));
+            })
+            .onFailure(_ -> conn.close()));
+    }
 }
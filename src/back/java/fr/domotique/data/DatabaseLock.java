@@ -0,0 +1,53 @@
+package fr.domotique.data;
+
+import fr.domotique.base.data.*;
+import io.vertx.core.*;
+import io.vertx.sqlclient.*;
+
+/// A MySQL named lock (`GET_LOCK`), held by a single connection, created by [Database#tryLock(String)].
+///
+/// Only one connection of the entire database can hold a lock with the same name: useful to run background jobs
+/// on one server only, even when many servers are running. Use [#db()] to run queries on the connection holding
+/// the lock, then [close][#close()] it to release the lock, so always use it in a `try-with-resources` block!
+///
+/// If the server crashes, MySQL releases the lock by itself when the connection is closed.
+///
+/// ## Example
+/// ```java
+/// try (DatabaseLock lock = server.db().tryLock("cleanup").await()) {
+///     if (lock == null) {
+///         return; // Another server is already cleaning up
+///     }
+///
+///     lock.db().powerLogs().dropPartition(month).await();
+/// } // Released here
+/// ```
+public final class DatabaseLock implements AutoCloseable {
+    private final SqlConnection connection;
+    private final String name;
+    private final Database db;
+    private boolean released;
+
+    DatabaseLock(SqlConnection connection, String name, Database db) {
+        this.connection = connection;
+        this.name = name;
+        this.db = db;
+    }
+
+    /// The database to use for all queries made while holding the lock.
+    public Database db() {
+        return db;
+    }
+
+    /// Releases the lock, and gives the connection back to the pool.
+    @Override
+    public void close() {
+        if (!released) {
+            released = true;
+            connection.preparedQuery("SELECT RELEASE_LOCK(?)").execute(Tuple.of(name))
+                // Tables changed using this connection can be seen by everyone, see TableVersions.
+                .andThen(_ -> TableVersions.transactionEnded(connection))
+                .eventually(connection::close);
+        }
+    }
+}
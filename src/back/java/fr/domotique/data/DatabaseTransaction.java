@@ -0,0 +1,71 @@
+package fr.domotique.data;
+
+import fr.domotique.base.data.*;
+import io.vertx.core.*;
+import io.vertx.sqlclient.*;
+
+/// A SQL transaction running on a single connection, created by [Database#begin()].
+///
+/// Use [#db()] to run queries inside the transaction, then [#commit()] it. If you don't commit, the transaction is
+/// rolled back when it's closed, so always use it in a `try-with-resources` block!
+///
+/// Since all queries go to the same connection, you can send many of them without waiting for each response:
+/// they're *pipelined*, which saves a lot of round-trips to the database.
+///
+/// ## Example
+/// ```java
+/// try (DatabaseTransaction tx = server.db().begin().await()) {
+///     // Lock the device until the end of the transaction
+///     Device device = tx.db().devices().getCompleteForUpdate(5).await().toDevice();
+///     device.setPowered(true);
+///
+///     // Both queries are sent right away, then we wait for both.
+///     Future.all(
+///         tx.db().devices().update(device),
+///         tx.db().powerLogs().insert(new PowerLog(5, "POWER_ON", device.getEnergyConsumption(), Instant.now()))
+///     ).await();
+///
+///     tx.commit().await();
+/// } // Rolled back here if something went wrong before commit()
+/// ```
+///
+/// ## Caches
+///
+/// Tables with a shared cache, like the [DeviceTypeTable] or the [UserTable], don't put the data written inside
+/// a transaction in their cache: they invalidate it once the transaction ends, whether it's committed or rolled back.
+public final class DatabaseTransaction implements AutoCloseable {
+    private final SqlConnection connection;
+    private final Transaction transaction;
+    private final Database db;
+    private boolean finished;
+
+    DatabaseTransaction(SqlConnection connection, Transaction transaction, Database db) {
+        this.connection = connection;
+        this.transaction = transaction;
+        this.db = db;
+    }
+
+    /// The database to use for all queries of this transaction.
+    public Database db() {
+        return db;
+    }
+
+    /// Commits the transaction, and gives the connection back to the pool.
+    public Future<Void> commit() {
+        finished = true;
+        return transaction.commit()
+            .andThen(_ -> TableVersions.transactionEnded(connection))
+            .eventually(connection::close);
+    }
+
+    /// Rolls back the transaction if it hasn't been committed, and gives the connection back to the pool.
+    @Override
+    public void close() {
+        if (!finished) {
+            finished = true;
+            transaction.rollback()
+                .andThen(_ -> TableVersions.transactionEnded(connection))
+                .eventually(connection::close);
+        }
+    }
+}
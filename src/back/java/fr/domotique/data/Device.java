@@ -1,6 +1,7 @@
 package fr.domotique.data;
 
 import fr.domotique.base.data.*;
+import io.vertx.core.buffer.*;
 import io.vertx.core.json.*;
 import lombok.*;
 import org.jetbrains.annotations.*;
@@ -48,7 +49,14 @@ public class Device {
     ///    ["pouet", true]  // values
     /// ]
     /// ```
-    EnumMap<AttributeType, Object> attributes;
+    ///
+    /// ## Binary storage
+    /// Parsing that JSON for every device of every list is slow, so attributes are also stored in the
+    /// `attributesBin` column, using the compact binary format of [AttributeMap#toBinary()]. When reading,
+    /// we only ask MySQL for the JSON if the binary column is `NULL` (see [#attributesColumns(String)]).
+    ///
+    /// Both columns are written on each update, so we can still go back to the JSON column if needed.
+    AttributeMap attributes;
 
     /// True if the device is powered on, false otherwise
     boolean powered;
@@ -69,7 +77,7 @@ public class Device {
             r.getInteger(s.next()),
             r.getInteger(s.next()),
             r.getInteger(s.next()),
-            attributesFromDB(r.getJsonArray(s.next())),
+            attributesFromDB(r.getValue(s.next()), r.getBuffer(s.next())),
             r.getBoolean(s.next()),
             r.getDouble(s.next()),
             r.getInteger(s.next())
@@ -81,12 +89,35 @@ public class Device {
         new EntityColumn<>("roomId", Device::getRoomId),
         new EntityColumn<>("userId", Device::getUserId),
         new EntityColumn<>("attributes", x -> attributesToDB(x.attributes)),
+        new EntityColumn<>("attributesBin", x -> x.attributes.toBinary()),
         new EntityColumn<>("powered", Device::isPowered),
         new EntityColumn<>("energyConsumption", Device::getEnergyConsumption),
         new EntityColumn<>("deletionRequestedById", Device::getDeletionRequestedById)
     );
 
-    public static JsonArray attributesToDB(EnumMap<AttributeType, Object> attributes) {
+    /// The columns to SELECT for [#ENTITY], reading the JSON attributes only when there's no binary version.
+    ///
+    /// Use it instead of `SELECT *`!
+    public static final String COLUMNS = QueryUtils.columnList(null, "id", "name", "description", "typeId", "roomId", "userId")
+                                         + ", " + attributesColumns(null) + ", "
+                                         + QueryUtils.columnList(null, "powered", "energyConsumption", "deletionRequestedById");
+
+    /// Returns the two attribute columns to SELECT, to give to [#attributesFromDB(Object, Buffer)]:
+    /// - the JSON column, only when the binary column is `NULL`, so MySQL doesn't send it (and we don't parse it)
+    /// - the binary column
+    ///
+    /// ## Example
+    /// ```java
+    /// String cols = Device.attributesColumns("d");
+    /// // cols == "IF(d.attributesBin IS NULL, d.attributes, NULL) AS attributes, d.attributesBin"
+    /// ```
+    public static String attributesColumns(@Nullable String tableName) {
+        String prefix = tableName == null ? "" : tableName + ".";
+        return "IF(" + prefix + "attributesBin IS NULL, " + prefix + "attributes, NULL) AS attributes, "
+               + prefix + "attributesBin";
+    }
+
+    public static JsonArray attributesToDB(Map<AttributeType, Object> attributes) {
         // Convert the enum keys to integers (using ordinal)
         ArrayList<Integer> keys = new ArrayList<>(attributes.size());
         for (var key : attributes.keySet()) {
@@ -100,7 +131,23 @@ public class Device {
         return new JsonArray(List.of(new JsonArray(keys), new JsonArray(values)));
     }
 
-    public static EnumMap<AttributeType, Object> attributesFromDB(JsonArray array) {
+    /// Reads attributes from the columns given by [#attributesColumns(String)]: the binary one if it's there,
+    /// else the JSON one.
+    public static AttributeMap attributesFromDB(@Nullable Object json, @Nullable Buffer bin) {
+        if (bin != null) {
+            return AttributeMap.fromBinary(bin);
+        }
+
+        // MySQL might give us the JSON as a string, since it went through IF(...).
+        return switch (json) {
+            case JsonArray array -> attributesFromDB(array);
+            case String str -> attributesFromDB(new JsonArray(str));
+            case Buffer buf -> attributesFromDB(new JsonArray(buf));
+            case null, default -> throw new IllegalArgumentException("Device attributes missing from the row");
+        };
+    }
+
+    public static AttributeMap attributesFromDB(JsonArray array) {
         // Find the array pair from the JSON
         // [
         //     [1, 5], // keys
@@ -114,7 +161,7 @@ public class Device {
         }
 
         // Take one element from each array and put them into a map
-        EnumMap<AttributeType, Object> map = new EnumMap<>(AttributeType.class);
+        AttributeMap map = new AttributeMap();
         for (int i = 0; i < keys.size(); i++) {
             // Take the ordinal from the keys array and convert it to an enum
             Integer keyOrdinal = keys.getInteger(i);
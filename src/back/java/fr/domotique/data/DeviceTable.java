@@ -6,6 +6,9 @@ import fr.domotique.api.rooms.*;
 import fr.domotique.api.users.*;
 import fr.domotique.base.data.*;
 import io.vertx.core.Future;
+import io.vertx.core.buffer.*;
+import io.vertx.core.streams.*;
+import io.vertx.mysqlclient.*;
 import io.vertx.sqlclient.*;
 import org.jetbrains.annotations.*;
 import org.slf4j.*;
@@ -31,12 +34,27 @@ public class DeviceTable extends Table {
     /// The foreign key to [User] for the user who requested the deletion of this device ([Device#getDeletionRequestedById]).
     public static final String DELETION_REQ_USER_FK = "fk_device_deletion_requested_by";
 
+    /// The number of different [owner version keys][#ownerVersionKey(int)].
+    static final int OWNER_VERSION_BUCKETS = 256;
+
+    /// Returns the name used in [TableVersions] to count the changes of the devices owned by this user.
+    ///
+    /// Every write to the `Device` table increments the version of the whole table; this one only changes when
+    /// the devices of this user are inserted, updated or deleted, or when a device is given to or taken from them.
+    /// Useful to cache data computed from the devices of one user: see the `my-health` route.
+    ///
+    /// Users share [#OWNER_VERSION_BUCKETS] keys, so [TableVersions] (and the `TableVersion` table) don't get one
+    /// entry per user. Users with the same key just see their version change a bit more often.
+    public static String ownerVersionKey(int userId) {
+        return "Device.owner#" + Math.floorMod(userId, OWNER_VERSION_BUCKETS);
+    }
+
     public Future<List<Device>> getAll() {
-        return queryMany(ENTITY.mapper(), "SELECT * FROM Device");
+        return queryMany(ENTITY.mapper(), "SELECT " + Device.COLUMNS + " FROM Device");
     }
 
     public Future<Device> get(int id) {
-        return querySingle(ENTITY.mapper(), "SELECT * FROM Device WHERE id = ?", id);
+        return querySingle(ENTITY.mapper(), "SELECT " + Device.COLUMNS + " FROM Device WHERE id = ?", id);
     }
 
     static final String COMPLETE_MANY_SQL = makeModularSQL("""
@@ -60,6 +78,12 @@ public class DeviceTable extends Table {
         return querySingle(CompleteDevice.MAP, COMPLETE_SINGLE_SQL, id);
     }
 
+    /// Gets a complete device, and locks its row until the end of the transaction, so nobody else can modify it
+    /// in the meantime. Only useful inside a transaction (see [Database#begin()]).
+    public Future<@Nullable CompleteDevice> getCompleteForUpdate(int id) {
+        return querySingle(CompleteDevice.MAP, COMPLETE_SINGLE_SQL + " FOR UPDATE OF d", id);
+    }
+
     public Future<List<CompleteDevice>> getCompleteAll() {
         return queryMany(CompleteDevice.MAP, COMPLETE_MANY_SQL);
     }
@@ -76,23 +100,77 @@ public class DeviceTable extends Table {
         );
     }
 
+    /// Filters to search for devices, with [#queryComplete(CompleteQuery)].
+    ///
+    /// Devices are sorted by id. To get devices page by page, use `afterId` (the last id of the previous page)
+    /// and `limit` (the max number of devices in a page). This is way faster than `OFFSET`, since MySQL can directly
+    /// jump to the right id using the primary key.
     public record CompleteQuery(
         @Nullable String name,
         @Nullable Integer typeId,
         @Nullable Integer roomId,
         @Nullable Integer userId,
         @Nullable Boolean powered,
-        @Nullable DeviceCategory category) {}
+        @Nullable DeviceCategory category,
+        @Nullable Integer afterId,
+        @Nullable Integer limit) {}
 
     public Future<List<CompleteDevice>> queryComplete(CompleteQuery completeQuery) {
-        var sql = new StringBuilder(COMPLETE_MANY_SQL);
         var args = new ArrayList<>();
+        String sql = completeQuerySQL(completeQuery, args);
+
+        return queryMany(CompleteDevice.MAP, sql, args.toArray());
+    }
+
+    /// Same as [#queryComplete(CompleteQuery)], but writes each device to `out` using the `encoder` function,
+    /// as soon as it's read from the database. Memory usage stays low, whatever the number of devices.
+    ///
+    /// Devices are read page by page, using `afterId` (see [Table#streamPages(Function, Function, Function, WriteStream)]),
+    /// so no connection is kept while the devices are sent.
+    ///
+    /// Completes when all devices are written; `out` is not ended.
+    public Future<Void> streamComplete(CompleteQuery completeQuery,
+                                       Function<CompleteDevice, Buffer> encoder,
+                                       WriteStream<Buffer> out) {
+        var requested = new int[1];
+        return streamPages(afterId -> {
+            // Don't go over the limit of the query, if there's one.
+            int pageSize = STREAM_PAGE_SIZE;
+            if (completeQuery.limit != null) {
+                pageSize = Math.min(pageSize, completeQuery.limit - requested[0]);
+                if (pageSize <= 0) {
+                    return Future.succeededFuture(List.of());
+                }
+            }
+            requested[0] += pageSize;
+
+            return queryComplete(new CompleteQuery(
+                completeQuery.name,
+                completeQuery.typeId,
+                completeQuery.roomId,
+                completeQuery.userId,
+                completeQuery.powered,
+                completeQuery.category,
+                afterId != null ? afterId : completeQuery.afterId,
+                pageSize));
+        }, CompleteDevice::id, encoder, out);
+    }
+
+    private static String completeQuerySQL(CompleteQuery completeQuery, List<Object> args) {
+        var sql = new StringBuilder(COMPLETE_MANY_SQL);
 
         sql.append("\nWHERE 1=1");
 
         if (completeQuery.name != null) {
-            sql.append("\nAND INSTR(d.name, ?) > 0");
-            args.add(completeQuery.name);
+            // Use the full-text index when we can (see FullTextSearch); results stay sorted by id for paging.
+            String search = FullTextSearch.booleanQuery(completeQuery.name);
+            if (search != null) {
+                sql.append("\nAND MATCH(d.name) AGAINST(? IN BOOLEAN MODE)");
+                args.add(search);
+            } else {
+                sql.append("\nAND INSTR(d.name, ?) > 0");
+                args.add(completeQuery.name);
+            }
         }
         if (completeQuery.typeId != null) {
             sql.append("\nAND d.typeId = ?");
@@ -115,10 +193,22 @@ public class DeviceTable extends Table {
             sql.append("\nAND dt.category = ?");
             args.add(completeQuery.category.ordinal());
         }
+        if (completeQuery.afterId != null) {
+            sql.append("\nAND d.id > ?");
+            args.add(completeQuery.afterId);
+        }
+
+        // Always sort by id, so pages are stable.
+        sql.append("\nORDER BY d.id");
+
+        if (completeQuery.limit != null) {
+            sql.append("\nLIMIT ?");
+            args.add(completeQuery.limit);
+        }
 
         log.debug("Running search query {} with SQL\n{}", completeQuery, sql);
 
-        return queryMany(CompleteDevice.MAP, sql.toString(), args.toArray());
+        return sql.toString();
     }
 
     public Future<List<DeviceStat>> queryStats(DeviceStatsQuery statsQuery) {
@@ -144,26 +234,20 @@ public class DeviceTable extends Table {
         // Add the aggregation function to the SELECT clause
         sql.append(", ");
         sql.append(statsQuery.function().name());  // e.g., SUM, AVG, MIN, MAX, COUNT
-        sql.append("(attrValues.value) AS val\n"); // Add the argument for the function
-
-        // Determine SQL type based on attribute content type
-        var sqlAttrType = switch (statsQuery.attribute().getContent()) {
-            case BOOLEAN -> "BOOLEAN";
-            case STRING -> "VARCHAR(128)";
-            case NUMBER -> "DOUBLE";
-        };
-        // Build FROM clause with JSON_TABLE to extract attributes
+        sql.append("(a.");
+        // Pick the value column based on attribute content type
+        sql.append(switch (statsQuery.attribute().getContent()) {
+            case BOOLEAN -> "boolValue";
+            case STRING -> "strValue";
+            case NUMBER -> "numValue";
+        });
+        sql.append(") AS val\n"); // Add the argument for the function
+
+        // Build FROM clause using the DeviceAttribute table, which contains one row per attribute of each device
         sql.append("""
-            FROM Device d,
-                 JSON_TABLE(attributes, '$[0][*]' COLUMNS (
-                     idx FOR ORDINALITY,
-                     value INT PATH '$'
-                     )) AS attrKeys,
-                 JSON_TABLE(attributes, '$[1][*]' COLUMNS (
-                     idx FOR ORDINALITY,
-                     value\s""");
-        sql.append(sqlAttrType);
-        sql.append(" PATH '$')) AS attrValues\n");
+            FROM DeviceAttribute a
+            INNER JOIN Device d ON a.deviceId = d.id
+            """);
 
         if (statsQuery.grouping() == DeviceStatsQuery.Grouping.CATEGORY) {
             // Join with DeviceType table to get the category
@@ -171,7 +255,7 @@ public class DeviceTable extends Table {
         }
 
         // Add WHERE clause to filter by the specific attribute type
-        sql.append("WHERE attrKeys.idx = attrValues.idx AND attrKeys.value = ?\n");
+        sql.append("WHERE a.type = ?\n");
         args.add(statsQuery.attribute().ordinal());
 
         // Add GROUP BY clause using the same grouping as in SELECT
@@ -213,35 +297,117 @@ public class DeviceTable extends Table {
         return querySingle(x -> x.getBoolean(0), "SELECT EXISTS(SELECT 1 FROM Device WHERE roomId = ?)", roomId);
     }
 
+    /// Inserts a device, along with its attributes in the `DeviceAttribute` table.
     public Future<Device> insert(Device device) {
-        return insert(ENTITY, device, Device::getId, Device::setId);
+        return transaction(c -> {
+            var devices = new DeviceTable(c);
+            devices.ownersChanged(Collections.singleton(device.getUserId()));
+            return devices.insert(ENTITY, device, Device::getId, Device::setId)
+                .compose(_ -> devices.replaceAttributes(List.of(new DeviceAndAttributes(device.getId(), device.getAttributes()))))
+                .map(device);
+        });
+    }
+
+    /// Inserts many devices at once, along with their attributes, and sets their ids.
+    ///
+    /// Way faster than calling [#insert(Device)] for each device: devices are sent using batched queries
+    /// (see [Table#inChunks(List, Function)]), without waiting for each one to be inserted.
+    /// Everything runs in one transaction: either all devices are inserted, or none of them.
+    public Future<List<Device>> insertBatch(List<Device> devices) {
+        // executeBatch fails with an empty list!
+        if (devices.isEmpty()) {
+            return Future.succeededFuture(devices);
+        }
+
+        changed(ENTITY.tableName());
+        return transaction(c -> inChunks(devices, new DeviceTable(c)::insertChunk))
+            .andThen(_ -> changed(ENTITY.tableName()))
+            .map(devices);
+    }
+
+    private Future<Void> insertChunk(List<Device> chunk) {
+        var tuples = new ArrayList<Tuple>(chunk.size());
+        var owners = new HashSet<Integer>();
+        for (Device d : chunk) {
+            if (d.getId() != 0) {
+                throw new IllegalArgumentException("The devices must have a zero id");
+            }
+            tuples.add(Tuple.wrap(ENTITY.genInsertArguments(d)));
+            owners.add(d.getUserId());
+        }
+        ownersChanged(owners);
+
+        return client.preparedQuery(ENTITY.insertSQL())
+            .executeBatch(tuples)
+            .recover(Table::handleSqlErrors)
+            .compose(rs -> {
+                // Each query of the batch has its own result, in the same order, with the id it inserted.
+                var attributes = new ArrayList<DeviceAndAttributes>(chunk.size());
+                for (Device d : chunk) {
+                    d.setId(rs.property(MySQLClient.LAST_INSERTED_ID).intValue());
+                    attributes.add(new DeviceAndAttributes(d.getId(), d.getAttributes()));
+                    rs = rs.next();
+                }
+
+                return replaceAttributes(attributes);
+            });
     }
 
+    /// Updates a device, along with its attributes in the `DeviceAttribute` table.
     public Future<Device> update(Device device) {
-        return update(ENTITY, device);
+        return transaction(c -> {
+            var devices = new DeviceTable(c);
+            // The device may be given to someone else: both the old and the new owner have changed.
+            devices.ownersChanged(Collections.singleton(device.getUserId()));
+            return devices.ownersOfDevicesChanged(List.of(device.getId()))
+                .compose(_ -> devices.update(ENTITY, device))
+                .compose(_ -> devices.replaceAttributes(List.of(new DeviceAndAttributes(device.getId(), device.getAttributes()))))
+                .map(device);
+        });
     }
 
+    /// Deletes a device, along with its power logs.
     public Future<Boolean> delete(int id) {
-        return delete(ENTITY, id);
+        // PowerLog is partitioned, so it can't have a foreign key deleting logs automatically.
+        return transaction(c -> {
+            var devices = new DeviceTable(c);
+            devices.changed(PowerLog.ENTITY.tableName());
+            return devices.ownersOfDevicesChanged(List.of(id))
+                .compose(_ -> devices.query("DELETE FROM PowerLog WHERE deviceId = ?", id))
+                .compose(_ -> devices.delete(ENTITY, id));
+        });
     }
 
     // --- Special functions ---
 
     public Future<List<DeviceAndAttributes>> getAllAttribsOfDeviceType(int deviceTypeId) {
-        return queryMany(DeviceAndAttributes::fromTuple, "SELECT id, attributes FROM Device WHERE typeId = ?", deviceTypeId);
+        return queryMany(DeviceAndAttributes::fromTuple, "SELECT id, " + Device.attributesColumns(null) + " FROM Device WHERE typeId = ?", deviceTypeId);
     }
 
     public Future<List<DeviceAndAttributes>> getAllAttributesOfOwner(int ownerId) {
-        return queryMany(DeviceAndAttributes::fromTuple, "SELECT id, attributes FROM Device WHERE userId = ?", ownerId);
+        return queryMany(DeviceAndAttributes::fromTuple, "SELECT id, " + Device.attributesColumns(null) + " FROM Device WHERE userId = ?", ownerId);
     }
 
+    /// Updates the attributes of many devices, in the `Device` and `DeviceAttribute` tables.
     public Future<Void> updateAttributesBatch(List<DeviceAndAttributes> updates) {
-        return client.preparedQuery("""
-                        UPDATE Device SET
-                            attributes = ?
-                        WHERE id = ?
-                """)
-            .executeBatch(updates.stream().map(DeviceAndAttributes::toTuple).toList())
+        // executeBatch fails with an empty list!
+        if (updates.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        changed(ENTITY.tableName());
+        return transaction(c -> {
+            var devices = new DeviceTable(c);
+            return devices.ownersOfDevicesChanged(updates.stream().map(DeviceAndAttributes::deviceId).toList())
+                .compose(_ -> c.preparedQuery("""
+                            UPDATE Device SET
+                                attributes = ?,
+                                attributesBin = ?
+                            WHERE id = ?
+                    """)
+                    .executeBatch(updates.stream().map(DeviceAndAttributes::toTuple).toList()))
+                .compose(res -> devices.replaceAttributes(updates).map(res));
+        })
             .andThen(res -> {
                 if (res.succeeded()) {
                     var result = res.result();
@@ -254,14 +420,127 @@ public class DeviceTable extends Table {
                 } else {
                     log.error("Failed to update device attributes", res.cause());
                 }
+                changed(ENTITY.tableName());
             })
             .mapEmpty();
     }
 
-    public record DeviceAndAttributes(int deviceId, EnumMap<AttributeType, Object> attributes) {
+    /// Tells [TableVersions] that the devices of these users have changed (see [#ownerVersionKey(int)]).
+    /// Devices without owners have a `null` user id, which is ignored.
+    private void ownersChanged(Collection<@Nullable Integer> userIds) {
+        for (Integer userId : userIds) {
+            if (userId != null) {
+                changed(ownerVersionKey(userId));
+            }
+        }
+    }
+
+    /// Queries the current owners of these devices, and tells [TableVersions] that their devices have changed.
+    /// Must run in the same transaction as the write, *before* it changes the owner of a device.
+    private Future<Void> ownersOfDevicesChanged(List<Integer> deviceIds) {
+        return inChunks(deviceIds, chunk -> queryMany(r -> r.getInteger(0),
+            "SELECT DISTINCT userId FROM Device WHERE userId IS NOT NULL AND id IN " + paramList(chunk.size()),
+            chunk.toArray())
+            .andThen(res -> {
+                if (res.succeeded()) {
+                    ownersChanged(res.result());
+                }
+            }));
+    }
+
+    /// Replaces all rows of the `DeviceAttribute` table for these devices, so they match their attributes.
+    ///
+    /// The `DeviceAttribute` table contains one row per attribute of each device, with its value in the
+    /// column matching its type: `numValue`, `strValue` or `boolValue`. It allows us to run queries on
+    /// attributes quickly, using indexes, instead of reading the JSON of every device.
+    ///
+    /// Should be run in the same transaction as the update of the `Device` table.
+    private Future<Void> replaceAttributes(List<DeviceAndAttributes> devices) {
+        var ids = new ArrayList<Integer>(devices.size());
+        var rows = new ArrayList<Tuple>();
+        for (DeviceAndAttributes d : devices) {
+            ids.add(d.deviceId());
+            for (var e : d.attributes().entrySet()) {
+                Object val = e.getValue();
+                rows.add(Tuple.of(
+                    d.deviceId(),
+                    e.getKey().ordinal(),
+                    val instanceof Number n ? n.doubleValue() : null,
+                    val instanceof String str ? str : null,
+                    val instanceof Boolean b ? b : null
+                ));
+            }
+        }
+
+        return query("DELETE FROM DeviceAttribute WHERE deviceId IN " + paramList(ids.size()), ids.toArray())
+            .compose(_ -> {
+                // executeBatch fails with an empty list!
+                if (rows.isEmpty()) {
+                    return Future.succeededFuture();
+                }
+
+                return client.preparedQuery("""
+                        INSERT INTO DeviceAttribute (deviceId, type, numValue, strValue, boolValue)
+                        VALUES (?, ?, ?, ?, ?)""")
+                    .executeBatch(rows)
+                    .recover(Table::handleSqlErrors)
+                    .mapEmpty();
+            });
+    }
+
+    /// Fills the `attributesBin` column of all devices that don't have it yet, or have it in the first version of
+    /// the binary format (without integers), using their JSON attributes.
+    ///
+    /// Devices are converted a few at a time, so we don't lock the whole table. Devices with attributes that
+    /// can't be stored in binary (see [AttributeMap#toBinary()]) are skipped, and keep using JSON.
+    ///
+    /// Can be run while the server is running: a device is only written if its JSON attributes are still the ones
+    /// we converted, so devices updated in the meantime are left untouched.
+    ///
+    /// @return the number of converted devices
+    public Future<Integer> backfillBinaryAttributes() {
+        return backfillBinaryAttributes(0, 0);
+    }
+
+    private Future<Integer> backfillBinaryAttributes(int afterId, int converted) {
+        return queryMany(r -> Map.entry(r.getInteger(0), r.getJsonArray(1)),
+            """
+                SELECT id, attributes FROM Device
+                WHERE (attributesBin IS NULL OR LEFT(attributesBin, 1) = ?) AND id > ?
+                ORDER BY id LIMIT ?""",
+            Buffer.buffer(new byte[] {AttributeMap.BINARY_VERSION_DOUBLES}), afterId, BACKFILL_BATCH_SIZE)
+            .compose(devices -> {
+                if (devices.isEmpty()) {
+                    return Future.succeededFuture(converted);
+                }
+
+                var rows = new ArrayList<Tuple>(devices.size());
+                for (var d : devices) {
+                    Buffer bin = Device.attributesFromDB(d.getValue()).toBinary();
+                    if (bin != null) {
+                        rows.add(Tuple.of(bin, d.getKey(), d.getValue().encode()));
+                    }
+                }
+
+                int lastId = devices.getLast().getKey();
+                Future<?> update = rows.isEmpty()
+                    ? Future.succeededFuture()
+                    // Only if the JSON is still the one we converted: the device may have been updated since we read it.
+                    : client.preparedQuery("UPDATE Device SET attributesBin = ? WHERE id = ? AND attributes = CAST(? AS JSON)")
+                    .executeBatch(rows);
+
+                return update.compose(_ -> backfillBinaryAttributes(lastId, converted + rows.size()));
+            });
+    }
+
+    /// How many devices [#backfillBinaryAttributes()] converts in one query.
+    static final int BACKFILL_BATCH_SIZE = 500;
+
+    public record DeviceAndAttributes(int deviceId, AttributeMap attributes) {
         Tuple toTuple() {
             return Tuple.of(
                 Device.attributesToDB(attributes),
+                attributes.toBinary(),
                 deviceId
             );
         }
@@ -269,7 +548,7 @@ public class DeviceTable extends Table {
         static DeviceAndAttributes fromTuple(Row row) {
             return new DeviceAndAttributes(
                 row.getInteger(0),
-                Device.attributesFromDB(row.getJsonArray(1))
+                Device.attributesFromDB(row.getValue(1), row.getBuffer(2))
             );
         }
     }
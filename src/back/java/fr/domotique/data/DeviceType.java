@@ -35,6 +35,11 @@ public class DeviceType {
         new EntityColumn<>("attributes", x -> attributesToDB(x.getAttributes()))
     );
 
+    /// Returns a copy of this device type, with its own attribute set.
+    public DeviceType copy() {
+        return new DeviceType(id, name, category, EnumSet.copyOf(attributes));
+    }
+
     /// Converts the EnumSet into JSON for the database
     public static JsonArray attributesToDB(EnumSet<AttributeType> attributes) {
         // Make an array with integers (= ordinal of the enum)
@@ -0,0 +1,179 @@
+package fr.domotique.data;
+
+import io.vertx.core.*;
+import org.jetbrains.annotations.*;
+
+import java.text.*;
+import java.util.*;
+import java.util.regex.*;
+
+/// All [DeviceType] rows, kept in memory. Shared by the entire server, through the [DeviceTypeTable].
+///
+/// Device types are read on every device creation and update, but they almost never change.
+/// So, instead of querying the database again and again, we load them all once on startup,
+/// and reload the ones that changed.
+///
+/// ## How do we know a device type has changed?
+///
+/// Any code modifying a device type must call [#publishInvalidation(Vertx, int)] once the change is in the
+/// database. This sends a message on the [event bus][#CHANNEL], received by the [DeviceTypeTable],
+/// which reloads that device type. The event bus isn't clustered: only *this* server gets the message.
+///
+/// The [DeviceTypeTable] also updates the cache right away when it inserts, updates or deletes a device type,
+/// so the server making the change sees it immediately. Inside a transaction, it [invalidates][#invalidate(int)]
+/// the device type instead, so it's only read again once the transaction has been committed (or rolled back).
+///
+/// Other servers don't get any message. Instead, the [DeviceTypeTable] reloads all device types when the
+/// [version][fr.domotique.base.data.TableVersions] of the `DeviceType` table has changed (which includes changes
+/// made by other servers), and every [DeviceTypeTable#MAX_CACHE_AGE_MS] milliseconds anyway, in case someone
+/// modified the table by hand.
+///
+/// ## Thread safety
+///
+/// Readers get an immutable snapshot of all device types, which is replaced entirely on each change.
+/// Device types are mutable, so we always give *copies* to the outside world: else, a request modifying
+/// a device type would modify the cache too!
+public final class DeviceTypeCache {
+    /// The event bus address receiving the ids of device types that have changed.
+    public static final String CHANNEL = "invalidateDeviceType";
+
+    /// All device types, or `null` if they haven't been loaded yet.
+    private volatile @Nullable Snapshot snapshot;
+    /// The Vert.x instance used to send [invalidations][#invalidate(int)], or `null` before the cache is started.
+    private volatile @Nullable Vertx vertx;
+
+    /// All device types at some point in time. Never modified after creation.
+    ///
+    /// @param byId        all device types by id, sorted by id
+    /// @param searchNames the [normalized][#normalize(String)] names of all device types, in the same order as `byId`
+    private record Snapshot(TreeMap<Integer, DeviceType> byId, String[] searchNames) {
+        static Snapshot of(TreeMap<Integer, DeviceType> byId) {
+            var names = new String[byId.size()];
+            int i = 0;
+            for (DeviceType dt : byId.values()) {
+                names[i++] = normalize(dt.getName());
+            }
+            return new Snapshot(byId, names);
+        }
+    }
+
+    /// Sends a message on the local event bus, so the [DeviceTypeTable] of *this* server reloads this device type
+    /// from the database. Other servers don't get it: they see the change through the table version.
+    public static void publishInvalidation(Vertx vertx, int deviceTypeId) {
+        vertx.eventBus().publish(CHANNEL, deviceTypeId);
+    }
+
+    /// Remembers the Vert.x instance used by [#invalidate(int)]; called when the [DeviceTypeTable] starts the cache.
+    void attach(Vertx vertx) {
+        this.vertx = vertx;
+    }
+
+    /// Reloads this device type from the database soon, using [#publishInvalidation(Vertx, int)].
+    /// Does nothing if the cache hasn't been started.
+    public void invalidate(int deviceTypeId) {
+        Vertx v = vertx;
+        if (v != null) {
+            publishInvalidation(v, deviceTypeId);
+        }
+    }
+
+    /// Returns true once all device types have been loaded using [#replaceAll(Collection)].
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    /// Replaces all cached device types with these ones.
+    public synchronized void replaceAll(Collection<DeviceType> deviceTypes) {
+        var byId = new TreeMap<Integer, DeviceType>();
+        for (DeviceType dt : deviceTypes) {
+            byId.put(dt.getId(), dt.copy());
+        }
+        snapshot = Snapshot.of(byId);
+    }
+
+    /// Adds or replaces a device type in the cache. Does nothing if the cache isn't loaded.
+    public synchronized void put(DeviceType deviceType) {
+        Snapshot s = snapshot;
+        if (s == null) {
+            return;
+        }
+
+        var byId = new TreeMap<>(s.byId);
+        byId.put(deviceType.getId(), deviceType.copy());
+        snapshot = Snapshot.of(byId);
+    }
+
+    /// Removes a device type from the cache. Does nothing if the cache isn't loaded.
+    public synchronized void remove(int id) {
+        Snapshot s = snapshot;
+        if (s == null || !s.byId.containsKey(id)) {
+            return;
+        }
+
+        var byId = new TreeMap<>(s.byId);
+        byId.remove(id);
+        snapshot = Snapshot.of(byId);
+    }
+
+    /// Returns a copy of the device type with this id, or `null` if it doesn't exist.
+    public @Nullable DeviceType get(int id) {
+        DeviceType dt = loaded().byId.get(id);
+        return dt != null ? dt.copy() : null;
+    }
+
+    /// Returns copies of all device types, sorted by id.
+    public List<DeviceType> getAll() {
+        Snapshot s = loaded();
+        var list = new ArrayList<DeviceType>(s.byId.size());
+        for (DeviceType dt : s.byId.values()) {
+            list.add(dt.copy());
+        }
+        return list;
+    }
+
+    /// Returns copies of all device types with these ids, sorted by id. Unknown ids are ignored.
+    public List<DeviceType> getAll(Collection<Integer> ids) {
+        Snapshot s = loaded();
+        var list = new ArrayList<DeviceType>(ids.size());
+        for (DeviceType dt : s.byId.values()) {
+            if (ids.contains(dt.getId())) {
+                list.add(dt.copy());
+            }
+        }
+        return list;
+    }
+
+    /// Returns copies of all device types containing `name` in their name, sorted by id.
+    ///
+    /// Just like MySQL does with our collation, case and accents are ignored: "lampe" finds "Lampe Élégante".
+    public List<DeviceType> getAllByName(String name) {
+        Snapshot s = loaded();
+        String search = normalize(name);
+
+        var list = new ArrayList<DeviceType>();
+        int i = 0;
+        for (DeviceType dt : s.byId.values()) {
+            if (s.searchNames[i++].contains(search)) {
+                list.add(dt.copy());
+            }
+        }
+        return list;
+    }
+
+    private Snapshot loaded() {
+        Snapshot s = snapshot;
+        if (s == null) {
+            throw new IllegalStateException("The device type cache hasn't been loaded yet.");
+        }
+        return s;
+    }
+
+    /// Matches accents and other diacritics once they've been separated from their letters.
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+    /// Makes a name easy to search: no accents, all lowercase.
+    static String normalize(String name) {
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+}
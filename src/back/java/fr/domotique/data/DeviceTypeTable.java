@@ -3,22 +3,134 @@ package fr.domotique.data;
 import fr.domotique.base.data.*;
 import io.vertx.sqlclient.*;
 import io.vertx.core.*;
+import org.jetbrains.annotations.*;
+import org.slf4j.*;
 
 import java.util.*;
 
 import static fr.domotique.data.DeviceType.ENTITY;
 
+/// The `DeviceType` table.
+///
+/// When it has a [DeviceTypeCache], all reads are served from memory once the cache is [started][#startCache(Vertx)],
+/// and all writes update the cache too. Inside a transaction, which might be rolled back, the cache isn't updated
+/// with the written data: the device type is read again from the database once the transaction ends instead.
 public class DeviceTypeTable extends Table {
+    private static final Logger log = LoggerFactory.getLogger(DeviceTypeTable.class);
+
+    /// The cache of all device types, or `null` to always read from the database.
+    private final @Nullable DeviceTypeCache cache;
+
+    /// Time between two checks of the version of the `DeviceType` table, in milliseconds.
+    static final long VERSION_CHECK_INTERVAL_MS = 5_000;
+    /// The maximum time between two reloads of all device types, even when nothing seems to have changed.
+    static final long MAX_CACHE_AGE_MS = 10 * 60_000;
+
+    /// The last reload of a changed device type; reloads are done one after the other, so they're applied in order.
+    /// Only used by the context of the event bus consumer.
+    private Future<Void> lastReload = Future.succeededFuture();
+    /// The version of the `DeviceType` table when all device types were last loaded.
+    private long loadedVersion;
+    /// When all device types were last loaded, in milliseconds since the epoch.
+    private long loadedAt;
+
     public DeviceTypeTable(SqlClient client) {
+        this(client, null);
+    }
+
+    public DeviceTypeTable(SqlClient client, @Nullable DeviceTypeCache cache) {
         super(client);
+        this.cache = cache;
+    }
+
+    /// The cache of all device types, or `null` if this table always reads from the database.
+    public @Nullable DeviceTypeCache cache() {
+        return cache;
+    }
+
+    /// Loads all device types into the cache, and starts listening for [changed device types][DeviceTypeCache#CHANNEL].
+    /// All device types are loaded again when the table changes, or after [#MAX_CACHE_AGE_MS] milliseconds.
+    /// Does nothing when this table has no cache.
+    public Future<Void> startCache(Vertx vertx) {
+        if (cache == null) {
+            return Future.succeededFuture();
+        }
+
+        cache.attach(vertx);
+        return reloadAll().compose(_ -> {
+            log.info("Loaded {} device types in the cache", cache.getAll().size());
+            vertx.setPeriodic(VERSION_CHECK_INTERVAL_MS, _ -> {
+                if (TableVersions.get(ENTITY.tableName()) != loadedVersion
+                    || System.currentTimeMillis() - loadedAt > MAX_CACHE_AGE_MS) {
+                    lastReload = lastReload.transform(_ -> reloadAll().otherwiseEmpty());
+                }
+            });
+
+            return vertx.eventBus().<Integer>consumer(DeviceTypeCache.CHANNEL, msg -> reload(msg.body())).completion();
+        });
+    }
+
+    // Replaces all device types of the cache with the ones in the database.
+    private Future<Void> reloadAll() {
+        assert cache != null;
+
+        // Take the version BEFORE reading: if the table changes while we're reading, we'll read it again.
+        long version = TableVersions.get(ENTITY.tableName());
+        return queryMany(ENTITY.mapper(), "SELECT * FROM DeviceType")
+            .andThen(res -> {
+                if (res.failed()) {
+                    log.error("Failed to reload all device types; the cache might be outdated", res.cause());
+                    return;
+                }
+
+                cache.replaceAll(res.result());
+                loadedVersion = version;
+                loadedAt = System.currentTimeMillis();
+            })
+            .mapEmpty();
+    }
+
+    // Reloads a device type from the database after it has changed.
+    private void reload(int id) {
+        assert cache != null;
+
+        lastReload = lastReload.transform(_ -> querySingle(ENTITY.mapper(), "SELECT * FROM DeviceType WHERE id = ?", id)
+            .andThen(res -> {
+                if (res.failed()) {
+                    log.error("Failed to reload device type {}; the cache might be outdated", id, res.cause());
+                } else if (res.result() == null) {
+                    cache.remove(id);
+                } else {
+                    cache.put(res.result());
+                }
+            })
+            .<Void>mapEmpty()
+            .otherwiseEmpty());
+    }
+
+    private boolean useCache() {
+        return cache != null && cache.isLoaded();
     }
 
     public Future<List<DeviceType>> getAll() {
+        if (useCache()) {
+            return Future.succeededFuture(cache.getAll());
+        }
+
         return queryMany(ENTITY.mapper(), "SELECT * FROM DeviceType");
     }
 
-    public Future<List<DeviceType>> getAllByName(String name) {
-        return queryMany(ENTITY.mapper(), "SELECT * FROM DeviceType WHERE INSTR(name, ?) > 0", name);
+    /// Gets at most `limit` device types containing `name` in their name, sorted by id.
+    ///
+    /// There are only a few dozen device types, all in the [DeviceTypeCache]: searching them in memory is instant,
+    /// so they don't need a full-text index like users or rooms.
+    public Future<List<DeviceType>> getAllByName(String name, int limit) {
+        if (useCache()) {
+            List<DeviceType> found = cache.getAllByName(name);
+            return Future.succeededFuture(found.size() > limit ? found.subList(0, limit) : found);
+        }
+
+        return queryMany(ENTITY.mapper(), "SELECT * FROM DeviceType WHERE INSTR(name, ?) > 0 ORDER BY id LIMIT ?", name, limit);
     }
 
     public Future<List<DeviceType>> getAll(Collection<Integer> ids) {
@@ -26,22 +138,59 @@ public class DeviceTypeTable extends Table {
             return Future.succeededFuture(Collections.emptyList());
         }
 
-        return queryMany(ENTITY.mapper(), "SELECT * FROM DeviceType WHERE id IN " + paramList(ids.size()), ids);
+        if (useCache()) {
+            return Future.succeededFuture(cache.getAll(ids));
+        }
+
+        return queryMany(ENTITY.mapper(), "SELECT * FROM DeviceType WHERE id IN " + paramList(ids.size()), ids.toArray());
     }
 
     public Future<DeviceType> get(int id) {
+        if (useCache()) {
+            return Future.succeededFuture(cache.get(id));
+        }
+
         return querySingle(ENTITY.mapper(), "SELECT * FROM DeviceType WHERE id = ?", id);
     }
 
     public Future<DeviceType> insert(DeviceType deviceType) {
-        return insert(ENTITY, deviceType, DeviceType::getId, DeviceType::setId);
+        return insert(ENTITY, deviceType, DeviceType::getId, DeviceType::setId).andThen(res -> {
+            if (res.succeeded()) {
+                written(deviceType.getId(), () -> cache.put(res.result()));
+            }
+        });
     }
 
     public Future<DeviceType> update(DeviceType deviceType) {
-        return update(ENTITY, deviceType);
+        return update(ENTITY, deviceType).andThen(res -> {
+            if (res.succeeded()) {
+                written(deviceType.getId(), () -> cache.put(res.result()));
+            }
+        });
     }
 
     public Future<Boolean> delete(int id) {
-        return delete(ENTITY, id);
+        return delete(ENTITY, id).andThen(res -> {
+            if (res.succeeded()) {
+                written(id, () -> cache.remove(id));
+            }
+        });
+    }
+
+    /// Updates the cache after writing the device type `id`.
+    ///
+    /// Outside transactions, the write is done: `update` puts the new data in the cache right away.
+    /// Inside a transaction, it might still be rolled back, so the device type is [invalidated][#invalidateCache(Runnable)]
+    /// instead: it's read again from the database now, and once the transaction ends.
+    private void written(int id, Runnable update) {
+        if (cache == null) {
+            return;
+        }
+
+        if (client instanceof SqlConnection) {
+            invalidateCache(() -> cache.invalidate(id));
+        } else {
+            update.run();
+        }
     }
 }
@@ -0,0 +1,133 @@
+package fr.domotique.data;
+
+import fr.domotique.base.data.*;
+import fr.domotique.email.*;
+import io.vertx.core.*;
+import io.vertx.core.json.*;
+import io.vertx.sqlclient.*;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+
+/// The `EmailOutbox` table, containing the e-mails waiting to be sent by the [EmailOutboxVerticle].
+///
+/// E-mails are *claimed* before being sent: their next attempt is pushed to later, so no other server sends them
+/// in the meantime. If the server crashes while sending them, they're sent again once that time has passed.
+public class EmailOutboxTable extends Table {
+    public EmailOutboxTable(SqlClient client) {
+        super(client);
+    }
+
+    /// The maximum length of [#retryLater(long, Long, String)] error messages, as in the `lastError` column.
+    static final int MAX_ERROR_LENGTH = 1000;
+
+    /// An e-mail of the outbox.
+    ///
+    /// @param id       the id of the e-mail in the outbox
+    /// @param attempts how many times we failed to send it
+    /// @param email    the e-mail itself
+    public record OutboxEmail(long id, int attempts, OutgoingEmail email) {
+        static OutboxEmail fromRow(Row r) {
+            return new OutboxEmail(r.getLong(0), r.getInteger(1),
+                new OutgoingEmail(r.getString(2), r.getString(3), r.getString(4), readSubstitutions(r.getString(5))));
+        }
+    }
+
+    /// Reads the `substitutions` column: a JSON object, or `NULL` when there are none.
+    private static Map<String, String> readSubstitutions(@Nullable String json) {
+        if (json == null) {
+            return Map.of();
+        }
+
+        var map = new HashMap<String, String>();
+        for (var e : new JsonObject(json)) {
+            map.put(e.getKey(), String.valueOf(e.getValue()));
+        }
+        return map;
+    }
+
+    /// Adds an e-mail to the outbox, to send it as soon as possible.
+    public Future<Void> insert(OutgoingEmail email) {
+        long now = System.currentTimeMillis();
+        return query("""
+                INSERT INTO EmailOutbox (recipient, subject, body, substitutions, createdAt, nextAttemptAt)
+                VALUES (?, ?, ?, ?, ?, ?)
+                """,
+            email.recipient(), email.subject(), email.body(),
+            email.substitutions().isEmpty() ? null : new JsonObject(new HashMap<>(email.substitutions())).encode(),
+            now, now).mapEmpty();
+    }
+
+    /// Claims up to `limit` e-mails ready to be sent, oldest first: nobody else will get them
+    /// for `leaseMs` milliseconds.
+    ///
+    /// E-mails claimed by other servers at the same time are skipped (`SKIP LOCKED`), instead of waiting for them.
+    public Future<List<OutboxEmail>> claim(int limit, long leaseMs) {
+        long now = System.currentTimeMillis();
+        return transaction(c -> {
+            var outbox = new EmailOutboxTable(c);
+            return outbox.queryMany(OutboxEmail::fromRow, """
+                    SELECT id, attempts, recipient, subject, body, substitutions FROM EmailOutbox
+                    WHERE nextAttemptAt <= ?
+                    ORDER BY nextAttemptAt
+                    LIMIT ?
+                    FOR UPDATE SKIP LOCKED
+                    """, now, limit)
+                .compose(emails -> {
+                    if (emails.isEmpty()) {
+                        return Future.succeededFuture(emails);
+                    }
+
+                    var args = new ArrayList<Object>(emails.size() + 1);
+                    args.add(now + leaseMs);
+                    for (OutboxEmail e : emails) {
+                        args.add(e.id());
+                    }
+                    return outbox.query("UPDATE EmailOutbox SET nextAttemptAt = ? WHERE id IN " + paramList(emails.size()),
+                        args.toArray()).map(emails);
+                });
+        });
+    }
+
+    /// Keeps these claimed e-mails ours for `leaseMs` more milliseconds, while they're still being sent.
+    public Future<Void> extendLease(List<Long> ids, long leaseMs) {
+        if (ids.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        long until = System.currentTimeMillis() + leaseMs;
+        return inChunks(ids, chunk -> {
+            var args = new ArrayList<Object>(chunk.size() + 1);
+            args.add(until);
+            args.addAll(chunk);
+            // Don't bring back e-mails we gave up on (NULL), or that have been sent already (deleted).
+            return query("UPDATE EmailOutbox SET nextAttemptAt = ? WHERE nextAttemptAt IS NOT NULL AND id IN "
+                + paramList(chunk.size()), args.toArray());
+        });
+    }
+
+    /// Removes sent e-mails from the outbox.
+    public Future<Void> deleteAll(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        return inChunks(ids, chunk -> query("DELETE FROM EmailOutbox WHERE id IN " + paramList(chunk.size()), chunk.toArray()));
+    }
+
+    /// Counts a failed attempt of this e-mail, and sends it again at `nextAttemptAt` (in milliseconds since the epoch).
+    /// When `nextAttemptAt` is `null`, we gave up: it's never sent again.
+    public Future<Void> retryLater(long id, @Nullable Long nextAttemptAt, String error) {
+        if (error.length() > MAX_ERROR_LENGTH) {
+            error = error.substring(0, MAX_ERROR_LENGTH);
+        }
+
+        return query("UPDATE EmailOutbox SET attempts = attempts + 1, nextAttemptAt = ?, lastError = ? WHERE id = ?",
+            nextAttemptAt, error, id).mapEmpty();
+    }
+
+    /// Returns how many e-mails are waiting to be sent.
+    public Future<Integer> countPending() {
+        return querySingle(r -> r.getInteger(0), "SELECT COUNT(*) FROM EmailOutbox WHERE nextAttemptAt IS NOT NULL");
+    }
+}
@@ -0,0 +1,236 @@
+package fr.domotique.data;
+
+import fr.domotique.base.data.*;
+import io.vertx.core.*;
+import io.vertx.core.buffer.*;
+import io.vertx.core.json.*;
+import io.vertx.ext.auth.prng.*;
+import io.vertx.ext.web.*;
+import io.vertx.ext.web.sstore.*;
+import io.vertx.ext.web.sstore.impl.*;
+import org.jetbrains.annotations.*;
+import org.slf4j.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// A [SessionStore] keeping sessions in the MySQL database, in the `UserSession` table.
+///
+/// Unlike the [LocalSessionStore], sessions survive server restarts, and all servers using the same database
+/// share the same sessions, so we can run many of them behind a load balancer without "sticky sessions".
+/// Enable it using `domotique.sessionStore=mysql` (see [fr.domotique.Config]).
+///
+/// ## Isn't the database way too slow for this?
+///
+/// Sessions are read and written on *every* request, so a naive implementation would double the number of queries!
+/// So we're a bit smarter:
+/// - **Reads** go through an in-memory cache. A cached session is trusted for [#CACHE_TTL_MS] milliseconds,
+///   after that, it's read again from the database, in case another server modified it.
+/// - **Writes** only happen right away when the session's data has changed (like when logging in).
+///   Most of the time, only the access time changes: it's saved later, with all other sessions,
+///   in one batched query every [#TOUCH_FLUSH_INTERVAL_MS] milliseconds.
+///
+/// The catch: when a user logs out on a server, other servers might still accept their session
+/// for a few seconds, until their cache entry is too old. That's fine for us.
+///
+/// When two requests modify the same session at the same time, the last one wins.
+///
+/// Expired sessions are deleted every [#CLEANUP_INTERVAL_MS] milliseconds.
+public class MySQLSessionStore implements SessionStore {
+    private static final Logger log = LoggerFactory.getLogger(MySQLSessionStore.class);
+
+    /// How long a cached session is trusted before reading it again from the database.
+    static final long CACHE_TTL_MS = 5_000;
+    /// How often access times are written to the database.
+    static final long TOUCH_FLUSH_INTERVAL_MS = 5_000;
+    /// How often expired sessions are deleted.
+    static final long CLEANUP_INTERVAL_MS = 10 * 60_000;
+    /// The maximum number of sessions in the cache.
+    static final int MAX_CACHED_SESSIONS = 10_000;
+
+    private final Vertx vertx;
+    private final SessionTable table;
+
+    /// Recently read or written sessions, by id.
+    private final BoundedCache<String, CachedSession> cache = new BoundedCache<>(MAX_CACHED_SESSIONS);
+    /// Access times which aren't yet in the database, by session id.
+    private final ConcurrentHashMap<String, Long> pendingTouches = new ConcurrentHashMap<>();
+
+    private final long flushTimer;
+    private final long cleanupTimer;
+
+    /// A session in the cache.
+    ///
+    /// @param serialized   the serialized session, used to make a new copy of it for each request
+    /// @param data         a copy of the session's data, to know if it changed
+    /// @param timeout      the timeout of the session, in milliseconds
+    /// @param lastAccessed the last access time of the session, in milliseconds since the epoch
+    /// @param cachedAt     when this entry was read from or written to the database
+    private record CachedSession(Buffer serialized, Map<String, Object> data, long timeout, long lastAccessed,
+                                 long cachedAt) {
+        CachedSession touched(long lastAccessed) {
+            return new CachedSession(serialized, data, timeout, Math.max(this.lastAccessed, lastAccessed), cachedAt);
+        }
+
+        boolean isExpired(long now) {
+            return lastAccessed + timeout < now;
+        }
+    }
+
+    /// Creates a new MySQL session store, and starts the timers writing access times and deleting expired sessions.
+    public MySQLSessionStore(Vertx vertx, SessionTable table) {
+        this.vertx = vertx;
+        this.table = table;
+
+        this.flushTimer = vertx.setPeriodic(TOUCH_FLUSH_INTERVAL_MS, _ -> flushTouches());
+        this.cleanupTimer = vertx.setPeriodic(CLEANUP_INTERVAL_MS, _ -> table.deleteExpired(System.currentTimeMillis())
+            .onSuccess(n -> {
+                if (n > 0) {
+                    log.debug("Deleted {} expired sessions", n);
+                }
+            })
+            .onFailure(e -> log.error("Failed to delete expired sessions", e)));
+    }
+
+    @Override
+    public SessionStore init(Vertx vertx, JsonObject options) {
+        // Everything's already done in the constructor.
+        return this;
+    }
+
+    @Override
+    public long retryTimeout() {
+        // Sessions are written before the response is sent, no need to retry.
+        return 0;
+    }
+
+    @Override
+    public Session createSession(long timeout) {
+        return createSession(timeout, DEFAULT_SESSIONID_LENGTH);
+    }
+
+    @Override
+    public Session createSession(long timeout, int length) {
+        return new SharedDataSessionImpl(VertxContextPRNG.current(vertx), timeout, length);
+    }
+
+    @Override
+    public Future<@Nullable Session> get(String id) {
+        long now = System.currentTimeMillis();
+
+        // Fast path: we've seen this session recently.
+        CachedSession cached = cache.getIfPresent(id);
+        if (cached != null && now - cached.cachedAt < CACHE_TTL_MS) {
+            if (cached.isExpired(now)) {
+                return delete(id).map((Session) null);
+            }
+            return Future.succeededFuture(readSession(cached.serialized));
+        }
+
+        return table.get(id).compose(stored -> {
+            if (stored == null) {
+                cache.invalidate(id);
+                return Future.succeededFuture();
+            }
+
+            // We might have a more recent access time that isn't yet in the database.
+            Long pending = pendingTouches.get(id);
+            long lastAccessed = pending != null ? Math.max(pending, stored.lastAccessed()) : stored.lastAccessed();
+
+            if (lastAccessed + stored.timeout() < now) {
+                return delete(id).map((Session) null);
+            }
+
+            SharedDataSessionImpl session = readSession(stored.data());
+            cache.put(id, new CachedSession(stored.data(), copyData(session), stored.timeout(), lastAccessed, now));
+            return Future.succeededFuture(session);
+        });
+    }
+
+    @Override
+    public Future<Void> put(Session session) {
+        if (!(session instanceof SharedDataSessionImpl s)) {
+            return Future.failedFuture(new IllegalArgumentException("Session not created by this store: " + session));
+        }
+
+        Map<String, Object> data = copyData(s);
+
+        // Only the access time has changed? Write it later, with the others.
+        CachedSession cached = cache.getIfPresent(s.id());
+        if (cached != null && cached.timeout == s.timeout() && cached.data.equals(data)) {
+            pendingTouches.merge(s.id(), s.lastAccessed(), Math::max);
+            cache.put(s.id(), cached.touched(s.lastAccessed()));
+            return Future.succeededFuture();
+        }
+
+        // The data has changed: write everything right now, so other servers see it.
+        Buffer serialized = Buffer.buffer();
+        s.writeToBuffer(serialized);
+
+        pendingTouches.remove(s.id());
+        return table.upsert(new SessionTable.StoredSession(s.id(), serialized, s.timeout(), s.lastAccessed()))
+            .onSuccess(_ -> cache.put(s.id(),
+                new CachedSession(serialized, data, s.timeout(), s.lastAccessed(), System.currentTimeMillis())));
+    }
+
+    @Override
+    public Future<Void> delete(String id) {
+        cache.invalidate(id);
+        pendingTouches.remove(id);
+        return table.delete(id);
+    }
+
+    @Override
+    public Future<Void> clear() {
+        cache.clear();
+        pendingTouches.clear();
+        return table.deleteAll();
+    }
+
+    @Override
+    public Future<Integer> size() {
+        return table.count();
+    }
+
+    /// Stops the timers, and writes the remaining access times to the database.
+    @Override
+    public void close() {
+        vertx.cancelTimer(flushTimer);
+        vertx.cancelTimer(cleanupTimer);
+        flushTouches();
+    }
+
+    // Writes all pending access times to the database, using one batched query.
+    private Future<Void> flushTouches() {
+        if (pendingTouches.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        var batch = new HashMap<String, Long>(pendingTouches.size());
+        for (var e : pendingTouches.entrySet()) {
+            // Only take the entry if nobody touched it in the meantime; else it'll be in the next batch.
+            if (pendingTouches.remove(e.getKey(), e.getValue())) {
+                batch.put(e.getKey(), e.getValue());
+            }
+        }
+
+        return table.touchBatch(batch)
+            .onFailure(e -> {
+                log.error("Failed to update the access time of {} sessions, retrying later", batch.size(), e);
+                batch.forEach((id, time) -> pendingTouches.merge(id, time, Math::max));
+            });
+    }
+
+    // Makes a new session object from its serialized form. Each request gets its own copy,
+    // since they can modify it.
+    private SharedDataSessionImpl readSession(Buffer serialized) {
+        var session = new SharedDataSessionImpl(VertxContextPRNG.current(vertx));
+        session.readFromBuffer(0, serialized);
+        return session;
+    }
+
+    private static Map<String, Object> copyData(Session session) {
+        Map<String, Object> data = session.data();
+        return data == null ? Map.of() : new HashMap<>(data);
+    }
+}
@@ -3,8 +3,11 @@ package fr.domotique.data;
 import fr.domotique.base.data.*;
 import io.vertx.core.*;
 import io.vertx.sqlclient.*;
+import org.jetbrains.annotations.*;
 
 import java.time.*;
+import java.time.format.*;
+import java.time.temporal.*;
 import java.util.*;
 
 import static fr.domotique.data.PowerLog.ENTITY;
@@ -15,58 +18,410 @@ public class PowerLogTable extends Table {
         super(client);
     }
 
-    public Future<List<PowerLog>> getAllSorted() {
-        return queryMany(ENTITY.mapper(), "SELECT * FROM PowerLog ORDER BY time DESC");
+    /// Returns the most recent logs of all devices, between `from` (included) and `to` (excluded),
+    /// from newest to oldest. Both bounds are optional.
+    ///
+    /// Always give bounds when you can: the table is partitioned by month (see [#ensureMonthlyPartitions(YearMonth)]),
+    /// so MySQL only reads the months inside the range.
+    public Future<List<PowerLog>> getAllSorted(@Nullable Instant from, @Nullable Instant to, int limit) {
+        return querySorted(null, from, to, limit);
     }
 
     public Future<PowerLog> get(int id) {
         return querySingle(ENTITY.mapper(), "SELECT * FROM PowerLog WHERE id = ?", id);
     }
 
-    public Future<List<PowerLog>> queryForDeviceSorted(int deviceId) {
-        return queryMany(ENTITY.mapper(), "SELECT * FROM PowerLog WHERE deviceId = ? ORDER BY time DESC", deviceId);
+    /// Returns the most recent logs of a device, between `from` (included) and `to` (excluded),
+    /// from newest to oldest. Both bounds are optional.
+    public Future<List<PowerLog>> queryForDeviceSorted(int deviceId, @Nullable Instant from, @Nullable Instant to, int limit) {
+        return querySorted(deviceId, from, to, limit);
     }
 
+    private Future<List<PowerLog>> querySorted(@Nullable Integer deviceId, @Nullable Instant from, @Nullable Instant to, int limit) {
+        var conditions = new StringJoiner(" AND ", " WHERE ", "").setEmptyValue("");
+        var args = new ArrayList<>();
+        if (deviceId != null) {
+            conditions.add("deviceId = ?");
+            args.add(deviceId);
+        }
+        if (from != null) {
+            conditions.add("time >= ?");
+            args.add(toDB(from));
+        }
+        if (to != null) {
+            conditions.add("time < ?");
+            args.add(toDB(to));
+        }
+        args.add(limit);
+
+        return queryMany(ENTITY.mapper(), "SELECT * FROM PowerLog" + conditions + " ORDER BY time DESC, id DESC LIMIT ?",
+            args.toArray());
+    }
+
+    /// Calculates the energy consumed by each device between `start` and `end`, in Wh.
+    ///
+    /// ## How it works
+    ///
+    /// A device consumes energy between a `POWER_ON` log and the next log of the same device.
+    /// Instead of going through the whole history of logs, we use the `PowerLogHourly` table, containing
+    /// the consumption of each device per hour, which is kept up to date by [#insert(PowerLog)].
+    ///
+    /// The time range is split in three parts:
+    /// ```
+    ///  start     first full hour           last full hour      end
+    ///    |------------|=========================|---------------|
+    ///      raw logs     PowerLogHourly (+ open)      raw logs
+    /// ```
+    /// - the whole hours in the middle are read from `PowerLogHourly`, which only contains consumption between
+    ///   two logs; so we also add the consumption of devices still powered on since their last log (the "open" part)
+    /// - the incomplete hours at the edges are calculated precisely using the raw logs, like we used to do
+    ///   for the whole range
+    ///
+    /// This way, the cost of the query depends on the length of the range and the number of devices,
+    /// not on the number of logs.
     public Future<List<Consumption>> queryTotalConsumption(Instant start, Instant end) {
-        // Argument list:
-        // 1. startTime: Instant
-        // 2. startTime: Instant
-        // 3. endTime: Instant
-        // 4. endTime: Instant
-        // 5. endTime: Instant
-        LocalDateTime startLocal = LocalDateTime.ofInstant(start, ZoneOffset.UTC);
-        LocalDateTime endLocal = LocalDateTime.ofInstant(end, ZoneOffset.UTC);
-        return queryMany(x -> new Consumption(x.getInteger(0), x.getDouble(1)),
-            """
-                SELECT c.deviceId, SUM(c.consumption)
-                FROM (WITH FirstRelevantLogs AS (SELECT p.deviceId, MAX(p.time) AS time
-                                                 FROM PowerLog p
-                                                 WHERE p.time <= ?
-                                                 GROUP BY p.deviceId)
-                      SELECT p.deviceId, IF(p.status = 'POWER_ON', TIMESTAMPDIFF(SECOND,
-                                                                     GREATEST(p.time, ?),
-                                                                     LEAST(COALESCE(LEAD(p.time, 1) OVER w, ?), ?))
-                                                           * p.energyConsumption / 3600, 0) AS consumption
+        // Times are stored with a precision of one second.
+        start = start.truncatedTo(ChronoUnit.SECONDS);
+        end = end.truncatedTo(ChronoUnit.SECONDS);
+        if (!start.isBefore(end)) {
+            return Future.succeededFuture(Collections.emptyList());
+        }
+
+        // First and last full hours. When there's no full hour, the entire range is an edge.
+        Instant firstHour = ceilHour(start);
+        Instant lastHour = end.truncatedTo(ChronoUnit.HOURS);
+
+        var parts = new StringJoiner("\nUNION ALL\n");
+        var args = new ArrayList<>();
+        if (firstHour.isBefore(lastHour)) {
+            // Edges: [start, firstHour) and [lastHour, end)
+            if (start.isBefore(firstHour)) {
+                parts.add("(" + RAW_CONSUMPTION_SQL + ")");
+                addRawArgs(args, start, firstHour);
+            }
+            if (lastHour.isBefore(end)) {
+                parts.add("(" + RAW_CONSUMPTION_SQL + ")");
+                addRawArgs(args, lastHour, end);
+            }
+
+            // Middle: [firstHour, lastHour)
+            parts.add("(" + HOURLY_CONSUMPTION_SQL + ")");
+            args.add(toDB(firstHour));
+            args.add(toDB(lastHour));
+
+            parts.add("(" + OPEN_CONSUMPTION_SQL + ")");
+            args.add(toDB(firstHour));
+            args.add(toDB(lastHour));
+            args.add(toDB(lastHour));
+        } else {
+            parts.add("(" + RAW_CONSUMPTION_SQL + ")");
+            addRawArgs(args, start, end);
+        }
+
+        String sql = "SELECT c.deviceId, SUM(c.consumption) FROM (\n" + parts + "\n) AS c GROUP BY c.deviceId";
+
+        return queryMany(x -> new Consumption(x.getInteger(0), x.getDouble(1)), sql, args.toArray());
+    }
+
+    /// Consumption of each device between two times, using raw logs.
+    ///
+    /// Takes the last log of each device before the start, and all the logs inside the range.
+    /// Needs the arguments given by [#addRawArgs(List, Instant, Instant)].
+    static final String RAW_CONSUMPTION_SQL = """
+        SELECT r.deviceId, IF(r.status = 'POWER_ON',
+                              TIMESTAMPDIFF(SECOND,
+                                            GREATEST(r.time, ?),
+                                            LEAST(COALESCE(LEAD(r.time, 1) OVER w, ?), ?))
+                                  * r.energyConsumption / 3600, 0) AS consumption
+        FROM (SELECT last.deviceId, last.time, last.status, last.energyConsumption
+              FROM Device d
+              JOIN LATERAL (SELECT p.deviceId, p.time, p.status, p.energyConsumption
+                            FROM PowerLog p
+                            WHERE p.deviceId = d.id AND p.time <= ?
+                            ORDER BY p.time DESC, p.id DESC
+                            LIMIT 1) last ON TRUE
+              UNION ALL
+              SELECT p.deviceId, p.time, p.status, p.energyConsumption
+              FROM PowerLog p
+              WHERE p.time > ? AND p.time < ?) r
+        WINDOW w AS (PARTITION BY r.deviceId ORDER BY r.time)""";
+
+    /// Consumption of each device during whole hours, between two logs. Arguments: first hour, last hour (excluded).
+    static final String HOURLY_CONSUMPTION_SQL = """
+        SELECT h.deviceId, h.consumption
+        FROM PowerLogHourly h
+        WHERE h.hour >= ? AND h.hour < ?""";
+
+    /// Consumption of devices still powered on since their last log, between two times.
+    /// Arguments: start, end, end.
+    static final String OPEN_CONSUMPTION_SQL = """
+        SELECT last.deviceId,
+               GREATEST(TIMESTAMPDIFF(SECOND, GREATEST(last.time, ?), ?), 0) * last.energyConsumption / 3600
+        FROM Device d
+        JOIN LATERAL (SELECT p.deviceId, p.time, p.status, p.energyConsumption
                       FROM PowerLog p
-                      LEFT JOIN FirstRelevantLogs firstRel ON p.deviceId = firstRel.deviceId
-                      WHERE ((firstRel.time IS NULL or p.time >= firstRel.time) AND p.time < ?)
-                      WINDOW w AS (PARTITION BY p.deviceId ORDER BY p.time)) as c
-                GROUP BY c.deviceId;
-                """,
-            startLocal, startLocal, endLocal, endLocal, endLocal);
+                      WHERE p.deviceId = d.id
+                      ORDER BY p.time DESC, p.id DESC
+                      LIMIT 1) last ON TRUE
+        WHERE last.status = 'POWER_ON' AND last.time < ?""";
 
+    private static void addRawArgs(List<Object> args, Instant start, Instant end) {
+        args.add(toDB(start));
+        args.add(toDB(end));
+        args.add(toDB(end));
+        args.add(toDB(start));
+        args.add(toDB(start));
+        args.add(toDB(end));
     }
 
     public record Consumption(int deviceId, double consumption) {}
 
+    /// Inserts a new power log, and updates the hourly consumption of the device.
+    ///
+    /// The time of the log is truncated to the second, like in the database.
     public Future<PowerLog> insert(PowerLog log) {
-        return insert(ENTITY, log, PowerLog::getId, PowerLog::setId);
+        log.setTime(log.getTime().truncatedTo(ChronoUnit.SECONDS));
+        return transaction(c -> new PowerLogTable(c).insertAndRollUp(log));
+    }
+
+    /// Inserts the first power log of many new devices at once, using batched queries. The ids of the logs are NOT set.
+    ///
+    /// Since these devices have no logs yet, there's no previous log to close, so the hourly consumption
+    /// doesn't change: no need to lock each device and look for its neighbours like [#insert(PowerLog)] does.
+    /// **Only use it for devices that have just been created!**
+    ///
+    /// The time of each log is truncated to the second, like in the database.
+    public Future<Void> insertFirstLogs(List<PowerLog> logs) {
+        // executeBatch fails with an empty list!
+        if (logs.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        changed(ENTITY.tableName());
+        return inChunks(logs, chunk -> {
+            var tuples = new ArrayList<Tuple>(chunk.size());
+            for (PowerLog log : chunk) {
+                log.setTime(log.getTime().truncatedTo(ChronoUnit.SECONDS));
+                tuples.add(Tuple.wrap(ENTITY.genInsertArguments(log)));
+            }
+
+            return client.preparedQuery(ENTITY.insertSQL())
+                .executeBatch(tuples)
+                .recover(Table::handleSqlErrors);
+        }).andThen(_ -> changed(ENTITY.tableName()));
+    }
+
+    private Future<PowerLog> insertAndRollUp(PowerLog log) {
+        // Lock the device, so logs of the same device are inserted one after the other.
+        return query("SELECT id FROM Device WHERE id = ? FOR UPDATE", log.getDeviceId())
+            .compose(_ -> querySingle(ENTITY.mapper(), """
+                SELECT * FROM PowerLog
+                WHERE deviceId = ? AND time <= ?
+                ORDER BY time DESC, id DESC
+                LIMIT 1""", log.getDeviceId(), toDB(log.getTime())))
+            .compose(prev -> querySingle(ENTITY.mapper(), """
+                    SELECT * FROM PowerLog
+                    WHERE deviceId = ? AND time > ?
+                    ORDER BY time, id
+                    LIMIT 1""", log.getDeviceId(), toDB(log.getTime()))
+                .compose(next -> insert(ENTITY, log, PowerLog::getId, PowerLog::setId)
+                    .compose(_ -> addToHourly(rollUpChanges(prev, log, next), log.getDeviceId()))))
+            .map(log);
+    }
+
+    /// Calculates how the hourly consumption of a device changes when `log` is inserted between `prev` and `next`.
+    ///
+    /// Usually, `next` is null since logs are inserted in order: the segment `[prev, log)` is now closed, so
+    /// we add it. When a log is inserted before `next`, the segment `[prev, next)` is split in two,
+    /// and `[log, next)` now consumes using the power of `log` instead of `prev`.
+    ///
+    /// @return the consumption to add to each hour, in Wh
+    static Map<Instant, Double> rollUpChanges(@Nullable PowerLog prev, PowerLog log, @Nullable PowerLog next) {
+        var changes = new HashMap<Instant, Double>();
+        if (next == null) {
+            if (prev != null && isOn(prev)) {
+                addSegment(changes, prev.getEnergyConsumption(), prev.getTime(), log.getTime());
+            }
+        } else {
+            if (prev != null && isOn(prev)) {
+                addSegment(changes, -prev.getEnergyConsumption(), log.getTime(), next.getTime());
+            }
+            if (isOn(log)) {
+                addSegment(changes, log.getEnergyConsumption(), log.getTime(), next.getTime());
+            }
+        }
+        return changes;
+    }
+
+    /// Adds the consumption of a device using `power` watts from `from` to `to`, in each hour.
+    private static void addSegment(Map<Instant, Double> changes, double power, Instant from, Instant to) {
+        Instant hour = from.truncatedTo(ChronoUnit.HOURS);
+        while (hour.isBefore(to)) {
+            Instant nextHour = hour.plus(1, ChronoUnit.HOURS);
+
+            long seconds = Duration.between(max(from, hour), min(to, nextHour)).toSeconds();
+            if (seconds > 0) {
+                changes.merge(hour, seconds * power / 3600, Double::sum);
+            }
+
+            hour = nextHour;
+        }
+    }
+
+    private Future<Void> addToHourly(Map<Instant, Double> changes, int deviceId) {
+        // executeBatch fails with an empty list!
+        if (changes.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        var tuples = new ArrayList<Tuple>(changes.size());
+        for (var e : changes.entrySet()) {
+            tuples.add(Tuple.of(deviceId, toDB(e.getKey()), e.getValue()));
+        }
+
+        return client.preparedQuery("""
+                INSERT INTO PowerLogHourly (deviceId, hour, consumption)
+                VALUES (?, ?, ?)
+                ON DUPLICATE KEY UPDATE consumption = consumption + VALUES(consumption)""")
+            .executeBatch(tuples)
+            .recover(Table::handleSqlErrors)
+            .mapEmpty();
+    }
+
+    private static boolean isOn(PowerLog log) {
+        return "POWER_ON".equals(log.getStatus());
+    }
+
+    private static Instant ceilHour(Instant t) {
+        Instant hour = t.truncatedTo(ChronoUnit.HOURS);
+        return hour.equals(t) ? t : hour.plus(1, ChronoUnit.HOURS);
+    }
+
+    private static Instant min(Instant a, Instant b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    private static Instant max(Instant a, Instant b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    private static LocalDateTime toDB(Instant t) {
+        return LocalDateTime.ofInstant(t, ZoneOffset.UTC);
+    }
+
+    // --- Partitions ---
+
+    /// The partition containing all logs after the last monthly partition.
+    static final String MAX_PARTITION = "pmax";
+
+    /// Returns the months of all monthly partitions, from oldest to newest.
+    ///
+    /// Monthly partitions are named `pYYYYMM`, and contain all logs before the start of the next month.
+    /// Returns `null` when the table isn't partitioned (the database hasn't been migrated yet).
+    public Future<@Nullable List<YearMonth>> getMonthlyPartitions() {
+        return queryMany(r -> r.getString(0), """
+                SELECT PARTITION_NAME FROM information_schema.PARTITIONS
+                WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'PowerLog'
+                ORDER BY PARTITION_ORDINAL_POSITION""")
+            .map(names -> {
+                if (!names.contains(MAX_PARTITION)) {
+                    return null;
+                }
+
+                var months = new ArrayList<YearMonth>();
+                for (String name : names) {
+                    if (!name.equals(MAX_PARTITION)) {
+                        months.add(YearMonth.parse(name.substring(1), PARTITION_MONTH));
+                    }
+                }
+                return months;
+            });
+    }
+
+    /// Creates monthly partitions for all months until `until` (included), by splitting the [#MAX_PARTITION].
+    ///
+    /// The first monthly partitions, for the logs already there, are created by the `split_power_log_partitions`
+    /// changeset. So there's always a monthly partition after the last log, and `pmax` stays empty: splitting it
+    /// is instant. Does nothing when the table doesn't have monthly partitions yet (the database isn't migrated).
+    ///
+    /// @return the number of partitions created
+    public Future<Integer> ensureMonthlyPartitions(YearMonth until) {
+        return getMonthlyPartitions().compose(months -> {
+            if (months == null || months.isEmpty()) {
+                return Future.succeededFuture(0);
+            }
+
+            YearMonth start = months.getLast().plusMonths(1);
+            if (start.isAfter(until)) {
+                return Future.succeededFuture(0);
+            }
+
+            var partitions = new StringJoiner(",\n");
+            int count = 0;
+            for (YearMonth m = start; !m.isAfter(until); m = m.plusMonths(1)) {
+                partitions.add("PARTITION " + partitionName(m) + " VALUES LESS THAN ('" + m.plusMonths(1).atDay(1) + "')");
+                count++;
+            }
+            partitions.add("PARTITION " + MAX_PARTITION + " VALUES LESS THAN (MAXVALUE)");
+
+            int created = count;
+            return query("ALTER TABLE PowerLog REORGANIZE PARTITION " + MAX_PARTITION + " INTO (\n" + partitions + "\n)")
+                .map(created);
+        });
+    }
+
+    /// Returns the logs of a monthly partition, by id, `limit` at a time. Used to archive a month before dropping it.
+    public Future<List<PowerLog>> getPartitionPage(YearMonth month, int afterId, int limit) {
+        return queryMany(ENTITY.mapper(),
+            "SELECT * FROM PowerLog PARTITION (" + partitionName(month) + ") WHERE id > ? ORDER BY id LIMIT ?",
+            afterId, limit);
+    }
+
+    /// Copies the last log of each device before `cutoff` at the time `cutoff`, unless the device already has a log
+    /// at that time.
+    ///
+    /// Used before dropping all partitions older than `cutoff`: without it, we'd forget whether devices were powered on,
+    /// and [#queryTotalConsumption(Instant, Instant)] would be wrong. `PowerLogHourly` doesn't change: the copy
+    /// only splits a segment in two, with the same power.
+    ///
+    /// @return the number of logs copied
+    public Future<Integer> carryForwardLastLogs(Instant cutoff) {
+        changed(ENTITY.tableName());
+        return query("""
+                INSERT INTO PowerLog (deviceId, status, energyConsumption, time)
+                SELECT last.deviceId, last.status, last.energyConsumption, ?
+                FROM Device d
+                JOIN LATERAL (SELECT p.deviceId, p.status, p.energyConsumption
+                              FROM PowerLog p
+                              WHERE p.deviceId = d.id AND p.time < ?
+                              ORDER BY p.time DESC, p.id DESC
+                              LIMIT 1) last ON TRUE
+                WHERE NOT EXISTS (SELECT 1 FROM PowerLog n WHERE n.deviceId = d.id AND n.time = ?)""",
+                toDB(cutoff), toDB(cutoff), toDB(cutoff))
+            .andThen(_ -> changed(ENTITY.tableName()))
+            .map(SqlResult::rowCount);
+    }
+
+    /// Deletes all logs of a month, instantly. Logs should be [carried forward][#carryForwardLastLogs(Instant)] first!
+    public Future<Void> dropPartition(YearMonth month) {
+        changed(ENTITY.tableName());
+        return query("ALTER TABLE PowerLog DROP PARTITION " + partitionName(month))
+            .andThen(_ -> changed(ENTITY.tableName()))
+            .mapEmpty();
+    }
+
+    private static final DateTimeFormatter PARTITION_MONTH = DateTimeFormatter.ofPattern("yyyyMM");
+
+    static String partitionName(YearMonth month) {
+        return "p" + month.format(PARTITION_MONTH);
     }
 
+    /// Updates a power log. **Warning:** doesn't update `PowerLogHourly`!
     public Future<PowerLog> update(PowerLog log) {
         return update(ENTITY, log);
     }
 
+    /// Deletes a power log. **Warning:** doesn't update `PowerLogHourly`!
     public Future<Boolean> delete(int id) {
         return delete(ENTITY, id);
     }
@@ -75,9 +75,21 @@ public class RoomTable extends Table {
         );
     }
 
-    /// Gets all [CompleteRoom] in the database having a similar name as `name`.
-    public Future<List<CompleteRoom>> getAllCompleteMatchingName(String name) {
-        return queryMany(CompleteRoom.MAP, COMPLETE_MANY_SQL + " WHERE INSTR(r.name, ?) > 0", name);
+    /// Gets the [CompleteRoom]s having a similar name as `name`, best matches first.
+    ///
+    /// See [FullTextSearch] to know how it works.
+    public Future<List<CompleteRoom>> getAllCompleteMatchingName(String name, int limit) {
+        String search = FullTextSearch.booleanQuery(name);
+        if (search != null) {
+            return queryMany(CompleteRoom.MAP, COMPLETE_MANY_SQL + """
+                WHERE MATCH(r.name) AGAINST(? IN BOOLEAN MODE)
+                ORDER BY MATCH(r.name) AGAINST(? IN BOOLEAN MODE) DESC, r.id
+                LIMIT ?""", search, search, limit);
+        } else {
+            // Too short for the index
+            return queryMany(CompleteRoom.MAP, COMPLETE_MANY_SQL + " WHERE INSTR(r.name, ?) > 0 ORDER BY r.id LIMIT ?",
+                name, limit);
+        }
     }
 
     /// Creates a room in the database.
@@ -0,0 +1,81 @@
+package fr.domotique.data;
+
+import fr.domotique.base.data.*;
+import io.vertx.core.*;
+import io.vertx.core.buffer.*;
+import io.vertx.sqlclient.*;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/// The `UserSession` table, containing the sessions of logged-in users. Only used by the [MySQLSessionStore].
+public class SessionTable extends Table {
+    public SessionTable(SqlClient client) {
+        super(client);
+    }
+
+    /// A session as stored in the database.
+    ///
+    /// @param id           the id of the session (the value of the session cookie)
+    /// @param data         the session serialized by Vert.x
+    /// @param timeout      how long the session lives without being accessed, in milliseconds
+    /// @param lastAccessed when the session was last accessed, in milliseconds since the epoch
+    public record StoredSession(String id, Buffer data, long timeout, long lastAccessed) {
+        static StoredSession fromRow(Row r) {
+            return new StoredSession(r.getString(0), r.getBuffer(1), r.getLong(2), r.getLong(3));
+        }
+    }
+
+    public Future<@Nullable StoredSession> get(String id) {
+        return querySingle(StoredSession::fromRow,
+            "SELECT id, data, timeout, lastAccessed FROM UserSession WHERE id = ?", id);
+    }
+
+    /// Inserts the session, or replaces it if it already exists.
+    public Future<Void> upsert(StoredSession session) {
+        return query("""
+                INSERT INTO UserSession (id, data, timeout, lastAccessed) VALUES (?, ?, ?, ?)
+                ON DUPLICATE KEY UPDATE data = VALUES(data), timeout = VALUES(timeout), lastAccessed = VALUES(lastAccessed)
+                """,
+            session.id(), session.data(), session.timeout(), session.lastAccessed()).mapEmpty();
+    }
+
+    /// Updates the last access time of many sessions at once, using batched queries (see [Table#inChunks(List, Function)]).
+    ///
+    /// @param touches the new last access time of each session, by id
+    public Future<Void> touchBatch(Map<String, Long> touches) {
+        // executeBatch fails with an empty list!
+        if (touches.isEmpty()) {
+            return Future.succeededFuture();
+        }
+
+        var tuples = new ArrayList<Tuple>(touches.size());
+        for (var e : touches.entrySet()) {
+            tuples.add(Tuple.of(e.getValue(), e.getKey()));
+        }
+
+        // GREATEST: another server might have touched the session more recently than us.
+        return inChunks(tuples, chunk -> client
+            .preparedQuery("UPDATE UserSession SET lastAccessed = GREATEST(lastAccessed, ?) WHERE id = ?")
+            .executeBatch(chunk)
+            .recover(Table::handleSqlErrors));
+    }
+
+    public Future<Void> delete(String id) {
+        return query("DELETE FROM UserSession WHERE id = ?", id).mapEmpty();
+    }
+
+    /// Deletes all sessions expired at this time (in milliseconds since the epoch). Returns how many were deleted.
+    public Future<Integer> deleteExpired(long now) {
+        return query("DELETE FROM UserSession WHERE expiresAt < ?", now).map(SqlResult::rowCount);
+    }
+
+    public Future<Void> deleteAll() {
+        return query("DELETE FROM UserSession").mapEmpty();
+    }
+
+    public Future<Integer> count() {
+        return querySingle(r -> r.getInteger(0), "SELECT COUNT(*) FROM UserSession");
+    }
+}
@@ -6,6 +6,7 @@ import io.vertx.core.*;
 import io.vertx.sqlclient.*;
 import org.jetbrains.annotations.*;
 
+import java.time.*;
 import java.util.*;
 
 import static fr.domotique.data.User.ENTITY;
@@ -19,11 +20,43 @@ import static fr.domotique.data.User.ENTITY;
 /// server.db().users().get(5).onSuccess(user -> { ... });
 ///```
 public class UserTable extends Table {
-    /// Creates a new user table using the SQL client.
+    /// Creates a new user table using the SQL client, with its own session cache.
     ///
     /// @param client the SQL client to use
     public UserTable(SqlClient client) {
+        this(client, newSessionCache());
+    }
+
+    /// Creates a new user table using the SQL client, and an existing session cache (see [#sessionCache()]).
+    ///
+    /// @param client       the SQL client to use
+    /// @param sessionCache the cache of [SessionInfo], shared by all user tables of the server
+    public UserTable(SqlClient client, BoundedCache<Integer, SessionInfo> sessionCache) {
         super(client);
+        this.sessionCache = sessionCache;
+    }
+
+    /// The maximum number of [SessionInfo] kept in [#sessionCache].
+    static final int SESSION_CACHE_SIZE = 10_000;
+    /// How long a [SessionInfo] stays in [#sessionCache]. Users can be changed by another server, which can't
+    /// invalidate our cache: they get their new role or level after that time at most.
+    static final Duration SESSION_CACHE_TTL = Duration.ofSeconds(30);
+
+    /// Cache of the [SessionInfo] of recently seen users, used by the [fr.domotique.Authenticator] on every request.
+    ///
+    /// It's shared by all verticles, and given to the tables of [transactions][Database#begin()] too: else, a user
+    /// updated in a transaction would still be cached with their old role by everyone else.
+    /// Every function here changing the level, role or e-mail confirmation of a user must invalidate it.
+    private final BoundedCache<Integer, SessionInfo> sessionCache;
+
+    /// Creates an empty cache of [SessionInfo], to give to [#UserTable(SqlClient, BoundedCache)].
+    public static BoundedCache<Integer, SessionInfo> newSessionCache() {
+        return new BoundedCache<>(SESSION_CACHE_SIZE, SESSION_CACHE_TTL);
+    }
+
+    /// The cache of [SessionInfo] used by this table; give it to the other tables of the server.
+    public BoundedCache<Integer, SessionInfo> sessionCache() {
+        return sessionCache;
     }
 
     /// Gets the user with the given ID. Can return `null`.
@@ -31,6 +64,28 @@ public class UserTable extends Table {
         return querySingle(ENTITY.mapper(), "SELECT * FROM User WHERE id = ?", id);
     }
 
+    static final String SESSION_INFO_SQL = "SELECT id, level, role, emailConfirmed FROM User WHERE id";
+
+    /// Gets the [SessionInfo] of the user with the given ID: what we need to know to authorize requests.
+    ///
+    /// Served from an in-memory cache most of the time. Returns `null` when the user doesn't exist.
+    public Future<@Nullable SessionInfo> getSessionInfo(int id) {
+        return sessionCache.get(id, _ -> querySingle(SessionInfo::fromRow, SESSION_INFO_SQL + " = ?", id));
+    }
+
+    /// Gets the [SessionInfo] of many users, in no particular order. Unknown users are ignored.
+    Future<List<SessionInfo>> getAllSessionInfo(List<Integer> ids) {
+        var all = new ArrayList<SessionInfo>(ids.size());
+        return inChunks(ids, chunk -> queryMany(SessionInfo::fromRow, SESSION_INFO_SQL + " IN " + paramList(chunk.size()),
+            chunk.toArray()).onSuccess(all::addAll)).map(all);
+    }
+
+    /// Removes the cached [SessionInfo] of these users, after their level/role/e-mail changed
+    /// without going through [#update(User)].
+    public void invalidateSessionInfo(Collection<Integer> ids) {
+        invalidateCache(() -> sessionCache.invalidateAll(ids));
+    }
+
     /// Gets the user with the given email
     ///
     /// @param email the email of the user
@@ -41,12 +96,30 @@ public class UserTable extends Table {
 
     static final String PROFILE_FN_SQL = makeModularSQL("""
         SELECT %s FROM User
-        WHERE INSTR(firstName, ?) > 0 OR INSTR(lastName, ?) > 0
+        WHERE MATCH(firstName, lastName) AGAINST(? IN BOOLEAN MODE)
+        ORDER BY MATCH(firstName, lastName) AGAINST(? IN BOOLEAN MODE) DESC, id
+        LIMIT ?
         """, UserProfile.columnList(null)); // -> "id, firstName, lastName, role, level, etc."
 
-    /// Searches all user profile matching the given full name.
-    public Future<List<UserProfile>> getAllProfilesByFullName(String fullName) {
-        return queryMany(UserProfile.MAP, PROFILE_FN_SQL, fullName, fullName);
+    /// Same as [#PROFILE_FN_SQL], for names too short for the full-text index.
+    static final String PROFILE_FN_SCAN_SQL = makeModularSQL("""
+        SELECT %s FROM User
+        WHERE INSTR(firstName, ?) > 0 OR INSTR(lastName, ?) > 0
+        ORDER BY id
+        LIMIT ?
+        """, UserProfile.columnList(null));
+
+    /// Searches the user profiles matching the given full name, best matches first.
+    ///
+    /// Each word must be in the first or the last name: "jean dup" finds "Jean Dupont".
+    /// See [FullTextSearch] to know how it works.
+    public Future<List<UserProfile>> getAllProfilesByFullName(String fullName, int limit) {
+        String search = FullTextSearch.booleanQuery(fullName);
+        if (search != null) {
+            return queryMany(UserProfile.MAP, PROFILE_FN_SQL, search, search, limit);
+        } else {
+            return queryMany(UserProfile.MAP, PROFILE_FN_SCAN_SQL, fullName, fullName, limit);
+        }
     }
 
     static final String PROFILE_IDS_SQL = makeModularSQL("""
@@ -85,53 +158,96 @@ public class UserTable extends Table {
     }
 
     public Future<User> update(User user) {
-        return update(ENTITY, user);
+        // Invalidate even on failure: we don't know if the update went through or not.
+        return update(ENTITY, user).andThen(_ -> invalidateCache(() -> sessionCache.invalidate(user.getId())));
     }
 
     public Future<Boolean> delete(int id) {
-        return delete(ENTITY, id);
+        return delete(ENTITY, id).andThen(_ -> invalidateCache(() -> sessionCache.invalidate(id)));
     }
 
     // -- Point requests
 
-    public Future<List<PointInfo>> getManyPointInfo(Collection<Integer> userIds) {
-        if (userIds.isEmpty()) {
-            return Future.succeededFuture(Collections.emptyList());
+    /// Adds points to many users, and gives them their new level, using one `UPDATE` per user.
+    ///
+    /// The new points and level are calculated by MySQL from the current row, with the same rules as
+    /// [UserOperations#newLevelAfterAddingPoints(Level, int, int)]. Since we never read points before writing them,
+    /// two [PointsVerticle]s (or two servers) adding points to the same user at the same time can't overwrite
+    /// each other's points.
+    ///
+    /// We don't know whose level changed, so the [SessionInfo] of these users is read again, with one query for
+    /// all of them, and updated in the cache. Only users in the cache are read, and not those already at the
+    /// highest level: their level can't change anymore!
+    ///
+    /// All updates run in one transaction: adding points can't be done twice safely, so when this fails, no user
+    /// got any points, and the same points can be added again.
+    ///
+    /// Unknown users are ignored.
+    ///
+    /// @param pointsByUser the points to add to each user: user id -> points
+    public Future<Void> addPoints(Map<Integer, Integer> pointsByUser) {
+        // executeBatch fails with an empty list!
+        if (pointsByUser.isEmpty()) {
+            return Future.succeededFuture();
         }
 
-        var args = new StringJoiner(", ", "(", ")");
-        for (int i = 0; i < userIds.size(); i++) args.add("?");
-
-        final String sql = """
-                               SELECT id, points, level
-                               FROM User
-                               WHERE User.id IN\s""" + args;
+        var tuples = new ArrayList<Tuple>(pointsByUser.size());
+        for (var e : pointsByUser.entrySet()) {
+            int pts = e.getValue();
+            tuples.add(Tuple.of(pts, pts, pts, pts, e.getKey()));
+        }
 
-        return queryMany(PointInfo::fromRow, sql, userIds.toArray());
+        changed(ENTITY.tableName());
+        return transaction(c -> inChunks(tuples, chunk -> c.preparedQuery(ADD_POINTS_SQL)
+                .executeBatch(chunk)
+                .recover(Table::handleSqlErrors)))
+            .andThen(x -> {
+                changed(ENTITY.tableName());
+                if (x.failed()) {
+                    // We don't know if the update went through or not.
+                    invalidateCache(() -> sessionCache.invalidateAll(pointsByUser.keySet()));
+                }
+            })
+            .compose(_ -> refreshLevels(pointsByUser.keySet()));
     }
 
-    public Future<Void> updateManyPointInfo(Collection<PointInfo> pointInfos) {
-        if (pointInfos.isEmpty()) {
-            return Future.succeededFuture();
+    /// Reads again the [SessionInfo] of these users in the cache, since they may have gained a level.
+    private Future<Void> refreshLevels(Collection<Integer> ids) {
+        var maybeChanged = new ArrayList<Integer>();
+        for (int id : ids) {
+            SessionInfo info = sessionCache.getIfPresent(id);
+            if (info != null && info.level() != Level.EXPERT) {
+                maybeChanged.add(id);
+            }
         }
 
-        // TODO: Check success after executeBatch
-        return client.preparedQuery("""
-                    UPDATE User
-                    SET points = ?, level = ?
-                    WHERE id = ?
-                """)
-            .executeBatch(pointInfos.stream().map(PointInfo::toTuple).toList())
-            .mapEmpty();
+        // The points are in the database already: don't fail because of the cache.
+        return sessionCache.refresh(maybeChanged, this::getAllSessionInfo, SessionInfo::id).otherwiseEmpty();
     }
 
-    public record PointInfo(int id, int points, Level level) {
-        Tuple toTuple() {
-            return Tuple.of(points, level.ordinal(), id);
-        }
-
-        static PointInfo fromRow(Row t) {
-            return new PointInfo(t.getInteger(0), t.getInteger(1), Level.values()[t.getInteger(2)]);
+    /// The SQL of [#addPoints(Map)]. MySQL assigns columns from left to right, so `level` comes first:
+    /// `points` still has its old value there.
+    static final String ADD_POINTS_SQL = """
+        UPDATE User SET
+            level = CASE
+                WHEN points >= 0 AND points < %1$d AND points + ? >= %1$d AND level < %2$d THEN %2$d
+                WHEN points >= 0 AND points < %3$d AND points + ? >= %3$d AND level < %4$d THEN %4$d
+                WHEN points >= 0 AND points < %5$d AND points + ? >= %5$d AND level < %6$d THEN %6$d
+                ELSE level
+            END,
+            points = points + ?
+        WHERE id = ?""".formatted(
+        UserOperations.INTERMEDIATE_POINTS, Level.INTERMEDIATE.ordinal(),
+        UserOperations.ADVANCED_POINTS, Level.ADVANCED.ordinal(),
+        UserOperations.EXPERT_POINTS, Level.EXPERT.ordinal());
+
+    /// The information about a user we need to authorize requests; see [fr.domotique.Authenticator].
+    public record SessionInfo(int id, Level level, Role role, boolean emailConfirmed) {
+        static SessionInfo fromRow(Row r) {
+            return new SessionInfo(r.getInteger(0),
+                Level.fromByte(r.get(Byte.class, 1)),
+                Role.fromByte(r.get(Byte.class, 2)),
+                r.getBoolean(3));
         }
     }
 }
@@ -0,0 +1,26 @@
+package fr.domotique.email;
+
+/// Thrown when the e-mail service refuses to send an e-mail.
+///
+/// When it's [retryable][#isRetryable()], the service is busy or broken (too many requests, server errors...),
+/// so the same e-mail might be sent later. Else, the e-mail itself is wrong, and sending it again won't help.
+///
+/// Other exceptions (network errors, timeouts...) are considered retryable.
+public class EmailException extends RuntimeException {
+    private final boolean retryable;
+
+    public EmailException(String message, boolean retryable) {
+        super(message);
+        this.retryable = retryable;
+    }
+
+    /// Returns true when sending the same e-mail again later might work.
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    /// Returns true when sending the e-mail again later might work, after failing with this error.
+    public static boolean isRetryable(Throwable error) {
+        return !(error instanceof EmailException e) || e.isRetryable();
+    }
+}
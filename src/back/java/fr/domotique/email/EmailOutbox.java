@@ -0,0 +1,34 @@
+package fr.domotique.email;
+
+import fr.domotique.data.*;
+import io.vertx.core.*;
+
+/// An [EmailSender] putting e-mails in the `EmailOutbox` table, so they're sent in the background by the
+/// [EmailOutboxVerticle].
+///
+/// Sending an e-mail only takes one `INSERT`: requests don't wait for the e-mail service anymore, which might be
+/// slow or down. Once an e-mail is in the outbox, it will be sent, even if the server restarts.
+///
+/// The returned futures complete once the e-mail is in the outbox, *not* once it's sent.
+public class EmailOutbox implements EmailSender {
+    private final Vertx vertx;
+    private final EmailOutboxTable table;
+
+    public EmailOutbox(Vertx vertx, EmailOutboxTable table) {
+        this.vertx = vertx;
+        this.table = table;
+    }
+
+    @Override
+    public Future<Void> send(String recipientEmail, String subject, String body) {
+        return send(new OutgoingEmail(recipientEmail, subject, body));
+    }
+
+    /// Puts the e-mail in the outbox with its substitutions, which are only done once it's sent.
+    @Override
+    public Future<Void> send(OutgoingEmail email) {
+        return table.insert(email)
+            // Wake the outbox verticle up, so the e-mail is sent right now instead of on the next poll.
+            .andThen(_ -> vertx.eventBus().send(EmailOutboxVerticle.CHANNEL, null));
+    }
+}
@@ -0,0 +1,219 @@
+package fr.domotique.email;
+
+import fr.domotique.data.*;
+import io.vertx.core.*;
+import io.vertx.core.eventbus.*;
+import org.slf4j.*;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/// A background verticle sending the e-mails of the `EmailOutbox` table, put there by [EmailOutbox].
+///
+/// It claims up to [#BATCH_SIZE] e-mails at once (see [EmailOutboxTable#claim(int, long)]), and gives them all
+/// to the [EmailSender], which can send many of them with one request. It runs every [#POLL_INTERVAL_MS]
+/// milliseconds, and right away when an e-mail is added on this server. Sent e-mails are removed from the outbox.
+///
+/// Claimed e-mails are ours for [#LEASE_MS] milliseconds. Sending a full batch can take longer than that when
+/// the e-mail service is slow, so the lease is extended every [#LEASE_EXTENSION_INTERVAL_MS] milliseconds until
+/// the batch is done: else, another server would claim the same e-mails, and send them again.
+///
+/// ## Retries
+///
+/// When an e-mail fails with a [retryable][EmailException#isRetryable(Throwable)] error, it's sent again later,
+/// waiting twice as long after each failure: [#FIRST_RETRY_DELAY_MS], then twice that, up to [#MAX_RETRY_DELAY_MS].
+/// After [#MAX_ATTEMPTS] attempts, or after an error that isn't retryable, we give up on it.
+///
+/// ## Circuit breaker
+///
+/// When the e-mail service is down, there's no use hammering it with e-mails that will all fail.
+/// After [#BREAKER_THRESHOLD] batches failing in a row, the circuit "opens": no e-mail is sent for
+/// [#BREAKER_FIRST_OPEN_MS] milliseconds. Then, we try to send *one* e-mail: if it works, everything goes back to
+/// normal; else, we wait twice as long as before (up to [#BREAKER_MAX_OPEN_MS]), and so on.
+///
+/// Can be deployed on many servers at once: each e-mail is claimed by one server only.
+/// Must be deployed once per server.
+public class EmailOutboxVerticle extends VerticleBase {
+    private static final Logger log = LoggerFactory.getLogger(EmailOutboxVerticle.class);
+
+    /// The event bus address waking the verticle up, when an e-mail has been added to the outbox.
+    public static final String CHANNEL = "emailOutbox";
+
+    /// Time between two looks at the outbox, in milliseconds.
+    static final long POLL_INTERVAL_MS = 5_000;
+    /// The maximum number of e-mails claimed at once; SendGrid sends up to that many e-mails with the same subject
+    /// and body with one request.
+    static final int BATCH_SIZE = SendGridEmail.MAX_PERSONALIZATIONS;
+    /// How long claimed e-mails are ours, in milliseconds. If we crash, they're sent again after that.
+    static final long LEASE_MS = 5 * 60_000;
+    /// Time between two extensions of the lease of the e-mails being sent, in milliseconds.
+    static final long LEASE_EXTENSION_INTERVAL_MS = LEASE_MS / 3;
+    /// How many times we try to send an e-mail before giving up on it.
+    static final int MAX_ATTEMPTS = 10;
+    /// Time before sending a failed e-mail again, after its first failure, in milliseconds.
+    static final long FIRST_RETRY_DELAY_MS = 30_000;
+    /// The maximum time before sending a failed e-mail again, in milliseconds.
+    static final long MAX_RETRY_DELAY_MS = 60 * 60_000;
+    /// Number of batches failing in a row opening the circuit.
+    static final int BREAKER_THRESHOLD = 3;
+    /// How long the circuit stays open the first time, in milliseconds.
+    static final long BREAKER_FIRST_OPEN_MS = 30_000;
+    /// The maximum time the circuit stays open, in milliseconds.
+    static final long BREAKER_MAX_OPEN_MS = 15 * 60_000;
+
+    private final EmailOutboxTable table;
+    private final EmailSender sender;
+
+    /// The batch currently being sent, or `null` if there's none.
+    private Future<Integer> currentDrain;
+    /// True when we've been woken up while sending a batch: new e-mails might have been added after our claim.
+    private boolean drainAgain;
+
+    /// Number of batches failing because of the e-mail service, in a row.
+    private int consecutiveFailures;
+    /// How long the circuit is open, in milliseconds; 0 when it's closed.
+    private long openMs;
+    /// When the circuit can let an e-mail pass again, in milliseconds since the epoch.
+    private long openUntil;
+
+    private MessageConsumer<Void> consumer;
+    private long timer;
+
+    public EmailOutboxVerticle(EmailOutboxTable table, EmailSender sender) {
+        this.table = table;
+        this.sender = sender;
+    }
+
+    @Override
+    public Future<?> start() throws Exception {
+        consumer = vertx.eventBus().consumer(CHANNEL, _ -> drain());
+        timer = vertx.setPeriodic(POLL_INTERVAL_MS, _ -> drain());
+
+        table.countPending().onSuccess(n -> {
+            if (n > 0) {
+                log.info("{} e-mails are waiting in the outbox", n);
+            }
+        });
+
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<?> stop() {
+        vertx.cancelTimer(timer);
+
+        // Let the current batch finish, so we don't send it twice after the restart.
+        return consumer.unregister().compose(_ -> currentDrain != null
+            ? currentDrain.<Void>mapEmpty().otherwiseEmpty()
+            : Future.<Void>succeededFuture());
+    }
+
+    /// Sends the next batch of e-mails, and the next ones if it was full. Does nothing if a batch is already being sent.
+    private void drain() {
+        if (currentDrain != null) {
+            drainAgain = true;
+            return;
+        }
+        if (System.currentTimeMillis() < openUntil) {
+            return;
+        }
+
+        // The circuit has been open: only try one e-mail, to see if the service is back.
+        int limit = openMs > 0 ? 1 : BATCH_SIZE;
+        drainAgain = false;
+        currentDrain = table.claim(limit, LEASE_MS)
+            .compose(this::send)
+            .andThen(x -> {
+                currentDrain = null;
+
+                if (x.failed()) {
+                    log.error("Failed to send the e-mails of the outbox", x.cause());
+                } else if (x.result() == limit || drainAgain) {
+                    // There are probably more e-mails waiting.
+                    drain();
+                }
+            });
+    }
+
+    /// Sends the claimed e-mails, and updates the outbox. Returns how many e-mails were claimed.
+    private Future<Integer> send(List<EmailOutboxTable.OutboxEmail> emails) {
+        if (emails.isEmpty()) {
+            return Future.succeededFuture(0);
+        }
+
+        // Keep the e-mails ours while they're being sent.
+        var ids = emails.stream().map(EmailOutboxTable.OutboxEmail::id).toList();
+        long leaseTimer = vertx.setPeriodic(LEASE_EXTENSION_INTERVAL_MS, _ -> table.extendLease(ids, LEASE_MS)
+            .onFailure(ex -> log.warn("Failed to extend the lease of {} e-mails", ids.size(), ex)));
+
+        var results = sender.sendAll(emails.stream().map(EmailOutboxTable.OutboxEmail::email).toList());
+        return Future.join(results).transform(_ -> {
+            vertx.cancelTimer(leaseTimer);
+
+            long now = System.currentTimeMillis();
+            var sent = new ArrayList<Long>();
+            var updates = new ArrayList<Future<Void>>();
+            boolean serviceFailed = false;
+
+            for (int i = 0; i < emails.size(); i++) {
+                EmailOutboxTable.OutboxEmail e = emails.get(i);
+                Future<Void> result = results.get(i);
+                if (result.succeeded()) {
+                    sent.add(e.id());
+                    continue;
+                }
+
+                Throwable error = result.cause();
+                boolean retryable = EmailException.isRetryable(error);
+                serviceFailed |= retryable;
+
+                int attempts = e.attempts() + 1;
+                Long nextAttemptAt = null;
+                if (retryable && attempts < MAX_ATTEMPTS) {
+                    nextAttemptAt = now + retryDelay(attempts);
+                } else {
+                    log.error("Giving up on the e-mail {} to {} after {} attempts", e.id(), e.email().recipient(), attempts, error);
+                }
+                updates.add(table.retryLater(e.id(), nextAttemptAt, String.valueOf(error.getMessage())));
+            }
+
+            updates.add(table.deleteAll(sent));
+            recordOutcome(!sent.isEmpty(), serviceFailed);
+
+            return Future.join(updates).map(emails.size());
+        });
+    }
+
+    /// Opens or closes the circuit, depending on how the last batch went.
+    private void recordOutcome(boolean anySent, boolean serviceFailed) {
+        if (anySent || !serviceFailed) {
+            if (openMs > 0) {
+                log.info("The e-mail service is back, sending e-mails again");
+            }
+            consecutiveFailures = 0;
+            openMs = 0;
+            return;
+        }
+
+        if (openMs > 0) {
+            // Still down after waiting: wait longer.
+            openMs = Math.min(openMs * 2, BREAKER_MAX_OPEN_MS);
+        } else if (++consecutiveFailures >= BREAKER_THRESHOLD) {
+            openMs = BREAKER_FIRST_OPEN_MS;
+        } else {
+            return;
+        }
+
+        openUntil = System.currentTimeMillis() + openMs;
+        log.warn("The e-mail service seems down, no e-mails will be sent for {} seconds", openMs / 1000);
+    }
+
+    /// Returns the time to wait before the next attempt, after `attempts` failed attempts, in milliseconds.
+    ///
+    /// It's a bit random (± 25%), so e-mails failing at the same time aren't all sent again at the same time.
+    static long retryDelay(int attempts) {
+        long delay = FIRST_RETRY_DELAY_MS << Math.min(attempts - 1, 20);
+        delay = Math.min(delay, MAX_RETRY_DELAY_MS);
+        return (long) (delay * (0.75 + ThreadLocalRandom.current().nextDouble() * 0.5));
+    }
+}
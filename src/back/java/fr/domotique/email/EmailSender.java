@@ -2,6 +2,8 @@ package fr.domotique.email;
 
 import io.vertx.core.*;
 
+import java.util.*;
+
 /// Sends emails to users.
 public interface EmailSender {
     /// Sends an email to `recipientEmail` with the given `subject` and `body`.
@@ -10,4 +12,26 @@ public interface EmailSender {
     /// @param subject the subject of the email
     /// @param body the body of the email (in HTML format)
     Future<Void> send(String recipientEmail, String subject, String body);
+
+    /// Sends an email, which may contain [substitutions][OutgoingEmail#substitutions()].
+    ///
+    /// By default, the substitutions are done here, and the email is sent using [#send(String, String, String)].
+    default Future<Void> send(OutgoingEmail email) {
+        return send(email.recipient(), email.personalizedSubject(), email.personalizedBody());
+    }
+
+    /// Sends many emails at once. Returns one future per email, in the same order, completed once it's sent.
+    ///
+    /// By default, each email is sent using [#send(OutgoingEmail)]; senders able to send many emails
+    /// with one request (like [SendGridEmail]) do better than that.
+    ///
+    /// When the future of an email fails with a non-[retryable][EmailException#isRetryable(Throwable)] error,
+    /// it's no use sending it again.
+    default List<Future<Void>> sendAll(List<OutgoingEmail> emails) {
+        var results = new ArrayList<Future<Void>>(emails.size());
+        for (OutgoingEmail e : emails) {
+            results.add(send(e));
+        }
+        return results;
+    }
 }
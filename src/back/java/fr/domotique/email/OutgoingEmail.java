@@ -0,0 +1,65 @@
+package fr.domotique.email;
+
+import java.util.*;
+
+/// An e-mail to send to one recipient.
+///
+/// ## Substitutions
+///
+/// The subject and body can contain *tags* (like `-firstName-`), replaced by the [#substitutions()] of the recipient
+/// when the e-mail is sent. That way, e-mails sent to many users, each one with their own name or link, still have
+/// the same subject and body, and [SendGridEmail] can send them with one request.
+///
+/// Values are put in the body as they are: they must be HTML-escaped already (see [#escapeHtml(String)]).
+///
+/// @param recipient     the email address of the recipient
+/// @param subject       the subject of the email
+/// @param body          the body of the email (in HTML format)
+/// @param substitutions the values replacing tags in the subject and body, for this recipient: tag -> value
+public record OutgoingEmail(String recipient, String subject, String body, Map<String, String> substitutions) {
+    public OutgoingEmail {
+        Objects.requireNonNull(recipient);
+        Objects.requireNonNull(subject);
+        Objects.requireNonNull(body);
+        substitutions = Map.copyOf(substitutions);
+    }
+
+    /// Creates an e-mail without substitutions.
+    public OutgoingEmail(String recipient, String subject, String body) {
+        this(recipient, subject, body, Map.of());
+    }
+
+    /// Returns the subject, with the tags replaced by their values.
+    public String personalizedSubject() {
+        return substitute(subject);
+    }
+
+    /// Returns the body, with the tags replaced by their values.
+    public String personalizedBody() {
+        return substitute(body);
+    }
+
+    private String substitute(String text) {
+        for (var e : substitutions.entrySet()) {
+            text = text.replace(e.getKey(), e.getValue());
+        }
+        return text;
+    }
+
+    /// Escapes a value so it can be put in HTML, as text or inside an attribute.
+    public static String escapeHtml(String value) {
+        var sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&' -> sb.append("&amp;");
+                case '<' -> sb.append("&lt;");
+                case '>' -> sb.append("&gt;");
+                case '"' -> sb.append("&#34;");
+                case '\'' -> sb.append("&#39;");
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -1,19 +1,66 @@
 package fr.domotique.email;
 
+import com.fasterxml.jackson.annotation.*;
 import io.vertx.core.*;
+import io.vertx.core.buffer.*;
 import io.vertx.core.http.*;
 import io.vertx.core.json.*;
 import org.slf4j.*;
 
+import java.util.*;
+
 /// Sends email using the SendGrid mail API.
+///
+/// ## Batching
+///
+/// SendGrid can send the same e-mail to up to [#MAX_PERSONALIZATIONS] recipients with one request, each one
+/// getting their own copy (they don't see each other), with their own [substitutions][OutgoingEmail#substitutions()]
+/// done by SendGrid. So [#sendAll(List)] sends e-mails with the same subject and body together, even when each one
+/// has a different name or link inside. Other e-mails need one request each, sent [#MAX_CONCURRENT_REQUESTS]
+/// at a time.
+///
+/// ## Connections
+///
+/// Requests use HTTP/2 when SendGrid supports it, so many requests share the same connection, which stays open
+/// between e-mails. No need to connect (and negotiate TLS!) again for each e-mail.
 public class SendGridEmail implements EmailSender {
     private static final Logger log = LoggerFactory.getLogger(SendGridEmail.class);
+
+    /// The URL of the SendGrid API sending e-mails.
+    public static final String DEFAULT_API_URL = "https://api.sendgrid.com/v3/mail/send";
+
+    /// The maximum number of recipients of one request, set by SendGrid.
+    static final int MAX_PERSONALIZATIONS = 1000;
+    /// The maximum number of requests running at the same time in [#sendAll(List)].
+    static final int MAX_CONCURRENT_REQUESTS = 8;
+    /// How long we wait for SendGrid to answer, in milliseconds.
+    static final long REQUEST_TIMEOUT_MS = 30_000;
+    /// How many HTTP/2 connections we keep at most. One is plenty, since each one carries many requests.
+    static final int HTTP2_CONNECTIONS = 1;
+    /// How many HTTP/1.1 connections we keep at most, when HTTP/2 isn't available.
+    static final int HTTP1_CONNECTIONS = MAX_CONCURRENT_REQUESTS;
+
     private final HttpClientAgent httpClient;
+    private final String apiUrl;
     private final String apiKey;
     private final Email senderEmail;
 
     public SendGridEmail(Vertx vertx, String apiKey, String senderEmail) {
-        this.httpClient = vertx.createHttpClient();
+        this(vertx, DEFAULT_API_URL, apiKey, senderEmail);
+    }
+
+    /// Creates a SendGrid sender using another URL than [#DEFAULT_API_URL]: useful to send e-mails to a fake
+    /// SendGrid server, running locally.
+    public SendGridEmail(Vertx vertx, String apiUrl, String apiKey, String senderEmail) {
+        this.httpClient = vertx.createHttpClient(
+            new HttpClientOptions()
+                .setProtocolVersion(HttpVersion.HTTP_2)
+                .setUseAlpn(true)
+                .setKeepAlive(true),
+            new PoolOptions()
+                .setHttp2MaxSize(HTTP2_CONNECTIONS)
+                .setHttp1MaxSize(HTTP1_CONNECTIONS));
+        this.apiUrl = apiUrl;
         this.apiKey = apiKey;
         this.senderEmail = new Email(senderEmail);
     }
@@ -21,40 +68,107 @@ public class SendGridEmail implements EmailSender {
     // Many records to create JSON requests properly
     record Request(Email from, Personalization[] personalizations, String subject, Content[] content) {}
     record Content(String type, String value) {}
-    record Personalization(Email[] to) {}
+    record Personalization(Email[] to, @JsonInclude(JsonInclude.Include.NON_EMPTY) Map<String, String> substitutions) {}
     record Email(String email) {}
 
+    /// E-mails with the same subject and body, sent with one request.
+    record Batch(String subject, String body, List<OutgoingEmail> emails, Promise<Void> result) {}
+
     @Override
     public Future<Void> send(String recipientEmail, String subject, String body) {
+        return send(new OutgoingEmail(recipientEmail, subject, body));
+    }
+
+    @Override
+    public Future<Void> send(OutgoingEmail email) {
+        return sendAll(List.of(email)).getFirst();
+    }
+
+    @Override
+    public List<Future<Void>> sendAll(List<OutgoingEmail> emails) {
+        // Put e-mails with the same subject and body in the same batches, in order.
+        var openBatches = new HashMap<List<String>, Batch>();
+        var batches = new ArrayList<Batch>();
+        var results = new ArrayList<Future<Void>>(emails.size());
+        for (OutgoingEmail e : emails) {
+            Batch batch = openBatches.get(List.of(e.subject(), e.body()));
+            if (batch == null || batch.emails().size() >= MAX_PERSONALIZATIONS) {
+                batch = new Batch(e.subject(), e.body(), new ArrayList<>(), Promise.promise());
+                openBatches.put(List.of(e.subject(), e.body()), batch);
+                batches.add(batch);
+            }
+
+            batch.emails().add(e);
+            results.add(batch.result().future());
+        }
+
+        // Send them using a few "lanes" running at the same time, each one sending its batches one after the other.
+        int lanes = Math.min(MAX_CONCURRENT_REQUESTS, batches.size());
+        for (int lane = 0; lane < lanes; lane++) {
+            Future<Void> previous = Future.succeededFuture();
+            for (int i = lane; i < batches.size(); i += lanes) {
+                Batch batch = batches.get(i);
+                previous = previous.transform(res -> {
+                    // SendGrid is down or too busy? Don't bother sending the rest of the lane.
+                    if (res.failed() && EmailException.isRetryable(res.cause())) {
+                        return Future.<Void>failedFuture(res.cause());
+                    }
+                    return post(batch);
+                }).andThen(batch.result());
+            }
+        }
+
+        return results;
+    }
+
+    /// Sends one batch to SendGrid.
+    private Future<Void> post(Batch batch) {
         // Do the request manually. We do this because SendGrid's provided Java library is terrible as it
         // doesn't support JPMS in big 2025, and relies on its custom REST client which does NOT use Vert.x,
         // so that's a double no-no.
+        var personalizations = new Personalization[batch.emails().size()];
+        for (int i = 0; i < personalizations.length; i++) {
+            OutgoingEmail e = batch.emails().get(i);
+            personalizations[i] = new Personalization(new Email[] { new Email(e.recipient()) }, e.substitutions());
+        }
         var req = new Request(
             senderEmail,
-            new Personalization[] {
-                new Personalization(new Email[] { new Email(recipientEmail) })
-            },
-            subject,
-            new Content[] {new Content("text/html", body)}
+            personalizations,
+            batch.subject(),
+            new Content[] {new Content("text/html", batch.body())}
         );
         var json = Json.encode(req);
         log.debug("Sending JSON to the SendGrid API: {}", json);
 
-        // TODO: better error handling instead of weak "expecting"
         return httpClient.request(new RequestOptions()
             .setMethod(HttpMethod.POST)
-            .setAbsoluteURI("https://api.sendgrid.com/v3/mail/send")
+            .setAbsoluteURI(apiUrl)
+            .setIdleTimeout(REQUEST_TIMEOUT_MS)
             .addHeader("Authorization", "Bearer " + apiKey)
             .addHeader("Content-Type", "application/json"))
             .compose(r -> r.send(json))
-            .expecting(HttpResponseExpectation.status(200, 300))
+            .compose(SendGridEmail::checkResponse)
             .andThen(x -> {
                 if (x.succeeded()) {
-                    log.info("Email sent to {}: '{}'", recipientEmail, subject);
+                    log.info("Email sent to {} recipient(s): '{}'", batch.emails().size(), batch.subject());
                 } else {
-                    log.error("Failed to send email to {}", recipientEmail, x.cause());
+                    log.warn("Failed to send email to {} recipient(s): '{}'", batch.emails().size(), batch.subject(), x.cause());
                 }
-            })
-            .mapEmpty();
+            });
+    }
+
+    /// Fails with an [EmailException] when SendGrid didn't accept the e-mails.
+    private static Future<Void> checkResponse(HttpClientResponse response) {
+        int status = response.statusCode();
+        if (status >= 200 && status < 300) {
+            return response.body().mapEmpty();
+        }
+
+        // Too many requests, or SendGrid is broken: try again later. Other errors are our fault.
+        boolean retryable = status == 429 || status >= 500;
+        return response.body()
+            .otherwise(Buffer.buffer())
+            .compose(body -> Future.<Void>failedFuture(
+                new EmailException("SendGrid answered " + status + ": " + body, retryable)));
     }
 }
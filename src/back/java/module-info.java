@@ -18,7 +18,6 @@ open module fr.domotique.web {
     requires io.swagger.v3.oas.models;
 
     // Templating
-    requires io.vertx.web.template.jte;
     requires io.vertx.web.common;
     requires gg.jte;
     requires gg.jte.runtime;
@@ -29,6 +28,9 @@ open module fr.domotique.web {
     requires static org.apache.commons.lang3;
     requires static org.yaml.snakeyaml;
 
+    // Metrics (latency histograms)
+    requires HdrHistogram;
+
     // Annotations
     requires static org.jetbrains.annotations;
 
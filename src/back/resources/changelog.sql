@@ -196,4 +196,229 @@ CREATE TABLE InviteCode(
     CONSTRAINT fk_invite_code_creator FOREIGN KEY (creatorId) REFERENCES User(id) ON DELETE SET NULL
 )
 
--- rollback drop table `InviteCode`;
\ No newline at end of file
+-- rollback drop table `InviteCode`;
+
+-- changeset dynamic:add_power_log_hourly
+
+-- Consumption of each device per hour, in Wh, between two power logs.
+-- Kept up to date by PowerLogTable.insert.
+CREATE TABLE PowerLogHourly(
+    deviceId INT NOT NULL,
+    hour DATETIME NOT NULL,
+    consumption DOUBLE NOT NULL DEFAULT 0,
+
+    PRIMARY KEY (deviceId, hour),
+    CONSTRAINT fk_powerloghourly_device FOREIGN KEY (deviceId) REFERENCES Device(id) ON DELETE CASCADE
+);
+
+-- To quickly find the last log of a device before some time.
+ALTER TABLE PowerLog
+    ADD INDEX idx_powerlog_device_time (deviceId, time);
+
+-- Fill the table with existing logs; devices can be on for more than 1000 hours.
+SET SESSION cte_max_recursion_depth = 1000000;
+
+INSERT INTO PowerLogHourly (deviceId, hour, consumption)
+WITH RECURSIVE Segments AS (SELECT s.deviceId, s.segStart, s.segEnd, s.energyConsumption
+                            FROM (SELECT p.deviceId,
+                                         p.time AS segStart,
+                                         LEAD(p.time, 1) OVER (PARTITION BY p.deviceId ORDER BY p.time, p.id) AS segEnd,
+                                         p.status,
+                                         p.energyConsumption
+                                  FROM PowerLog p) s
+                            WHERE s.status = 'POWER_ON' AND s.segEnd > s.segStart),
+               Hours AS (SELECT deviceId, segStart, segEnd, energyConsumption,
+                                CAST(DATE_FORMAT(segStart, '%Y-%m-%d %H:00:00') AS DATETIME) AS hour
+                         FROM Segments
+                         UNION ALL
+                         SELECT deviceId, segStart, segEnd, energyConsumption, hour + INTERVAL 1 HOUR
+                         FROM Hours
+                         WHERE hour + INTERVAL 1 HOUR < segEnd)
+SELECT deviceId, hour,
+       SUM(TIMESTAMPDIFF(SECOND, GREATEST(segStart, hour), LEAST(segEnd, hour + INTERVAL 1 HOUR))
+           * energyConsumption / 3600)
+FROM Hours
+GROUP BY deviceId, hour;
+
+-- rollback DROP TABLE PowerLogHourly;
+-- rollback ALTER TABLE PowerLog DROP INDEX idx_powerlog_device_time;
+
+-- changeset dynamic:add_device_attributes
+
+-- One row per attribute of each device, copied from Device.attributes, so we can query them using indexes.
+-- Kept in sync by DeviceTable. The value is in the column matching its type; other columns are NULL.
+CREATE TABLE DeviceAttribute(
+    deviceId INT NOT NULL,
+    type TINYINT NOT NULL, -- AttributeType enum
+    numValue DOUBLE NULL,
+    strValue VARCHAR(128) NULL,
+    boolValue BOOL NULL,
+
+    PRIMARY KEY (deviceId, type),
+    INDEX idx_deviceattribute_type_num (type, numValue),
+    CONSTRAINT fk_deviceattribute_device FOREIGN KEY (deviceId) REFERENCES Device(id) ON DELETE CASCADE
+);
+
+INSERT INTO DeviceAttribute (deviceId, type, numValue, strValue, boolValue)
+SELECT d.id,
+       attrKeys.value,
+       IF(JSON_TYPE(attrValues.value) IN ('INTEGER', 'UNSIGNED INTEGER', 'DECIMAL', 'DOUBLE'), attrValues.num, NULL),
+       IF(JSON_TYPE(attrValues.value) = 'STRING', attrValues.str, NULL),
+       IF(JSON_TYPE(attrValues.value) = 'BOOLEAN', attrValues.value = CAST('true' AS JSON), NULL)
+FROM Device d,
+     JSON_TABLE(d.attributes, '$[0][*]' COLUMNS (
+         idx FOR ORDINALITY,
+         value INT PATH '$'
+         )) AS attrKeys,
+     JSON_TABLE(d.attributes, '$[1][*]' COLUMNS (
+         idx FOR ORDINALITY,
+         value JSON PATH '$',
+         num DOUBLE PATH '$' NULL ON ERROR,
+         str VARCHAR(128) PATH '$' NULL ON ERROR
+         )) AS attrValues
+WHERE attrKeys.idx = attrValues.idx;
+
+-- rollback DROP TABLE DeviceAttribute;
+
+-- changeset dynamic:add_device_attributes_bin
+
+-- Device.attributes in a compact binary format (see AttributeMap), way faster to read than JSON.
+-- NULL until the device is updated, or converted by DeviceTable.backfillBinaryAttributes on startup;
+-- the JSON column is used in the meantime.
+ALTER TABLE Device ADD COLUMN attributesBin VARBINARY(1024) NULL AFTER attributes;
+
+-- rollback ALTER TABLE Device DROP COLUMN attributesBin;
+
+-- changeset dynamic:add_user_session
+
+-- Sessions of logged-in users, when using the MySQL session store (see MySQLSessionStore).
+-- Times are in milliseconds since the epoch; data is the session serialized by Vert.x.
+CREATE TABLE UserSession
+(
+    id           VARCHAR(64)     NOT NULL PRIMARY KEY,
+    data         VARBINARY(4096) NOT NULL,
+    timeout      BIGINT          NOT NULL,
+    lastAccessed BIGINT          NOT NULL,
+    expiresAt    BIGINT AS (lastAccessed + timeout) STORED,
+    INDEX idx_user_session_expires (expiresAt)
+);
+
+-- rollback DROP TABLE UserSession;
+
+-- changeset dynamic:partition_power_log
+
+-- Split PowerLog in one partition per month, so old months can be archived and dropped instantly,
+-- and queries on a time range only read the months they need.
+-- Monthly partitions are created by PowerLogRetentionVerticle, out of the pmax partition.
+
+-- Partitioned tables can't have foreign keys: DeviceTable.delete deletes the logs of the device instead.
+ALTER TABLE PowerLog DROP FOREIGN KEY PowerLog_ibfk_1;
+
+-- The primary key of a partitioned table must contain the partitioning column.
+ALTER TABLE PowerLog DROP PRIMARY KEY, ADD PRIMARY KEY (id, time);
+
+ALTER TABLE PowerLog PARTITION BY RANGE COLUMNS (time) (
+    PARTITION pmax VALUES LESS THAN (MAXVALUE)
+);
+
+-- rollback ALTER TABLE PowerLog REMOVE PARTITIONING;
+-- rollback ALTER TABLE PowerLog DROP PRIMARY KEY, ADD PRIMARY KEY (id);
+-- rollback DELETE FROM PowerLog WHERE deviceId NOT IN (SELECT id FROM Device);
+-- rollback ALTER TABLE PowerLog ADD CONSTRAINT PowerLog_ibfk_1 FOREIGN KEY (deviceId) REFERENCES Device(id) ON DELETE CASCADE;
+
+-- changeset dynamic:add_name_fulltext_indexes
+
+-- Full-text indexes for the search boxes, so they don't read the entire table (see FullTextSearch).
+-- The ngram parser cuts names in pieces of 2 characters, so words are found inside names, like INSTR did.
+
+-- Stopwords must be disabled before creating the indexes: with the ngram parser, all pieces that are stopwords
+-- ("la", "de", "en"...) would be left out of the index, and French names are full of them!
+SET SESSION innodb_ft_enable_stopword = OFF;
+
+CREATE FULLTEXT INDEX ft_user_name ON User (firstName, lastName) WITH PARSER ngram;
+CREATE FULLTEXT INDEX ft_room_name ON Room (name) WITH PARSER ngram;
+CREATE FULLTEXT INDEX ft_device_name ON Device (name) WITH PARSER ngram;
+
+-- rollback DROP INDEX ft_device_name ON Device;
+-- rollback DROP INDEX ft_room_name ON Room;
+-- rollback DROP INDEX ft_user_name ON User;
+
+-- changeset dynamic:add_action_log_filter_indexes
+
+-- One index per filter of ActionLogTable.query, followed by time: MySQL finds the logs matching the filter
+-- already sorted by time (then by id, which InnoDB adds to every index), and stops at the end of the page.
+-- The index on userId is replaced by (userId, time), which also works for the foreign key.
+CREATE INDEX idx_actionlog_user_time ON ActionLog (userId, time);
+CREATE INDEX idx_actionlog_target_type_time ON ActionLog (targetType, time);
+CREATE INDEX idx_actionlog_operation_time ON ActionLog (operation, time);
+DROP INDEX idx_actionlog_user ON ActionLog;
+
+-- rollback CREATE INDEX idx_actionlog_user ON ActionLog (userId);
+-- rollback DROP INDEX idx_actionlog_operation_time ON ActionLog;
+-- rollback DROP INDEX idx_actionlog_target_type_time ON ActionLog;
+-- rollback DROP INDEX idx_actionlog_user_time ON ActionLog;
+
+-- changeset dynamic:create_email_outbox
+
+-- E-mails waiting to be sent by EmailOutboxVerticle. Sent e-mails are deleted.
+-- nextAttemptAt is in milliseconds since the epoch; it's NULL when we gave up on the e-mail (kept to investigate).
+CREATE TABLE EmailOutbox
+(
+    id            BIGINT AUTO_INCREMENT PRIMARY KEY,
+    recipient     VARCHAR(255)  NOT NULL,
+    subject       VARCHAR(255)  NOT NULL,
+    body          MEDIUMTEXT    NOT NULL,
+    createdAt     BIGINT        NOT NULL,
+    attempts      INT           NOT NULL DEFAULT 0,
+    nextAttemptAt BIGINT        NULL,
+    lastError     VARCHAR(1000) NULL,
+    INDEX idx_email_outbox_next_attempt (nextAttemptAt)
+);
+
+-- rollback DROP TABLE EmailOutbox;
+
+-- changeset dynamic:create_table_version
+
+-- The version of each table, incremented by all servers when they change it; see TableVersions.
+CREATE TABLE TableVersion
+(
+    name    VARCHAR(64) PRIMARY KEY,
+    version BIGINT NOT NULL DEFAULT 0
+);
+
+-- rollback DROP TABLE TableVersion;
+
+-- changeset dynamic:split_power_log_partitions
+
+-- Splits the pmax partition of PowerLog in monthly partitions (pYYYYMM), from the month of the oldest log until
+-- two months from now. This moves all existing logs, so it's done once here, instead of by a server while it runs.
+-- Then, PowerLogRetentionVerticle only adds new months to an empty pmax, which is instant.
+SET SESSION group_concat_max_len = 1000000;
+
+SET @powerLogPartitions = (
+    WITH RECURSIVE Months AS (SELECT CAST(DATE_FORMAT(COALESCE(MIN(time), UTC_TIMESTAMP()), '%Y-%m-01') AS DATE) AS m
+                              FROM PowerLog
+                              UNION ALL
+                              SELECT m + INTERVAL 1 MONTH
+                              FROM Months
+                              WHERE m < CAST(DATE_FORMAT(UTC_TIMESTAMP(), '%Y-%m-01') AS DATE) + INTERVAL 2 MONTH)
+    SELECT GROUP_CONCAT(CONCAT('PARTITION p', DATE_FORMAT(m, '%Y%m'),
+                               ' VALUES LESS THAN (''', m + INTERVAL 1 MONTH, ''')')
+                        ORDER BY m SEPARATOR ', ')
+    FROM Months);
+
+SET @powerLogSplit = CONCAT('ALTER TABLE PowerLog REORGANIZE PARTITION pmax INTO (',
+                            @powerLogPartitions, ', PARTITION pmax VALUES LESS THAN (MAXVALUE))');
+PREPARE powerLogSplit FROM @powerLogSplit;
+EXECUTE powerLogSplit;
+DEALLOCATE PREPARE powerLogSplit;
+
+-- rollback ALTER TABLE PowerLog REMOVE PARTITIONING;
+-- rollback ALTER TABLE PowerLog PARTITION BY RANGE COLUMNS (time) (PARTITION pmax VALUES LESS THAN (MAXVALUE));
+
+-- changeset dynamic:add_email_outbox_substitutions
+
+-- The values replacing tags in the subject and body of the e-mail, for its recipient (a JSON object); see OutgoingEmail.
+ALTER TABLE EmailOutbox ADD COLUMN substitutions TEXT NULL AFTER body;
+
+-- rollback ALTER TABLE EmailOutbox DROP COLUMN substitutions;
@@ -970,4 +970,48 @@ INSERT INTO PowerLog (`deviceId`, `status`, `energyConsumption`, `time`) VALUES
 -- Fix the wrong powered values.
 UPDATE Device d
 SET powered = (SELECT IF(p.status = 'POWER_ON', TRUE, FALSE) FROM PowerLog p WHERE p.deviceId = d.id ORDER BY time DESC limit 1)
-WHERE d.id <> 0;
\ No newline at end of file
+WHERE d.id <> 0;
+
+-- Compute the hourly consumption of all devices (see the add_power_log_hourly changeset).
+SET SESSION cte_max_recursion_depth = 1000000;
+INSERT INTO PowerLogHourly (deviceId, hour, consumption)
+WITH RECURSIVE Segments AS (SELECT s.deviceId, s.segStart, s.segEnd, s.energyConsumption
+                            FROM (SELECT p.deviceId,
+                                         p.time AS segStart,
+                                         LEAD(p.time, 1) OVER (PARTITION BY p.deviceId ORDER BY p.time, p.id) AS segEnd,
+                                         p.status,
+                                         p.energyConsumption
+                                  FROM PowerLog p) s
+                            WHERE s.status = 'POWER_ON' AND s.segEnd > s.segStart),
+               Hours AS (SELECT deviceId, segStart, segEnd, energyConsumption,
+                                CAST(DATE_FORMAT(segStart, '%Y-%m-%d %H:00:00') AS DATETIME) AS hour
+                         FROM Segments
+                         UNION ALL
+                         SELECT deviceId, segStart, segEnd, energyConsumption, hour + INTERVAL 1 HOUR
+                         FROM Hours
+                         WHERE hour + INTERVAL 1 HOUR < segEnd)
+SELECT deviceId, hour,
+       SUM(TIMESTAMPDIFF(SECOND, GREATEST(segStart, hour), LEAST(segEnd, hour + INTERVAL 1 HOUR))
+           * energyConsumption / 3600)
+FROM Hours
+GROUP BY deviceId, hour;
+
+-- Fill the attribute table of all devices (see the add_device_attributes changeset).
+INSERT INTO DeviceAttribute (deviceId, type, numValue, strValue, boolValue)
+SELECT d.id,
+       attrKeys.value,
+       IF(JSON_TYPE(attrValues.value) IN ('INTEGER', 'UNSIGNED INTEGER', 'DECIMAL', 'DOUBLE'), attrValues.num, NULL),
+       IF(JSON_TYPE(attrValues.value) = 'STRING', attrValues.str, NULL),
+       IF(JSON_TYPE(attrValues.value) = 'BOOLEAN', attrValues.value = CAST('true' AS JSON), NULL)
+FROM Device d,
+     JSON_TABLE(d.attributes, '$[0][*]' COLUMNS (
+         idx FOR ORDINALITY,
+         value INT PATH '$'
+         )) AS attrKeys,
+     JSON_TABLE(d.attributes, '$[1][*]' COLUMNS (
+         idx FOR ORDINALITY,
+         value JSON PATH '$',
+         num DOUBLE PATH '$' NULL ON ERROR,
+         str VARCHAR(128) PATH '$' NULL ON ERROR
+         )) AS attrValues
+WHERE attrKeys.idx = attrValues.idx;
@@ -33,9 +33,13 @@ import {
 
 export interface GetActionLogsRequest {
     userId?: number;
-    desc?: boolean;
     operation?: ActionLogOperation;
     target?: ActionLogTarget;
+    since?: Date;
+    until?: Date;
+    cursor?: string;
+    limit?: number;
+    desc?: boolean;
 }
 
 /**
@@ -44,7 +48,7 @@ export interface GetActionLogsRequest {
 export class ActionLogsApi extends runtime.BaseAPI {
 
     /**
-     * Returns a list of action logs filtered by the provided parameters
+     * Returns a page of action logs filtered by the provided parameters, sorted by time.  To get the next page, send the same request with the `nextCursor` of the response as `cursor`. When `nextCursor` is null, there\'s no more logs.
      * Get filtered action logs
      */
     async getActionLogsRaw(requestParameters: GetActionLogsRequest, initOverrides?: RequestInit | runtime.InitOverrideFunction): Promise<runtime.ApiResponse<ActionLogsResponse>> {
@@ -54,10 +58,6 @@ export class ActionLogsApi extends runtime.BaseAPI {
             queryParameters['userId'] = requestParameters['userId'];
         }
 
-        if (requestParameters['desc'] != null) {
-            queryParameters['desc'] = requestParameters['desc'];
-        }
-
         if (requestParameters['operation'] != null) {
             queryParameters['operation'] = requestParameters['operation'];
         }
@@ -66,6 +66,26 @@ export class ActionLogsApi extends runtime.BaseAPI {
             queryParameters['target'] = requestParameters['target'];
         }
 
+        if (requestParameters['since'] != null) {
+            queryParameters['since'] = (requestParameters['since'] as any).toISOString();
+        }
+
+        if (requestParameters['until'] != null) {
+            queryParameters['until'] = (requestParameters['until'] as any).toISOString();
+        }
+
+        if (requestParameters['cursor'] != null) {
+            queryParameters['cursor'] = requestParameters['cursor'];
+        }
+
+        if (requestParameters['limit'] != null) {
+            queryParameters['limit'] = requestParameters['limit'];
+        }
+
+        if (requestParameters['desc'] != null) {
+            queryParameters['desc'] = requestParameters['desc'];
+        }
+
         const headerParameters: runtime.HTTPHeaders = {};
 
         const response = await this.request({
@@ -79,7 +99,7 @@ export class ActionLogsApi extends runtime.BaseAPI {
     }
 
     /**
-     * Returns a list of action logs filtered by the provided parameters
+     * Returns a page of action logs filtered by the provided parameters, sorted by time.  To get the next page, send the same request with the `nextCursor` of the response as `cursor`. When `nextCursor` is null, there\'s no more logs.
      * Get filtered action logs
      */
     async getActionLogs(requestParameters: GetActionLogsRequest = {}, initOverrides?: RequestInit | runtime.InitOverrideFunction): Promise<ActionLogsResponse> {
@@ -33,6 +33,12 @@ export interface ActionLogsResponse {
      * @memberof ActionLogsResponse
      */
     logs: Array<CompleteActionLog>;
+    /**
+     * the `cursor` parameter to use to get the next page; `null` when there's no more logs
+     * @type {string}
+     * @memberof ActionLogsResponse
+     */
+    nextCursor?: string;
 }
 
 /**
@@ -54,6 +60,7 @@ export function ActionLogsResponseFromJSONTyped(json: any, ignoreDiscriminator:
     return {
         
         'logs': ((json['logs'] as Array<any>).map(CompleteActionLogFromJSON)),
+        'nextCursor': json['nextCursor'] == null ? undefined : json['nextCursor'],
     };
 }
 
@@ -69,6 +76,7 @@ export function ActionLogsResponseToJSONTyped(value?: ActionLogsResponse | null,
     return {
         
         'logs': ((value['logs'] as Array<any>).map(CompleteActionLogToJSON)),
+        'nextCursor': value['nextCursor'],
     };
 }
 
@@ -0,0 +1,61 @@
+package fr.domotique.bench;
+
+import fr.domotique.data.*;
+import io.vertx.core.buffer.*;
+import io.vertx.core.json.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/// Benchmarks the conversion of device and device type attributes, from and to their JSON
+/// and binary formats in the database.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AttributesBenchmark {
+    JsonArray deviceJson;
+    Buffer deviceBin;
+    AttributeMap deviceAttributes;
+    JsonArray deviceTypeJson;
+    EnumSet<AttributeType> deviceTypeAttributes;
+
+    @Setup
+    public void setup() {
+        deviceJson = new JsonArray(BenchData.DEVICE_ATTRIBUTES_JSON);
+        deviceAttributes = Device.attributesFromDB(deviceJson);
+        deviceBin = deviceAttributes.toBinary();
+        deviceTypeJson = new JsonArray(BenchData.DEVICE_TYPE_ATTRIBUTES_JSON);
+        deviceTypeAttributes = DeviceType.attributesFromDB(deviceTypeJson);
+    }
+
+    @Benchmark
+    public AttributeMap deviceFromDB() {
+        return Device.attributesFromDB(deviceJson);
+    }
+
+    @Benchmark
+    public AttributeMap deviceFromBinary() {
+        return AttributeMap.fromBinary(deviceBin);
+    }
+
+    @Benchmark
+    public Buffer deviceToBinary() {
+        return deviceAttributes.toBinary();
+    }
+
+    @Benchmark
+    public JsonArray deviceToDB() {
+        return Device.attributesToDB(deviceAttributes);
+    }
+
+    @Benchmark
+    public EnumSet<AttributeType> deviceTypeFromDB() {
+        return DeviceType.attributesFromDB(deviceTypeJson);
+    }
+
+    @Benchmark
+    public JsonArray deviceTypeToDB() {
+        return DeviceType.attributesToDB(deviceTypeAttributes);
+    }
+}
@@ -0,0 +1,77 @@
+package fr.domotique.bench;
+
+import fr.domotique.data.*;
+import io.vertx.core.buffer.*;
+import io.vertx.core.json.*;
+
+import java.util.*;
+
+/// Sample data used by all benchmarks, looking like what we have in the database.
+final class BenchData {
+    private BenchData() {
+    }
+
+    /// The JSON of `Device.attributes`, like MySQL gives it.
+    static final String DEVICE_ATTRIBUTES_JSON = "[[0, 1, 4, 5, 6], [1250.5, 340.0, 72.0, 120.0, 98.5]]";
+
+    /// The same attributes as [#DEVICE_ATTRIBUTES_JSON], in the binary format of `Device.attributesBin`.
+    static final Buffer DEVICE_ATTRIBUTES_BIN = Device.attributesFromDB(new JsonArray(DEVICE_ATTRIBUTES_JSON)).toBinary();
+
+    /// The JSON of `DeviceType.attributes`, like MySQL gives it.
+    static final String DEVICE_TYPE_ATTRIBUTES_JSON = "[0, 1, 4, 5, 6]";
+
+    /// Adds the columns of a UserProfile to the row, or `NULL`s when `exists` is false (for a `LEFT JOIN`).
+    static void addUserProfile(SyntheticRow row, int id, boolean exists) {
+        row.add("id", exists ? id : null)
+            .add("firstName", exists ? "Juréma" : null)
+            .add("lastName", exists ? "Deveri" : null)
+            .add("role", exists ? (byte) Role.CAREGIVER.ordinal() : null)
+            .add("level", exists ? (byte) Level.ADVANCED.ordinal() : null)
+            .add("points", exists ? 240 : null)
+            .add("gender", exists ? (byte) 1 : null);
+    }
+
+    /// Creates a row matching `DeviceTable.COMPLETE_MANY_SQL`, to use with `CompleteDevice.MAP`.
+    ///
+    /// @param withJoins when false, the room, owner and deletion user are all `NULL`.
+    static SyntheticRow completeDeviceRow(boolean withJoins) {
+        var row = new SyntheticRow()
+            // Device
+            .add("id", 42)
+            .add("name", "Montre connectée")
+            .add("description", "Une montre qui mesure le rythme cardiaque.")
+            // MySQL doesn't send the JSON when the binary attributes are there
+            .add("attributes", null)
+            .add("attributesBin", DEVICE_ATTRIBUTES_BIN)
+            .add("powered", true)
+            .add("energyConsumption", 2.5)
+            // DeviceType
+            .add("id", 3)
+            .add("name", "Montre")
+            .add("category", (byte) 1)
+            .add("attributes", new JsonArray(DEVICE_TYPE_ATTRIBUTES_JSON))
+            // Room
+            .add("id", withJoins ? 7 : null)
+            .add("name", withJoins ? "Chambre 7" : null)
+            .add("color", withJoins ? 0x2E86C1 : null);
+
+        addUserProfile(row, 10, withJoins); // Room owner
+        addUserProfile(row, 11, withJoins); // Device owner
+        addUserProfile(row, 12, withJoins); // User requesting deletion
+        return row;
+    }
+
+    /// Creates a device with some attributes.
+    static Device device() {
+        return new Device(42, "Montre connectée", "Une montre qui mesure le rythme cardiaque.",
+            3, 7, 11,
+            Device.attributesFromDB(new JsonArray(DEVICE_ATTRIBUTES_JSON)),
+            true, 2.5, null);
+    }
+
+    /// Creates an action log with a few flags.
+    static ActionLog actionLog() {
+        return new ActionLog(11, 42, ActionLogTarget.DEVICE, ActionLogOperation.UPDATE,
+            EnumSet.of(ActionLogFlags.POWER_ON, ActionLogFlags.DELETE_REQUESTED));
+    }
+}
@@ -0,0 +1,48 @@
+package fr.domotique.bench;
+
+import fr.domotique.base.data.*;
+import fr.domotique.data.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/// Benchmarks the arguments generated by [EntityInfo] for `INSERT` and `UPDATE` queries,
+/// and the conversion of [ActionLogFlags].
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EntityBenchmark {
+    Device device;
+    ActionLog actionLog;
+
+    /// Flags value, with a few flags set.
+    long flags;
+
+    @Setup
+    public void setup() {
+        device = BenchData.device();
+        actionLog = BenchData.actionLog();
+        flags = ActionLogFlags.toLong(actionLog.getFlags());
+    }
+
+    @Benchmark
+    public Object[] deviceInsertArguments() {
+        return Device.ENTITY.genInsertArguments(device);
+    }
+
+    @Benchmark
+    public Object[] deviceUpdateArguments() {
+        return Device.ENTITY.genUpdateArguments(device);
+    }
+
+    @Benchmark
+    public Object[] actionLogInsertArguments() {
+        return ActionLog.ENTITY.genInsertArguments(actionLog);
+    }
+
+    @Benchmark
+    public EnumSet<ActionLogFlags> actionLogFlagsFromLong() {
+        return ActionLogFlags.fromLong(flags);
+    }
+}
@@ -0,0 +1,147 @@
+package fr.domotique.bench;
+
+import fr.domotique.*;
+import io.vertx.core.*;
+import io.vertx.core.buffer.*;
+import io.vertx.core.json.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+
+/// Compares the two ways of running a route handler: on the event loop, chaining futures, or in a
+/// [VirtualThreadVerticle] using `await()`.
+///
+/// The handler is shaped like `POST /api/devices` (createDevice): [#QUERIES] database queries one after the other,
+/// then the response is encoded to JSON. The database is simulated: each query completes on another event loop
+/// (like the MySQL client's connection), after `dbLatencyMs` milliseconds, so we only measure how the handler runs,
+/// not MySQL.
+///
+/// Many benchmark threads send requests at the same time, like browsers do. Look at:
+/// - `thrpt`: requests per millisecond
+/// - `sample`: latency, with its `p0.99` percentile
+@State(Scope.Benchmark)
+@Threads(64)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExecutionModeBenchmark {
+    /// Queries run by createDevice: device insert and its attributes, the power log (lock, previous and next logs,
+    /// insert, hourly consumption), the action log, then the complete device.
+    static final int QUERIES = 9;
+
+    /// How long a simulated query takes; 0 only measures the thread hops.
+    @Param({"0", "1"})
+    public int dbLatencyMs;
+
+    Vertx vertx;
+    /// Event loops playing the role of the RouterVerticles.
+    Context[] eventLoops;
+    /// The event loop of the simulated database connection.
+    Context database;
+
+    /// The response of the handler.
+    record CreatedDevice(int id, String name, boolean powered, double energyConsumption) {}
+
+    @Setup
+    public void setup() {
+        vertx = Vertx.vertx();
+
+        int instances = Runtime.getRuntime().availableProcessors();
+        vertx.deployVerticle(() -> new VirtualThreadVerticle(),
+                new DeploymentOptions().setInstances(instances).setThreadingModel(ThreadingModel.VIRTUAL_THREAD))
+            .toCompletionStage().toCompletableFuture().join();
+
+        // Outside Vert.x threads, each call creates a new event loop context.
+        eventLoops = new Context[instances];
+        for (int i = 0; i < instances; i++) {
+            eventLoops[i] = vertx.getOrCreateContext();
+        }
+        database = vertx.getOrCreateContext();
+    }
+
+    @TearDown
+    public void tearDown() {
+        vertx.close().toCompletionStage().toCompletableFuture().join();
+    }
+
+    /// The event loop used by a benchmark thread, like a browser connected to one RouterVerticle.
+    @State(Scope.Thread)
+    public static class Connection {
+        private static final AtomicInteger next = new AtomicInteger();
+
+        Context eventLoop;
+
+        @Setup
+        public void setup(ExecutionModeBenchmark bench) {
+            eventLoop = bench.eventLoops[next.getAndIncrement() % bench.eventLoops.length];
+        }
+    }
+
+    @Benchmark
+    public Buffer eventLoop(Connection conn) {
+        var result = new CompletableFuture<Buffer>();
+        conn.eventLoop.runOnContext(_ -> createDeviceAsync().onComplete(res -> complete(result, res)));
+        return result.join();
+    }
+
+    @Benchmark
+    public Buffer virtualThread(Connection conn) {
+        var result = new CompletableFuture<Buffer>();
+        conn.eventLoop.runOnContext(_ -> VirtualThreadVerticle.run(this::createDeviceVt)
+            .onComplete(res -> complete(result, res)));
+        return result.join();
+    }
+
+    /// createDevice, written with futures.
+    Future<Buffer> createDeviceAsync() {
+        Future<Integer> f = query(0);
+        for (int i = 1; i < QUERIES; i++) {
+            f = f.compose(this::query);
+        }
+        return f.map(ExecutionModeBenchmark::respond);
+    }
+
+    /// createDevice, written with await.
+    Buffer createDeviceVt() {
+        int value = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            value = query(value).await();
+        }
+        return respond(value);
+    }
+
+    /// A simulated query, completing on the database event loop.
+    Future<Integer> query(int value) {
+        Context caller = Vertx.currentContext();
+        Promise<Integer> promise = Promise.promise();
+
+        Handler<Void> complete;
+        if (caller != null && caller.isEventLoopContext()) {
+            // Like the SQL client: callbacks run back on the event loop of the caller.
+            complete = _ -> caller.runOnContext(_ -> promise.complete(value + 1));
+        } else {
+            // A virtual thread only needs to be woken up.
+            complete = _ -> promise.complete(value + 1);
+        }
+
+        if (dbLatencyMs == 0) {
+            database.runOnContext(complete);
+        } else {
+            database.runOnContext(_ -> vertx.setTimer(dbLatencyMs, _ -> complete.handle(null)));
+        }
+        return promise.future();
+    }
+
+    static Buffer respond(int id) {
+        return Json.encodeToBuffer(new CreatedDevice(id, "Lampe du salon", true, 12.5));
+    }
+
+    private static <T> void complete(CompletableFuture<T> result, AsyncResult<T> res) {
+        if (res.succeeded()) {
+            result.complete(res.result());
+        } else {
+            result.completeExceptionally(res.cause());
+        }
+    }
+}
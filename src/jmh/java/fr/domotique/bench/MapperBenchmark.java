@@ -0,0 +1,39 @@
+package fr.domotique.bench;
+
+import fr.domotique.api.devices.*;
+import fr.domotique.base.data.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.*;
+
+/// Benchmarks [Mapper] with [CompleteDevice#MAP], which is run for every row of `GET /api/devices`.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MapperBenchmark {
+    /// A device with its room, owner, and deletion user.
+    SyntheticRow fullRow;
+    /// A device without room, owner or deletion user; the mappers skip the NULL columns.
+    SyntheticRow nullJoinsRow;
+
+    @Setup
+    public void setup() {
+        fullRow = BenchData.completeDeviceRow(true);
+        nullJoinsRow = BenchData.completeDeviceRow(false);
+    }
+
+    @Benchmark
+    public CompleteDevice completeDevice() {
+        return CompleteDevice.MAP.apply(fullRow);
+    }
+
+    @Benchmark
+    public CompleteDevice completeDeviceNullJoins() {
+        return CompleteDevice.MAP.apply(nullJoinsRow);
+    }
+
+    @Benchmark
+    public CompleteDevice completeDeviceWithSession() {
+        return CompleteDevice.MAP.apply(fullRow, new Mapper.Session());
+    }
+}
@@ -0,0 +1,73 @@
+package fr.domotique.bench;
+
+import io.vertx.sqlclient.*;
+
+import java.util.*;
+
+/// A fake SQL [Row] containing values we give it, so we can benchmark mappers without any database.
+///
+/// Values must have the same Java types as the ones given by the MySQL client:
+/// `Integer` for `INT`, `Byte` for `TINYINT`, `JsonArray` for `JSON`, etc.
+///
+/// ## Example
+/// ```java
+/// var row = new SyntheticRow()
+///     .add("id", 5)
+///     .add("name", "Cookie")
+///     .add("category", (byte) 2);
+/// ```
+public final class SyntheticRow implements Row {
+    private final ArrayList<String> names = new ArrayList<>();
+    private final ArrayList<Object> values = new ArrayList<>();
+
+    /// Adds a column with the given name and value.
+    public SyntheticRow add(String name, Object value) {
+        names.add(name);
+        values.add(value);
+        return this;
+    }
+
+    @Override
+    public String getColumnName(int pos) {
+        return names.get(pos);
+    }
+
+    @Override
+    public int getColumnIndex(String column) {
+        return names.indexOf(column);
+    }
+
+    @Override
+    public Object getValue(int pos) {
+        return values.get(pos);
+    }
+
+    @Override
+    public Tuple addValue(Object value) {
+        return add("col" + values.size(), value);
+    }
+
+    public Tuple setValue(int pos, Object value) {
+        values.set(pos, value);
+        return this;
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public void clear() {
+        names.clear();
+        values.clear();
+    }
+
+    public List<Class<?>> types() {
+        var types = new ArrayList<Class<?>>(values.size());
+        for (Object v : values) {
+            types.add(v == null ? Object.class : v.getClass());
+        }
+        return types;
+    }
+}
@@ -0,0 +1,596 @@
+package fr.domotique.loadtest;
+
+import fr.domotique.*;
+import fr.domotique.api.users.*;
+import fr.domotique.base.data.*;
+import fr.domotique.data.*;
+import io.vertx.core.*;
+import io.vertx.ext.auth.hashing.*;
+import io.vertx.ext.auth.prng.*;
+import io.vertx.mysqlclient.*;
+import io.vertx.sqlclient.*;
+import io.vertx.sqlclient.PoolOptions;
+import org.slf4j.*;
+
+import java.time.*;
+import java.time.temporal.*;
+import java.util.*;
+import java.util.function.*;
+
+import static fr.domotique.loadtest.LoadTest.*;
+
+/// Fills an empty database with a realistic EHPAD, as big as we want, to see how the server behaves
+/// with years of data instead of the few rows of `seed.sql`.
+///
+/// ## What's generated?
+///
+/// - users: mostly residents, one caregiver out of 5, and a few admins. All have the same password,
+///   [#PASSWORD], and the e-mail `user<n>@loadtest.domotique.fr`, from 1 to the number of users
+///   (that's how the [TrafficDriver] logs in).
+/// - rooms: common rooms (dining room, infirmary...), then bedrooms owned by residents
+/// - device types: lamps, thermostats, watches, blood pressure monitors... with their [AttributeType]s
+/// - devices with random attribute values; health and sport devices belong to the owner of their bedroom
+/// - power logs of each device, turning on and off a few times a day, with their hourly consumption
+///   in `PowerLogHourly`, exactly like [PowerLogTable#insert(PowerLog)] would have calculated it
+/// - action logs and login logs, mostly during the day
+///
+/// Everything is random, but always the same for the same `seed`.
+///
+/// ## How?
+///
+/// Rows are sent using batched queries of [#BATCH_SIZE] rows, with [#MAX_IN_FLIGHT] batches sent at once.
+/// Logs are never all in memory: they're sent while they're generated. When possible, we use the same methods
+/// as the server ([DeviceTable#insertBatch(List)], [PowerLogTable#insertFirstLogs(List)]...), so the rows
+/// are exactly what the server would have written.
+///
+/// Power logs are inserted device by device, so their ids aren't in the order of time, unlike on a real server.
+///
+/// ## Options
+///
+/// | Property                        | Default | Description                                       |
+/// |---------------------------------|---------|---------------------------------------------------|
+/// | `loadtest.users`                | 1000    | Number of users                                   |
+/// | `loadtest.rooms`                | 500     | Number of rooms                                   |
+/// | `loadtest.deviceTypes`          | 30      | Number of device types                            |
+/// | `loadtest.devices`              | 3000    | Number of devices                                 |
+/// | `loadtest.years`                | 1       | Years of logs, until now                          |
+/// | `loadtest.powerChangesPerDay`   | 4       | Average power logs of each device per day         |
+/// | `loadtest.actionsPerUserPerDay` | 0.5     | Average action logs of each user per day          |
+/// | `loadtest.loginsPerUserPerDay`  | 1       | Average login logs of each user per day           |
+/// | `loadtest.seed`                 | 42      | Seed of the random generator                      |
+///
+/// With the default options, that's about 4.4 million power logs, and 3 to 4 times as many hourly consumption rows.
+public final class DataGenerator {
+    private static final Logger log = LoggerFactory.getLogger(DataGenerator.class);
+
+    /// The password of all generated users.
+    public static final String PASSWORD = "loadtest";
+    /// The domain of the e-mails of all generated users.
+    public static final String EMAIL_DOMAIN = "loadtest.domotique.fr";
+
+    /// How many rows are sent in one batched query.
+    static final int BATCH_SIZE = 1000;
+    /// How many batched queries are sent at once, without waiting for the previous ones.
+    static final int MAX_IN_FLIGHT = 4;
+
+    private static final String INSERT_HOURLY_SQL = "INSERT INTO PowerLogHourly (deviceId, hour, consumption) VALUES (?, ?, ?)";
+
+    private static final String[] COMMON_ROOMS = {
+        "Accueil", "Salle à manger", "Salon", "Infirmerie", "Salle d'activités", "Salle de sport",
+        "Bibliothèque", "Cuisine", "Jardin", "Salon de coiffure", "Salle de kinésithérapie", "Chapelle"
+    };
+
+    private static final String[] MALE_NAMES = {
+        "Jean", "Pierre", "Michel", "André", "Philippe", "René", "Louis", "Alain", "Jacques", "Bernard",
+        "Marcel", "Daniel", "Roger", "Robert", "Paul", "Claude", "Christian", "Henri", "Georges", "Nicolas"
+    };
+    private static final String[] FEMALE_NAMES = {
+        "Marie", "Jeanne", "Françoise", "Monique", "Catherine", "Nathalie", "Isabelle", "Jacqueline", "Anne",
+        "Sylvie", "Martine", "Madeleine", "Nicole", "Suzanne", "Hélène", "Christiane", "Simone", "Denise", "Yvette", "Odette"
+    };
+    private static final String[] LAST_NAMES = {
+        "Martin", "Bernard", "Thomas", "Petit", "Robert", "Richard", "Durand", "Dubois", "Moreau", "Laurent",
+        "Simon", "Michel", "Lefebvre", "Leroy", "Roux", "David", "Bertrand", "Morel", "Fournier", "Girard",
+        "Bonnet", "Dupont", "Lambert", "Fontaine", "Rousseau", "Vincent", "Muller", "Lefèvre", "Faure", "André"
+    };
+
+    /// A kind of device type, used to make device types. When we need more device types than kinds,
+    /// we make other models of the same kinds ("Thermostat 2", "Thermostat 3"...).
+    private record DeviceKind(String name, DeviceCategory category, EnumSet<AttributeType> attributes) {}
+
+    private static final List<DeviceKind> DEVICE_KINDS = List.of(
+        new DeviceKind("Lampe connectée", DeviceCategory.LIGHTING, EnumSet.of(AttributeType.LIGHT_INTENSITY)),
+        new DeviceKind("Thermostat", DeviceCategory.TEMPERATURE_REGULATION, EnumSet.of(AttributeType.TEMPERATURE, AttributeType.HUMIDITY)),
+        new DeviceKind("Radiateur", DeviceCategory.TEMPERATURE_REGULATION, EnumSet.of(AttributeType.TEMPERATURE)),
+        new DeviceKind("Montre connectée", DeviceCategory.HEALTH, EnumSet.of(AttributeType.HEART_RATE, AttributeType.STEPS,
+            AttributeType.LAST_SLEEP_DURATION, AttributeType.BATTERY_LEVEL)),
+        new DeviceKind("Tensiomètre", DeviceCategory.HEALTH, EnumSet.of(AttributeType.BLOOD_PRESSURE, AttributeType.HEART_RATE)),
+        new DeviceKind("Oxymètre", DeviceCategory.HEALTH, EnumSet.of(AttributeType.BLOOD_OXYGEN, AttributeType.HEART_RATE)),
+        new DeviceKind("Glucomètre", DeviceCategory.HEALTH, EnumSet.of(AttributeType.BLOOD_GLUCOSE, AttributeType.BATTERY_LEVEL)),
+        new DeviceKind("Thermomètre médical", DeviceCategory.HEALTH, EnumSet.of(AttributeType.BODY_TEMPERATURE, AttributeType.RESPIRATORY_RATE)),
+        new DeviceKind("Balance connectée", DeviceCategory.HEALTH, EnumSet.of(AttributeType.BODY_WEIGHT, AttributeType.FAT_PERCENTAGE,
+            AttributeType.BODY_HEIGHT)),
+        new DeviceKind("Vélo d'appartement", DeviceCategory.SPORT, EnumSet.of(AttributeType.CALORIES_BURNED,
+            AttributeType.ACTIVITY_DURATION, AttributeType.HEART_RATE, AttributeType.MAX_VO2)),
+        new DeviceKind("Détecteur de mouvement", DeviceCategory.SECURITY, EnumSet.of(AttributeType.BATTERY_LEVEL)),
+        new DeviceKind("Four", DeviceCategory.KITCHEN, EnumSet.of(AttributeType.TEMPERATURE)),
+        new DeviceKind("Arrosage automatique", DeviceCategory.GARDENING, EnumSet.of(AttributeType.HUMIDITY))
+    );
+
+    /// All options of the generator, described in the [DataGenerator] documentation.
+    public record Options(int users, int rooms, int deviceTypes, int devices, int years,
+                          double powerChangesPerDay, double actionsPerUserPerDay, double loginsPerUserPerDay,
+                          long seed) {
+        public Options {
+            if (users < 1 || rooms < 1 || deviceTypes < 1) {
+                throw new IllegalArgumentException("There must be at least one user, room and device type.");
+            }
+            if (devices < 0 || years < 0 || powerChangesPerDay <= 0 || actionsPerUserPerDay < 0 || loginsPerUserPerDay < 0) {
+                throw new IllegalArgumentException("Counts can't be negative, and devices must change their power at least sometimes.");
+            }
+        }
+
+        static Options fromSystemProperties() {
+            return new Options(
+                intProperty("users", 1000),
+                intProperty("rooms", 500),
+                intProperty("deviceTypes", 30),
+                intProperty("devices", 3000),
+                intProperty("years", 1),
+                doubleProperty("powerChangesPerDay", 4),
+                doubleProperty("actionsPerUserPerDay", 0.5),
+                doubleProperty("loginsPerUserPerDay", 1),
+                Long.getLong("loadtest.seed", 42)
+            );
+        }
+    }
+
+    private final Vertx vertx;
+    private final Pool pool;
+    private final Database db;
+    private final Options options;
+    private final Random random;
+
+    /// Logs are generated from `start` to `end`.
+    private final Instant start;
+    private final Instant end;
+
+    private final List<User> users = new ArrayList<>();
+    /// Caregivers and admins: they do most of the changes.
+    private final List<User> staff = new ArrayList<>();
+    private final List<Room> rooms = new ArrayList<>();
+    private final List<DeviceType> deviceTypes = new ArrayList<>();
+    private final List<Device> devices = new ArrayList<>();
+
+    private DataGenerator(Vertx vertx, Pool pool, Options options) {
+        this.vertx = vertx;
+        this.pool = pool;
+        this.db = new Database(pool);
+        this.options = options;
+        this.random = new Random(options.seed());
+
+        this.end = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        this.start = end.atZone(ZoneOffset.UTC).minusYears(options.years()).toInstant();
+    }
+
+    static void main(Config config, Options options) {
+        Vertx vertx = Vertx.vertx();
+        Pool pool = MySQLBuilder.pool()
+            .with(new PoolOptions().setMaxSize(MAX_IN_FLIGHT * 2))
+            .connectingTo(MySQLConnectOptions.fromUri(config.databaseUri()))
+            .using(vertx)
+            .build();
+
+        try {
+            new DataGenerator(vertx, pool, options).run();
+        } finally {
+            join(pool.close());
+            join(vertx.close());
+        }
+    }
+
+    /// The e-mail of the generated user number `n`, starting from 1.
+    public static String email(int n) {
+        return "user" + n + "@" + EMAIL_DOMAIN;
+    }
+
+    private void run() {
+        Long existing = join(pool.preparedQuery("SELECT COUNT(*) FROM User WHERE email LIKE ?")
+            .execute(Tuple.of("%@" + EMAIL_DOMAIN))
+            .map(rs -> rs.iterator().next().getLong(0)));
+        if (existing > 0) {
+            throw new IllegalStateException("The database already contains generated data: use an empty database.");
+        }
+
+        log.info("Generating an EHPAD with {}, logs from {} to {}", options, start, end);
+
+        step("users", this::generateUsers);
+        step("rooms", this::generateRooms);
+        step("device types", this::generateDeviceTypes);
+        step("devices", this::generateDevices);
+        step("power logs", this::generatePowerLogs);
+        step("action logs", this::generateActionLogs);
+        step("login logs", this::generateLoginLogs);
+
+        log.info("Done! Log in with {} (or any other number) and the password \"{}\"", email(1), PASSWORD);
+    }
+
+    private void step(String name, LongSupplier generate) {
+        long begin = System.nanoTime();
+        long count = generate.getAsLong();
+        log.info("Inserted {} {} in {} s", count, name, (System.nanoTime() - begin) / 1_000_000_000.0);
+    }
+
+    // region Entities
+    private long generateUsers() {
+        // Hashing a password takes a while (on purpose!), so all users share the same hash.
+        String passHash = HashingStrategy.load().hash("pbkdf2",
+            Collections.emptyMap(),
+            VertxContextPRNG.current(vertx).nextString(16),
+            PASSWORD);
+
+        for (int n = 1; n <= options.users(); n++) {
+            Role role;
+            if (n == 1 || n % 100 == 0) {
+                role = Role.ADMIN;
+            } else if (n % 5 == 0) {
+                role = Role.CAREGIVER;
+            } else {
+                role = Role.RESIDENT;
+            }
+
+            // Staff uses the app a lot: they're all experts. Residents are all over the place.
+            int points = role == Role.RESIDENT
+                ? random.nextInt(UserOperations.EXPERT_POINTS * 3 / 2)
+                : UserOperations.EXPERT_POINTS + random.nextInt(1000);
+
+            Gender gender = random.nextBoolean() ? Gender.MALE : Gender.FEMALE;
+            String firstName = pick(gender == Gender.MALE ? MALE_NAMES : FEMALE_NAMES);
+
+            var user = new User(0, email(n), 0, true, passHash, firstName, pick(LAST_NAMES),
+                gender, role, levelOf(points), points);
+            users.add(user);
+            if (role != Role.RESIDENT) {
+                staff.add(user);
+            }
+        }
+
+        insertAll(User.ENTITY, users, User::setId);
+        return users.size();
+    }
+
+    private long generateRooms() {
+        List<User> residents = users.stream().filter(u -> u.getRole() == Role.RESIDENT).toList();
+
+        for (int i = 0; i < options.rooms(); i++) {
+            Room room;
+            if (i < COMMON_ROOMS.length || residents.isEmpty()) {
+                String name = i < COMMON_ROOMS.length ? COMMON_ROOMS[i] : "Salle " + i;
+                room = new Room(0, name, random.nextInt(0x1000000), null);
+            } else {
+                // Bedrooms numbered by floor: 101, 102... 201, 202...
+                int number = i - COMMON_ROOMS.length;
+                User owner = residents.get(number % residents.size());
+                room = new Room(0, "Chambre " + ((number / 40 + 1) * 100 + number % 40 + 1),
+                    random.nextInt(0x1000000), owner.getId());
+            }
+            rooms.add(room);
+        }
+
+        insertAll(Room.ENTITY, rooms, Room::setId);
+        return rooms.size();
+    }
+
+    private long generateDeviceTypes() {
+        for (int i = 0; i < options.deviceTypes(); i++) {
+            DeviceKind kind = DEVICE_KINDS.get(i % DEVICE_KINDS.size());
+            int model = i / DEVICE_KINDS.size() + 1;
+            String name = model == 1 ? kind.name() : kind.name() + " " + model;
+            deviceTypes.add(new DeviceType(0, name, kind.category(), EnumSet.copyOf(kind.attributes())));
+        }
+
+        insertAll(DeviceType.ENTITY, deviceTypes, DeviceType::setId);
+        return deviceTypes.size();
+    }
+
+    private long generateDevices() {
+        List<Room> bedrooms = rooms.stream().filter(r -> r.getOwnerId() != null).toList();
+
+        for (int i = 0; i < options.devices(); i++) {
+            DeviceType type = pick(deviceTypes);
+
+            // Health and sport devices are personal: they're in the bedroom of their owner.
+            boolean personal = type.getCategory() == DeviceCategory.HEALTH || type.getCategory() == DeviceCategory.SPORT;
+            Room room = personal && !bedrooms.isEmpty() ? pick(bedrooms) : pick(rooms);
+            Integer ownerId = personal ? room.getOwnerId() : null;
+
+            var attributes = new AttributeMap();
+            for (AttributeType attr : type.getAttributes()) {
+                if (attr.content == AttributeType.Content.NUMBER) {
+                    attributes.putDouble(attr, randomValue(attr));
+                } else {
+                    attributes.put(attr, attr.defaultValue());
+                }
+            }
+
+            boolean powered = random.nextDouble() < (type.getCategory() == DeviceCategory.LIGHTING ? 0.3 : 0.7);
+            devices.add(new Device(0, type.getName() + " - " + room.getName(), null, type.getId(), room.getId(),
+                ownerId, attributes, powered, randomPower(type.getCategory()), null));
+        }
+
+        join(db.devices().insertBatch(devices));
+        return devices.size();
+    }
+    // endregion
+
+    // region Logs
+    private long generatePowerLogs() {
+        List<YearMonth> partitions = join(db.powerLogs().getMonthlyPartitions());
+        if (partitions != null && !partitions.isEmpty()) {
+            log.warn("PowerLog already has monthly partitions: all old logs will go in the first one, {}", partitions.getFirst());
+        }
+
+        var logs = new BatchWriter<PowerLog>(db.powerLogs()::insertFirstLogs);
+        var hourly = new BatchWriter<Tuple>(chunk -> pool.preparedQuery(INSERT_HOURLY_SQL).executeBatch(chunk));
+
+        for (Device device : devices) {
+            List<PowerLog> timeline = powerTimeline(device);
+
+            // Same as the server: each closed POWER_ON segment adds its consumption to the hours it covers.
+            var consumption = new TreeMap<Instant, Double>();
+            for (int i = 0; i + 1 < timeline.size(); i++) {
+                PowerLog on = timeline.get(i);
+                if ("POWER_ON".equals(on.getStatus())) {
+                    addConsumption(consumption, on.getTime(), timeline.get(i + 1).getTime(), on.getEnergyConsumption());
+                }
+            }
+
+            timeline.forEach(logs::add);
+            consumption.forEach((hour, wh) ->
+                hourly.add(Tuple.of(device.getId(), LocalDateTime.ofInstant(hour, ZoneOffset.UTC), wh)));
+        }
+
+        long count = logs.finish();
+        long hours = hourly.finish();
+        log.info("Inserted {} hourly consumption rows", hours);
+
+        // Split the logs in monthly partitions now, like PowerLogRetentionVerticle does (2 months in advance).
+        int created = join(db.powerLogs().ensureMonthlyPartitions(YearMonth.now(ZoneOffset.UTC).plusMonths(2)));
+        log.info("Created {} monthly partitions for power logs", created);
+
+        return count;
+    }
+
+    /// Makes the power logs of a device, oldest first. We go back in time from now, so the last log matches
+    /// the current power state of the device.
+    private List<PowerLog> powerTimeline(Device device) {
+        var timeline = new ArrayList<PowerLog>();
+        double meanSeconds = 86400 / options.powerChangesPerDay();
+
+        boolean powered = device.isPowered();
+        Instant t = end;
+        while (true) {
+            t = t.minusSeconds(1 + (long) (-Math.log(1 - random.nextDouble()) * meanSeconds));
+            if (t.isBefore(start)) {
+                break;
+            }
+
+            timeline.add(new PowerLog(device.getId(), powered ? "POWER_ON" : "POWER_OFF", device.getEnergyConsumption(), t));
+            powered = !powered;
+        }
+
+        Collections.reverse(timeline);
+        return timeline;
+    }
+
+    /// Adds the consumption of a device powered on from `from` to `to` to each hour, in Wh.
+    static void addConsumption(Map<Instant, Double> hours, Instant from, Instant to, double watts) {
+        Instant hour = from.truncatedTo(ChronoUnit.HOURS);
+        while (hour.isBefore(to)) {
+            Instant next = hour.plus(1, ChronoUnit.HOURS);
+            Instant segStart = from.isAfter(hour) ? from : hour;
+            Instant segEnd = to.isBefore(next) ? to : next;
+
+            hours.merge(hour, Duration.between(segStart, segEnd).toSeconds() * watts / 3600, Double::sum);
+            hour = next;
+        }
+    }
+
+    private long generateActionLogs() {
+        var logs = new BatchWriter<ActionLog>(db.actionLogs()::insertBatch);
+
+        everyDay(options.actionsPerUserPerDay() * users.size(), time -> {
+            // Most changes are made by the staff.
+            User user = staff.isEmpty() || random.nextDouble() < 0.3 ? pick(users) : pick(staff);
+
+            double kind = random.nextDouble();
+            ActionLog entry;
+            if (kind < 0.80 && !devices.isEmpty()) {
+                // Turning devices on and off, mostly.
+                Device device = pick(devices);
+                EnumSet<ActionLogFlags> flags = EnumSet.noneOf(ActionLogFlags.class);
+                if (random.nextBoolean()) {
+                    flags.add(random.nextBoolean() ? ActionLogFlags.POWER_ON : ActionLogFlags.POWER_OFF);
+                }
+                entry = new ActionLog(0, user.getId(), device.getId(), ActionLogTarget.DEVICE, ActionLogOperation.UPDATE, flags, time);
+            } else if (kind < 0.82 && !devices.isEmpty()) {
+                entry = new ActionLog(0, user.getId(), pick(devices).getId(), ActionLogTarget.DEVICE, ActionLogOperation.CREATE,
+                    EnumSet.noneOf(ActionLogFlags.class), time);
+            } else if (kind < 0.90) {
+                entry = new ActionLog(0, user.getId(), pick(rooms).getId(), ActionLogTarget.ROOM, ActionLogOperation.UPDATE,
+                    EnumSet.noneOf(ActionLogFlags.class), time);
+            } else if (kind < 0.97) {
+                entry = new ActionLog(0, user.getId(), user.getId(), ActionLogTarget.USER, ActionLogOperation.UPDATE,
+                    EnumSet.noneOf(ActionLogFlags.class), time);
+            } else {
+                entry = new ActionLog(0, user.getId(), pick(deviceTypes).getId(), ActionLogTarget.DEVICE_TYPE, ActionLogOperation.UPDATE,
+                    EnumSet.noneOf(ActionLogFlags.class), time);
+            }
+            logs.add(entry);
+        });
+
+        return logs.finish();
+    }
+
+    private long generateLoginLogs() {
+        var logs = new BatchWriter<LoginLog>(chunk -> pool.preparedQuery(LoginLog.ENTITY.insertSQL())
+            .executeBatch(tuples(LoginLog.ENTITY, chunk)));
+
+        everyDay(options.loginsPerUserPerDay() * users.size(),
+            time -> logs.add(new LoginLog(0, pick(users).getId(), time)));
+
+        return logs.finish();
+    }
+
+    /// Calls `event` with random times from [#start] to [#end], in order, about `perDay` times per day.
+    /// Nine out of ten times are between 7:00 and 22:00: residents sleep at night, and so does the staff (mostly).
+    private void everyDay(double perDay, Consumer<Instant> event) {
+        for (Instant day = start.truncatedTo(ChronoUnit.DAYS); day.isBefore(end); day = day.plus(1, ChronoUnit.DAYS)) {
+            // Some days are busier than others.
+            int count = (int) Math.round(perDay * (0.5 + random.nextDouble()));
+
+            long[] seconds = new long[count];
+            for (int i = 0; i < count; i++) {
+                seconds[i] = random.nextDouble() < 0.9
+                    ? 7 * 3600 + random.nextInt(15 * 3600)
+                    : random.nextInt(24 * 3600);
+            }
+            Arrays.sort(seconds);
+
+            for (long s : seconds) {
+                Instant time = day.plusSeconds(s);
+                if (!time.isBefore(start) && time.isBefore(end)) {
+                    event.accept(time);
+                }
+            }
+        }
+    }
+    // endregion
+
+    // region Utilities
+    /// Inserts all entities, one batch after the other, and sets their ids.
+    private <T> void insertAll(EntityInfo<T> entity, List<T> rows, ObjIntConsumer<T> setId) {
+        for (int from = 0; from < rows.size(); from += BATCH_SIZE) {
+            List<T> chunk = rows.subList(from, Math.min(from + BATCH_SIZE, rows.size()));
+            RowSet<Row> rs = join(pool.preparedQuery(entity.insertSQL()).executeBatch(tuples(entity, chunk)));
+
+            // Each query of the batch has its own result, in the same order, with the id it inserted.
+            for (T row : chunk) {
+                setId.accept(row, rs.property(MySQLClient.LAST_INSERTED_ID).intValue());
+                rs = rs.next();
+            }
+        }
+    }
+
+    private static <T> List<Tuple> tuples(EntityInfo<T> entity, List<T> rows) {
+        var tuples = new ArrayList<Tuple>(rows.size());
+        for (T row : rows) {
+            tuples.add(Tuple.wrap(entity.genInsertArguments(row)));
+        }
+        return tuples;
+    }
+
+    /// Sends rows by batches of [#BATCH_SIZE], with up to [#MAX_IN_FLIGHT] batches at once.
+    private static final class BatchWriter<T> {
+        private final Function<List<T>, Future<?>> send;
+        private final ArrayDeque<Future<?>> inFlight = new ArrayDeque<>();
+        private List<T> buffer = new ArrayList<>(BATCH_SIZE);
+        private long count;
+
+        BatchWriter(Function<List<T>, Future<?>> send) {
+            this.send = send;
+        }
+
+        void add(T row) {
+            buffer.add(row);
+            count++;
+            if (buffer.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /// Sends the last rows, and waits for all batches. Returns the number of rows sent.
+        long finish() {
+            if (!buffer.isEmpty()) {
+                flush();
+            }
+            while (!inFlight.isEmpty()) {
+                join(inFlight.poll());
+            }
+            return count;
+        }
+
+        private void flush() {
+            if (inFlight.size() >= MAX_IN_FLIGHT) {
+                join(inFlight.poll());
+            }
+            inFlight.add(send.apply(buffer));
+            buffer = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    private <T> T pick(List<T> list) {
+        return list.get(random.nextInt(list.size()));
+    }
+
+    private <T> T pick(T[] array) {
+        return array[random.nextInt(array.length)];
+    }
+
+    private static Level levelOf(int points) {
+        if (points >= UserOperations.EXPERT_POINTS) {
+            return Level.EXPERT;
+        } else if (points >= UserOperations.ADVANCED_POINTS) {
+            return Level.ADVANCED;
+        } else if (points >= UserOperations.INTERMEDIATE_POINTS) {
+            return Level.INTERMEDIATE;
+        } else {
+            return Level.BEGINNER;
+        }
+    }
+
+    /// A plausible value of an attribute, with one decimal.
+    private double randomValue(AttributeType type) {
+        double value = switch (type) {
+            case CALORIES_BURNED -> between(0, 3000);
+            case ACTIVITY_DURATION -> between(0, 180);
+            case TEMPERATURE -> between(18, 26);
+            case HUMIDITY -> between(30, 70);
+            case HEART_RATE -> between(55, 110);
+            case BLOOD_PRESSURE -> between(100, 160);
+            case BLOOD_OXYGEN -> between(90, 100);
+            case BLOOD_GLUCOSE -> between(70, 180);
+            case FAT_PERCENTAGE -> between(15, 40);
+            case STEPS -> between(0, 12000);
+            case LAST_SLEEP_DURATION -> between(240, 600);
+            case MAX_VO2 -> between(15, 40);
+            case RESPIRATORY_RATE -> between(12, 24);
+            case BODY_TEMPERATURE -> between(36, 38.5);
+            case BODY_WEIGHT -> between(45, 110);
+            case BATTERY_LEVEL -> between(0, 100);
+            case BODY_HEIGHT -> between(150, 190);
+            case LIGHT_INTENSITY -> between(0, 800);
+        };
+        return Math.round(value * 10) / 10.0;
+    }
+
+    /// A plausible power of a device, in watts.
+    private double randomPower(DeviceCategory category) {
+        double watts = switch (category) {
+            case LIGHTING -> between(5, 60);
+            case KITCHEN -> between(200, 2500);
+            case SECURITY -> between(1, 10);
+            case TEMPERATURE_REGULATION -> between(500, 2000);
+            case SPORT -> between(50, 300);
+            case HEALTH -> between(1, 5);
+            case GARDENING -> between(20, 500);
+            case OTHER -> between(5, 100);
+        };
+        return Math.round(watts * 10) / 10.0;
+    }
+
+    private double between(double min, double max) {
+        return min + random.nextDouble() * (max - min);
+    }
+    // endregion
+}
@@ -0,0 +1,57 @@
+package fr.domotique.loadtest;
+
+import fr.domotique.*;
+import io.vertx.core.*;
+
+/// Load tests of the Domotique server, with two commands:
+///
+/// - `generate`: fills an **empty** database with a realistic EHPAD, at scale: users, rooms, device types,
+///   devices with their attributes, and years of power logs, action logs and login logs. See [DataGenerator].
+/// - `run`: sends requests to a running server, like many users would, then prints the throughput and
+///   latency of each route. See [TrafficDriver].
+///
+/// ## Usage
+///
+/// ```
+/// ./gradlew updateDatabase
+/// ./gradlew loadTestData -Ploadtest.users=5000 -Ploadtest.years=2
+/// ./gradlew run   # in another terminal
+/// ./gradlew loadTest -Ploadtest.clients=200 -Ploadtest.duration=120
+/// ```
+///
+/// Options are `loadtest.xxx` system properties (given with `-P` to Gradle); each command lists its own.
+/// The database is the one of the [Config], so use a database made for that!
+public final class LoadTest {
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) {
+        String command = args.length > 0 ? args[0] : "";
+        switch (command) {
+            case "generate" -> DataGenerator.main(Config.load(), DataGenerator.Options.fromSystemProperties());
+            case "run" -> TrafficDriver.main(TrafficDriver.Options.fromSystemProperties());
+            default -> {
+                System.err.println("Usage: LoadTest <generate|run>");
+                System.exit(1);
+            }
+        }
+    }
+
+    /// Waits for a future from a thread outside Vert.x, throwing its failure.
+    static <T> T join(Future<T> future) {
+        return future.toCompletionStage().toCompletableFuture().join();
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        return Integer.getInteger("loadtest." + name, defaultValue);
+    }
+
+    static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty("loadtest." + name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    static String stringProperty(String name, String defaultValue) {
+        return System.getProperty("loadtest." + name, defaultValue);
+    }
+}
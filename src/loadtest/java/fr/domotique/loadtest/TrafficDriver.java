@@ -0,0 +1,452 @@
+package fr.domotique.loadtest;
+
+import fr.domotique.api.devices.*;
+import fr.domotique.data.*;
+import io.vertx.core.*;
+import io.vertx.core.buffer.*;
+import io.vertx.core.http.*;
+import io.vertx.core.json.*;
+import io.vertx.ext.web.client.*;
+import org.HdrHistogram.*;
+
+import java.time.*;
+import java.time.temporal.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+
+import static fr.domotique.loadtest.LoadTest.*;
+
+/// Sends requests to a running server, like many users using the app at the same time, then prints the
+/// throughput and latency percentiles of each route.
+///
+/// ## How it works
+///
+/// Each client is a user generated by the [DataGenerator], logged in with its own session cookie.
+/// It sends a request, waits for the response, then sends the next one right away (or after `thinkMs`),
+/// choosing the next request randomly using the weights of the `mix`:
+///
+/// | Action    | Request                                        | Operation (`RouteDoc`)                        |
+/// |-----------|------------------------------------------------|-----------------------------------------------|
+/// | `login`   | `POST /api/users/login`, with a new session    | `login`                                       |
+/// | `devices` | `GET /api/devices`, one page from a random id  | `getDevices`                                  |
+/// | `patch`   | `PATCH /api/devices/:id`, turning it on or off | `patchDevice`                                 |
+/// | `stats`   | `POST /api/devices/stats`, random statistics   | `getDeviceStats`                              |
+/// | `energy`  | `GET /api/energy/total-consumption`            | `getTotalConsumption`                         |
+/// | `events`  | `POST /api/user-events/...`, a random event    | `reportHomePageVisit`, `reportHealthCheck`... |
+///
+/// Results are grouped by the operation id of the [RouteDoc][fr.domotique.base.apidocs.RouteDoc] of the route,
+/// the same names as in `GET /api/metrics`, so both can be compared easily.
+///
+/// Only users with the [ADVANCED][Level#ADVANCED] level can modify devices: other users never choose `patch`.
+///
+/// Since each client waits for its response before sending the next request, a slow server also receives fewer
+/// requests: latencies are a bit optimistic when the server is overloaded. Use more clients to find the limit.
+///
+/// ## Options
+///
+/// | Property            | Default                                                    | Description                                   |
+/// |---------------------|------------------------------------------------------------|-----------------------------------------------|
+/// | `loadtest.url`      | `http://localhost:7777`                                    | The server                                    |
+/// | `loadtest.users`    | 1000                                                       | Number of generated users to log in with      |
+/// | `loadtest.clients`  | 50                                                         | Number of users sending requests at once      |
+/// | `loadtest.duration` | 60                                                         | Seconds of measurement                        |
+/// | `loadtest.warmup`   | 10                                                         | Seconds before measuring (JIT, caches...)     |
+/// | `loadtest.thinkMs`  | 0                                                          | Milliseconds between two requests of a client |
+/// | `loadtest.mix`      | `login:1,devices:40,patch:10,stats:10,energy:10,events:29` | Weight of each action                         |
+/// | `loadtest.seed`     | 42                                                         | Seed of the random generator                  |
+public final class TrafficDriver {
+    /// The highest latency we can record, in microseconds. Longer requests are recorded with this value.
+    static final long MAX_LATENCY_MICROS = TimeUnit.SECONDS.toMicros(60);
+    /// Number of devices asked in one `GET /api/devices`.
+    static final int DEVICE_PAGE_SIZE = 50;
+    /// Time between two progress messages, in milliseconds.
+    static final long PROGRESS_INTERVAL_MS = 5000;
+
+    /// All user event routes, with the operation id of their `RouteDoc` (see `UserEventsSection`).
+    private static final String[][] USER_EVENTS = {
+        {"/home-page-visit", "reportHomePageVisit"},
+        {"/check-health", "reportHealthCheck"},
+        {"/check-energy", "reportEnergyCheck"},
+        {"/check-sport-rankings", "reportSportRankingsCheck"},
+        {"/check-other-profiles", "reportOtherProfilesCheck"},
+        {"/check-own-profile", "reportOwnProfileCheck"},
+        {"/check-device", "reportDeviceCheck"}
+    };
+
+    /// Attributes used for statistics: all numbers, so all functions are valid.
+    private static final AttributeType[] STAT_ATTRIBUTES = {
+        AttributeType.TEMPERATURE, AttributeType.HEART_RATE, AttributeType.BATTERY_LEVEL, AttributeType.STEPS
+    };
+
+    /// What a client can do.
+    enum Action {
+        LOGIN("login", Level.BEGINNER),
+        DEVICES("devices", Level.BEGINNER),
+        PATCH("patch", Level.ADVANCED),
+        STATS("stats", Level.BEGINNER),
+        ENERGY("energy", Level.BEGINNER),
+        EVENTS("events", Level.BEGINNER);
+
+        /// The name used in the `mix` option.
+        final String key;
+        /// The level needed to do it.
+        final Level minLevel;
+
+        Action(String key, Level minLevel) {
+            this.key = key;
+            this.minLevel = minLevel;
+        }
+    }
+
+    /// All options of the driver, described in the [TrafficDriver] documentation.
+    public record Options(String url, int users, int clients, int durationSeconds, int warmupSeconds, int thinkMs,
+                          Map<Action, Integer> mix, long seed) {
+        public Options {
+            if (clients < 1 || users < 1 || durationSeconds < 1) {
+                throw new IllegalArgumentException("There must be at least one user, one client, and one second of test.");
+            }
+        }
+
+        static Options fromSystemProperties() {
+            return new Options(
+                stringProperty("url", "http://localhost:7777"),
+                intProperty("users", 1000),
+                intProperty("clients", 50),
+                intProperty("duration", 60),
+                intProperty("warmup", 10),
+                intProperty("thinkMs", 0),
+                parseMix(stringProperty("mix", "login:1,devices:40,patch:10,stats:10,energy:10,events:29")),
+                Long.getLong("loadtest.seed", 42)
+            );
+        }
+
+        /// Reads a mix like `devices:40,patch:10`. Missing actions are never done.
+        static Map<Action, Integer> parseMix(String mix) {
+            var weights = new EnumMap<Action, Integer>(Action.class);
+            for (String part : mix.split(",")) {
+                String[] kv = part.trim().split(":");
+                Action action = Arrays.stream(Action.values())
+                    .filter(a -> a.key.equals(kv[0].trim()))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown action in the mix: " + kv[0]));
+                weights.put(action, kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1);
+            }
+            return weights;
+        }
+    }
+
+    /// The measures of one operation. Updated by many event loops at once.
+    static final class OperationStats {
+        final ConcurrentHistogram latencyMicros = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+        final LongAdder errors = new LongAdder();
+    }
+
+    private final Vertx vertx;
+    private final WebClient client;
+    private final Options options;
+
+    private final ConcurrentHashMap<String, OperationStats> stats = new ConcurrentHashMap<>();
+    /// Errors by operation and status ("patchDevice 403"), to know what went wrong.
+    private final ConcurrentHashMap<String, LongAdder> errorKinds = new ConcurrentHashMap<>();
+    /// Requests done since the start, measured or not.
+    private final LongAdder completed = new LongAdder();
+    /// The highest device id seen, so clients ask pages from anywhere.
+    private final AtomicInteger maxDeviceId = new AtomicInteger();
+
+    /// True once the warmup is done: only then are results recorded.
+    private volatile boolean measuring;
+    /// True when clients must stop after their current request.
+    private volatile boolean stopping;
+
+    private TrafficDriver(Vertx vertx, Options options) {
+        this.vertx = vertx;
+        this.options = options;
+        this.client = WebClient.create(vertx, new WebClientOptions(),
+            new PoolOptions().setHttp1MaxSize(options.clients()));
+    }
+
+    static void main(Options options) {
+        Vertx vertx = Vertx.vertx();
+        try {
+            new TrafficDriver(vertx, options).run();
+        } finally {
+            join(vertx.close());
+        }
+    }
+
+    private void run() {
+        System.out.printf("Sending requests to %s with %d clients: %d s of warmup, then %d s of measures%n",
+            options.url(), options.clients(), options.warmupSeconds(), options.durationSeconds());
+
+        var random = new Random(options.seed());
+        var clients = new ArrayList<Future<Void>>();
+        for (int i = 0; i < options.clients(); i++) {
+            // Spread the clients over all users
+            int userNumber = 1 + (int) ((long) i * options.users() / options.clients());
+            clients.add(new Client(DataGenerator.email(userNumber), new Random(random.nextLong())).start());
+        }
+
+        long progressTimer = vertx.setPeriodic(PROGRESS_INTERVAL_MS, _ ->
+            System.out.printf("%s%d requests done%n", measuring ? "" : "(warmup) ", completed.sum()));
+
+        sleep(options.warmupSeconds());
+        measuring = true;
+        long measureStart = System.nanoTime();
+
+        sleep(options.durationSeconds());
+        stopping = true;
+        double measuredSeconds = (System.nanoTime() - measureStart) / 1e9;
+        measuring = false;
+
+        join(Future.join(clients));
+        vertx.cancelTimer(progressTimer);
+
+        printReport(measuredSeconds);
+    }
+
+    /// One user sending requests one after the other.
+    private final class Client {
+        final String email;
+        final Random random;
+
+        WebClientSession session;
+        Level level = Level.BEGINNER;
+        /// The devices of the last page received, as JSON.
+        List<JsonObject> devices = List.of();
+        /// The actions this user can do, with their weights.
+        EnumMap<Action, Integer> allowedMix;
+        int totalWeight;
+
+        final Promise<Void> done = Promise.promise();
+
+        Client(String email, Random random) {
+            this.email = email;
+            this.random = random;
+            updateAllowedMix();
+        }
+
+        Future<Void> start() {
+            // Log in first, so the session is ready. Counts as a login, if it happens after the warmup.
+            login().onComplete(_ -> next());
+            return done.future();
+        }
+
+        void next() {
+            if (stopping) {
+                done.complete();
+                return;
+            }
+
+            Future<?> request = switch (pickAction()) {
+                case LOGIN -> login();
+                case DEVICES -> getDevices();
+                case PATCH -> patchDevice();
+                case STATS -> getDeviceStats();
+                case ENERGY -> getTotalConsumption();
+                case EVENTS -> reportEvent();
+            };
+
+            request.onComplete(_ -> {
+                if (options.thinkMs() > 0) {
+                    vertx.setTimer(options.thinkMs(), _ -> next());
+                } else {
+                    next();
+                }
+            });
+        }
+
+        Action pickAction() {
+            int n = random.nextInt(totalWeight);
+            for (var entry : allowedMix.entrySet()) {
+                n -= entry.getValue();
+                if (n < 0) {
+                    return entry.getKey();
+                }
+            }
+            throw new IllegalStateException("Unreachable");
+        }
+
+        void updateAllowedMix() {
+            allowedMix = new EnumMap<>(Action.class);
+            options.mix().forEach((action, weight) -> {
+                if (weight > 0 && level.compareTo(action.minLevel) >= 0) {
+                    allowedMix.put(action, weight);
+                }
+            });
+
+            totalWeight = allowedMix.values().stream().mapToInt(Integer::intValue).sum();
+            if (totalWeight == 0) {
+                // Nothing to do with this level? Browse devices then.
+                allowedMix.put(Action.DEVICES, 1);
+                totalWeight = 1;
+            }
+        }
+
+        /// Logs in with a brand new session, like someone coming back to the app.
+        Future<?> login() {
+            session = WebClientSession.create(client);
+            var body = new JsonObject().put("email", email).put("password", DataGenerator.PASSWORD);
+            return send("login", session.postAbs(options.url() + "/api/users/login"), body)
+                .onSuccess(res -> {
+                    JsonObject user = res.bodyAsJsonObject();
+                    if (user != null && user.getJsonObject("profile") != null) {
+                        level = Level.valueOf(user.getJsonObject("profile").getString("level"));
+                        updateAllowedMix();
+                    }
+                });
+        }
+
+        Future<?> getDevices() {
+            int after = random.nextInt(maxDeviceId.get() + 1);
+            var request = session.getAbs(options.url() + "/api/devices")
+                .addQueryParam("limit", String.valueOf(DEVICE_PAGE_SIZE))
+                .addQueryParam("after", String.valueOf(after));
+
+            return send("getDevices", request, null).onSuccess(res -> {
+                JsonObject page = res.bodyAsJsonObject();
+                JsonArray array = page != null ? page.getJsonArray("devices") : null;
+                if (array == null) {
+                    return;
+                }
+
+                var received = new ArrayList<JsonObject>(array.size());
+                for (int i = 0; i < array.size(); i++) {
+                    JsonObject device = array.getJsonObject(i);
+                    received.add(device);
+                    maxDeviceId.accumulateAndGet(device.getInteger("id"), Math::max);
+                }
+
+                // We reached the end? Start again from the beginning next time.
+                if (received.isEmpty()) {
+                    maxDeviceId.set(Math.max(0, after - 1));
+                } else {
+                    devices = received;
+                }
+            });
+        }
+
+        Future<?> patchDevice() {
+            if (devices.isEmpty()) {
+                // We don't know any device yet!
+                return getDevices();
+            }
+
+            JsonObject device = devices.get(random.nextInt(devices.size()));
+            boolean powered = !device.getBoolean("powered");
+            device.put("powered", powered);
+
+            var body = new JsonObject()
+                .put("name", device.getString("name"))
+                .put("typeId", device.getJsonObject("type").getInteger("id"))
+                .put("powered", powered)
+                .put("energyConsumption", device.getDouble("energyConsumption"));
+            return send("patchDevice", session.requestAbs(HttpMethod.PATCH, options.url() + "/api/devices/" + device.getInteger("id")), body);
+        }
+
+        Future<?> getDeviceStats() {
+            var functions = DeviceStatsQuery.Function.values();
+            var groupings = DeviceStatsQuery.Grouping.values();
+            var body = new JsonObject()
+                .put("grouping", groupings[random.nextInt(groupings.length)].name())
+                .put("function", functions[random.nextInt(functions.length)].name())
+                .put("attribute", STAT_ATTRIBUTES[random.nextInt(STAT_ATTRIBUTES.length)].name())
+                .put("ascendingOrder", random.nextBoolean());
+            return send("getDeviceStats", session.postAbs(options.url() + "/api/devices/stats"), body);
+        }
+
+        Future<?> getTotalConsumption() {
+            // The last day, week or month, like the energy page.
+            int[] days = {1, 7, 30};
+            Instant end = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+            Instant start = end.minus(days[random.nextInt(days.length)], ChronoUnit.DAYS);
+
+            var request = session.getAbs(options.url() + "/api/energy/total-consumption")
+                .addQueryParam("start", start.toString())
+                .addQueryParam("end", end.toString());
+            return send("getTotalConsumption", request, null);
+        }
+
+        Future<?> reportEvent() {
+            String[] event = USER_EVENTS[random.nextInt(USER_EVENTS.length)];
+            return send(event[1], session.postAbs(options.url() + "/api/user-events" + event[0]), null);
+        }
+    }
+
+    /// Sends a request, and records its latency under the name of its operation.
+    /// The returned future fails when the server answers with an error.
+    private Future<HttpResponse<Buffer>> send(String operation, HttpRequest<Buffer> request, JsonObject body) {
+        long start = System.nanoTime();
+        Future<HttpResponse<Buffer>> response = body != null ? request.sendJsonObject(body) : request.send();
+
+        return response
+            .transform(ar -> {
+                long micros = (System.nanoTime() - start) / 1000;
+                completed.increment();
+
+                String error = null;
+                if (ar.failed()) {
+                    error = ar.cause().getClass().getSimpleName();
+                } else if (ar.result().statusCode() >= 400) {
+                    error = String.valueOf(ar.result().statusCode());
+                }
+
+                if (measuring) {
+                    OperationStats s = stats.computeIfAbsent(operation, _ -> new OperationStats());
+                    s.latencyMicros.recordValue(Math.min(micros, MAX_LATENCY_MICROS));
+                    if (error != null) {
+                        s.errors.increment();
+                        errorKinds.computeIfAbsent(operation + " " + error, _ -> new LongAdder()).increment();
+                    }
+                }
+
+                if (error != null) {
+                    return Future.failedFuture(ar.failed() ? ar.cause() : new RuntimeException("HTTP " + error));
+                }
+                return Future.succeededFuture(ar.result());
+            });
+    }
+
+    private void printReport(double seconds) {
+        System.out.printf("%nResults over %.1f s:%n%n", seconds);
+        System.out.printf("%-28s %9s %8s %9s %9s %9s %9s %9s %9s%n",
+            "Operation", "Requests", "Errors", "Req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "Max ms");
+
+        var total = new Histogram(MAX_LATENCY_MICROS, 3);
+        long totalErrors = 0;
+        for (var entry : new TreeMap<>(stats).entrySet()) {
+            Histogram h = entry.getValue().latencyMicros.copy();
+            long errors = entry.getValue().errors.sum();
+            printLine(entry.getKey(), h, errors, seconds);
+
+            total.add(h);
+            totalErrors += errors;
+        }
+        printLine("TOTAL", total, totalErrors, seconds);
+
+        if (!errorKinds.isEmpty()) {
+            System.out.printf("%nErrors:%n");
+            new TreeMap<>(errorKinds).forEach((kind, count) -> System.out.printf("  %-40s %d%n", kind, count.sum()));
+        }
+    }
+
+    private static void printLine(String name, Histogram h, long errors, double seconds) {
+        System.out.printf("%-28s %9d %8d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+            name, h.getTotalCount(), errors, h.getTotalCount() / seconds,
+            h.getValueAtPercentile(50) / 1000.0,
+            h.getValueAtPercentile(90) / 1000.0,
+            h.getValueAtPercentile(99) / 1000.0,
+            h.getValueAtPercentile(99.9) / 1000.0,
+            h.getMaxValue() / 1000.0);
+    }
+
+    private static void sleep(int seconds) {
+        try {
+            Thread.sleep(Duration.ofSeconds(seconds));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package fr.domotique.api.users;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.*;
+import java.time.temporal.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests that the [PointsJournal] gives back, after a restart, exactly what wasn't in the database yet,
+/// before and after compacting it.
+public class TestPointsJournal {
+    @TempDir
+    Path dir;
+
+    @Test
+    void newJournalIsEmpty() throws IOException {
+        try (var journal = PointsJournal.open(dir, "points")) {
+            assertTrue(journal.replayedMessages().isEmpty());
+            assertTrue(journal.replayedCooldowns().isEmpty());
+            assertFalse(journal.needsCompaction());
+        }
+    }
+
+    @Test
+    void pendingPointsAreReplayed() throws IOException {
+        var first = new AddPointsMessage(1, PointSource.CHECK_HEALTH, 5);
+        var second = new AddPointsMessage(2, PointSource.CHECK_DEVICE, 3);
+
+        try (var journal = PointsJournal.open(dir, "points")) {
+            journal.add(first);
+            journal.add(second);
+        }
+
+        try (var journal = PointsJournal.open(dir, "points")) {
+            assertEquals(List.of(first, second), journal.replayedMessages());
+        }
+    }
+
+    @Test
+    void committedPointsAreNotReplayed() throws IOException {
+        var committed = new AddPointsMessage(1, PointSource.CHECK_HEALTH, 5);
+        var pending = new AddPointsMessage(1, PointSource.CHECK_ENERGY, 2);
+
+        try (var journal = PointsJournal.open(dir, "points")) {
+            journal.add(committed);
+            int position = journal.position();
+            journal.add(pending);
+            journal.commit(position);
+        }
+
+        try (var journal = PointsJournal.open(dir, "points")) {
+            assertEquals(List.of(pending), journal.replayedMessages());
+        }
+    }
+
+    @Test
+    void onlyCommittedCooldownsAreReplayed() throws IOException {
+        Instant later = Instant.now().plus(1, ChronoUnit.HOURS).truncatedTo(ChronoUnit.MILLIS);
+
+        try (var journal = PointsJournal.open(dir, "points")) {
+            journal.cooldown(1, PointSource.CHECK_HEALTH, new PointsVerticle.CooldownData(4, later));
+            // Expired: useless after a restart.
+            journal.cooldown(2, PointSource.CHECK_HEALTH, new PointsVerticle.CooldownData(4, Instant.now().minusSeconds(60)));
+            journal.commit(journal.position());
+
+            // Its points never made it to the database.
+            journal.cooldown(3, PointSource.CHECK_DEVICE, new PointsVerticle.CooldownData(1, later));
+        }
+
+        try (var journal = PointsJournal.open(dir, "points")) {
+            var cooldowns = journal.replayedCooldowns();
+            assertEquals(Set.of(1), cooldowns.keySet());
+
+            PointsVerticle.CooldownData cd = cooldowns.get(1).get(PointSource.CHECK_HEALTH);
+            assertEquals(4, cd.pointsGiven);
+            assertEquals(later, cd.nextReset);
+        }
+    }
+
+    @Test
+    void latestCooldownWins() throws IOException {
+        Instant later = Instant.now().plus(1, ChronoUnit.HOURS).truncatedTo(ChronoUnit.MILLIS);
+
+        try (var journal = PointsJournal.open(dir, "points")) {
+            journal.cooldown(1, PointSource.CHECK_HEALTH, new PointsVerticle.CooldownData(1, later));
+            journal.cooldown(1, PointSource.CHECK_HEALTH, new PointsVerticle.CooldownData(2, later));
+            journal.commit(journal.position());
+        }
+
+        try (var journal = PointsJournal.open(dir, "points")) {
+            assertEquals(2, journal.replayedCooldowns().get(1).get(PointSource.CHECK_HEALTH).pointsGiven);
+        }
+    }
+
+    @Test
+    void compactionKeepsOnlyTheCurrentState() throws IOException {
+        Instant later = Instant.now().plus(1, ChronoUnit.HOURS).truncatedTo(ChronoUnit.MILLIS);
+        var pending = new AddPointsMessage(7, PointSource.VISIT_HOME_PAGE, 10);
+        var afterCompaction = new AddPointsMessage(8, PointSource.CHECK_OWN_PROFILE, 1);
+
+        try (var journal = PointsJournal.open(dir, "points")) {
+            for (int i = 1; i <= 1000; i++) {
+                journal.add(new AddPointsMessage(i, PointSource.CHECK_HEALTH, 1));
+            }
+            journal.commit(journal.position());
+            int before = journal.position();
+
+            var cooldowns = new HashMap<Integer, EnumMap<PointSource, PointsVerticle.CooldownData>>();
+            var userCooldowns = new EnumMap<PointSource, PointsVerticle.CooldownData>(PointSource.class);
+            userCooldowns.put(PointSource.VISIT_HOME_PAGE, new PointsVerticle.CooldownData(10, later));
+            cooldowns.put(7, userCooldowns);
+
+            journal.compact(cooldowns, List.of(pending));
+            assertTrue(journal.position() < before);
+
+            // Records written after the compaction go to the new journal.
+            journal.add(afterCompaction);
+        }
+
+        try (var journal = PointsJournal.open(dir, "points")) {
+            assertEquals(List.of(pending, afterCompaction), journal.replayedMessages());
+
+            PointsVerticle.CooldownData cd = journal.replayedCooldowns().get(7).get(PointSource.VISIT_HOME_PAGE);
+            assertEquals(10, cd.pointsGiven);
+            assertEquals(later, cd.nextReset);
+        }
+    }
+
+    @Test
+    void survivesManyRestarts() throws IOException {
+        var expected = new ArrayList<AddPointsMessage>();
+        for (int restart = 0; restart < 5; restart++) {
+            try (var journal = PointsJournal.open(dir, "points")) {
+                assertEquals(expected, journal.replayedMessages());
+
+                var msg = new AddPointsMessage(restart + 1, PointSource.CHECK_SPORT_RANKINGS, restart);
+                journal.add(msg);
+                expected.add(msg);
+            }
+        }
+    }
+
+    @Test
+    void journalsWithDifferentNamesAreSeparate() throws IOException {
+        var msg = new AddPointsMessage(1, PointSource.CHECK_HEALTH, 5);
+        try (var journal = PointsJournal.open(dir, "shard-0")) {
+            journal.add(msg);
+        }
+
+        try (var other = PointsJournal.open(dir, "shard-1")) {
+            assertTrue(other.replayedMessages().isEmpty());
+        }
+        try (var journal = PointsJournal.open(dir, "shard-0")) {
+            assertEquals(List.of(msg), journal.replayedMessages());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package fr.domotique.base;
+
+import fr.domotique.*;
+import fr.domotique.base.data.*;
+import io.vertx.core.*;
+import io.vertx.core.http.*;
+import io.vertx.ext.web.*;
+import io.vertx.ext.web.handler.*;
+import io.vertx.ext.web.sstore.*;
+import io.vertx.junit5.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests [Section#etag(String...)]: `304 Not Modified` while the table doesn't change, without running the route.
+@ExtendWith(VertxExtension.class)
+public class TestSectionETag {
+    /// A table nobody else uses, so other tests can't change its version.
+    private static final String TABLE = "ETagTestTable";
+
+    private HttpClient client;
+    private int port;
+    private final ItemSection section = new ItemSection();
+
+    @BeforeEach
+    void startServer(Vertx vertx) throws Exception {
+        Router router = Router.router(vertx);
+        router.route().handler(SessionHandler.create(LocalSessionStore.create(vertx)));
+        router.route().handler(ctx -> Authenticator.create(ctx, null)
+            .onSuccess(a -> {
+                ctx.put(Authenticator.KEY, a);
+                ctx.next();
+            })
+            .onFailure(ctx::fail));
+        section.register(router);
+
+        HttpServer server = await(vertx.createHttpServer().requestHandler(router).listen(0));
+        port = server.actualPort();
+        client = vertx.createHttpClient();
+    }
+
+    @Test
+    void unchangedTableGivesNotModified() throws Exception {
+        Response first = get("/items", null);
+        assertEquals(200, first.status());
+        assertNotNull(first.etag());
+        assertEquals(1, section.calls.get());
+
+        Response second = get("/items", first.etag());
+        assertEquals(304, second.status());
+        assertEquals(first.etag(), second.etag());
+        assertEquals("", second.body());
+        // The route didn't even run.
+        assertEquals(1, section.calls.get());
+    }
+
+    @Test
+    void changedTableGivesNewData() throws Exception {
+        Response first = get("/items", null);
+
+        TableVersions.changed(TABLE);
+
+        Response second = get("/items", first.etag());
+        assertEquals(200, second.status());
+        assertNotNull(second.etag());
+        assertNotEquals(first.etag(), second.etag());
+        assertEquals(2, section.calls.get());
+    }
+
+    @Test
+    void eTagsDependOnTheUrl() throws Exception {
+        Response all = get("/items", null);
+        Response filtered = get("/items?name=lampe", all.etag());
+
+        assertEquals(200, filtered.status());
+        assertNotEquals(all.etag(), filtered.etag());
+    }
+
+    @Test
+    void matchesOneOfManyETags() throws Exception {
+        Response first = get("/items", null);
+
+        Response second = get("/items", "\"0\", " + first.etag());
+        assertEquals(304, second.status());
+    }
+
+    @Test
+    void starMatchesAnything() throws Exception {
+        Response response = get("/items", "*");
+
+        assertEquals(304, response.status());
+        assertEquals(0, section.calls.get());
+    }
+
+    @Test
+    void eTagsAreWeakAndComparedWeakly() throws Exception {
+        Response first = get("/items", null);
+        assertTrue(first.etag().startsWith("W/\""), first.etag());
+
+        // Some proxies remove the W/ prefix.
+        Response second = get("/items", first.etag().substring(2));
+        assertEquals(304, second.status());
+    }
+
+    @Test
+    void errorsHaveNoETag() throws Exception {
+        Response error = get("/items?fail=true", null);
+
+        assertEquals(500, error.status());
+        assertNull(error.etag());
+    }
+
+    private Response get(String uri, String ifNoneMatch) throws Exception {
+        return await(client.request(HttpMethod.GET, port, "localhost", uri)
+            .compose(req -> {
+                if (ifNoneMatch != null) {
+                    req.putHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+                }
+                return req.send();
+            })
+            .compose(resp -> resp.body()
+                .map(body -> new Response(resp.statusCode(), resp.getHeader(HttpHeaders.ETAG), body.toString()))));
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    private record Response(int status, String etag, String body) {}
+
+    /// A section with a single route reading [#TABLE], counting how many times it runs.
+    private static class ItemSection extends Section {
+        final AtomicInteger calls = new AtomicInteger();
+
+        ItemSection() {
+            super(null);
+        }
+
+        @Override
+        public void register(Router router) {
+            router.get("/items").handler(etag(TABLE)).handler(ctx -> {
+                calls.incrementAndGet();
+                if (ctx.queryParams().contains("fail")) {
+                    ctx.response().setStatusCode(500).end();
+                } else {
+                    ctx.response().putHeader(HttpHeaders.CONTENT_TYPE, "application/json").end("[]");
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package fr.domotique.base.data;
+
+import io.vertx.core.*;
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests the single flight of [BoundedCache]: one load per key at a time, and none of its old data kept
+/// after an invalidation.
+public class TestBoundedCache {
+    @Test
+    void concurrentGetsShareOneLoad() {
+        var cache = new BoundedCache<Integer, String>(10);
+        var loader = new StubLoader();
+
+        Future<String> first = cache.get(1, loader::load);
+        Future<String> second = cache.get(1, loader::load);
+        assertEquals(1, loader.calls.get());
+        assertFalse(first.isComplete());
+        assertFalse(second.isComplete());
+
+        loader.complete(0, "one");
+        assertEquals("one", first.result());
+        assertEquals("one", second.result());
+
+        // Now it's cached: no more loads.
+        assertEquals("one", cache.get(1, loader::load).result());
+        assertEquals(1, loader.calls.get());
+    }
+
+    @Test
+    void differentKeysLoadSeparately() {
+        var cache = new BoundedCache<Integer, String>(10);
+        var loader = new StubLoader();
+
+        cache.get(1, loader::load);
+        cache.get(2, loader::load);
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    void invalidationDuringLoadStartsANewLoad() {
+        var cache = new BoundedCache<Integer, String>(10);
+        var loader = new StubLoader();
+
+        Future<String> old = cache.get(1, loader::load);
+        cache.invalidate(1);
+
+        // The running load may return old data: the next request doesn't wait for it.
+        Future<String> fresh = cache.get(1, loader::load);
+        assertEquals(2, loader.calls.get());
+
+        loader.complete(0, "old");
+        assertEquals("old", old.result());
+        assertNull(cache.getIfPresent(1));
+
+        loader.complete(1, "new");
+        assertEquals("new", fresh.result());
+        assertEquals("new", cache.getIfPresent(1));
+    }
+
+    @Test
+    void failedLoadsAreNotCached() {
+        var cache = new BoundedCache<Integer, String>(10);
+        var loader = new StubLoader();
+
+        Future<String> first = cache.get(1, loader::load);
+        Future<String> second = cache.get(1, loader::load);
+        loader.fail(0, new RuntimeException("Database down"));
+
+        assertTrue(first.failed());
+        assertTrue(second.failed());
+        assertNull(cache.getIfPresent(1));
+
+        // The next request tries again.
+        cache.get(1, loader::load);
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    void nullValuesAreNotCached() {
+        var cache = new BoundedCache<Integer, String>(10);
+        var loader = new StubLoader();
+
+        Future<String> missing = cache.get(1, loader::load);
+        loader.complete(0, null);
+
+        assertNull(missing.result());
+        cache.get(1, loader::load);
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    void loaderExceptionsFailTheFuture() {
+        var cache = new BoundedCache<Integer, String>(10);
+
+        Future<String> result = cache.get(1, _ -> {
+            throw new IllegalStateException("Oops");
+        });
+
+        assertTrue(result.failed());
+        assertInstanceOf(IllegalStateException.class, result.cause());
+
+        // The failed load isn't stuck in the cache.
+        assertEquals("one", cache.get(1, _ -> Future.succeededFuture("one")).result());
+    }
+
+    /// A loader whose loads are completed by the test, one promise per call.
+    private static class StubLoader {
+        final AtomicInteger calls = new AtomicInteger();
+        final List<Promise<String>> promises = new ArrayList<>();
+
+        Future<String> load(int key) {
+            calls.incrementAndGet();
+            Promise<String> promise = Promise.promise();
+            promises.add(promise);
+            return promise.future();
+        }
+
+        void complete(int call, String value) {
+            promises.get(call).complete(value);
+        }
+
+        void fail(int call, Throwable error) {
+            promises.get(call).fail(error);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package fr.domotique.base.data;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests how [FullTextSearch] turns what users type into MySQL boolean mode queries.
+public class TestFullTextSearch {
+    @Test
+    void everyWordIsRequired() {
+        assertEquals("+\"salon\" +\"lampe\"", FullTextSearch.booleanQuery("salon lampe"));
+        assertEquals("+\"lampe\"", FullTextSearch.booleanQuery("lampe"));
+    }
+
+    @Test
+    void extraSpacesAreIgnored() {
+        assertEquals("+\"salon\" +\"lampe\"", FullTextSearch.booleanQuery("  salon \t  lampe \n"));
+    }
+
+    @Test
+    void operatorsSeparateWords() {
+        assertEquals("+\"Jean\" +\"Pierre\"", FullTextSearch.booleanQuery("Jean-Pierre"));
+        assertEquals("+\"lampe\" +\"salon\"", FullTextSearch.booleanQuery("+lampe -salon"));
+        assertEquals("+\"lampe\"", FullTextSearch.booleanQuery("\"lampe\"*"));
+        assertEquals("+\"test\" +\"example\"", FullTextSearch.booleanQuery("test@example"));
+        assertNull(FullTextSearch.booleanQuery("+-<>()~*\"@"));
+    }
+
+    @Test
+    void shortWordsAreIgnored() {
+        assertEquals("+\"salon\"", FullTextSearch.booleanQuery("a salon"));
+        assertEquals("+\"ab\"", FullTextSearch.booleanQuery("ab"));
+    }
+
+    @Test
+    void nullWhenNoWordCanUseTheIndex() {
+        assertNull(FullTextSearch.booleanQuery(""));
+        assertNull(FullTextSearch.booleanQuery("   "));
+        assertNull(FullTextSearch.booleanQuery("a b c"));
+        assertNull(FullTextSearch.booleanQuery("é"));
+    }
+
+    @Test
+    void lengthIsCountedInCharactersNotCodeUnits() {
+        // One emoji is two chars in Java, but only one character for MySQL.
+        assertNull(FullTextSearch.booleanQuery("💡"));
+        assertEquals("+\"💡💡\"", FullTextSearch.booleanQuery("💡💡"));
+    }
+}
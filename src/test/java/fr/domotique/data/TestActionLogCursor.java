@@ -0,0 +1,35 @@
+package fr.domotique.data;
+
+import org.junit.jupiter.api.*;
+
+import java.time.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests reading the cursors of [ActionLogTable.Cursor], which come straight from the query string.
+public class TestActionLogCursor {
+    @Test
+    void parsesWhatItPrints() {
+        var cursor = new ActionLogTable.Cursor(Instant.ofEpochMilli(1_735_689_600_123L), 4521);
+
+        assertEquals("1735689600123_4521", cursor.toString());
+        assertEquals(cursor, ActionLogTable.Cursor.parse(cursor.toString()));
+    }
+
+    @Test
+    void parsesTimesBeforeTheEpoch() {
+        var cursor = ActionLogTable.Cursor.parse("-1000_1");
+
+        assertEquals(Instant.ofEpochMilli(-1000), cursor.time());
+        assertEquals(1, cursor.id());
+    }
+
+    @Test
+    void rejectsInvalidCursors() {
+        for (String invalid : new String[]{"", "_", "123", "123_", "_45", "abc_45", "123_abc", "1_2_3", "123 _45",
+            "99999999999999999999_1", "1_99999999999"}) {
+            assertThrows(IllegalArgumentException.class, () -> ActionLogTable.Cursor.parse(invalid),
+                "Cursor \"" + invalid + "\" should be invalid");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package fr.domotique.data;
+
+import io.vertx.core.buffer.*;
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests the binary format of [AttributeMap]: what goes in must come out the same, integers included.
+public class TestAttributeMap {
+    @Test
+    void binaryRoundTripKeepsIntegersAndDoubles() {
+        var map = new AttributeMap();
+        map.put(AttributeType.HEART_RATE, 72);
+        map.put(AttributeType.CALORIES_BURNED, 1250.5);
+        map.put(AttributeType.TEMPERATURE, -3.25);
+
+        Buffer bin = map.toBinary();
+        assertNotNull(bin);
+        // Header, then one int and two doubles.
+        assertEquals(1 + 8 + 8 + 4 + 8 + 8, bin.length());
+
+        AttributeMap copy = AttributeMap.fromBinary(bin);
+        assertEquals(map, copy);
+        assertEquals(Integer.valueOf(72), copy.get(AttributeType.HEART_RATE));
+        assertEquals(Double.valueOf(1250.5), copy.get(AttributeType.CALORIES_BURNED));
+        assertEquals(72.0, copy.getDouble(AttributeType.HEART_RATE));
+    }
+
+    @Test
+    void binaryRoundTripOfEveryType() {
+        var map = new AttributeMap();
+        int i = 0;
+        for (AttributeType type : AttributeType.values()) {
+            if (i % 2 == 0) {
+                map.putInt(type, i * 1000 - 7);
+            } else {
+                map.putDouble(type, i / 3.0);
+            }
+            i++;
+        }
+
+        AttributeMap copy = AttributeMap.fromBinary(map.toBinary());
+        assertEquals(map, copy);
+        assertEquals(new ArrayList<>(map.keySet()), new ArrayList<>(copy.keySet()));
+    }
+
+    @Test
+    void emptyMapRoundTrip() {
+        Buffer bin = new AttributeMap().toBinary();
+        assertNotNull(bin);
+        assertEquals(17, bin.length());
+        assertTrue(AttributeMap.fromBinary(bin).isEmpty());
+    }
+
+    @Test
+    void specialDoublesAreKept() {
+        var map = new AttributeMap();
+        map.putDouble(AttributeType.TEMPERATURE, -0.0);
+        map.putDouble(AttributeType.HUMIDITY, Double.MAX_VALUE);
+
+        AttributeMap copy = AttributeMap.fromBinary(map.toBinary());
+        assertEquals(Double.doubleToRawLongBits(-0.0),
+            Double.doubleToRawLongBits(copy.getDouble(AttributeType.TEMPERATURE)));
+        assertEquals(Double.MAX_VALUE, copy.getDouble(AttributeType.HUMIDITY));
+    }
+
+    @Test
+    void mapsWithOtherValuesHaveNoBinaryFormat() {
+        var withString = new AttributeMap();
+        withString.put(AttributeType.HEART_RATE, "72");
+        assertNull(withString.toBinary());
+
+        var withNull = new AttributeMap();
+        withNull.put(AttributeType.HEART_RATE, null);
+        assertNull(withNull.toBinary());
+
+        // A long could lose precision in a double: it's kept boxed.
+        var withLong = new AttributeMap();
+        withLong.put(AttributeType.STEPS, 9_007_199_254_740_993L);
+        assertNull(withLong.toBinary());
+
+        // Once the odd value is replaced by a number, it works again.
+        withString.put(AttributeType.HEART_RATE, 72);
+        assertNotNull(withString.toBinary());
+    }
+
+    @Test
+    void readsTheFirstVersionAsDoubles() {
+        long keys = (1L << AttributeType.HEART_RATE.ordinal()) | (1L << AttributeType.STEPS.ordinal());
+        Buffer bin = Buffer.buffer()
+            .appendByte(AttributeMap.BINARY_VERSION_DOUBLES)
+            .appendLongLE(keys)
+            .appendLongLE(Double.doubleToRawLongBits(72))
+            .appendLongLE(Double.doubleToRawLongBits(8000));
+
+        AttributeMap map = AttributeMap.fromBinary(bin);
+        assertEquals(Double.valueOf(72), map.get(AttributeType.HEART_RATE));
+        assertEquals(Double.valueOf(8000), map.get(AttributeType.STEPS));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    void rejectsInvalidBinaries() {
+        var map = new AttributeMap();
+        map.put(AttributeType.HEART_RATE, 72);
+        Buffer valid = map.toBinary();
+        assertNotNull(valid);
+
+        // Too short, too long, unknown version
+        assertThrows(IllegalArgumentException.class, () -> AttributeMap.fromBinary(Buffer.buffer(new byte[3])));
+        assertThrows(IllegalArgumentException.class, () -> AttributeMap.fromBinary(valid.copy().appendByte((byte) 0)));
+        assertThrows(IllegalArgumentException.class, () -> AttributeMap.fromBinary(valid.getBuffer(0, valid.length() - 1)));
+        Buffer badVersion = valid.copy();
+        badVersion.setByte(0, (byte) 42);
+        assertThrows(IllegalArgumentException.class, () -> AttributeMap.fromBinary(badVersion));
+
+        // Integer keys which aren't keys
+        Buffer badInts = valid.copy();
+        badInts.setLongLE(9, 1L << AttributeType.STEPS.ordinal());
+        assertThrows(IllegalArgumentException.class, () -> AttributeMap.fromBinary(badInts));
+
+        // Keys of attributes that don't exist
+        Buffer badKeys = valid.copy();
+        badKeys.setLongLE(1, 1L << 63);
+        assertThrows(IllegalArgumentException.class, () -> AttributeMap.fromBinary(badKeys));
+    }
+}
@@ -0,0 +1,110 @@
+package fr.domotique.data;
+
+import org.junit.jupiter.api.*;
+
+import java.time.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests [PowerLogTable#rollUpChanges(PowerLog, PowerLog, PowerLog)]: how much each hour of `PowerLogHourly`
+/// changes when a log is inserted.
+public class TestPowerLogRollUp {
+    private static final Instant DAY = Instant.parse("2025-03-10T00:00:00Z");
+
+    @Test
+    void closesTheSegmentOfThePreviousLog() {
+        var changes = PowerLogTable.rollUpChanges(on(100, "10:00"), off("10:30"), null);
+
+        assertEquals(Map.of(at("10:00"), 50.0), changes);
+    }
+
+    @Test
+    void splitsSegmentsInHours() {
+        var changes = PowerLogTable.rollUpChanges(on(60, "10:30"), off("12:15"), null);
+
+        assertEquals(Map.of(
+            at("10:00"), 30.0,
+            at("11:00"), 60.0,
+            at("12:00"), 15.0
+        ), changes);
+    }
+
+    @Test
+    void nothingWhenThePreviousLogIsOff() {
+        assertTrue(PowerLogTable.rollUpChanges(off("10:00"), on(100, "11:00"), null).isEmpty());
+    }
+
+    @Test
+    void nothingForTheFirstLog() {
+        assertTrue(PowerLogTable.rollUpChanges(null, on(100, "11:00"), null).isEmpty());
+    }
+
+    @Test
+    void nothingForLogsAtTheSameTime() {
+        assertTrue(PowerLogTable.rollUpChanges(on(100, "11:00"), off("11:00"), null).isEmpty());
+    }
+
+    @Test
+    void logInsertedBeforeTheNextOneReplacesItsPower() {
+        // [10:00, 11:00) was counted at 100 W; now [10:30, 11:00) uses 40 W instead.
+        var changes = PowerLogTable.rollUpChanges(on(100, "10:00"), on(40, "10:30"), off("11:00"));
+
+        assertEquals(Map.of(at("10:00"), -50.0 + 20.0), changes);
+    }
+
+    @Test
+    void powerOffInsertedBeforeTheNextOneRemovesConsumption() {
+        var changes = PowerLogTable.rollUpChanges(on(100, "10:00"), off("10:30"), off("11:30"));
+
+        assertEquals(Map.of(
+            at("10:00"), -50.0,
+            at("11:00"), -50.0
+        ), changes);
+    }
+
+    @Test
+    void firstLogInsertedBeforeTheNextOneAddsItsConsumption() {
+        var changes = PowerLogTable.rollUpChanges(null, on(120, "09:45"), off("10:15"));
+
+        assertEquals(Map.of(
+            at("09:00"), 30.0,
+            at("10:00"), 30.0
+        ), changes);
+    }
+
+    @Test
+    void insertingInOrderGivesTheSameTotalAsInsertingLate() {
+        PowerLog a = on(100, "10:00");
+        PowerLog b = on(40, "10:40");
+        PowerLog c = off("12:20");
+
+        // In order: a, b, c.
+        var inOrder = new HashMap<Instant, Double>();
+        PowerLogTable.rollUpChanges(a, b, null).forEach((h, v) -> inOrder.merge(h, v, Double::sum));
+        PowerLogTable.rollUpChanges(b, c, null).forEach((h, v) -> inOrder.merge(h, v, Double::sum));
+
+        // b arrives late: a, c, then b.
+        var late = new HashMap<Instant, Double>();
+        PowerLogTable.rollUpChanges(a, c, null).forEach((h, v) -> late.merge(h, v, Double::sum));
+        PowerLogTable.rollUpChanges(a, b, c).forEach((h, v) -> late.merge(h, v, Double::sum));
+
+        assertEquals(inOrder.keySet(), late.keySet());
+        for (Instant hour : inOrder.keySet()) {
+            assertEquals(inOrder.get(hour), late.get(hour), 1e-9, "Consumption of " + hour);
+        }
+    }
+
+    private static PowerLog on(double watts, String time) {
+        return new PowerLog(1, "POWER_ON", watts, at(time));
+    }
+
+    private static PowerLog off(String time) {
+        return new PowerLog(1, "POWER_OFF", 0, at(time));
+    }
+
+    /// The instant at this time (`HH:mm`) of [#DAY], in UTC.
+    private static Instant at(String time) {
+        return DAY.plus(Duration.between(LocalTime.MIDNIGHT, LocalTime.parse(time)));
+    }
+}
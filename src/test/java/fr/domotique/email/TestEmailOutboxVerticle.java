@@ -0,0 +1,294 @@
+package fr.domotique.email;
+
+import fr.domotique.data.*;
+import io.vertx.core.*;
+import io.vertx.junit5.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests the [EmailOutboxVerticle] with an outbox in memory and a fake e-mail service, so we can make it fail
+/// on purpose, and check how it retries e-mails, when its circuit opens, and that claimed e-mails aren't sent twice.
+@ExtendWith(VertxExtension.class)
+public class TestEmailOutboxVerticle {
+    @Test
+    void sentEmailsAreRemoved(Vertx vertx) throws Exception {
+        var table = new StubOutboxTable();
+        var sender = new StubSender();
+        long first = table.add(0);
+        long second = table.add(0);
+
+        deploy(vertx, table, sender);
+        wake(vertx);
+
+        waitUntil(() -> table.deleted().size() == 2);
+        assertEquals(List.of(first, second), table.deleted());
+        assertEquals(2, sender.calls.get());
+        assertTrue(table.retries().isEmpty());
+    }
+
+    @Test
+    void retryableFailuresAreSentAgainLater(Vertx vertx) throws Exception {
+        var table = new StubOutboxTable();
+        var sender = new StubSender();
+        sender.behavior = _ -> Future.failedFuture(new EmailException("Too many requests", true));
+        long id = table.add(0);
+
+        long before = System.currentTimeMillis();
+        deploy(vertx, table, sender);
+        wake(vertx);
+
+        waitUntil(() -> table.retries().size() == 1);
+        long after = System.currentTimeMillis();
+
+        Retry retry = table.retries().getFirst();
+        assertEquals(id, retry.id());
+        assertEquals("Too many requests", retry.error());
+        assertNotNull(retry.nextAttemptAt());
+        assertTrue(retry.nextAttemptAt() >= before + EmailOutboxVerticle.FIRST_RETRY_DELAY_MS * 3 / 4);
+        assertTrue(retry.nextAttemptAt() <= after + EmailOutboxVerticle.FIRST_RETRY_DELAY_MS * 5 / 4);
+
+        // Once it's time, the e-mail is sent again, and this time it works.
+        sender.behavior = _ -> Future.succeededFuture();
+        table.advance(EmailOutboxVerticle.FIRST_RETRY_DELAY_MS * 2);
+        wake(vertx);
+
+        waitUntil(() -> table.deleted().contains(id));
+        assertEquals(2, sender.calls.get());
+    }
+
+    @Test
+    void givesUpAfterTooManyAttempts(Vertx vertx) throws Exception {
+        var table = new StubOutboxTable();
+        var sender = new StubSender();
+        sender.behavior = _ -> Future.failedFuture(new EmailException("Service unavailable", true));
+        table.add(EmailOutboxVerticle.MAX_ATTEMPTS - 1);
+
+        deploy(vertx, table, sender);
+        wake(vertx);
+
+        waitUntil(() -> table.retries().size() == 1);
+        assertNull(table.retries().getFirst().nextAttemptAt());
+    }
+
+    @Test
+    void givesUpOnErrorsThatArentRetryable(Vertx vertx) throws Exception {
+        var table = new StubOutboxTable();
+        var sender = new StubSender();
+        sender.behavior = _ -> Future.failedFuture(new EmailException("Invalid recipient", false));
+        table.add(0);
+
+        deploy(vertx, table, sender);
+        wake(vertx);
+
+        waitUntil(() -> table.retries().size() == 1);
+        assertNull(table.retries().getFirst().nextAttemptAt());
+    }
+
+    @Test
+    void retryDelayDoublesUntilTheMaximum() {
+        for (int attempts = 1; attempts < 20; attempts++) {
+            long expected = Math.min(EmailOutboxVerticle.FIRST_RETRY_DELAY_MS << (attempts - 1),
+                EmailOutboxVerticle.MAX_RETRY_DELAY_MS);
+            long delay = EmailOutboxVerticle.retryDelay(attempts);
+
+            assertTrue(delay >= expected * 3 / 4, "Delay too short after " + attempts + " attempts: " + delay);
+            assertTrue(delay <= expected * 5 / 4, "Delay too long after " + attempts + " attempts: " + delay);
+        }
+    }
+
+    @Test
+    void circuitOpensAfterFailingBatches(Vertx vertx) throws Exception {
+        var table = new StubOutboxTable();
+        var sender = new StubSender();
+        sender.behavior = _ -> Future.failedFuture(new EmailException("Internal server error", true));
+
+        deploy(vertx, table, sender);
+
+        // Each batch fails, until the circuit opens.
+        for (int i = 1; i <= EmailOutboxVerticle.BREAKER_THRESHOLD; i++) {
+            table.add(0);
+            wake(vertx);
+
+            int batches = i;
+            waitUntil(() -> table.retries().size() == batches);
+        }
+
+        // The circuit is open: new e-mails aren't even claimed.
+        table.add(0);
+        wake(vertx);
+        Thread.sleep(200);
+
+        assertEquals(EmailOutboxVerticle.BREAKER_THRESHOLD, table.claims.get());
+        assertEquals(EmailOutboxVerticle.BREAKER_THRESHOLD, sender.calls.get());
+    }
+
+    @Test
+    void claimedEmailsAreSentAgainOnlyOnceTheLeaseExpires(Vertx vertx) throws Exception {
+        var table = new StubOutboxTable();
+
+        // The first server claims the e-mail, but never manages to send it (it's stuck, or crashed).
+        var stuck = Promise.<Void>promise();
+        var stuckContext = new AtomicReference<Context>();
+        var stuckSender = new StubSender();
+        stuckSender.behavior = _ -> {
+            stuckContext.set(Vertx.currentContext());
+            return stuck.future();
+        };
+        long id = table.add(0);
+
+        deploy(vertx, table, stuckSender);
+        wake(vertx);
+        waitUntil(() -> stuckSender.calls.get() == 1);
+
+        // Another server looks at the outbox: the e-mail is still claimed, so it leaves it alone.
+        var sender = new StubSender();
+        deploy(vertx, table, sender);
+        wake(vertx);
+        Thread.sleep(200);
+        assertEquals(0, sender.calls.get());
+
+        // Once the lease expires, the other server sends it.
+        table.advance(EmailOutboxVerticle.LEASE_MS + 1);
+        wake(vertx);
+        waitUntil(() -> table.deleted().contains(id));
+        assertEquals(1, sender.calls.get());
+
+        // Let the first server stop.
+        stuckContext.get().runOnContext(_ -> stuck.fail("Stopped"));
+    }
+
+    private static void deploy(Vertx vertx, EmailOutboxTable table, EmailSender sender) throws Exception {
+        vertx.deployVerticle(new EmailOutboxVerticle(table, sender))
+            .toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    /// Wakes up all outbox verticles, like [EmailOutbox] does when an e-mail is added.
+    private static void wake(Vertx vertx) {
+        vertx.eventBus().publish(EmailOutboxVerticle.CHANNEL, null);
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end) {
+                fail("Timed out waiting for the outbox");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /// A failed attempt given to [EmailOutboxTable#retryLater(long, Long, String)].
+    record Retry(long id, Long nextAttemptAt, String error) {}
+
+    /// The `EmailOutbox` table, in memory. Leases use a clock we can [advance][#advance(long)], instead of waiting.
+    static class StubOutboxTable extends EmailOutboxTable {
+        private final Map<Long, Long> nextAttemptAt = new LinkedHashMap<>();
+        private final Map<Long, Integer> attempts = new HashMap<>();
+        private final List<Retry> retries = new ArrayList<>();
+        private final List<Long> deleted = new ArrayList<>();
+        private long nextId = 1;
+        private long offset;
+
+        /// How many times [#claim(int, long)] has been called.
+        final AtomicInteger claims = new AtomicInteger();
+
+        StubOutboxTable() {
+            super(null);
+        }
+
+        /// Adds an e-mail which already failed `attempts` times, ready to be sent. Returns its id.
+        synchronized long add(int attempts) {
+            long id = nextId++;
+            nextAttemptAt.put(id, now());
+            this.attempts.put(id, attempts);
+            return id;
+        }
+
+        /// Moves the clock of the outbox `ms` milliseconds forward.
+        synchronized void advance(long ms) {
+            offset += ms;
+        }
+
+        synchronized List<Retry> retries() {
+            return List.copyOf(retries);
+        }
+
+        synchronized List<Long> deleted() {
+            return List.copyOf(deleted);
+        }
+
+        private long now() {
+            return System.currentTimeMillis() + offset;
+        }
+
+        @Override
+        public synchronized Future<List<OutboxEmail>> claim(int limit, long leaseMs) {
+            claims.incrementAndGet();
+
+            long now = now();
+            var claimed = new ArrayList<OutboxEmail>();
+            for (Map.Entry<Long, Long> e : nextAttemptAt.entrySet()) {
+                if (claimed.size() < limit && e.getValue() != null && e.getValue() <= now) {
+                    long id = e.getKey();
+                    claimed.add(new OutboxEmail(id, attempts.get(id),
+                        new OutgoingEmail("user" + id + "@example.com", "Subject", "Body")));
+                    e.setValue(now + leaseMs);
+                }
+            }
+            return Future.succeededFuture(claimed);
+        }
+
+        @Override
+        public synchronized Future<Void> extendLease(List<Long> ids, long leaseMs) {
+            for (Long id : ids) {
+                if (nextAttemptAt.get(id) != null) {
+                    nextAttemptAt.put(id, now() + leaseMs);
+                }
+            }
+            return Future.succeededFuture();
+        }
+
+        @Override
+        public synchronized Future<Void> deleteAll(List<Long> ids) {
+            for (Long id : ids) {
+                nextAttemptAt.remove(id);
+                deleted.add(id);
+            }
+            return Future.succeededFuture();
+        }
+
+        @Override
+        public synchronized Future<Void> retryLater(long id, Long nextAttemptAt, String error) {
+            if (this.nextAttemptAt.containsKey(id)) {
+                this.nextAttemptAt.put(id, nextAttemptAt);
+                attempts.merge(id, 1, Integer::sum);
+            }
+            retries.add(new Retry(id, nextAttemptAt, error));
+            return Future.succeededFuture();
+        }
+
+        @Override
+        public synchronized Future<Integer> countPending() {
+            return Future.succeededFuture((int) nextAttemptAt.values().stream().filter(Objects::nonNull).count());
+        }
+    }
+
+    /// An e-mail service doing whatever [#behavior] says.
+    static class StubSender implements EmailSender {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile Function<OutgoingEmail, Future<Void>> behavior = _ -> Future.succeededFuture();
+
+        @Override
+        public Future<Void> send(String recipientEmail, String subject, String body) {
+            calls.incrementAndGet();
+            return behavior.apply(new OutgoingEmail(recipientEmail, subject, body));
+        }
+    }
+}
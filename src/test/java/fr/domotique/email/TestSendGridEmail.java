@@ -0,0 +1,114 @@
+package fr.domotique.email;
+
+import io.vertx.core.*;
+import io.vertx.core.http.*;
+import io.vertx.core.json.*;
+import io.vertx.junit5.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.*;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests the requests [SendGridEmail] sends, and how it reads the answers, using a fake SendGrid server running locally.
+@ExtendWith(VertxExtension.class)
+public class TestSendGridEmail {
+    private final List<JsonObject> requests = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> authorizations = Collections.synchronizedList(new ArrayList<>());
+    /// The status code of the answers of the fake server.
+    private volatile int status = 202;
+
+    private SendGridEmail sendGrid;
+
+    @BeforeEach
+    void startServer(Vertx vertx) throws Exception {
+        HttpServer server = await(vertx.createHttpServer()
+            .requestHandler(req -> req.body().onSuccess(body -> {
+                requests.add(body.toJsonObject());
+                authorizations.add(req.getHeader("Authorization"));
+                req.response().setStatusCode(status).end(status < 300 ? "" : "{\"errors\":[]}");
+            }))
+            .listen(0));
+
+        String url = "http://localhost:" + server.actualPort() + "/v3/mail/send";
+        sendGrid = new SendGridEmail(vertx, url, "secret", "noreply@domotique.fr");
+    }
+
+    @Test
+    void emailsWithTheSameSubjectAndBodyShareOneRequest() throws Exception {
+        var results = sendGrid.sendAll(List.of(
+            new OutgoingEmail("alice@example.com", "Bienvenue", "Bonjour -name-", Map.of("-name-", "Alice")),
+            new OutgoingEmail("bob@example.com", "Bienvenue", "Bonjour -name-", Map.of("-name-", "Bob")),
+            new OutgoingEmail("carol@example.com", "Autre chose", "Rien à voir")
+        ));
+        await(Future.all(results));
+
+        assertEquals(2, requests.size());
+        assertEquals(List.of("Bearer secret", "Bearer secret"), authorizations);
+
+        JsonObject shared = requestWithSubject("Bienvenue");
+        assertEquals("noreply@domotique.fr", shared.getJsonObject("from").getString("email"));
+        assertEquals("Bonjour -name-", shared.getJsonArray("content").getJsonObject(0).getString("value"));
+
+        JsonArray personalizations = shared.getJsonArray("personalizations");
+        assertEquals(2, personalizations.size());
+        assertEquals("alice@example.com", personalizations.getJsonObject(0).getJsonArray("to").getJsonObject(0).getString("email"));
+        assertEquals("Alice", personalizations.getJsonObject(0).getJsonObject("substitutions").getString("-name-"));
+        assertEquals("bob@example.com", personalizations.getJsonObject(1).getJsonArray("to").getJsonObject(0).getString("email"));
+        assertEquals("Bob", personalizations.getJsonObject(1).getJsonObject("substitutions").getString("-name-"));
+
+        // No substitutions: nothing sent.
+        JsonObject other = requestWithSubject("Autre chose");
+        assertFalse(other.getJsonArray("personalizations").getJsonObject(0).containsKey("substitutions"));
+    }
+
+    @Test
+    void batchesHaveAtMostMaxPersonalizations() throws Exception {
+        var emails = new ArrayList<OutgoingEmail>();
+        for (int i = 0; i <= SendGridEmail.MAX_PERSONALIZATIONS; i++) {
+            emails.add(new OutgoingEmail("user" + i + "@example.com", "Bienvenue", "Bonjour"));
+        }
+        await(Future.all(sendGrid.sendAll(emails)));
+
+        var sizes = requests.stream().map(r -> r.getJsonArray("personalizations").size()).sorted().toList();
+        assertEquals(List.of(1, SendGridEmail.MAX_PERSONALIZATIONS), sizes);
+    }
+
+    @Test
+    void refusedEmailsAreNotRetryable() {
+        status = 400;
+
+        EmailException ex = sendFailure();
+        assertFalse(ex.isRetryable());
+        assertTrue(ex.getMessage().contains("400"), ex.getMessage());
+    }
+
+    @Test
+    void busyServiceIsRetryable() {
+        status = 429;
+        assertTrue(sendFailure().isRetryable());
+
+        status = 503;
+        assertTrue(sendFailure().isRetryable());
+    }
+
+    /// Sends an e-mail which must fail, and returns its error.
+    private EmailException sendFailure() {
+        var ex = assertThrows(ExecutionException.class,
+            () -> await(sendGrid.send("alice@example.com", "Bienvenue", "Bonjour")));
+        return assertInstanceOf(EmailException.class, ex.getCause());
+    }
+
+    private JsonObject requestWithSubject(String subject) {
+        synchronized (requests) {
+            return requests.stream().filter(r -> subject.equals(r.getString("subject"))).findFirst().orElseThrow();
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+}